@@ -0,0 +1,165 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import okhttp3.ResponseBody;
+
+import static org.junit.Assert.*;
+
+/**
+ * 响应解析的正确性和基准：android.util.JsonReader 只在设备上可用，因此在设备上运行。
+ * 基准比较原来的 string() + JSONObject 与 ApiResponseParser 拉取式解析的耗时中位数和堆分配量，
+ * 结果见 logcat 中的 ApiResponseParserBenchmark 标签。
+ */
+@RunWith(AndroidJUnit4.class)
+public class ApiResponseParserBenchmarkTest {
+    private static final String TAG = "ApiResponseParserBenchmark";
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURE_ROUNDS = 200;
+
+    @Test
+    public void parse_extractsContentFinishReasonAndUsage() throws Exception {
+        String json = "{\"id\":\"1\",\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\"好的，\\\"收到\\\"\\n\"},"
+                + "\"logprobs\":null,\"finish_reason\":\"length\"},{\"index\":1,\"message\":{\"content\":\"忽略\"}}],"
+                + "\"usage\":{\"prompt_tokens\":120,\"completion_tokens\":512,\"total_tokens\":632,\"details\":{\"cached\":0}}}";
+        ApiResult result = ApiResponseParser.parse(body(json).charStream());
+
+        assertEquals("好的，\"收到\"\n", result.getContent());
+        assertTrue(result.isTruncated());
+        assertEquals(120, result.getPromptTokens());
+        assertEquals(512, result.getCompletionTokens());
+        assertEquals(632, result.getTotalTokens());
+        assertNull(result.getError());
+    }
+
+    @Test
+    public void parse_handlesStreamEventsErrorsAndContentParts() throws Exception {
+        ApiResult delta = ApiResponseParser.parse(body("{\"choices\":[{\"delta\":{\"content\":\"你\"},\"finish_reason\":null}]}").charStream());
+        assertEquals("你", delta.getContent());
+        assertNull(delta.getFinishReason());
+        assertEquals(-1, delta.getTotalTokens());
+
+        ApiResult usageOnly = ApiResponseParser.parse(body("{\"choices\":[],\"usage\":{\"total_tokens\":9}}").charStream());
+        assertNull(usageOnly.getContent());
+        assertEquals(9, usageOnly.getTotalTokens());
+
+        ApiResult error = ApiResponseParser.parse(body("{\"error\":{\"message\":\"quota exceeded\",\"code\":429}}").charStream());
+        assertEquals("quota exceeded", error.getError());
+
+        ApiResult parts = ApiResponseParser.parse(body("{\"choices\":[{\"message\":{\"content\":"
+                + "[{\"type\":\"text\",\"text\":\"第一段\"},{\"type\":\"text\",\"text\":\"第二段\"}]}}]}").charStream());
+        assertEquals("第一段第二段", parts.getContent());
+    }
+
+    @Test
+    public void readErrorBody_isBounded() throws Exception {
+        char[] html = new char[100_000];
+        Arrays.fill(html, 'x');
+        String text = ApiResponseParser.readErrorBody(body(new String(html)));
+        assertEquals(ApiResponseParser.MAX_ERROR_BODY_BYTES + 1, text.length());
+        assertTrue(text.endsWith("…"));
+
+        assertEquals("{\"error\":\"bad key\"}", ApiResponseParser.readErrorBody(body("{\"error\":\"bad key\"}")));
+    }
+
+    @Test
+    public void reportParseTimeAndAllocation() throws Exception {
+        // 常见的回复，以及带有大量附加字段（如 logprobs）的回复
+        String[] names = {"typical", "with_logprobs"};
+        String[] responses = {response(300, 0), response(2000, 4000)};
+        Log.i(TAG, "response\tbytes\tpath\tmedian_us\talloc_bytes");
+        for (int i = 0; i < responses.length; i++) {
+            String json = responses[i];
+            long[] legacy = measure(json, ApiResponseParserBenchmarkTest::parseLegacy);
+            long[] pull = measure(json, ApiResponseParserBenchmarkTest::parsePull);
+            Log.i(TAG, String.format(Locale.US, "%s\t%d\torg.json\t%d\t%d", names[i], json.length(), legacy[0] / 1000, legacy[1]));
+            Log.i(TAG, String.format(Locale.US, "%s\t%d\tJsonReader\t%d\t%d", names[i], json.length(), pull[0] / 1000, pull[1]));
+        }
+    }
+
+    private interface Parser {
+        String parse(ResponseBody body) throws Exception;
+    }
+
+    /*
+     返回 {耗时中位数（纳秒）, 平均每次的堆分配字节数}
+     */
+    private static long[] measure(String json, Parser parser) throws Exception {
+        byte[] bytes = json.getBytes("UTF-8");
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            assertNotNull(parser.parse(ResponseBody.create(bytes, ApiUtils.JSON)));
+        }
+        long[] nanos = new long[MEASURE_ROUNDS];
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            ResponseBody body = ResponseBody.create(bytes, ApiUtils.JSON);
+            long start = SystemClock.elapsedRealtimeNanos();
+            parser.parse(body);
+            nanos[i] = SystemClock.elapsedRealtimeNanos() - start;
+        }
+        long allocated = (allocatedBytes() - allocatedBefore) / MEASURE_ROUNDS;
+        Arrays.sort(nanos);
+        return new long[]{nanos[MEASURE_ROUNDS / 2], allocated};
+    }
+
+    private static long allocatedBytes() {
+        return Long.parseLong(Debug.getRuntimeStat("art.gc.bytes-allocated"));
+    }
+
+    /*
+     原来的实现：读取整个响应体为字符串，再构建 JSONObject
+     */
+    private static String parseLegacy(ResponseBody body) throws Exception {
+        JSONObject response = new JSONObject(body.string());
+        JSONArray choices = response.getJSONArray("choices");
+        return choices.getJSONObject(0).getJSONObject("message").getString("content");
+    }
+
+    private static String parsePull(ResponseBody body) throws IOException {
+        try (ResponseBody closing = body) {
+            return ApiResponseParser.parse(closing.charStream()).getContent();
+        }
+    }
+
+    /*
+     生成响应：contentChars 个字符的回复，以及 logprobEntries 条逐token的概率信息
+     */
+    private static String response(int contentChars, int logprobEntries) throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < contentChars; i++) {
+            content.append((char) ('你' + i % 64));
+        }
+        JSONArray logprobs = new JSONArray();
+        for (int i = 0; i < logprobEntries; i++) {
+            logprobs.put(new JSONObject().put("token", "t" + i).put("logprob", -0.01 * i).put("bytes", new JSONArray().put(116)));
+        }
+        JSONObject choice = new JSONObject()
+                .put("index", 0)
+                .put("message", new JSONObject().put("role", "assistant").put("content", content.toString()))
+                .put("logprobs", logprobEntries > 0 ? new JSONObject().put("content", logprobs) : JSONObject.NULL)
+                .put("finish_reason", "stop");
+        return new JSONObject()
+                .put("id", "chatcmpl-benchmark")
+                .put("object", "chat.completion")
+                .put("choices", new JSONArray().put(choice))
+                .put("usage", new JSONObject().put("prompt_tokens", 800).put("completion_tokens", contentChars).put("total_tokens", 800 + contentChars))
+                .toString();
+    }
+
+    private static ResponseBody body(String json) {
+        return ResponseBody.create(json, ApiUtils.JSON);
+    }
+}
@@ -0,0 +1,165 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+import static org.junit.Assert.*;
+
+/**
+ * 用 MockWebServer 返回SSE流，验证 ApiUtils 对流式响应的解析：跨多次读取的增量、[DONE] 结束标记、
+ * 注释和保活行，以及流中途返回的错误。事件由 android.util.JsonReader 解析，因此在设备上运行。
+ */
+@RunWith(AndroidJUnit4.class)
+public class EventStreamTest {
+    private MockWebServer server;
+    private OkHttpClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        // 使用HTTPS，不受应用禁止明文流量的网络安全策略影响
+        String localhost = InetAddress.getByName("localhost").getCanonicalHostName();
+        HeldCertificate certificate = new HeldCertificate.Builder()
+                .addSubjectAlternativeName(localhost)
+                .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+                .heldCertificate(certificate)
+                .build();
+        HandshakeCertificates clientCertificates = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(certificate.certificate())
+                .build();
+
+        server = new MockWebServer();
+        server.useHttps(serverCertificates.sslSocketFactory(), false);
+        server.start();
+        client = HttpClientEngine.newClientBuilder()
+                .sslSocketFactory(clientCertificates.sslSocketFactory(), clientCertificates.trustManager())
+                .build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void deltasSplitAcrossReadsAreReassembled() throws Exception {
+        // 每次只发送几个字节，事件、data行和中文字符的UTF-8编码都会被拆到多次读取中
+        server.enqueue(eventStream(delta("你好") + delta("，明天") + delta("下午三点见") + "data: [DONE]\n\n")
+                .throttleBody(3, 1, TimeUnit.MILLISECONDS));
+
+        Recorder recorder = send();
+
+        assertEquals(Arrays.asList("你好", "，明天", "下午三点见"), recorder.partials);
+        assertEquals("你好，明天下午三点见", recorder.success);
+        assertNull(recorder.errorBody);
+    }
+
+    @Test
+    public void doneTerminatorEndsTheReply() throws Exception {
+        server.enqueue(eventStream(delta("好的") + "data: [DONE]\n\n" + delta("不应出现")));
+
+        Recorder recorder = send();
+
+        assertEquals("好的", recorder.success);
+        assertEquals(Arrays.asList("好的"), recorder.partials);
+    }
+
+    @Test
+    public void commentAndKeepAliveLinesAreIgnored() throws Exception {
+        server.enqueue(eventStream(": keep-alive\n\n"
+                + "event: message\nid: 1\nretry: 3000\n" + delta("收到")
+                + ":\n\n"
+                + ": ping\n" + delta("，谢谢")
+                + "data: [DONE]\n\n"));
+
+        Recorder recorder = send();
+
+        assertEquals(Arrays.asList("收到", "，谢谢"), recorder.partials);
+        assertEquals("收到，谢谢", recorder.success);
+    }
+
+    @Test
+    public void errorReturnedMidStreamIsReported() throws Exception {
+        String error = "{\"error\":{\"message\":\"rate limit exceeded\",\"code\":429}}";
+        server.enqueue(eventStream(delta("稍等") + "data: " + error + "\n\n" + delta("不应出现") + "data: [DONE]\n\n"));
+
+        Recorder recorder = send();
+
+        assertEquals(Arrays.asList("稍等"), recorder.partials);
+        assertNull(recorder.success);
+        assertEquals(200, recorder.errorStatus);
+        assertEquals(error, recorder.errorBody);
+    }
+
+    private static MockResponse eventStream(String body) {
+        return new MockResponse()
+                .setHeader("Content-Type", "text/event-stream; charset=utf-8")
+                .setBody(body);
+    }
+
+    private static String delta(String content) {
+        return "data: {\"choices\":[{\"index\":0,\"delta\":{\"content\":\"" + content + "\"},\"finish_reason\":null}]}\n\n";
+    }
+
+    /*
+     发送请求并同步解析响应，回调在当前线程中执行
+     */
+    private Recorder send() throws IOException {
+        Request request = new Request.Builder()
+                .url(server.url("/chat/completions"))
+                .post(RequestBody.create("{}", ApiUtils.JSON))
+                .build();
+        Response response = client.newCall(request).execute();
+        Recorder recorder = new Recorder();
+        ApiUtils.handleResponse(response, recorder);
+        return recorder;
+    }
+
+    private static final class Recorder implements ApiUtils.ApiCallback {
+        final List<String> partials = new ArrayList<>();
+        String success;
+        int errorStatus;
+        String errorBody;
+
+        @Override
+        public void onPartial(String delta) {
+            partials.add(delta);
+        }
+
+        @Override
+        public void onSuccess(String content) {
+            success = content;
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            throw new AssertionError(e);
+        }
+
+        @Override
+        public void onError(int statusCode, String errorBody, Exception e) {
+            this.errorStatus = statusCode;
+            this.errorBody = errorBody;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * 图片编码策略基准：对样例截图逐一应用各编码策略，输出编码后的字节数和耗时。
+ * Bitmap 压缩依赖原生编码器，因此在设备上运行；结果见 logcat 中的 ImageEncoderBenchmark 标签。
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageEncoderBenchmarkTest {
+    private static final String TAG = "ImageEncoderBenchmark";
+    private static final String SAMPLE_DIR = "screenshots";
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int MEASURE_ROUNDS = 5;
+
+    // 以 1440p 设备截图为准，把样例等比放大到 1440 像素宽，模拟全分辨率截屏
+    private static final int FULL_WIDTH = 1440;
+
+    private static final ImageEncoder.Policy[] POLICIES = {
+            // 旧行为：全分辨率 JPEG，不限制大小
+            new ImageEncoder.Policy(0, 0, ImageEncoder.FORMAT_JPEG, false),
+            new ImageEncoder.Policy(1600, 300 * 1024, ImageEncoder.FORMAT_JPEG, false),
+            new ImageEncoder.Policy(1600, 300 * 1024, ImageEncoder.FORMAT_WEBP, false),
+            new ImageEncoder.Policy(1280, 150 * 1024, ImageEncoder.FORMAT_JPEG, true),
+            new ImageEncoder.Policy(1280, 150 * 1024, ImageEncoder.FORMAT_WEBP, true),
+    };
+
+    @Test
+    public void reportBytesAndEncodeTimePerPolicy() throws IOException {
+        List<Bitmap> samples = loadSamples();
+        assertFalse(samples.isEmpty());
+
+        Log.i(TAG, "sample\tpolicy\tsize\tquality\tbytes\tencode_ms");
+        for (int i = 0; i < samples.size(); i++) {
+            Bitmap sample = samples.get(i);
+            for (ImageEncoder.Policy policy : POLICIES) {
+                for (int round = 0; round < WARMUP_ROUNDS; round++) {
+                    ImageEncoder.encode(sample, policy);
+                }
+
+                ImageEncoder.EncodedImage result = null;
+                long totalNanos = 0;
+                for (int round = 0; round < MEASURE_ROUNDS; round++) {
+                    long start = SystemClock.elapsedRealtimeNanos();
+                    result = ImageEncoder.encode(sample, policy);
+                    totalNanos += SystemClock.elapsedRealtimeNanos() - start;
+                }
+
+                double averageMs = totalNanos / 1_000_000.0 / MEASURE_ROUNDS;
+                Log.i(TAG, String.format(Locale.US, "%d\t%s\t%dx%d\t%d\t%d\t%.1f",
+                        i, policy, result.getWidth(), result.getHeight(),
+                        result.getQuality(), result.getData().length, averageMs));
+
+                if (policy.getMaxLongEdge() > 0) {
+                    assertTrue(Math.max(result.getWidth(), result.getHeight()) <= policy.getMaxLongEdge());
+                }
+                if (policy.getByteBudget() > 0
+                        && Math.max(result.getWidth(), result.getHeight()) > ImageEncoder.MIN_LONG_EDGE) {
+                    assertTrue(result.getData().length <= policy.getByteBudget());
+                }
+            }
+        }
+
+        for (Bitmap sample : samples) {
+            sample.recycle();
+        }
+    }
+
+    /*
+     读取样例截图，并放大为全分辨率截屏尺寸
+     */
+    private List<Bitmap> loadSamples() throws IOException {
+        AssetManager assets = InstrumentationRegistry.getInstrumentation().getContext().getAssets();
+        List<Bitmap> samples = new ArrayList<>();
+        for (String name : assets.list(SAMPLE_DIR)) {
+            try (InputStream input = assets.open(SAMPLE_DIR + "/" + name)) {
+                Bitmap decoded = BitmapFactory.decodeStream(input);
+                int fullHeight = Math.round(decoded.getHeight() * (float) FULL_WIDTH / decoded.getWidth());
+                Bitmap full = Bitmap.createScaledBitmap(decoded, FULL_WIDTH, fullHeight, true);
+                if (full != decoded) {
+                    decoded.recycle();
+                }
+                samples.add(full);
+            }
+        }
+        return samples;
+    }
+}
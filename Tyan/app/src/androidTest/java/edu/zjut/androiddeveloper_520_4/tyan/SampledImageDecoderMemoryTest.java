@@ -0,0 +1,154 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ImageDecoder;
+import android.graphics.Paint;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * 相册图片解码的内存测试：对一张大尺寸照片分别按原始分辨率和按需降采样解码，
+ * 比较解码过程中原生堆的峰值增长；结果见 logcat 中的 SampledDecoderMemory 标签。
+ */
+@RunWith(AndroidJUnit4.class)
+public class SampledImageDecoderMemoryTest {
+    private static final String TAG = "SampledDecoderMemory";
+    // 1200 万像素，原始分辨率解码约 48MB
+    private static final int PHOTO_WIDTH = 4000;
+    private static final int PHOTO_HEIGHT = 3000;
+    private static final int PREVIEW_EDGE = 1080;
+
+    private Context context;
+    private ContentResolver resolver;
+    private File photo;
+
+    @Before
+    public void setUp() throws IOException {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        resolver = context.getContentResolver();
+        photo = new File(context.getCacheDir(), "decoder_memory_test.jpg");
+        writeSamplePhoto(photo, PHOTO_WIDTH, PHOTO_HEIGHT);
+    }
+
+    @After
+    public void tearDown() {
+        photo.delete();
+    }
+
+    @Test
+    public void sampledDecodeUsesFractionOfFullResolutionMemory() throws IOException {
+        Uri uri = Uri.fromFile(photo);
+        ImageEncoder.Policy policy = new ImageEncoder.Policy(1600, 300 * 1024, ImageEncoder.FORMAT_JPEG, false);
+
+        long fullPeak = measurePeak(() -> ImageDecoder.decodeBitmap(ImageDecoder.createSource(resolver, uri),
+                (decoder, info, source) -> decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE)));
+        long previewPeak = measurePeak(() -> SampledImageDecoder.decodeForDisplay(resolver, uri, PREVIEW_EDGE));
+        long uploadPeak = measurePeak(() -> SampledImageDecoder.decodeForUpload(resolver, uri, policy));
+
+        Log.i(TAG, "full=" + fullPeak / 1024 + "KB, preview=" + previewPeak / 1024
+                + "KB, upload=" + uploadPeak / 1024 + "KB");
+
+        long fullBitmapBytes = (long) PHOTO_WIDTH * PHOTO_HEIGHT * 4;
+        assertTrue(fullPeak >= fullBitmapBytes / 2);
+        assertTrue(previewPeak < fullBitmapBytes / 8);
+        assertTrue(uploadPeak < fullBitmapBytes / 4);
+    }
+
+    @Test
+    public void decodeRespectsExifOrientationAndBounds() throws IOException {
+        File rotated = new File(context.getCacheDir(), "decoder_rotation_test.jpg");
+        try {
+            writeSamplePhoto(rotated, 400, 200);
+            ExifInterface exif = new ExifInterface(rotated.getAbsolutePath());
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(ExifInterface.ORIENTATION_ROTATE_90));
+            exif.saveAttributes();
+
+            Bitmap bitmap = SampledImageDecoder.decodeForDisplay(resolver, Uri.fromFile(rotated), 100);
+            // 旋转90度后为竖图，最长边不超过100
+            assertEquals(50, bitmap.getWidth());
+            assertEquals(100, bitmap.getHeight());
+            bitmap.recycle();
+        } finally {
+            rotated.delete();
+        }
+    }
+
+    private interface DecodeTask {
+        Bitmap decode() throws IOException;
+    }
+
+    /*
+     解码期间原生堆相对解码前的峰值增长，Bitmap 像素和解码器的临时缓冲区都分配在原生堆中；
+     解码时由采样线程每毫秒读取一次原生堆占用
+     */
+    private long measurePeak(DecodeTask task) throws IOException {
+        Runtime.getRuntime().gc();
+        long before = Debug.getNativeHeapAllocatedSize();
+        AtomicLong peak = new AtomicLong(before);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread sampler = new Thread(() -> {
+            while (running.get()) {
+                peak.accumulateAndGet(Debug.getNativeHeapAllocatedSize(), Math::max);
+                SystemClock.sleep(1);
+            }
+        });
+        sampler.start();
+
+        Bitmap bitmap;
+        try {
+            bitmap = task.decode();
+            peak.accumulateAndGet(Debug.getNativeHeapAllocatedSize(), Math::max);
+        } finally {
+            running.set(false);
+            try {
+                sampler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long growth = Math.max(peak.get() - before, bitmap.getAllocationByteCount());
+        bitmap.recycle();
+        return growth;
+    }
+
+    /*
+     生成带有细节的样例照片，纯色图片压缩后过小，解码行为不具代表性
+     */
+    private static void writeSamplePhoto(File file, int width, int height) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawColor(Color.WHITE);
+        Paint paint = new Paint();
+        for (int y = 0; y < height; y += 40) {
+            paint.setColor(Color.rgb(y % 256, (y * 3) % 256, (y * 7) % 256));
+            canvas.drawRect(0, y, width, y + 20, paint);
+        }
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, output);
+        }
+        bitmap.recycle();
+    }
+}
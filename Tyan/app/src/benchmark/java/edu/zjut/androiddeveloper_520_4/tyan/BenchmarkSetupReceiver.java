@@ -0,0 +1,63 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/*
+ 基准测试的数据准备，只包含在 benchmark 构建类型中，由 :benchmark 模块通过 shell 发送广播：
+ 1. url：把大模型端点指向基准测试进程中的 MockWebServer，并关闭回复缓存，每次点击都真正发送请求
+ 2. messages：把本地图片回复页面的对话记录替换为指定数量的消息，用于测量滚动
+ am broadcast 会等待 onReceive 和异步写入完成后才返回
+ */
+public class BenchmarkSetupReceiver extends BroadcastReceiver {
+    private static final String TAG = "BenchmarkSetupReceiver";
+
+    static final String EXTRA_URL = "url";
+    static final String EXTRA_MESSAGES = "messages";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String url = intent.getStringExtra(EXTRA_URL);
+        if (url != null) {
+            StyleSettingsManager settingsManager = new StyleSettingsManager(context);
+            settingsManager.setKey("benchmark");
+            settingsManager.update(settings -> settings
+                    .setUrl(url)
+                    .setModelName("benchmark")
+                    .setExtraEndpoints("")
+                    .setReplyCacheEnabled(false));
+            Log.d(TAG, "Endpoint set to " + url);
+        }
+
+        int count = intent.getIntExtra(EXTRA_MESSAGES, 0);
+        if (count <= 0) {
+            return;
+        }
+        PendingResult result = goAsync();
+        ConversationStore store = ConversationStore.getInstance(context);
+        store.clearConversation(ConversationStore.CONVERSATION_LOCAL);
+        for (int i = 0; i < count; i++) {
+            boolean fromUser = i % 2 == 0;
+            store.saveMessage(ConversationStore.CONVERSATION_LOCAL, new ChatMessage(
+                    fromUser ? ChatMessage.TYPE_USER : ChatMessage.TYPE_AI, sampleText(i, fromUser), null));
+        }
+        // 写入和读取在对话记录的同一个线程中依次执行，读取回调时写入已全部完成
+        store.loadBefore(ConversationStore.CONVERSATION_LOCAL, Long.MAX_VALUE, 1, page -> {
+            Log.d(TAG, "Seeded " + count + " messages");
+            result.finish();
+        });
+    }
+
+    /*
+     长短不一的消息，让列表项的高度各不相同
+     */
+    private static String sampleText(int index, boolean fromUser) {
+        StringBuilder text = new StringBuilder(fromUser ? "第" + index + "条消息：" : "好的，");
+        for (int i = 0; i < index % 7; i++) {
+            text.append(fromUser ? "明天下午的会议改到三点，记得带上材料。" : "我这边没问题，到时候见，有变化再跟你说。");
+        }
+        return text.toString();
+    }
+}
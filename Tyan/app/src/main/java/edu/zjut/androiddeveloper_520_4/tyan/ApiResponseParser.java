@@ -0,0 +1,227 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+
+/*
+ 大模型响应的拉取式解析，边读取响应体边解析，不把整个响应读成字符串：
+ 1. 只取出需要的字段：choices[0] 的 message/delta 内容和 finish_reason、usage、error
+ 2. 其他字段（如 logprobs、其余的 choices）直接跳过，不创建对象
+ 3. 错误响应体只读取前 MAX_ERROR_BODY_BYTES 字节，用于显示和日志
+ 非流式响应和SSE中的单个事件使用同样的格式，共用同一个解析方法
+ */
+public final class ApiResponseParser {
+    static final long MAX_ERROR_BODY_BYTES = 8 * 1024;// 错误响应体最多读取的字节数
+
+    private ApiResponseParser() {
+    }
+
+    /*
+     解析一个响应对象，如 {"choices":[{"message":{"content":"..."},"finish_reason":"stop"}],"usage":{...}}
+     流式事件中的 delta 与 message 按同样方式读取
+     @throws IOException 读取失败，或响应不是合法的JSON（MalformedJsonException）
+     @throws IllegalStateException 字段类型与预期不符
+     */
+    public static ApiResult parse(Reader reader) throws IOException {
+        ApiResult.Builder result = new ApiResult.Builder();
+        JsonReader json = new JsonReader(reader);
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "choices":
+                    readChoices(json, result);
+                    break;
+                case "usage":
+                    readUsage(json, result);
+                    break;
+                case "error":
+                    result.error = readError(json);
+                    break;
+                default:
+                    json.skipValue();
+                    break;
+            }
+        }
+        json.endObject();
+        return result.build();
+    }
+
+    /*
+     读取错误响应体，超出上限的部分不读取，以省略号结尾
+     */
+    public static String readErrorBody(ResponseBody body) throws IOException {
+        BufferedSource source = body.source();
+        boolean truncated = source.request(MAX_ERROR_BODY_BYTES + 1);
+        Buffer buffer = source.getBuffer();
+        String text = buffer.readUtf8(Math.min(buffer.size(), MAX_ERROR_BODY_BYTES));
+        return truncated ? text + "…" : text;
+    }
+
+    private static void readChoices(JsonReader json, ApiResult.Builder result) throws IOException {
+        if (json.peek() != JsonToken.BEGIN_ARRAY) {
+            json.skipValue();
+            return;
+        }
+        json.beginArray();
+        boolean first = true;
+        while (json.hasNext()) {
+            if (first) {
+                readChoice(json, result);
+                first = false;
+            } else {
+                json.skipValue();// 只使用第一个候选回复
+            }
+        }
+        json.endArray();
+    }
+
+    private static void readChoice(JsonReader json, ApiResult.Builder result) throws IOException {
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "message":// 非流式响应
+                case "delta":  // 流式事件
+                    readMessage(json, result);
+                    break;
+                case "finish_reason":
+                    String finishReason = nextNullableString(json);
+                    if (finishReason != null) {
+                        result.finishReason = finishReason;
+                    }
+                    break;
+                default:
+                    json.skipValue();
+                    break;
+            }
+        }
+        json.endObject();
+    }
+
+    private static void readMessage(JsonReader json, ApiResult.Builder result) throws IOException {
+        if (json.peek() != JsonToken.BEGIN_OBJECT) {
+            json.skipValue();
+            return;
+        }
+        json.beginObject();
+        while (json.hasNext()) {
+            if ("content".equals(json.nextName())) {
+                readContent(json, result);
+            } else {
+                json.skipValue();// role、tool_calls 等
+            }
+        }
+        json.endObject();
+    }
+
+    /*
+     内容通常是字符串；部分服务返回 [{"type":"text","text":"..."}] 形式的数组，拼接其中的文本
+     */
+    private static void readContent(JsonReader json, ApiResult.Builder result) throws IOException {
+        switch (json.peek()) {
+            case STRING:
+                result.appendContent(json.nextString());
+                break;
+            case BEGIN_ARRAY:
+                json.beginArray();
+                while (json.hasNext()) {
+                    if (json.peek() != JsonToken.BEGIN_OBJECT) {
+                        json.skipValue();
+                        continue;
+                    }
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        if ("text".equals(json.nextName()) && json.peek() == JsonToken.STRING) {
+                            result.appendContent(json.nextString());
+                        } else {
+                            json.skipValue();
+                        }
+                    }
+                    json.endObject();
+                }
+                json.endArray();
+                break;
+            default:
+                json.skipValue();// null
+                break;
+        }
+    }
+
+    private static void readUsage(JsonReader json, ApiResult.Builder result) throws IOException {
+        if (json.peek() != JsonToken.BEGIN_OBJECT) {
+            json.skipValue();
+            return;
+        }
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "prompt_tokens":
+                    result.promptTokens = nextCount(json);
+                    break;
+                case "completion_tokens":
+                    result.completionTokens = nextCount(json);
+                    break;
+                case "total_tokens":
+                    result.totalTokens = nextCount(json);
+                    break;
+                default:
+                    json.skipValue();
+                    break;
+            }
+        }
+        json.endObject();
+    }
+
+    /*
+     错误可能是 {"message":"...","code":...} 形式的对象，也可能直接是字符串
+     */
+    private static String readError(JsonReader json) throws IOException {
+        switch (json.peek()) {
+            case NULL:
+                json.nextNull();
+                return null;
+            case STRING:
+                return json.nextString();
+            case BEGIN_OBJECT:
+                String message = null;
+                json.beginObject();
+                while (json.hasNext()) {
+                    if ("message".equals(json.nextName()) && json.peek() == JsonToken.STRING) {
+                        message = json.nextString();
+                    } else {
+                        json.skipValue();
+                    }
+                }
+                json.endObject();
+                return message != null ? message : "error";
+            default:
+                json.skipValue();
+                return "error";
+        }
+    }
+
+    private static String nextNullableString(JsonReader json) throws IOException {
+        if (json.peek() == JsonToken.STRING) {
+            return json.nextString();
+        }
+        json.skipValue();
+        return null;
+    }
+
+    /*
+     token数，不是数字时返回 -1，用量信息不影响回复本身
+     */
+    private static int nextCount(JsonReader json) throws IOException {
+        if (json.peek() == JsonToken.NUMBER) {
+            return (int) json.nextDouble();
+        }
+        json.skipValue();
+        return -1;
+    }
+}
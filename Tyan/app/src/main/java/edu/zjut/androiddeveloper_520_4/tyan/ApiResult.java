@@ -0,0 +1,87 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+/*
+ 一次大模型请求的结果：
+ 1. 回复内容
+ 2. 结束原因（finish_reason），如 stop 表示正常结束，length 表示达到 max_tokens 被截断
+ 3. token用量（usage），服务端没有返回时为 -1
+ 4. 响应中的错误信息，没有错误时为 null
+ */
+public class ApiResult {
+    public static final String FINISH_STOP = "stop";
+    public static final String FINISH_LENGTH = "length";
+
+    private final String content;
+    private final String finishReason;
+    private final int promptTokens;
+    private final int completionTokens;
+    private final int totalTokens;
+    private final String error;
+
+    ApiResult(String content, String finishReason, int promptTokens, int completionTokens, int totalTokens, String error) {
+        this.content = content;
+        this.finishReason = finishReason;
+        this.promptTokens = promptTokens;
+        this.completionTokens = completionTokens;
+        this.totalTokens = totalTokens;
+        this.error = error;
+    }
+
+    //回复内容，响应中没有choices时为 null
+    public String getContent() {
+        return content;
+    }
+
+    public String getFinishReason() {
+        return finishReason;
+    }
+
+    public int getPromptTokens() {
+        return promptTokens;
+    }
+
+    public int getCompletionTokens() {
+        return completionTokens;
+    }
+
+    public int getTotalTokens() {
+        return totalTokens;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    //是否因达到 max_tokens 而被截断
+    public boolean isTruncated() {
+        return FINISH_LENGTH.equals(finishReason);
+    }
+
+    @Override
+    public String toString() {
+        return "finish=" + finishReason + ", tokens=" + promptTokens + "+" + completionTokens + "=" + totalTokens;
+    }
+
+    /*
+     解析过程中逐步填写的结果，流式响应中多个事件累加到同一个对象
+     */
+    static final class Builder {
+        final StringBuilder content = new StringBuilder();
+        boolean hasContent = false;
+        String finishReason;
+        int promptTokens = -1;
+        int completionTokens = -1;
+        int totalTokens = -1;
+        String error;
+
+        void appendContent(String piece) {
+            content.append(piece);
+            hasContent = true;
+        }
+
+        ApiResult build() {
+            return new ApiResult(hasContent ? content.toString() : null, finishReason,
+                    promptTokens, completionTokens, totalTokens, error);
+        }
+    }
+}
@@ -3,23 +3,23 @@ package edu.zjut.androiddeveloper_520_4.tyan;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.util.Log;
+import android.util.MalformedJsonException;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
-import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
 
 /*
  API工具类，提供API通信和剪贴板操作的通用方法
@@ -27,179 +27,300 @@ import okhttp3.Response;
 public class ApiUtils {
     private static final String TAG = "ApiUtils";
     public static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final String STREAM_DONE = "[DONE]";// SSE流结束标记
 
-    public static String bitmapToBase64(Bitmap bitmap) {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 70, byteArrayOutputStream);
-        byte[] byteArray = byteArrayOutputStream.toByteArray();
-        return android.util.Base64.encodeToString(byteArray, android.util.Base64.DEFAULT);
-    }
+    static final String SYSTEM_PROMPT = "你是一位社交达人，请你智能识别内容，帮我做出回复，只需要给我回复的内容，不需要给我其他多余的内容。";
     
     /*
      将文本复制到系统剪贴板
      */
     public static void copyToClipboard(Context context, String text) {
+        long start = PerfMetrics.now();
         ClipboardManager clipboard = (ClipboardManager) context.getSystemService(Context.CLIPBOARD_SERVICE);
         ClipData clip = ClipData.newPlainText(context.getString(R.string.app_name), text);
         clipboard.setPrimaryClip(clip);
+        PerfMetrics.getInstance(context).recordSince(PerfMetrics.STAGE_CLIPBOARD, start);
+    }
+    
+    /*
+     创建大模型API请求体，只包含本次的用户消息
+     @param image 经 ImageEncoder 编码后的图片，为null时只发送文本
+     */
+    public static ChatRequestBody createApiRequestBody(StyleSettingsManager settingsManager, String userContent, ImageEncoder.EncodedImage image) {
+        return createApiRequestBody(settingsManager, Collections.emptyList(), userContent, image);
     }
     
     /*
      创建大模型API请求体
+     请求体在写入网络时才逐个字段写出JSON，图片以Base64分块写入，
+     避免在内存中构建JSON对象树和包含整张图片的字符串；
+     系统消息使用 PromptTemplates 预先序列化的前缀，userContent 只包含本次变化的内容
+     @param history 由 ConversationContext 按预算选取的历史消息，放在本次用户消息之前
+     @param image 经 ImageEncoder 编码后的图片，为null时只发送文本
      */
-    public static String createApiRequestBody(StyleSettingsManager settingsManager, String userContent, String base64Image) throws JSONException {
-        JSONObject requestBody = new JSONObject();
-        
-        // 添加模型信息
-        String modelName = settingsManager.getModelName();
-        requestBody.put("model", modelName);
-        
-        // 创建消息数组
-        JSONArray messagesArray = new JSONArray();
-        
-        // 系统消息
-        JSONObject systemMessage = new JSONObject();
-        systemMessage.put("role", "system");
-        systemMessage.put("content", "你是一位社交达人，请你智能识别内容，帮我做出回复，只需要给我回复的内容，不需要给我其他多余的内容。");
-        messagesArray.put(systemMessage);
-        
-        // 用户消息
-        JSONObject userMessage = new JSONObject();
-        userMessage.put("role", "user");
-        
-        // 判断是否有图片
-        if (base64Image != null) {
-            // 有图片，创建包含文本和图片的消息
-            // 创建内容数组
-            JSONArray contentArray = new JSONArray();
-            
-            // 添加文本部分
-            JSONObject textPart = new JSONObject();
-            textPart.put("type", "text");
-            textPart.put("text", userContent);
-            contentArray.put(textPart);
-            
-            // 添加图片部分
-            JSONObject imagePart = new JSONObject();
-            imagePart.put("type", "image_url");
-            JSONObject imageUrl = new JSONObject();
-            imageUrl.put("url", "data:image/jpeg;base64," + base64Image);
-            imagePart.put("image_url", imageUrl);
-            contentArray.put(imagePart);
-            
-            // 设置用户消息内容
-            userMessage.put("content", contentArray);
-        } else {
-            // 没有图片，只发送文本内容
-            userMessage.put("content", userContent);
-        }
-        
-        messagesArray.put(userMessage);
-        
-        // 添加消息数组到请求体
-        requestBody.put("messages", messagesArray);
-        
-        // 根据示例代码添加必要参数
-        requestBody.put("stream", false);
-        requestBody.put("max_tokens", 512);
-        requestBody.put("temperature", 0.6);
-        
-        return requestBody.toString();
+    public static ChatRequestBody createApiRequestBody(StyleSettingsManager settingsManager, List<ConversationContext.Turn> history,
+                                                       String userContent, ImageEncoder.EncodedImage image) {
+        SettingsSnapshot settings = settingsManager.getSnapshot();
+        return new ChatRequestBody(settings.getModelName(), settings.isStreamEnabled(),
+                settingsManager.getPromptPrefix(), history, userContent, image);
     }
     
     /*
-     发送API请求
+     发送API请求，由 EndpointRouter 按设置中的端点选择最合适的端点
      */
-    public static void sendApiRequest(StyleSettingsManager settingsManager, String requestBodyJson, ApiCallback callback) {
-        OkHttpClient client = new OkHttpClient();
-        
-        // 获取API配置
-        String baseUrl = settingsManager.getUrl();
-        String apiKey = settingsManager.getKey();
-        
-        // 确保URL格式正确
-        if (!baseUrl.endsWith("/")) {
-            baseUrl += "/";
-        }
-        
-        // 构建API URL
-        String apiUrl = baseUrl + "chat/completions";
-        
-        Log.d(TAG, "正在发送请求到: " + apiUrl);
-        
-        RequestBody body = RequestBody.create(requestBodyJson, JSON);
-        
-        Request request = new Request.Builder()
-                .url(apiUrl)
-                .addHeader("Content-Type", "application/json")
-                .addHeader("Authorization", "Bearer " + apiKey)
-                .post(body)
-                .build();
-        
-        client.newCall(request).enqueue(new Callback() {
+    public static Call sendApiRequest(StyleSettingsManager settingsManager, ChatRequestBody body, ApiCallback callback) {
+        List<EndpointConfig> endpoints = EndpointRouter.getInstance().route(settingsManager.getEndpoints(), body.hasImage());
+        return sendApiRequest(endpoints, settingsManager.getRetryPolicy(), settingsManager.getCredentials(), body, callback);
+    }
+    
+    /*
+     发送API请求，临时性的失败（连接中断、429、5xx）先改用下一个候选端点，再按重试策略自动重试，
+     重试次数用完或超过截止时间后才回调 onFailure 或 onError
+     @param endpoints 由 EndpointRouter 排列好的候选端点，请求体中的模型名称按端点替换
+     @param credentials 各端点的Key，按端点ID取得，进程内只解密一次
+     @return 已进入队列的请求，可用于取消；取消后回调 onFailure
+     */
+    public static Call sendApiRequest(List<EndpointConfig> endpoints, RetryPolicy retryPolicy, CredentialStore credentials,
+                                      ChatRequestBody body, ApiCallback callback) {
+        Call call = newApiCall(endpoints, retryPolicy, credentials, body);
+        call.enqueue(new Callback() {
             //client请求回调，enqueue方法会异步执行请求，防止网络阻塞UI线程
             @Override
             public void onFailure(Call call, IOException e) {
-                Log.e(TAG, "请求失败: " + e.getMessage(), e);
-                if (callback != null) {
-                    callback.onFailure(e);
-                }
+                deliverFailure(e, callback);
             }
             
             @Override
-            public void onResponse(Call call, Response response) throws IOException {
-                if (response.isSuccessful() && response.body() != null) {
-                    String responseBody = response.body().string();
-                    try {
-                        JSONObject jsonResponse = new JSONObject(responseBody);
-                        JSONArray choices = jsonResponse.getJSONArray("choices");// 获取choices数组
-                        if (choices.length() > 0) {
-                            JSONObject firstChoice = choices.getJSONObject(0);
-                            JSONObject message = firstChoice.getJSONObject("message");// 获取第一个choice的message，即大模型的回复
-                            String content = message.getString("content");
-                            
-                            if (callback != null) {
-                                callback.onSuccess(content);
-                            }
-                        } else {
-                            throw new JSONException("No choices in response");
-                        }
-                    } catch (JSONException e) {
-                        Log.e(TAG, "解析响应失败: " + e.getMessage(), e);
-                        if (callback != null) {
-                            callback.onError(response.code(), responseBody, e);
-                        }
-                    }
-                } else {
-                    try {
-                        // 获取错误响应内容
-                        String errorBody = "";
-                        if (response.body() != null) {
-                            errorBody = response.body().string();
-                        }
-                        
-                        Log.e(TAG, "请求错误: " + response.code() + ", 错误响应体: " + errorBody);
-                        
-                        if (callback != null) {
-                            callback.onError(response.code(), errorBody, null);
-                        }
-                    } catch (IOException e) {
-                        Log.e(TAG, "读取错误响应失败: " + e.getMessage(), e);
-                        if (callback != null) {
-                            callback.onError(response.code(), "", e);
-                        }
+            public void onResponse(Call call, Response response) {
+                handleResponse(response, callback);
+            }
+        });
+        return call;
+    }
+    
+    /*
+     创建API请求但不发送，由 EndpointRouter 按设置中的端点选择最合适的端点；
+     用 executeApiRequest 同步发送，发送前后都可以调用 cancel
+     */
+    public static Call newApiCall(StyleSettingsManager settingsManager, ChatRequestBody body) {
+        List<EndpointConfig> endpoints = EndpointRouter.getInstance().route(settingsManager.getEndpoints(), body.hasImage());
+        return newApiCall(endpoints, settingsManager.getRetryPolicy(), settingsManager.getCredentials(), body);
+    }
+    
+    /*
+     同步发送 newApiCall 创建的请求，重试和回调与 sendApiRequest 相同，回调在调用线程中执行后才返回
+     用于 WorkManager 等已经在后台线程中的任务，不要在主线程调用
+     */
+    public static void executeApiRequest(Call call, ApiCallback callback) {
+        Response response;
+        try {
+            response = call.execute();
+        } catch (IOException e) {
+            deliverFailure(e, callback);
+            return;
+        }
+        handleResponse(response, callback);
+    }
+    
+    private static Call newApiCall(List<EndpointConfig> endpoints, RetryPolicy retryPolicy, CredentialStore credentials,
+                                   ChatRequestBody body) {
+        // 使用进程级共享的客户端，复用连接池，避免每次请求重新握手
+        HttpClientEngine engine = HttpClientEngine.getInstance();
+        OkHttpClient client = engine.getClient();
+        
+        List<Request> requests = new ArrayList<>(endpoints.size());
+        for (EndpointConfig endpoint : endpoints) {
+            requests.add(new Request.Builder()
+                    .url(endpoint.getChatUrl())
+                    .addHeader("Content-Type", "application/json")
+                    .addHeader("Authorization", credentials.authorization(endpoint.getId()))
+                    .tag(EndpointConfig.class, endpoint)// 路由统计据此区分端点
+                    .post(body.withModel(endpoint.getModelName()))
+                    .build());
+        }
+        Log.d(TAG, "正在发送请求到: " + endpoints.get(0).getChatUrl() + "，候选端点 " + endpoints.size() + " 个");
+        
+        return new ResilientCall(client, requests, retryPolicy, engine.getLatencyTracker(), EndpointRouter.getInstance());
+    }
+    
+    private static void deliverFailure(IOException e, ApiCallback callback) {
+        Log.e(TAG, "请求失败: " + e.getMessage(), e);
+        if (callback != null) {
+            callback.onFailure(e);
+        }
+    }
+    
+    /*
+     读取最终的响应并回调：错误响应回调 onError，SSE流逐段回调，普通响应边读取边解析
+     */
+    static void handleResponse(Response response, ApiCallback callback) {
+        try (ResponseBody responseBody = response.body()) {
+            if (!response.isSuccessful() || responseBody == null) {
+                // 错误响应体只读取开头的一部分
+                String errorBody = responseBody != null ? ApiResponseParser.readErrorBody(responseBody) : "";
+                Log.e(TAG, "请求错误: " + response.code() + ", 错误响应体: " + errorBody);
+                if (callback != null) {
+                    callback.onError(response.code(), errorBody, null);
+                }
+            } else if (isEventStream(response)) {
+                // 流式响应，边读取边回调
+                readEventStream(response.code(), responseBody, callback);
+            } else {
+                // 边读取边解析，只取出回复内容、结束原因和用量
+                ApiResult result;
+                try {
+                    long start = PerfMetrics.now();
+                    result = ApiResponseParser.parse(responseBody.charStream());
+                    PerfMetrics.getInstance().recordSince(PerfMetrics.STAGE_PARSE, start);
+                } catch (MalformedJsonException | IllegalStateException e) {
+                    Log.e(TAG, "解析响应失败: " + e.getMessage(), e);
+                    if (callback != null) {
+                        callback.onError(response.code(), "", e);
                     }
+                    return;
                 }
+                deliverResult(response.code(), result, callback);
             }
-        });
+        } catch (IOException e) {
+            // 读取响应体时连接中断
+            Log.e(TAG, "读取响应失败: " + e.getMessage(), e);
+            if (callback != null) {
+                callback.onFailure(e);
+            }
+        }
+    }
+    
+    /*
+     回调解析结果：响应中带有错误或没有回复内容时回调 onError
+     */
+    private static void deliverResult(int statusCode, ApiResult result, ApiCallback callback) {
+        if (result.getError() != null || result.getContent() == null) {
+            String error = result.getError() != null ? result.getError() : "No choices in response";
+            Log.e(TAG, "响应中没有回复内容: " + error);
+            if (callback != null) {
+                callback.onError(statusCode, error, null);
+            }
+            return;
+        }
+        Log.d(TAG, "回复完成: " + result);
+        if (callback != null) {
+            callback.onResult(result);
+            callback.onSuccess(result.getContent());
+        }
+    }
+    
+    /*
+     判断响应是否为SSE流（Content-Type: text/event-stream）
+     */
+    private static boolean isEventStream(Response response) {
+        MediaType contentType = response.body().contentType();
+        return contentType != null && "event-stream".equalsIgnoreCase(contentType.subtype());
+    }
+    
+    /*
+     逐行读取SSE流，解析每个data事件中的增量内容：
+     1. 每收到一段增量就回调 onPartial
+     2. 收到 [DONE] 或流结束后，用拼接好的完整内容回调 onSuccess
+     */
+    private static void readEventStream(int statusCode, ResponseBody body, ApiCallback callback) throws IOException {
+        ApiResult.Builder total = new ApiResult.Builder();// 已收到的完整回复、结束原因和用量
+        total.hasContent = true;// 流式回复即使没有任何内容也视为成功
+        StringBuilder eventData = new StringBuilder();// 当前事件的data内容，可能跨多行
+        long[] parseNanos = new long[1];// 各事件解析耗时之和，不包括等待服务端生成的时间
+        BufferedSource source = body.source();
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            if (line.isEmpty()) {
+                // 空行表示一个事件结束
+                if (eventData.length() == 0) {
+                    continue;
+                }
+                String data = eventData.toString();
+                eventData.setLength(0);
+                if (STREAM_DONE.equals(data)) {
+                    break;
+                }
+                if (!handleStreamEvent(statusCode, data, total, callback, parseNanos)) {
+                    return;
+                }
+            } else if (line.startsWith("data:")) {
+                if (eventData.length() > 0) {
+                    eventData.append('\n');
+                }
+                eventData.append(line.substring(5).trim());
+            }
+            // 忽略 event:、id:、retry: 以及以 : 开头的注释行
+        }
+        // 流在最后一个空行之前结束
+        if (eventData.length() > 0 && !STREAM_DONE.equals(eventData.toString())) {
+            if (!handleStreamEvent(statusCode, eventData.toString(), total, callback, parseNanos)) {
+                return;
+            }
+        }
+        PerfMetrics.getInstance().record(PerfMetrics.STAGE_PARSE, parseNanos[0] / 1000);
+        deliverResult(statusCode, total.build(), callback);
+    }
+    
+    /*
+     解析单个SSE事件，形如 {"choices":[{"delta":{"content":"..."}}]}，
+     增量内容追加到 total，结束原因和用量以最后收到的为准
+     @param parseNanos 累加解析耗时
+     @return 是否继续读取，事件中带有错误时返回false
+     */
+    private static boolean handleStreamEvent(int statusCode, String data, ApiResult.Builder total, ApiCallback callback,
+                                             long[] parseNanos) {
+        ApiResult event;
+        try {
+            long start = PerfMetrics.now();
+            event = ApiResponseParser.parse(new StringReader(data));
+            parseNanos[0] += PerfMetrics.now() - start;
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "解析流式事件失败: " + e.getMessage(), e);
+            if (callback != null) {
+                callback.onError(statusCode, data, e);
+            }
+            return false;
+        }
+        if (event.getError() != null) {
+            Log.e(TAG, "流式响应返回错误: " + data);
+            if (callback != null) {
+                callback.onError(statusCode, data, null);
+            }
+            return false;
+        }
+        // 部分服务会单独发送usage等不含choices的事件
+        String piece = event.getContent();
+        if (piece != null && !piece.isEmpty()) {
+            total.appendContent(piece);
+            if (callback != null) {
+                callback.onPartial(piece);
+            }
+        }
+        if (event.getFinishReason() != null) {
+            total.finishReason = event.getFinishReason();
+        }
+        if (event.getTotalTokens() >= 0) {
+            total.promptTokens = event.getPromptTokens();
+            total.completionTokens = event.getCompletionTokens();
+            total.totalTokens = event.getTotalTokens();
+        }
+        return true;
     }
     
     /*
      API回调接口
      */
     public interface ApiCallback {
-        void onSuccess(String content);// 成功，大模型回复的内容
+        void onSuccess(String content);// 成功，大模型回复的完整内容
         void onFailure(Exception e);
         void onError(int statusCode, String errorBody, Exception e);
+        
+        // 流式回复时每收到一段增量内容回调一次，在网络线程中调用
+        default void onPartial(String delta) {
+        }
+        
+        // 回复完成时在 onSuccess 之前回调，带有结束原因和token用量，在网络线程中调用
+        default void onResult(ApiResult result) {
+        }
     }
 }
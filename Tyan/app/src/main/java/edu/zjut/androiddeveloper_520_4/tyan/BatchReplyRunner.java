@@ -0,0 +1,353 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+
+/*
+ 批量回复的流水线：一次选中多张图片，解码编码和API请求同时进行
+ 1. 准备阶段（解码、编码）交给图片处理线程池，同时进行的数量不超过 PREPARE_PARALLELISM
+ 2. 请求阶段同时进行的数量不超过设置中的并发数（最多为HTTP客户端对单个主机的并发上限），一张图片的请求发出后立即准备下一张
+ 3. 已编码、等待发送的图片不超过并发数，编码比请求快时不会把几十张图片的编码结果都堆在内存中
+ 总耗时约为 图片数 / 并发数 × 单次请求耗时，而不是逐张相加
+ 所有状态只在 callbackExecutor（主线程）中修改，各阶段的完成回调先切回该线程再处理
+ @param <P> 准备阶段的结果，即编码后的图片
+ */
+public class BatchReplyRunner<P> {
+    private static final String TAG = "BatchReplyRunner";
+
+    // 同时提交解码编码的图片数：线程池有两个线程时两张同时进行，只有一个线程时一张进行、一张排队，
+    // 前一张完成后线程不会空闲；远小于线程池的排队上限
+    static final int PREPARE_PARALLELISM = 2;
+    // 请求并发数上限：OkHttp 对同一主机最多同时执行 MAX_REQUESTS_PER_HOST 个请求，
+    // 更多的请求只会在调度器中排队，却已计为请求中，重试的期限也在流逝
+    public static final int MAX_CONCURRENCY = HttpClientEngine.MAX_REQUESTS_PER_HOST;
+
+    // 每张图片的状态
+    public static final int STATE_QUEUED = 0;    // 排队中
+    public static final int STATE_PREPARING = 1; // 解码编码中
+    public static final int STATE_WAITING = 2;   // 已编码，等待请求名额
+    public static final int STATE_SENDING = 3;   // 请求中
+    public static final int STATE_DONE = 4;      // 已回复
+    public static final int STATE_FAILED = 5;    // 失败
+    public static final int STATE_CANCELLED = 6; // 已取消
+
+    /*
+     阶段的完成回调，可以在任意线程调用，只能调用一次
+     */
+    public interface Result<T> {
+        void onSuccess(T value);
+
+        void onFailure(String message);
+    }
+
+    /*
+     准备阶段：解码并编码第 index 张图片，完成后回调 result
+     */
+    public interface Preparer<P> {
+        void prepare(int index, Result<P> result);
+    }
+
+    /*
+     请求阶段：发送第 index 张图片的请求，完成后回调 result
+     @return 可用于取消的请求，没有时返回 null
+     */
+    public interface Sender<P> {
+        Call send(int index, P prepared, Result<String> result);
+    }
+
+    /*
+     进度回调，在 callbackExecutor 中执行
+     */
+    public interface Listener {
+        void onItemChanged(int index, int state, String detail);
+
+        void onFinished(Summary summary);
+    }
+
+    /*
+     一次批量回复的结果
+     */
+    public static final class Summary {
+        private final String[] replies;
+        private final int succeeded;
+        private final int failed;
+        private final int concurrency;
+        private final long elapsedMs;
+
+        Summary(String[] replies, int succeeded, int failed, int concurrency, long elapsedMs) {
+            this.replies = replies;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.concurrency = concurrency;
+            this.elapsedMs = elapsedMs;
+        }
+
+        /*
+         @return 按选择顺序排列的回复，失败或取消的图片为 null
+         */
+        public String[] getReplies() {
+            return replies.clone();
+        }
+
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getConcurrency() {
+            return concurrency;
+        }
+
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+
+        /*
+         导出的文本：按顺序列出每张图片的回复，失败的图片也保留序号，便于对照
+         */
+        public String toExportText() {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < replies.length; i++) {
+                if (text.length() > 0) {
+                    text.append("\n\n");
+                }
+                text.append("【图片 ").append(i + 1).append("】\n")
+                        .append(replies[i] != null ? replies[i] : "（没有回复）");
+            }
+            return text.toString();
+        }
+    }
+
+    private final int itemCount;
+    private final int concurrency;
+    private final Preparer<P> preparer;
+    private final Sender<P> sender;
+    private final Listener listener;
+    private final Executor callbackExecutor;
+
+    // 以下字段只在 callbackExecutor 中访问
+    private final int[] states;
+    private final String[] replies;
+    private final Call[] calls;
+    private final ArrayDeque<Integer> ready = new ArrayDeque<>();// 已编码、等待请求名额的图片
+    private final Object[] prepared;
+    private int nextToPrepare = 0;
+    private int preparing = 0;
+    private int sending = 0;
+    private int finishedCount = 0;
+    private long startedAt;
+    private boolean started = false;
+
+    /*
+     @param itemCount 图片数
+     @param concurrency 请求并发数，超出 1..MAX_CONCURRENCY 时取边界值
+     */
+    public BatchReplyRunner(int itemCount, int concurrency, Preparer<P> preparer, Sender<P> sender,
+                            Listener listener, Executor callbackExecutor) {
+        this.itemCount = itemCount;
+        this.concurrency = clampConcurrency(concurrency);
+        this.preparer = preparer;
+        this.sender = sender;
+        this.listener = listener;
+        this.callbackExecutor = callbackExecutor;
+        states = new int[itemCount];
+        replies = new String[itemCount];
+        calls = new Call[itemCount];
+        prepared = new Object[itemCount];
+        Arrays.fill(states, STATE_QUEUED);
+    }
+
+    static int clampConcurrency(int concurrency) {
+        return Math.max(1, Math.min(MAX_CONCURRENCY, concurrency));
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /*
+     开始处理，只能调用一次，在 callbackExecutor 所在线程调用
+     */
+    public void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        startedAt = System.nanoTime();
+        Log.d(TAG, "Batch of " + itemCount + " images, concurrency " + concurrency);
+        if (itemCount == 0) {
+            finish();
+            return;
+        }
+        pump();
+    }
+
+    public boolean isRunning() {
+        return started && finishedCount < itemCount;
+    }
+
+    /*
+     取消还没有完成的图片：进行中的请求被取消，之后到达的回调直接丢弃
+     */
+    public void cancel() {
+        if (!isRunning()) {
+            return;
+        }
+        for (int i = 0; i < itemCount; i++) {
+            if (isFinal(states[i])) {
+                continue;
+            }
+            if (calls[i] != null) {
+                calls[i].cancel();
+                calls[i] = null;
+            }
+            prepared[i] = null;
+            complete(i, STATE_CANCELLED, null, null);
+        }
+        ready.clear();
+        preparing = 0;
+        sending = 0;
+    }
+
+    /*
+     按名额推进流水线：先把等待中的图片发出，再准备新的图片
+     已编码但还没有发出的图片和正在编码的图片合计不超过并发数，请求名额一空出就有图片可发
+     */
+    private void pump() {
+        while (sending < concurrency && !ready.isEmpty()) {
+            send(ready.pollFirst());
+        }
+        while (nextToPrepare < itemCount && preparing < PREPARE_PARALLELISM
+                && preparing + ready.size() < concurrency) {
+            prepare(nextToPrepare++);
+        }
+    }
+
+    private void prepare(int index) {
+        preparing++;
+        update(index, STATE_PREPARING, null);
+        preparer.prepare(index, onCallbackThread(new Result<P>() {
+            @Override
+            public void onSuccess(P value) {
+                if (states[index] != STATE_PREPARING) {
+                    return;// 已取消
+                }
+                preparing--;
+                prepared[index] = value;
+                ready.addLast(index);
+                update(index, STATE_WAITING, null);
+                pump();
+            }
+
+            @Override
+            public void onFailure(String message) {
+                if (states[index] != STATE_PREPARING) {
+                    return;
+                }
+                preparing--;
+                complete(index, STATE_FAILED, null, message);
+                pump();
+            }
+        }));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void send(int index) {
+        sending++;
+        P value = (P) prepared[index];
+        prepared[index] = null;// 请求体已持有编码结果
+        update(index, STATE_SENDING, null);
+        Call call = sender.send(index, value, onCallbackThread(new Result<String>() {
+            @Override
+            public void onSuccess(String reply) {
+                if (states[index] != STATE_SENDING) {
+                    return;
+                }
+                sending--;
+                calls[index] = null;
+                complete(index, STATE_DONE, reply, null);
+                pump();
+            }
+
+            @Override
+            public void onFailure(String message) {
+                if (states[index] != STATE_SENDING) {
+                    return;
+                }
+                sending--;
+                calls[index] = null;
+                complete(index, STATE_FAILED, null, message);
+                pump();
+            }
+        }));
+        if (states[index] == STATE_SENDING) {
+            calls[index] = call;// 同步完成时不再登记
+        }
+    }
+
+    private void update(int index, int state, String detail) {
+        states[index] = state;
+        listener.onItemChanged(index, state, detail);
+    }
+
+    private void complete(int index, int state, String reply, String detail) {
+        replies[index] = reply;
+        update(index, state, state == STATE_DONE ? reply : detail);
+        if (++finishedCount == itemCount) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        int succeeded = 0;
+        int failed = 0;
+        for (int state : states) {
+            if (state == STATE_DONE) {
+                succeeded++;
+            } else if (state == STATE_FAILED) {
+                failed++;
+            }
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        Log.d(TAG, "Batch finished in " + elapsedMs + "ms, " + succeeded + " succeeded, " + failed + " failed");
+        listener.onFinished(new Summary(replies.clone(), succeeded, failed, concurrency, elapsedMs));
+    }
+
+    private static boolean isFinal(int state) {
+        return state == STATE_DONE || state == STATE_FAILED || state == STATE_CANCELLED;
+    }
+
+    /*
+     把阶段的完成回调切回 callbackExecutor，重复的回调只处理第一次
+     */
+    private <T> Result<T> onCallbackThread(Result<T> target) {
+        return new Result<T>() {
+            private boolean delivered = false;
+
+            @Override
+            public synchronized void onSuccess(T value) {
+                if (!delivered) {
+                    delivered = true;
+                    callbackExecutor.execute(() -> target.onSuccess(value));
+                }
+            }
+
+            @Override
+            public synchronized void onFailure(String message) {
+                if (!delivered) {
+                    delivered = true;
+                    callbackExecutor.execute(() -> target.onFailure(message));
+                }
+            }
+        };
+    }
+}
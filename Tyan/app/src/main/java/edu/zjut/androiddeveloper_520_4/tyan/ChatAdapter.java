@@ -1,6 +1,5 @@
 package edu.zjut.androiddeveloper_520_4.tyan;
 
-import android.net.Uri;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -9,6 +8,9 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.List;
@@ -16,15 +18,46 @@ import java.util.List;
 /*
 聊天消息列表适配器，支持多种消息类型：
 每种消息类型对应不同的布局和ViewHolder
+消息列表通过 submitList 提交，新旧列表的差异在后台线程计算；
+只有文本变化的消息（流式回复）以局部刷新的方式只更新文本
  */
-public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+public class ChatAdapter extends ListAdapter<ChatMessage, RecyclerView.ViewHolder> {
     //聊天页面使用列表布局recycleview，实现view复用，滚动最新的视图时，支持重新绑定view
-    //继承自RecyclerView.Adapter，泛化参数是<RecyclerView.ViewHolder>
-    // 聊天消息数据列表
-    private final List<ChatMessage> messages;
+    //继承自ListAdapter，泛化参数是<ChatMessage, RecyclerView.ViewHolder>
+    static final Object PAYLOAD_TEXT = new Object();// 局部刷新：只有文本变化
 
-    public ChatAdapter(List<ChatMessage> messages) {
-        this.messages = messages;
+    // 按消息ID判断是否同一条消息，ID相同、类型相同且只有文本变化时返回局部刷新
+    private static final DiffUtil.ItemCallback<ChatMessage> DIFF_CALLBACK = new DiffUtil.ItemCallback<ChatMessage>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull ChatMessage oldItem, @NonNull ChatMessage newItem) {
+            return oldItem.getId() == newItem.getId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull ChatMessage oldItem, @NonNull ChatMessage newItem) {
+            return oldItem.hasSameContent(newItem);
+        }
+
+        @Nullable
+        @Override
+        public Object getChangePayload(@NonNull ChatMessage oldItem, @NonNull ChatMessage newItem) {
+            // 加载消息替换为回复时类型变化，需要换用新的ViewHolder，不能局部刷新
+            if (oldItem.getType() == newItem.getType() && oldItem.getImageUrl() == null && newItem.getImageUrl() == null) {
+                return PAYLOAD_TEXT;
+            }
+            return null;
+        }
+    };
+
+    public ChatAdapter() {
+        super(DIFF_CALLBACK);
+        setHasStableIds(true);
+    }
+    
+    @Override
+    //稳定ID，数据变化时RecyclerView可以按ID复用对应的ViewHolder
+    public long getItemId(int position) {
+        return getItem(position).getId();
     }
     
     @Override
@@ -32,7 +65,7 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
      获取指定位置的消息类型
      */
     public int getItemViewType(int position) {
-        return messages.get(position).getType();//position指定当前消息
+        return getItem(position).getType();//position指定当前消息
     }
     //获取消息的具体类型
     @NonNull
@@ -75,7 +108,7 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     @Override
     //绑定数据到ViewHolder
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
-        ChatMessage message = messages.get(position);
+        ChatMessage message = getItem(position);
         //从消息列表 messages 中根据位置 position 获取对应的聊天消息对象，position是逻辑索引，不是真实的屏幕位置
         switch (holder.getItemViewType()) {
             case ChatMessage.TYPE_USER:
@@ -91,7 +124,7 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
                 break;
                 
             case ChatMessage.TYPE_LOADING:
-                // No binding needed for loading
+                ((LoadingMessageViewHolder) holder).bind(message);
                 break;
                 
             case ChatMessage.TYPE_IMAGE:
@@ -101,11 +134,33 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     }
     
     @Override
-    //获取消息总数
-    public int getItemCount() {
-        return messages.size();
+    //局部刷新：只有文本变化时只更新文本，不重新绑定整行
+    public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty() || !payloads.contains(PAYLOAD_TEXT)) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        String text = getItem(position).getText();
+        if (holder instanceof UserMessageViewHolder) {
+            ((UserMessageViewHolder) holder).messageText.setText(text);
+        } else if (holder instanceof AIMessageViewHolder) {
+            ((AIMessageViewHolder) holder).messageText.setText(text);
+        } else if (holder instanceof SystemMessageViewHolder) {
+            ((SystemMessageViewHolder) holder).messageText.setText(text);
+        } else if (holder instanceof LoadingMessageViewHolder) {
+            ((LoadingMessageViewHolder) holder).loadingText.setText(text);
+        }
     }
-
+    
+    @Override
+    //ViewHolder被回收时取消还没有完成的图片加载，避免解码已经滚出屏幕的图片
+    public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
+        super.onViewRecycled(holder);
+        if (holder instanceof ImageMessageViewHolder) {
+            ((ImageMessageViewHolder) holder).unbind();
+        }
+    }
+    
     //用户消息ViewHolder，显示用户发送的文本消息
     static class UserMessageViewHolder extends RecyclerView.ViewHolder {
         private final TextView messageText;//其实这里就是一个文本框
@@ -159,6 +214,14 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
             progressBar = itemView.findViewById(R.id.progress_bar);
             loadingText = itemView.findViewById(R.id.loading_text);
         }
+        
+        void bind(ChatMessage message) {//批量回复时显示每张图片的进度
+            if (message.getText() != null) {
+                loadingText.setText(message.getText());
+            } else {
+                loadingText.setText(R.string.loading);
+            }
+        }
     }
 
     //图片消息ViewHolder，显示图片消息
@@ -172,8 +235,16 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         
         void bind(ChatMessage message) {
             if (message.getImageUrl() != null) {//图片可能为空
-                imageView.setImageURI(Uri.parse(message.getImageUrl()));
+                //在后台线程按控件尺寸解码并缓存，不在主线程解码原图
+                ThumbnailLoader.getInstance(imageView.getContext()).load(imageView, message.getImageUrl());
+            } else {
+                unbind();
+                imageView.setImageDrawable(null);
             }
         }
+        
+        void unbind() {
+            ThumbnailLoader.getInstance(imageView.getContext()).cancel(imageView);
+        }
     }
 }
@@ -1,10 +1,15 @@
 package edu.zjut.androiddeveloper_520_4.tyan;
 
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
 /*
-聊天消息数据模型类，包含以下信息：
-1. 消息类型（用户、AI、系统等）
-2. 消息文本内容
-3. 图片消息的URL（如果是图片消息）
+聊天消息数据模型类，不可变，包含以下信息：
+1. 消息ID（创建时分配，更新内容时保持不变，用于列表的稳定ID和差异比较）
+2. 消息类型（用户、AI、系统等）
+3. 消息文本内容
+4. 图片消息的URL（如果是图片消息）
+5. 创建时间
  */
 public class ChatMessage {
     // 消息类型常量定义
@@ -13,29 +18,67 @@ public class ChatMessage {
     public static final int TYPE_SYSTEM = 3; // 系统通知消息
     public static final int TYPE_LOADING = 4;// 加载中状态
     public static final int TYPE_IMAGE = 5;  // 图片消息
-    
+
+    // 以启动时间为起点分配ID，重启应用后也不会与之前的消息重复
+    private static final AtomicLong NEXT_ID = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    private final long id;         // 消息ID
     private final int type;       // 消息类型，使用上述常量定义
     private final String text;   // 消息文本内容，对于图片消息可能为null
     private final String imageUrl; // 图片URL，仅图片消息有效
+    private final long timestamp; // 创建时间（毫秒）
 
     public ChatMessage(int type, String text, String imageUrl) {
+        this(NEXT_ID.getAndIncrement(), type, text, imageUrl, System.currentTimeMillis());
+    }
+
+    ChatMessage(long id, int type, String text, String imageUrl, long timestamp) {
+        this.id = id;
         this.type = type;
         this.text = text;
         this.imageUrl = imageUrl;
+        this.timestamp = timestamp;
     }
-    
+
+    //获取消息ID
+    public long getId() {
+        return id;
+    }
+
     //获取消息类型
     public int getType() {
         return type;
     }
-    
+
     //获取消息文本内容
     public String getText() {
         return text;
     }
-    
+
     //获取图片URL
     public String getImageUrl() {
         return imageUrl;
     }
+
+    //获取创建时间
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    //替换文本内容，ID和创建时间不变，用于流式回复逐步更新气泡
+    public ChatMessage withText(String text) {
+        return withContent(type, text);
+    }
+
+    //替换类型和文本内容，ID和创建时间不变，用于把加载消息原地替换为回复
+    public ChatMessage withContent(int type, String text) {
+        return new ChatMessage(id, type, text, imageUrl, timestamp);
+    }
+
+    //显示内容是否相同，不比较ID
+    public boolean hasSameContent(ChatMessage other) {
+        return type == other.type
+                && Objects.equals(text, other.text)
+                && Objects.equals(imageUrl, other.imageUrl);
+    }
 }
@@ -0,0 +1,112 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Rect;
+
+import java.nio.ByteBuffer;
+
+/*
+ 聊天区域自动识别，直接在 ImageReader 的像素缓冲区上采样，不创建 Bitmap：
+ 1. 先去掉状态栏和导航栏
+ 2. 聊天界面的标题栏、输入栏、键盘与消息列表之间都有横贯整屏的分界线，
+    而消息气泡不会占满整行，因此逐行比较采样点的亮度，找出横贯整屏的分界行
+ 3. 分界行之间最高的一段即为消息列表区域
+ 识别不到明显的分界时退回到去掉系统栏后的区域
+ */
+public class ChatRegionDetector {
+    private static final int SAMPLE_COLUMNS = 48;        // 每行采样的列数
+    private static final int EDGE_LUMA_DELTA = 24;       // 相邻两行亮度差超过该值视为变化
+    private static final float EDGE_COVERAGE = 0.85f;    // 变化的采样点占比超过该值视为分界行
+    private static final float MIN_CHAT_FRACTION = 0.3f; // 识别出的区域至少占可用高度的比例
+
+    private ChatRegionDetector() {
+    }
+
+    /*
+     去掉状态栏和导航栏后的区域
+     */
+    public static Rect systemBarsExcluded(Context context, int width, int height) {
+        int statusBar = systemDimension(context, "status_bar_height");
+        int navigationBar = systemDimension(context, "navigation_bar_height");
+        int top = Math.min(statusBar, height / 4);
+        int bottom = Math.max(top + 1, height - Math.min(navigationBar, height / 4));
+        return new Rect(0, top, width, bottom);
+    }
+
+    private static int systemDimension(Context context, String name) {
+        Resources resources = context.getResources();
+        int id = resources.getIdentifier(name, "dimen", "android");
+        return id > 0 ? resources.getDimensionPixelSize(id) : 0;
+    }
+
+    /*
+     在 RGBA_8888 像素缓冲区中识别聊天区域
+     @param bounds 搜索范围，一般为去掉系统栏后的区域
+     @return 识别出的区域，识别失败时返回 bounds 的副本
+     */
+    public static Rect detect(ByteBuffer pixels, int rowStride, int pixelStride, Rect bounds) {
+        int searchHeight = bounds.height();
+        if (searchHeight < 2 || bounds.width() < SAMPLE_COLUMNS) {
+            return new Rect(bounds);
+        }
+
+        int[] columnOffsets = new int[SAMPLE_COLUMNS];
+        for (int i = 0; i < SAMPLE_COLUMNS; i++) {
+            int x = bounds.left + (int) ((i + 0.5f) * bounds.width() / SAMPLE_COLUMNS);
+            columnOffsets[i] = x * pixelStride;
+        }
+
+        int[] previous = new int[SAMPLE_COLUMNS];
+        int[] current = new int[SAMPLE_COLUMNS];
+        sampleRow(pixels, bounds.top * rowStride, columnOffsets, previous);
+
+        int threshold = (int) Math.ceil(SAMPLE_COLUMNS * EDGE_COVERAGE);
+        int segmentStart = bounds.top;
+        int bestTop = bounds.top;
+        int bestBottom = bounds.top;
+
+        for (int y = bounds.top + 1; y < bounds.bottom; y++) {
+            sampleRow(pixels, y * rowStride, columnOffsets, current);
+            int changed = 0;
+            for (int i = 0; i < SAMPLE_COLUMNS; i++) {
+                if (Math.abs(current[i] - previous[i]) > EDGE_LUMA_DELTA) {
+                    changed++;
+                }
+            }
+            if (changed >= threshold) {
+                // 分界行，结束上一段，记录最高的一段
+                if (y - segmentStart > bestBottom - bestTop) {
+                    bestTop = segmentStart;
+                    bestBottom = y;
+                }
+                segmentStart = y + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        if (bounds.bottom - segmentStart > bestBottom - bestTop) {
+            bestTop = segmentStart;
+            bestBottom = bounds.bottom;
+        }
+
+        if (bestBottom - bestTop < searchHeight * MIN_CHAT_FRACTION) {
+            return new Rect(bounds);
+        }
+        return new Rect(bounds.left, bestTop, bounds.right, bestBottom);
+    }
+
+    /*
+     读取一行中各采样点的亮度（近似 0.299R + 0.587G + 0.114B）
+     */
+    private static void sampleRow(ByteBuffer pixels, int rowStart, int[] columnOffsets, int[] out) {
+        for (int i = 0; i < columnOffsets.length; i++) {
+            int offset = rowStart + columnOffsets[i];
+            int r = pixels.get(offset) & 0xff;
+            int g = pixels.get(offset + 1) & 0xff;
+            int b = pixels.get(offset + 2) & 0xff;
+            out[i] = (r * 77 + g * 150 + b * 29) >> 8;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import java.io.IOException;
+import java.util.List;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+
+/*
+ 大模型对话请求的请求体，写入网络时才按JSON格式逐个字段写出：
+ 1. 不构建JSONObject树，也不生成包含整个请求的字符串，字段由 StreamingJsonWriter 直接写入sink
+ 2. 图片字节在写入时分块编码为Base64，堆上不会出现Base64字符串或它的转义副本
+ 3. 请求体长度在第一次需要时，不含图片数据写一遍计数得到，图片部分按Base64长度计算
+ 4. 图片在一次请求中只写入一次：历史中有原来发送它的消息（Turn.carriesImage）时写在那条消息上，否则写在本次用户消息上
+ 5. 系统消息是 PromptTemplates 预先序列化的字节，原样写入，同一组设置下每次请求的开头都相同
+ 请求体可以重复写入，OkHttp重试时会再次调用writeTo
+ */
+public class ChatRequestBody extends RequestBody {
+    static final int MAX_TOKENS = 512;
+    static final double TEMPERATURE = 0.6;
+
+    private final String modelName;
+    private final boolean stream;
+    private final PromptTemplates.Prefix prefix;
+    private final List<ConversationContext.Turn> history;
+    private final String userContent;
+    private final ImageEncoder.EncodedImage image;// 没有图片时为 null
+    private final boolean imageInHistory;// 图片附带在历史消息上，本次用户消息只有文本
+    private long contentLength = -1;
+
+    /*
+     @param history 由 ConversationContext 按预算选取的历史消息，放在本次用户消息之前
+     @param image 经 ImageEncoder 编码后的图片，为null时只发送文本
+     */
+    public ChatRequestBody(String modelName, boolean stream, List<ConversationContext.Turn> history,
+                           String userContent, ImageEncoder.EncodedImage image) {
+        this(modelName, stream, PromptTemplates.Prefix.DEFAULT, history, userContent, image);
+    }
+
+    /*
+     @param prefix 由风格设置生成的提示词前缀，作为系统消息
+     */
+    public ChatRequestBody(String modelName, boolean stream, PromptTemplates.Prefix prefix,
+                           List<ConversationContext.Turn> history, String userContent, ImageEncoder.EncodedImage image) {
+        this.modelName = modelName;
+        this.stream = stream;
+        this.prefix = prefix;
+        this.history = history;
+        this.userContent = userContent;
+        this.image = image;
+        this.imageInHistory = image != null && carriesImage(history);
+    }
+
+    private static boolean carriesImage(List<ConversationContext.Turn> history) {
+        for (ConversationContext.Turn turn : history) {
+            if (turn.carriesImage()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     发给其他端点时使用对应的模型名称，其余内容（包括图片数据）共用
+     */
+    public ChatRequestBody withModel(String otherModelName) {
+        if (modelName.equals(otherModelName)) {
+            return this;
+        }
+        return new ChatRequestBody(otherModelName, stream, prefix, history, userContent, image);
+    }
+
+    public boolean hasImage() {
+        return image != null;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return ApiUtils.JSON;
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        if (contentLength < 0) {
+            CountingSink counter = new CountingSink();
+            BufferedSink sink = Okio.buffer(counter);
+            writeJson(sink, false);
+            sink.flush();
+            long imageLength = image != null ? StreamingJsonWriter.base64Length(image.getData().length) : 0;
+            contentLength = counter.count + imageLength;
+        }
+        return contentLength;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        writeJson(sink, true);
+    }
+
+    /*
+     按原来的字段顺序写出请求：model、messages、stream、max_tokens、temperature
+     @param withImageData 为false时图片位置不写入数据，只用于计算长度
+     */
+    private void writeJson(BufferedSink sink, boolean withImageData) throws IOException {
+        StreamingJsonWriter writer = new StreamingJsonWriter(sink);
+        writer.beginObject();
+        writer.name("model").value(modelName);
+
+        writer.name("messages").beginArray();
+        // 系统消息，预先序列化，不再逐字转义
+        writer.rawValue(prefix.getSystemMessageJson());
+        // 之前的对话，除原来发送图片的那条消息外只有文字
+        for (ConversationContext.Turn turn : history) {
+            writer.beginObject().name("role").value(turn.getRole()).name("content");
+            if (imageInHistory && turn.carriesImage()) {
+                writeTextAndImage(writer, turn.getContent(), withImageData);
+            } else {
+                writer.value(turn.getContent());
+            }
+            writer.endObject();
+        }
+        // 用户消息
+        writer.beginObject().name("role").value("user").name("content");
+        if (image != null && !imageInHistory) {
+            // 有图片，内容为文本和图片两部分
+            writeTextAndImage(writer, userContent, withImageData);
+        } else {
+            // 没有图片或图片已附带在历史消息上，只发送文本内容
+            writer.value(userContent);
+        }
+        writer.endObject();
+        writer.endArray();
+
+        // 开启流式回复时服务端以SSE逐段返回内容
+        writer.name("stream").value(stream);
+        writer.name("max_tokens").value(MAX_TOKENS);
+        writer.name("temperature").value(TEMPERATURE);
+        writer.endObject();
+    }
+
+    /*
+     写出文本和图片两部分组成的消息内容
+     */
+    private void writeTextAndImage(StreamingJsonWriter writer, String text, boolean withImageData) throws IOException {
+        writer.beginArray();
+        writer.beginObject().name("type").value("text").name("text").value(text).endObject();
+        writer.beginObject().name("type").value("image_url").name("image_url").beginObject().name("url");
+        String dataPrefix = "data:" + image.getMimeType() + ";base64,";
+        if (withImageData) {
+            writer.base64Value(dataPrefix, image.getData());
+        } else {
+            writer.base64Value(dataPrefix, new byte[0]);
+        }
+        writer.endObject().endObject();
+        writer.endArray();
+    }
+
+    /*
+     只统计写入字节数、不保存数据的sink
+     */
+    private static final class CountingSink extends ForwardingSink {
+        long count = 0;
+
+        CountingSink() {
+            super(Okio.blackhole());
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            count += byteCount;
+            super.write(source, byteCount);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/*
+ 多轮对话的上下文，发送新消息时按token预算带上之前的对话：
+ 1. 以“一问一答”为单位保存，只保存用户输入的原文和回复，不保存每次都会附带的场景、语气等设置
+ 2. 从最新的一轮往前选取，超出预算后丢弃更早的对话，并用一条系统消息说明省略了几轮
+ 3. 接口不保存状态，每次请求都要带上图片：图片还在选取的历史中时，附带在原来发送它的那条历史消息上，
+    本次消息只以文字提及；附带图片的那一轮被裁剪掉后，改为附带在本次消息上，一次请求中图片只出现一次
+ token数由 TokenEstimator 在本地估算；可在多个线程中调用
+ */
+public class ConversationContext {
+    public static final String ROLE_SYSTEM = "system";
+    public static final String ROLE_USER = "user";
+    public static final String ROLE_ASSISTANT = "assistant";
+    public static final String IMAGE_REFERENCE = "[图片]";// 历史中已发送图片的引用
+
+    private static final int MAX_EXCHANGES = 64;// 最多保存的对话轮数，再早的对话在任何预算下都用不到
+
+    private final ArrayDeque<Exchange> exchanges = new ArrayDeque<>();
+    private int evictedCount = 0;// 超出保存上限而丢弃的轮数
+
+    /*
+     请求中的一条历史消息
+     */
+    public static final class Turn {
+        private final String role;
+        private final String content;
+        private final boolean carriesImage;
+
+        Turn(String role, String content) {
+            this(role, content, false);
+        }
+
+        Turn(String role, String content, boolean carriesImage) {
+            this.role = role;
+            this.content = content;
+            this.carriesImage = carriesImage;
+        }
+
+        public String getRole() {
+            return role;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        // 这条用户消息原来附带了本次选中的图片，请求中图片附带在这里
+        public boolean carriesImage() {
+            return carriesImage;
+        }
+    }
+
+    /*
+     一次选取的结果
+     */
+    public static final class Window {
+        private final List<Turn> turns;
+        private final int droppedCount;
+        private final boolean attachImage;
+        private final int tokens;
+
+        Window(List<Turn> turns, int droppedCount, boolean attachImage, int tokens) {
+            this.turns = Collections.unmodifiableList(turns);
+            this.droppedCount = droppedCount;
+            this.attachImage = attachImage;
+            this.tokens = tokens;
+        }
+
+        // 按时间顺序排列的历史消息，放在系统消息之后、本次用户消息之前
+        public List<Turn> getTurns() {
+            return turns;
+        }
+
+        // 因超出预算而省略的对话轮数
+        public int getDroppedCount() {
+            return droppedCount;
+        }
+
+        // 图片是否附带在本次消息上：图片还没有发送过，或发送过的那一轮已被省略；
+        // 为 false 且选中了图片时，图片附带在 carriesImage() 的那条历史消息上
+        public boolean shouldAttachImage() {
+            return attachImage;
+        }
+
+        // 历史消息的估算token数
+        public int getTokens() {
+            return tokens;
+        }
+    }
+
+    /*
+     一轮对话
+     */
+    private static final class Exchange {
+        final String userText;
+        final String imageKey;// 这一轮附带的图片，没有附带时为 null
+        final String reply;
+        final int tokens;
+
+        Exchange(String userText, String imageKey, String reply) {
+            this.userText = userText;
+            this.imageKey = imageKey;
+            this.reply = reply;
+            this.tokens = TokenEstimator.estimateMessage(userContent()) + TokenEstimator.estimateMessage(reply);
+        }
+
+        String userContent() {
+            return imageKey != null ? IMAGE_REFERENCE + " " + userText : userText;
+        }
+    }
+
+    /*
+     记录一轮完成的对话
+     @param imageKey 这一轮附带发送的图片（如图片URI），只引用之前的图片或没有图片时传 null
+     */
+    public synchronized void addExchange(String userText, String imageKey, String reply) {
+        exchanges.addLast(new Exchange(userText, imageKey, reply));
+        while (exchanges.size() > MAX_EXCHANGES) {
+            exchanges.removeFirst();
+            evictedCount++;
+        }
+    }
+
+    /*
+     从对话记录恢复上下文：用户消息和其后的AI回复组成一轮，
+     用户消息之前的图片消息视为随这一轮发送
+     @param messages 按时间正序排列的消息
+     */
+    public synchronized void restore(List<ChatMessage> messages) {
+        exchanges.clear();
+        evictedCount = 0;
+        String pendingImage = null;
+        String pendingUser = null;
+        for (ChatMessage message : messages) {
+            switch (message.getType()) {
+                case ChatMessage.TYPE_IMAGE:
+                    pendingImage = message.getImageUrl();
+                    break;
+                case ChatMessage.TYPE_USER:
+                    pendingUser = message.getText();
+                    break;
+                case ChatMessage.TYPE_AI:
+                    if (pendingUser != null) {
+                        addExchange(pendingUser, pendingImage, message.getText());
+                        pendingUser = null;
+                        pendingImage = null;
+                    }
+                    break;
+                default:
+                    break;// 系统提示不属于对话
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        exchanges.clear();
+        evictedCount = 0;
+    }
+
+    public synchronized int size() {
+        return exchanges.size();
+    }
+
+    /*
+     按预算选取历史消息
+     @param imageKey 本次选中的图片，没有图片时传 null
+     @param tokenBudget 历史消息的token预算，不包括系统消息和本次用户消息；小于等于0时不带历史
+     */
+    public synchronized Window select(String imageKey, int tokenBudget) {
+        if (tokenBudget <= 0) {
+            return new Window(Collections.emptyList(), evictedCount + exchanges.size(), imageKey != null, 0);
+        }
+
+        // 从最新的一轮往前选取，遇到放不下的一轮就停止，保证选中的对话是连续的
+        int total = evictedCount + exchanges.size();
+        int noteTokens = TokenEstimator.estimateMessage(droppedNote(total));
+        List<Exchange> kept = new ArrayList<>();
+        int used = 0;
+        Iterator<Exchange> iterator = exchanges.descendingIterator();
+        while (iterator.hasNext()) {
+            Exchange exchange = iterator.next();
+            boolean dropsOlder = total - kept.size() - 1 > 0;
+            int reserve = dropsOlder ? noteTokens : 0;// 还有更早的对话时，为省略说明留出预算
+            if (used + exchange.tokens + reserve > tokenBudget) {
+                break;
+            }
+            kept.add(exchange);
+            used += exchange.tokens;
+        }
+        Collections.reverse(kept);
+
+        int dropped = total - kept.size();
+        List<Turn> turns = new ArrayList<>(kept.size() * 2 + 1);
+        if (dropped > 0 && used + noteTokens <= tokenBudget) {
+            turns.add(new Turn(ROLE_SYSTEM, droppedNote(dropped)));
+            used += noteTokens;
+        }
+        boolean imageInHistory = false;
+        for (Exchange exchange : kept) {
+            // 只有发送图片的那一轮记录了 imageKey，图片不会附带在多条消息上
+            boolean carriesImage = imageKey != null && imageKey.equals(exchange.imageKey) && !imageInHistory;
+            turns.add(new Turn(ROLE_USER, exchange.userContent(), carriesImage));
+            turns.add(new Turn(ROLE_ASSISTANT, exchange.reply));
+            imageInHistory |= carriesImage;
+        }
+        return new Window(turns, dropped, imageKey != null && !imageInHistory, used);
+    }
+
+    private static String droppedNote(int dropped) {
+        return "（更早的" + dropped + "轮对话已省略）";
+    }
+}
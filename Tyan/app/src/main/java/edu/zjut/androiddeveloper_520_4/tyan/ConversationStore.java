@@ -0,0 +1,267 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ 对话记录的本地存储（SQLite）：
+ 1. messages 表保存聊天消息，消息ID沿用 ChatMessage 的ID，回复替换加载消息时按ID覆盖
+ 2. requests 表保存每次请求使用的设置和得到的回复
+ 3. 图片不以二进制保存在数据库中，只保存文件路径，截图等上传图片保存在 filesDir/captures 下
+ 4. 按消息ID分页读取（keyset分页），不使用 OFFSET，翻到很早的消息也只读取一页
+ 所有数据库操作都在一个单线程执行器中顺序执行，读取结果回到主线程
+ */
+public class ConversationStore extends SQLiteOpenHelper {
+    private static final String TAG = "ConversationStore";
+    private static final String DB_NAME = "conversations.db";
+    private static final int DB_VERSION = 1;
+
+    // 对话名称
+    public static final String CONVERSATION_LOCAL = "local";          // 本地图片回复页面
+    public static final String CONVERSATION_SCREENSHOT = "screenshot";// 悬浮球截屏回复
+
+    private static final String CAPTURE_DIR = "captures";
+    private static final int MAX_CAPTURE_FILES = 500;// 超出后删除最旧的图片文件
+
+    private static final String TABLE_MESSAGES = "messages";
+    private static final String TABLE_REQUESTS = "requests";
+
+    private static ConversationStore instance;
+
+    private final File captureDir;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "ConversationStore"));
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /*
+     读取结果回调，在主线程执行
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    /*
+     一次请求的记录
+     */
+    public static class RequestRecord {
+        final String conversation;
+        final long replyMessageId;
+        final String scene;
+        final String tone;
+        final String target;
+        final String otherRequirements;
+        final String model;
+        final String imagePath;// 上传图片的文件路径，没有图片时为 null
+        final String reply;
+
+        public RequestRecord(String conversation, long replyMessageId, StyleSettingsManager settings, String imagePath, String reply) {
+            this.conversation = conversation;
+            this.replyMessageId = replyMessageId;
+            this.scene = settings.getScene();
+            this.tone = settings.getTone();
+            this.target = settings.getTarget();
+            this.otherRequirements = settings.getOtherRequirements();
+            this.model = settings.getModelName();
+            this.imagePath = imagePath;
+            this.reply = reply;
+        }
+    }
+
+    public static synchronized ConversationStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new ConversationStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ConversationStore(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        captureDir = new File(context.getFilesDir(), CAPTURE_DIR);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_MESSAGES + " ("
+                + "id INTEGER PRIMARY KEY, "
+                + "conversation TEXT NOT NULL, "
+                + "type INTEGER NOT NULL, "
+                + "text TEXT, "
+                + "image_url TEXT, "
+                + "created_at INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX messages_conversation_id ON " + TABLE_MESSAGES + " (conversation, id)");
+        db.execSQL("CREATE TABLE " + TABLE_REQUESTS + " ("
+                + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "conversation TEXT NOT NULL, "
+                + "reply_message_id INTEGER, "
+                + "scene TEXT, "
+                + "tone TEXT, "
+                + "target TEXT, "
+                + "other_requirements TEXT, "
+                + "model TEXT, "
+                + "image_path TEXT, "
+                + "reply TEXT, "
+                + "created_at INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // 目前只有第一版
+    }
+
+    /*
+     保存或覆盖一条消息，加载消息不保存
+     */
+    public void saveMessage(String conversation, ChatMessage message) {
+        if (message.getType() == ChatMessage.TYPE_LOADING) {
+            return;
+        }
+        executor.execute(() -> {
+            ContentValues values = new ContentValues();
+            values.put("id", message.getId());
+            values.put("conversation", conversation);
+            values.put("type", message.getType());
+            values.put("text", message.getText());
+            values.put("image_url", message.getImageUrl());
+            values.put("created_at", message.getTimestamp());
+            getWritableDatabase().insertWithOnConflict(TABLE_MESSAGES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        });
+    }
+
+    public void deleteMessage(long id) {
+        executor.execute(() -> getWritableDatabase().delete(TABLE_MESSAGES, "id = ?", new String[]{String.valueOf(id)}));
+    }
+
+    /*
+     删除一个对话的全部消息
+     */
+    public void clearConversation(String conversation) {
+        executor.execute(() -> getWritableDatabase().delete(TABLE_MESSAGES, "conversation = ?", new String[]{conversation}));
+    }
+
+    /*
+     保存一次请求的设置和回复
+     */
+    public void saveRequest(RequestRecord record) {
+        executor.execute(() -> {
+            ContentValues values = new ContentValues();
+            values.put("conversation", record.conversation);
+            values.put("reply_message_id", record.replyMessageId);
+            values.put("scene", record.scene);
+            values.put("tone", record.tone);
+            values.put("target", record.target);
+            values.put("other_requirements", record.otherRequirements);
+            values.put("model", record.model);
+            values.put("image_path", record.imagePath);
+            values.put("reply", record.reply);
+            values.put("created_at", System.currentTimeMillis());
+            getWritableDatabase().insert(TABLE_REQUESTS, null, values);
+        });
+    }
+
+    /*
+     把截屏和回复保存到截屏对话，截图写入文件后只记录路径；在后台线程调用
+     悬浮球截屏直接得到回复时，以及待发送队列中的请求稍后送达时都使用这里
+     */
+    public void saveScreenshotReply(ImageEncoder.EncodedImage image, String reply, StyleSettingsManager settings) {
+        // 先创建图片消息，ID小于回复，读取时排在回复之前
+        ChatMessage imageMessage = new ChatMessage(ChatMessage.TYPE_IMAGE, null, null);
+        ChatMessage replyMessage = new ChatMessage(ChatMessage.TYPE_AI, reply, null);
+        String imagePath = null;
+        try {
+            File capture = saveCapture(imageMessage.getId(), image);
+            imagePath = capture.getPath();
+            saveMessage(CONVERSATION_SCREENSHOT, new ChatMessage(imageMessage.getId(),
+                    ChatMessage.TYPE_IMAGE, null, Uri.fromFile(capture).toString(), imageMessage.getTimestamp()));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save capture: " + e.getMessage());
+        }
+        saveMessage(CONVERSATION_SCREENSHOT, replyMessage);
+        saveRequest(new RequestRecord(CONVERSATION_SCREENSHOT, replyMessage.getId(), settings, imagePath, reply));
+    }
+
+    /*
+     读取ID小于 beforeId 的最近 limit 条消息，按时间正序返回
+     @param beforeId 传 Long.MAX_VALUE 读取最新的一页
+     */
+    public void loadBefore(String conversation, long beforeId, int limit, Callback<List<ChatMessage>> callback) {
+        executor.execute(() -> {
+            List<ChatMessage> page = query("conversation = ? AND id < ?", conversation, beforeId, "id DESC", limit);
+            Collections.reverse(page);
+            mainHandler.post(() -> callback.onResult(page));
+        });
+    }
+
+    /*
+     读取ID大于 afterId 的 limit 条消息，按时间正序返回
+     */
+    public void loadAfter(String conversation, long afterId, int limit, Callback<List<ChatMessage>> callback) {
+        executor.execute(() -> {
+            List<ChatMessage> page = query("conversation = ? AND id > ?", conversation, afterId, "id ASC", limit);
+            mainHandler.post(() -> callback.onResult(page));
+        });
+    }
+
+    private List<ChatMessage> query(String selection, String conversation, long id, String order, int limit) {
+        List<ChatMessage> messages = new ArrayList<>(limit);
+        try (Cursor cursor = getReadableDatabase().query(TABLE_MESSAGES,
+                new String[]{"id", "type", "text", "image_url", "created_at"},
+                selection, new String[]{conversation, String.valueOf(id)},
+                null, null, order, String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                messages.add(new ChatMessage(cursor.getLong(0), cursor.getInt(1),
+                        cursor.getString(2), cursor.getString(3), cursor.getLong(4)));
+            }
+        }
+        return messages;
+    }
+
+    /*
+     把上传的图片写入 filesDir/captures，返回文件；在调用线程中执行，不要在主线程调用
+     */
+    public File saveCapture(long messageId, ImageEncoder.EncodedImage image) throws IOException {
+        if (!captureDir.exists() && !captureDir.mkdirs()) {
+            throw new IOException("Cannot create " + captureDir);
+        }
+        String extension = "image/webp".equals(image.getMimeType()) ? ".webp" : ".jpg";
+        File file = new File(captureDir, messageId + extension);
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(image.getData());
+        }
+        trimCaptures();
+        return file;
+    }
+
+    /*
+     图片文件超出上限时删除最旧的，对应消息的图片随之不再显示
+     */
+    private synchronized void trimCaptures() {
+        File[] files = captureDir.listFiles();
+        if (files == null || files.length <= MAX_CAPTURE_FILES) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length - MAX_CAPTURE_FILES; i++) {
+            if (!files[i].delete()) {
+                Log.w(TAG, "Failed to delete old capture " + files[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/*
+ 各端点的API Key，加密保存，不再以明文写入设置文件：
+ 1. Key 用 Android Keystore 中的 AES-GCM 密钥加密，密文和IV保存在单独的 TyanCredentials 中，
+    Keystore 中的密钥不能导出
+ 2. 每个端点的 Key 在进程内第一次使用时解密一次，之后保存在内存中的 char[] 里，
+    每次请求只是一次哈希表查找，不再经过 Keystore，也不像 EncryptedSharedPreferences 那样每次读取都解密
+ 3. wipe() 把内存中的 Key 全部清零，之后的请求重新解密；
+    缓存的 char[] 只在持有本对象的锁时读取内容，清零也在锁内进行，请求线程不会读到清零了一半的 Key
+ 4. 主端点使用 EndpointConfig.DEFAULT_ID，额外端点使用 名称/模型 作为ID，与 EndpointConfig 一致
+ 旧版本保存在设置文件中的明文 Key 由 SettingsSnapshot.migrateCredentials 在读取设置时转存到这里
+ */
+public class CredentialStore {
+    private static final String TAG = "CredentialStore";
+    private static final String PREFS_NAME = "TyanCredentials";
+    private static final String KEY_ALIAS = "tyan_api_keys";
+    private static final String ANDROID_KEYSTORE = "AndroidKeyStore";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;    // GCM 默认的IV长度
+    private static final int TAG_LENGTH_BITS = 128;
+    private static final String BEARER = "Bearer ";
+    private static final char[] NO_KEY = new char[0];// 没有保存 Key 的端点也缓存下来，不再重复读取
+
+    private static CredentialStore instance;
+
+    private final Sealer sealer;
+    private final Storage storage;
+    private final Map<String, char[]> cache = new ConcurrentHashMap<>();
+
+    /*
+     加密和解密，密文的开头是IV
+     */
+    interface Sealer {
+        byte[] seal(byte[] plaintext) throws GeneralSecurityException;
+
+        byte[] open(byte[] sealed) throws GeneralSecurityException;
+    }
+
+    /*
+     保存密文（Base64），value 为 null 时删除
+     */
+    interface Storage {
+        String get(String id);
+
+        void put(String id, String value);
+    }
+
+    public static synchronized CredentialStore getInstance(Context context) {
+        if (instance == null) {
+            SharedPreferences preferences = context.getApplicationContext()
+                    .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            instance = new CredentialStore(new KeystoreSealer(), new Storage() {
+                @Override
+                public String get(String id) {
+                    return preferences.getString(id, null);
+                }
+
+                @Override
+                public void put(String id, String value) {
+                    if (value != null) {
+                        preferences.edit().putString(id, value).apply();
+                    } else {
+                        preferences.edit().remove(id).apply();
+                    }
+                }
+            });
+        }
+        return instance;
+    }
+
+    CredentialStore(Sealer sealer, Storage storage) {
+        this.sealer = sealer;
+        this.storage = storage;
+    }
+
+    /*
+     请求头中的 Authorization，每次请求调用，只在进程内第一次使用该端点时解密
+     在锁内复制 Key，与 put、wipe 的清零互斥；锁只在解密时被长时间持有
+     */
+    public synchronized String authorization(String endpointId) {
+        char[] key = get(endpointId);
+        return new StringBuilder(BEARER.length() + key.length).append(BEARER).append(key).toString();
+    }
+
+    public boolean hasKey(String endpointId) {
+        return get(endpointId).length > 0;
+    }
+
+    /*
+     @return 缓存中的 Key，没有保存时返回空数组；put 和 wipe 会在锁内清零这个数组，
+             调用方只能在持有本对象的锁时读取内容，不持有锁时只能读取长度
+     */
+    char[] get(String endpointId) {
+        char[] key = cache.get(endpointId);
+        return key != null ? key : load(endpointId);
+    }
+
+    private synchronized char[] load(String endpointId) {
+        char[] key = cache.get(endpointId);
+        if (key != null) {
+            return key;// 等待锁期间其他线程已经解密
+        }
+        key = NO_KEY;
+        String sealed = storage.get(endpointId);
+        if (sealed != null) {
+            try {
+                byte[] plaintext = sealer.open(Base64.getDecoder().decode(sealed));
+                key = toChars(plaintext);
+                Arrays.fill(plaintext, (byte) 0);
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                // 例如恢复备份后 Keystore 中的密钥已经不同，只能重新填写
+                Log.w(TAG, "Cannot decrypt key for " + endpointId + ": " + e.getMessage());
+            }
+        }
+        cache.put(endpointId, key);
+        return key;
+    }
+
+    /*
+     加密保存端点的 Key，为空时删除
+     @return 是否已保存；加密失败时返回 false，原来保存的 Key 不变，调用方不能删除自己手中的明文
+     */
+    public synchronized boolean put(String endpointId, CharSequence key) {
+        char[] chars = new char[key.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = key.charAt(i);
+        }
+        if (chars.length == 0) {
+            storage.put(endpointId, null);
+        } else {
+            byte[] plaintext = toBytes(chars);
+            try {
+                storage.put(endpointId, Base64.getEncoder().encodeToString(sealer.seal(plaintext)));
+            } catch (GeneralSecurityException e) {
+                Log.e(TAG, "Cannot encrypt key for " + endpointId, e);
+                Arrays.fill(chars, '\0');
+                return false;// 不保存明文，保留原来的 Key
+            } finally {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+        }
+        zero(cache.put(endpointId, chars.length == 0 ? NO_KEY : chars));
+        return true;
+    }
+
+    /*
+     取出设置页面中额外端点文本里填写的 Key 加密保存，返回去掉 Key 之后的文本
+     Key 一栏为空的行保持不变，继续使用已保存的 Key；加密失败的行也保持不变，Key 仍在返回的文本中，
+     调用方用 containsKeys 检查后决定是否保存
+     */
+    public String takeKeys(String endpointsText) {
+        if (endpointsText == null || endpointsText.isEmpty()) {
+            return endpointsText;
+        }
+        String[] lines = endpointsText.split("\n", -1);
+        for (int i = 0; i < lines.length; i++) {
+            List<EndpointConfig> parsed = EndpointConfig.parseLines(lines[i]);
+            if (parsed.size() == 1 && !parsed.get(0).getKey().isEmpty()
+                    && put(parsed.get(0).getId(), parsed.get(0).getKey())) {
+                lines[i] = EndpointConfig.removeKey(lines[i]);
+            }
+        }
+        return String.join("\n", lines);
+    }
+
+    /*
+     额外端点文本中是否还有明文 Key
+     */
+    public static boolean containsKeys(String endpointsText) {
+        if (endpointsText == null) {
+            return false;
+        }
+        for (EndpointConfig endpoint : EndpointConfig.parseLines(endpointsText)) {
+            if (!endpoint.getKey().isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     把内存中解密后的 Key 全部清零，下次使用时重新解密
+     */
+    public synchronized void wipe() {
+        for (char[] key : cache.values()) {
+            zero(key);
+        }
+        cache.clear();
+    }
+
+    private static void zero(char[] key) {
+        if (key != null) {
+            Arrays.fill(key, '\0');
+        }
+    }
+
+    private static char[] toChars(byte[] utf8) {
+        CharBuffer buffer = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(utf8));
+        char[] chars = Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.limit());
+        Arrays.fill(buffer.array(), '\0');
+        return chars;
+    }
+
+    private static byte[] toBytes(char[] chars) {
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(CharBuffer.wrap(chars));
+        byte[] bytes = Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.limit());
+        Arrays.fill(buffer.array(), (byte) 0);
+        return bytes;
+    }
+
+    /*
+     使用 Android Keystore 中的 AES-GCM 密钥，第一次使用时生成
+     */
+    private static final class KeystoreSealer implements Sealer {
+        private SecretKey secretKey;
+
+        private synchronized SecretKey secretKey() throws GeneralSecurityException {
+            if (secretKey == null) {
+                KeyStore keyStore = KeyStore.getInstance(ANDROID_KEYSTORE);
+                try {
+                    keyStore.load(null);
+                } catch (IOException e) {
+                    throw new GeneralSecurityException(e);
+                }
+                secretKey = (SecretKey) keyStore.getKey(KEY_ALIAS, null);
+                if (secretKey == null) {
+                    KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, ANDROID_KEYSTORE);
+                    generator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                            KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                            .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                            .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                            .setKeySize(256)
+                            .build());
+                    secretKey = generator.generateKey();
+                }
+            }
+            return secretKey;
+        }
+
+        @Override
+        public byte[] seal(byte[] plaintext) throws GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey());// IV由Keystore随机生成
+            byte[] iv = cipher.getIV();
+            byte[] ciphertext = cipher.doFinal(plaintext);
+            byte[] sealed = Arrays.copyOf(iv, iv.length + ciphertext.length);
+            System.arraycopy(ciphertext, 0, sealed, iv.length, ciphertext.length);
+            return sealed;
+        }
+
+        @Override
+        public byte[] open(byte[] sealed) throws GeneralSecurityException {
+            if (sealed.length <= IV_LENGTH) {
+                throw new GeneralSecurityException("Truncated credential");
+            }
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, secretKey(), new GCMParameterSpec(TAG_LENGTH_BITS, sealed, 0, IV_LENGTH));
+            return cipher.doFinal(sealed, IV_LENGTH, sealed.length - IV_LENGTH);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+/*
+ 诊断页面Activity，显示 PerfMetrics 中截屏到剪贴板各阶段的耗时分布
+ */
+
+import android.os.Bundle;
+import android.widget.Button;
+import android.widget.ImageButton;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.view.ViewCompat;
+
+public class DiagnosticsActivity extends AppCompatActivity {
+
+    private TextView metricsTextView;
+    private Button refreshButton;
+    private Button clearButton;
+    private ImageButton backButton;
+    private PerfMetrics metrics;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+        ViewCompat.setOnApplyWindowInsetsListener(findViewById(R.id.diagnostics_layout), null);
+        metrics = PerfMetrics.getInstance(this);
+
+        metricsTextView = findViewById(R.id.metrics_text_view);
+        refreshButton = findViewById(R.id.refresh_metrics_button);
+        clearButton = findViewById(R.id.clear_metrics_button);
+        backButton = findViewById(R.id.back_button);
+
+        refreshButton.setOnClickListener(v -> showMetrics());
+        clearButton.setOnClickListener(v -> {
+            metrics.clear();
+            showMetrics();
+            Toast.makeText(this, R.string.metrics_cleared, Toast.LENGTH_SHORT).show();
+        });
+        backButton.setOnClickListener(v -> finish());
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showMetrics();// 从悬浮球截屏回来后显示最新的统计
+    }
+
+    private void showMetrics() {
+        metricsTextView.setText(metrics.describe());
+    }
+}
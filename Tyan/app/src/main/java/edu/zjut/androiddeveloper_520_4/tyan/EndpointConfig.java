@@ -0,0 +1,115 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ 一个兼容OpenAI接口的大模型端点：地址、密钥、模型名称，以及模型是否能识别图片
+ 设置页面中每行填写一个额外的端点，格式为：名称 | URL | 模型 | Key | vision或text
+ 保存时 Key 由 CredentialStore 取出加密保存，设置中只留下其余各栏，请求时按端点ID取得 Key
+ */
+public class EndpointConfig {
+    public static final String DEFAULT_ID = "default";// 设置页面中主端点的ID
+    static final String TYPE_VISION = "vision";
+    static final String TYPE_TEXT = "text";
+    private static final String SEPARATOR = "\\|";
+
+    private final String id;
+    private final String name;
+    private final String url;
+    private final String key;
+    private final String modelName;
+    private final boolean vision;
+
+    public EndpointConfig(String id, String name, String url, String key, String modelName, boolean vision) {
+        this.id = id;
+        this.name = name;
+        this.url = url;
+        this.key = key;
+        this.modelName = modelName;
+        this.vision = vision;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    //解析文本时其中填写的Key，保存后的设置中为空，请求时使用 CredentialStore 中的Key
+    public String getKey() {
+        return key;
+    }
+
+    public String getModelName() {
+        return modelName;
+    }
+
+    //模型是否能识别图片，只能处理文本的模型通常更便宜、更快
+    public boolean isVision() {
+        return vision;
+    }
+
+    /*
+     聊天接口的完整地址
+     */
+    public String getChatUrl() {
+        return (url.endsWith("/") ? url : url + "/") + "chat/completions";
+    }
+
+    /*
+     解析设置页面中填写的额外端点，格式不正确的行直接忽略
+     端点ID由名称和模型组成，统计数据据此区分不同的端点
+     */
+    public static List<EndpointConfig> parseLines(String text) {
+        List<EndpointConfig> endpoints = new ArrayList<>();
+        if (text == null) {
+            return endpoints;
+        }
+        for (String line : text.split("\n")) {
+            String[] fields = line.split(SEPARATOR, -1);
+            if (fields.length < 4) {
+                continue;
+            }
+            String name = fields[0].trim();
+            String url = fields[1].trim();
+            String model = fields[2].trim();
+            String key = fields[3].trim();
+            if (name.isEmpty() || url.isEmpty() || model.isEmpty()) {
+                continue;
+            }
+            boolean vision = fields.length < 5 || !TYPE_TEXT.equalsIgnoreCase(fields[4].trim());
+            endpoints.add(new EndpointConfig(name + "/" + model, name, url, key, model, vision));
+        }
+        return endpoints;
+    }
+
+    /*
+     去掉一行端点配置中的 Key，Key 由 CredentialStore 加密保存
+     */
+    static String removeKey(String line) {
+        String[] fields = line.split(SEPARATOR, -1);
+        if (fields.length < 4) {
+            return line;
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                result.append(" | ");
+            }
+            result.append(i == 3 ? "" : fields[i].trim());
+        }
+        return result.toString();
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + modelName + (vision ? ", " + TYPE_VISION : ", " + TYPE_TEXT) + ")";
+    }
+}
@@ -0,0 +1,194 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Request;
+
+/*
+ 多端点路由：为每个端点统计滚动的耗时和错误率，每次请求时给出按优先级排列的候选端点
+ 1. 带图片的请求只发给能识别图片的模型，按预期耗时（平均耗时加上按错误率折算的等待）从快到慢排列
+ 2. 纯文本请求优先发给只处理文本的模型（通常更便宜、更快），再按预期耗时排列
+ 3. 连续失败或错误率过高的端点视为降级，排在最后；冷却时间过后重新参与排序，由下一次请求探测是否恢复
+ 4. 候选端点交给 ResilientCall，前一个失败时立即改用下一个
+ 每次路由的决定保存在最近记录中，在设置页面的路由状态中查看
+ */
+public class EndpointRouter implements ResilientCall.AttemptListener {
+    private static final String TAG = "EndpointRouter";
+
+    static final double LATENCY_WEIGHT = 0.3;      // 耗时的指数加权系数，越大越快反映最近的变化
+    static final double ERROR_WEIGHT = 0.2;        // 错误率的指数加权系数
+    static final double DEGRADED_ERROR_RATE = 0.5; // 错误率超过该值视为降级
+    static final long ERROR_PENALTY_MS = 10_000;   // 排序时一次失败折算的耗时，失败后需要重试或切换端点
+    static final int DEGRADED_FAILURES = 3;        // 连续失败次数达到该值视为降级
+    static final long COOLDOWN_MS = 30_000;        // 降级端点在最后一次失败后多久重新参与排序
+    private static final int MAX_DECISIONS = 30;   // 保留的路由记录数
+
+    private static EndpointRouter instance;
+
+    private final Map<String, Stats> stats = new HashMap<>();
+    private final ArrayDeque<String> decisions = new ArrayDeque<>();
+
+    public static synchronized EndpointRouter getInstance() {
+        if (instance == null) {
+            instance = new EndpointRouter();
+        }
+        return instance;
+    }
+
+    EndpointRouter() {
+    }
+
+    /*
+     按优先级排列候选端点
+     @param endpoints 设置中的全部端点，第一个是主端点
+     @param hasImage 请求是否带有图片
+     @return 候选端点，至少包含一个
+     */
+    public synchronized List<EndpointConfig> route(List<EndpointConfig> endpoints, boolean hasImage) {
+        long now = now();
+        List<EndpointConfig> healthy = new ArrayList<>();
+        List<EndpointConfig> degraded = new ArrayList<>();
+        for (EndpointConfig endpoint : endpoints) {
+            if (hasImage && !endpoint.isVision()) {
+                continue;
+            }
+            (statsOf(endpoint).isDegraded(now) ? degraded : healthy).add(endpoint);
+        }
+        if (healthy.isEmpty() && degraded.isEmpty()) {
+            healthy.addAll(endpoints);// 没有能识别图片的端点时仍按配置发送
+        }
+
+        // 排序是稳定的，条件相同时保持设置中的顺序
+        Collections.sort(healthy, (a, b) -> {
+            if (!hasImage && a.isVision() != b.isVision()) {
+                return a.isVision() ? 1 : -1;
+            }
+            return Double.compare(statsOf(a).score(), statsOf(b).score());
+        });
+        // 降级的端点中，最早失败的最可能已经恢复
+        Collections.sort(degraded, (a, b) -> Long.compare(statsOf(a).lastFailureAt, statsOf(b).lastFailureAt));
+
+        List<EndpointConfig> candidates = new ArrayList<>(healthy);
+        candidates.addAll(degraded);
+        recordDecision(hasImage, candidates, degraded.size());
+        return candidates;
+    }
+
+    /*
+     每次发送结束时由 ResilientCall 回调，按请求上的端点标签更新统计
+     */
+    @Override
+    public synchronized void onAttemptFinished(Request request, long latencyMs, boolean success) {
+        EndpointConfig endpoint = request.tag(EndpointConfig.class);
+        if (endpoint == null) {
+            return;
+        }
+        Stats endpointStats = statsOf(endpoint);
+        endpointStats.record(latencyMs, success, now());
+        if (!success) {
+            Log.w(TAG, endpoint.getName() + " 请求失败，连续失败 " + endpointStats.consecutiveFailures + " 次");
+        }
+    }
+
+    /*
+     路由状态：每个端点的统计，以及最近的路由记录（最新的在前）
+     */
+    public synchronized String describe(List<EndpointConfig> endpoints) {
+        long now = now();
+        StringBuilder text = new StringBuilder();
+        for (EndpointConfig endpoint : endpoints) {
+            Stats endpointStats = statsOf(endpoint);
+            text.append(endpoint).append('\n')
+                    .append("  ").append(endpointStats.describe(now)).append('\n');
+        }
+        text.append('\n');
+        for (String decision : decisions) {
+            text.append(decision).append('\n');
+        }
+        return text.toString();
+    }
+
+    private Stats statsOf(EndpointConfig endpoint) {
+        Stats endpointStats = stats.get(endpoint.getId());
+        if (endpointStats == null) {
+            endpointStats = new Stats();
+            stats.put(endpoint.getId(), endpointStats);
+        }
+        return endpointStats;
+    }
+
+    private void recordDecision(boolean hasImage, List<EndpointConfig> candidates, int degradedCount) {
+        StringBuilder decision = new StringBuilder()
+                .append(new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date()))
+                .append(hasImage ? " 图片 → " : " 文本 → ");
+        for (int i = 0; i < candidates.size(); i++) {
+            if (i > 0) {
+                decision.append(i == candidates.size() - degradedCount ? " ⇢ 降级: " : ", ");
+            }
+            decision.append(candidates.get(i).getName());
+        }
+        Log.d(TAG, decision.toString());
+        decisions.addFirst(decision.toString());
+        while (decisions.size() > MAX_DECISIONS) {
+            decisions.removeLast();
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /*
+     单个端点的滚动统计
+     */
+    static final class Stats {
+        double latencyMs = -1;     // 成功请求耗时的指数加权平均，没有样本时为 -1
+        double errorRate = 0;      // 失败率的指数加权平均
+        int consecutiveFailures = 0;
+        long lastFailureAt = Long.MIN_VALUE;
+        int requests = 0;
+
+        void record(long latency, boolean success, long now) {
+            requests++;
+            errorRate += ERROR_WEIGHT * ((success ? 0 : 1) - errorRate);
+            if (success) {
+                consecutiveFailures = 0;
+                latencyMs = latencyMs < 0 ? latency : latencyMs + LATENCY_WEIGHT * (latency - latencyMs);
+            } else {
+                consecutiveFailures++;
+                lastFailureAt = now;
+            }
+        }
+
+        boolean isDegraded(long now) {
+            if (lastFailureAt == Long.MIN_VALUE || now - lastFailureAt >= COOLDOWN_MS) {
+                return false;
+            }
+            return consecutiveFailures >= DEGRADED_FAILURES || errorRate > DEGRADED_ERROR_RATE;
+        }
+
+        /*
+         排序用的预期耗时：平均耗时加上错误率折算的耗时，还没有成功过的端点耗时记为0，让它有机会被尝试一次
+         */
+        double score() {
+            return (latencyMs < 0 ? 0 : latencyMs) + errorRate * ERROR_PENALTY_MS;
+        }
+
+        String describe(long now) {
+            return String.format(Locale.US, "%s，请求 %d 次，耗时 %s，错误率 %.0f%%，连续失败 %d 次",
+                    isDegraded(now) ? "降级" : "正常", requests,
+                    latencyMs < 0 ? "-" : Math.round(latencyMs) + "ms", errorRate * 100, consecutiveFailures);
+        }
+    }
+}
@@ -2,16 +2,25 @@ package edu.zjut.androiddeveloper_520_4.tyan;
 
 import android.app.Notification;
 import android.app.Service;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.graphics.PixelFormat;
+import android.graphics.Rect;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Gravity;
+import android.view.HapticFeedbackConstants;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewConfiguration;
 import android.view.WindowManager;
+import android.widget.Toast;
 
 /*
   悬浮窗服务，负责：
@@ -19,6 +28,8 @@ import android.view.WindowManager;
  2. 处理悬浮窗的拖动和点击事件
  3. 启动截屏服务
  4. 保持前台服务状态
+ 5. 悬浮球显示期间绑定截屏服务，保持截屏会话预热
+ 6. 长按悬浮球框选截屏区域
  */
 public class FloatingWindowService extends Service {
     // 日志标签
@@ -34,11 +45,31 @@ public class FloatingWindowService extends Service {
     private int initialY;          // 悬浮窗初始Y坐标
     private float initialTouchX;   // 触摸点初始X坐标
     private float initialTouchY;   // 触摸点初始Y坐标
+    private boolean longPressed;   // 本次触摸已触发长按
+    
+    // 截屏区域框选
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable longPressRunnable = this::onBubbleLongPressed;
+    private RegionSelectView regionSelectView; // 框选区域时显示的全屏视图
     
     // 通知相关变量
     // 通知相关常量
     private static final int NOTIFICATION_ID = 2001;       // 通知ID
     private static final String CHANNEL_ID = "floating_window_channel"; // 通知渠道ID
+    
+    // 截屏服务绑定，悬浮球显示期间保持截屏会话
+    private boolean captureServiceBound = false;
+    private final ServiceConnection captureConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            ((ScreenshotService.CaptureBinder) service).warmUp();
+        }
+        
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            Log.d(TAG, "Capture service disconnected");
+        }
+    };
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -131,12 +162,18 @@ public class FloatingWindowService extends Service {
                         initialY = params.y;
                         initialTouchX = event.getRawX();
                         initialTouchY = event.getRawY();
+                        longPressed = false;
+                        mainHandler.postDelayed(longPressRunnable, ViewConfiguration.getLongPressTimeout());
                         return true;
                         
                     case MotionEvent.ACTION_MOVE:
                         // 计算移动距离
                         int deltaX = (int) (event.getRawX() - initialTouchX);
                         int deltaY = (int) (event.getRawY() - initialTouchY);
+                        if (Math.abs(deltaX) >= 10 || Math.abs(deltaY) >= 10) {
+                            // 开始拖动，不再视为长按
+                            mainHandler.removeCallbacks(longPressRunnable);
+                        }
                         
                         // 更新悬浮窗位置
                         params.x = initialX + deltaX;
@@ -145,10 +182,11 @@ public class FloatingWindowService extends Service {
                         return true;
                         
                     case MotionEvent.ACTION_UP:
+                        mainHandler.removeCallbacks(longPressRunnable);
                         // 如果移动距离很小，则视为点击
                         int DeltaX = (int) (event.getRawX() - initialTouchX);
                         int DeltaY = (int) (event.getRawY() - initialTouchY);
-                        if (Math.abs(DeltaX) < 10 && Math.abs(DeltaY) < 10) {
+                        if (!longPressed && Math.abs(DeltaX) < 10 && Math.abs(DeltaY) < 10) {
                             // 处理点击事件 - 启动截屏服务
                             Intent intent = new Intent(FloatingWindowService.this, ScreenshotService.class);
                             // 使用 startForegroundService 而不是 startService
@@ -160,6 +198,10 @@ public class FloatingWindowService extends Service {
                             }
                         }
                         return true;
+                        
+                    case MotionEvent.ACTION_CANCEL:
+                        mainHandler.removeCallbacks(longPressRunnable);
+                        return true;
                 }
                 return false;
             }
@@ -167,6 +209,65 @@ public class FloatingWindowService extends Service {
         
         // 将视图添加到窗口
         windowManager.addView(floatingView, params);
+        
+        // 悬浮球显示后用户随时可能点击，提前预热API端点连接
+        HttpClientEngine.getInstance().prewarm(new StyleSettingsManager(this));
+        
+        // 绑定截屏服务，提前创建截屏会话
+        captureServiceBound = bindService(new Intent(this, ScreenshotService.class), captureConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    /*
+     长按悬浮球：显示全屏框选视图，框选结果保存为截屏区域
+     */
+    private void onBubbleLongPressed() {
+        longPressed = true;
+        if (regionSelectView != null) {
+            return;
+        }
+        floatingView.performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+        
+        regionSelectView = new RegionSelectView(this);
+        regionSelectView.setOnRegionSelectedListener(new RegionSelectView.OnRegionSelectedListener() {
+            @Override
+            public void onRegionSelected(Rect region) {
+                new StyleSettingsManager(FloatingWindowService.this).setCaptureRegion(region);
+                Log.d(TAG, "Capture region saved: " + region.toShortString());
+                Toast.makeText(FloatingWindowService.this, R.string.region_saved, Toast.LENGTH_SHORT).show();
+                dismissRegionSelect();
+            }
+            
+            @Override
+            public void onSelectionCleared() {
+                new StyleSettingsManager(FloatingWindowService.this).setCaptureMode(ScreenshotUtil.CAPTURE_MODE_FULL);
+                Toast.makeText(FloatingWindowService.this, R.string.region_cleared, Toast.LENGTH_SHORT).show();
+                dismissRegionSelect();
+            }
+        });
+        
+        WindowManager.LayoutParams selectParams = new WindowManager.LayoutParams(
+                WindowManager.LayoutParams.MATCH_PARENT,
+                WindowManager.LayoutParams.MATCH_PARENT,
+                params.type,
+                WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE | WindowManager.LayoutParams.FLAG_LAYOUT_IN_SCREEN,
+                PixelFormat.TRANSLUCENT
+        );// 覆盖整个屏幕，坐标与截屏画面一致
+        selectParams.gravity = Gravity.TOP | Gravity.START;
+        windowManager.addView(regionSelectView, selectParams);
+    }
+    
+    /*
+     移除框选视图
+     */
+    private void dismissRegionSelect() {
+        if (regionSelectView != null) {
+            try {
+                windowManager.removeView(regionSelectView);
+            } catch (Exception e) {
+                Log.e(TAG, "Error removing region select view: " + e.getMessage());
+            }
+            regionSelectView = null;
+        }
     }
 
     /*
@@ -178,6 +279,15 @@ public class FloatingWindowService extends Service {
     public void onDestroy() {
         android.util.Log.d(TAG, "FloatingWindowService onDestroy");
         super.onDestroy();
+        mainHandler.removeCallbacks(longPressRunnable);
+        dismissRegionSelect();
+        if (captureServiceBound) {
+            // 悬浮球关闭后解除绑定，截屏服务空闲时随之销毁并释放截屏会话
+            unbindService(captureConnection);
+            captureServiceBound = false;
+        }
+        // 不再截屏时清零内存中的Key，之后的请求（如稍后送达的回复）重新解密
+        CredentialStore.getInstance(this).wipe();
         if (floatingView != null) {
             try {
                 windowManager.removeView(floatingView);
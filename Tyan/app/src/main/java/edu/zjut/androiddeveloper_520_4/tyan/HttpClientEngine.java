@@ -0,0 +1,130 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/*
+ 进程级HTTP客户端引擎，所有大模型请求共用同一个OkHttpClient：
+ 1. 共享连接池，第二次及之后的请求复用已建立的TCP/TLS连接，省去DNS解析和握手
+ 2. 优先协商HTTP/2，同一主机的多个请求复用一条连接
+ 3. 限制每个主机的并发请求数，避免连续点击悬浮球时挤占带宽
+ 4. 支持预热：提前与StyleSettingsManager中配置的端点建立连接
+ 5. 记录近期请求的耗时，ResilientCall 据此决定何时发送对冲请求
+ 6. 通过 MetricsEventListener 记录DNS、连接、TLS和首字节等网络阶段的耗时
+ */
+public class HttpClientEngine {
+    private static final String TAG = "HttpClientEngine";
+
+    // 连接池配置
+    static final int MAX_IDLE_CONNECTIONS = 5;       // 最多保留的空闲连接数
+    static final long KEEP_ALIVE_MINUTES = 5;        // 空闲连接保活时间
+    // 调度器配置
+    static final int MAX_REQUESTS = 16;              // 全局最大并发请求数
+    static final int MAX_REQUESTS_PER_HOST = 4;      // 单个主机最大并发请求数
+    // 超时配置，大模型生成回复较慢，读超时需要比OkHttp默认的10秒更长
+    static final long CONNECT_TIMEOUT_SECONDS = 15;
+    static final long READ_TIMEOUT_SECONDS = 60;
+    static final long WRITE_TIMEOUT_SECONDS = 60;
+
+    private static HttpClientEngine instance;//单例模式
+
+    private final OkHttpClient client;
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+
+    HttpClientEngine(OkHttpClient client) {
+        this.client = client;
+    }
+
+    public static synchronized HttpClientEngine getInstance() {
+        if (instance == null) {
+            instance = new HttpClientEngine(newClientBuilder().build());
+        }
+        return instance;
+    }//获取单例
+
+    /*
+     创建带有连接复用、HTTP/2和并发限制配置的OkHttpClient.Builder
+     测试中可以在此基础上替换EventListener或证书配置
+     */
+    static OkHttpClient.Builder newClientBuilder() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+        return new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .dispatcher(dispatcher)
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))//TLS下通过ALPN协商HTTP/2，不支持时回退到HTTP/1.1
+                .retryOnConnectionFailure(true)
+                .eventListenerFactory(MetricsEventListener.FACTORY)
+                .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .writeTimeout(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /*
+     获取共享的OkHttpClient
+     */
+    public OkHttpClient getClient() {
+        return client;
+    }
+
+    /*
+     近期请求的耗时统计
+     */
+    public LatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    /*
+     预热端点：异步发送一个HEAD请求，提前完成DNS解析、TCP连接和TLS握手，
+     连接放回连接池后，真正的请求即可直接复用
+     @param baseUrl 端点地址，一般为 StyleSettingsManager.getUrl()
+     */
+    public void prewarm(String baseUrl) {
+        HttpUrl url = baseUrl == null ? null : HttpUrl.parse(baseUrl);
+        if (url == null) {
+            Log.w(TAG, "无法预热，URL无效: " + baseUrl);
+            return;
+        }
+
+        Request request = new Request.Builder()
+                .url(url)
+                .head()
+                .build();
+
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                Log.w(TAG, "预热失败: " + e.getMessage());
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                // 无论状态码如何，连接都已建立，关闭响应让连接回到连接池
+                Log.d(TAG, "预热完成: " + url.host() + ", 协议: " + response.protocol());
+                response.close();
+            }
+        });
+    }
+
+    /*
+     预热 StyleSettingsManager 中配置的端点
+     */
+    public void prewarm(StyleSettingsManager settingsManager) {
+        prewarm(settingsManager.getUrl());
+    }
+}
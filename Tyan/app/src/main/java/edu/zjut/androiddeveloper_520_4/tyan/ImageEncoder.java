@@ -0,0 +1,215 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Paint;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+
+/*
+ 图片编码阶段，按编码策略把截图或相册图片压缩为上传给视觉模型的字节：
+ 1. 按最长边等比缩小，手机截图的文字在1600像素左右仍然清晰
+ 2. 可选转为灰度，聊天截图以文字为主，灰度图压缩后更小
+ 3. 在字节预算内选择最高的压缩质量，质量降到下限仍超出预算时继续缩小尺寸
+ */
+public class ImageEncoder {
+    public static final String FORMAT_JPEG = "jpeg";
+    public static final String FORMAT_WEBP = "webp";
+
+    static final int MAX_QUALITY = 85;      // 预算充足时使用的质量
+    static final int MIN_QUALITY = 40;      // 质量下限，再低文字会明显模糊
+    static final int MIN_LONG_EDGE = 640;   // 缩小尺寸的下限
+    static final float DOWNSCALE_STEP = 0.8f;// 超出预算时每次缩小的比例
+
+    /*
+     编码策略，来自 StyleSettingsManager
+     */
+    public static class Policy {
+        private final int maxLongEdge;  // 最长边像素数，小于等于0表示不缩放
+        private final int byteBudget;   // 目标字节数，小于等于0表示不限制
+        private final String format;    // FORMAT_JPEG 或 FORMAT_WEBP
+        private final boolean grayscale;// 是否转为灰度
+
+        public Policy(int maxLongEdge, int byteBudget, String format, boolean grayscale) {
+            this.maxLongEdge = maxLongEdge;
+            this.byteBudget = byteBudget;
+            this.format = FORMAT_WEBP.equals(format) ? FORMAT_WEBP : FORMAT_JPEG;
+            this.grayscale = grayscale;
+        }
+
+        public int getMaxLongEdge() {
+            return maxLongEdge;
+        }
+
+        public int getByteBudget() {
+            return byteBudget;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public boolean isGrayscale() {
+            return grayscale;
+        }
+
+        @Override
+        public String toString() {
+            return format + ", maxEdge=" + maxLongEdge + ", budget=" + byteBudget + (grayscale ? ", gray" : "");
+        }
+    }
+
+    /*
+     编码结果
+     */
+    public static class EncodedImage {
+        private final byte[] data;
+        private final String mimeType;
+        private final int width;
+        private final int height;
+        private final int quality;
+
+        EncodedImage(byte[] data, String mimeType, int width, int height, int quality) {
+            this.data = data;
+            this.mimeType = mimeType;
+            this.width = width;
+            this.height = height;
+            this.quality = quality;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getQuality() {
+            return quality;
+        }
+    }
+
+    /*
+     按策略编码图片，不会回收传入的 source
+     */
+    public static EncodedImage encode(Bitmap source, Policy policy) {
+        Bitmap working = scaleToLongEdge(source, policy.getMaxLongEdge());
+        if (policy.isGrayscale()) {
+            Bitmap gray = toGrayscale(working);
+            recycleIfIntermediate(working, source);
+            working = gray;
+        }
+
+        Bitmap.CompressFormat format = compressFormat(policy.getFormat());
+        String mimeType = FORMAT_WEBP.equals(policy.getFormat()) ? "image/webp" : "image/jpeg";
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int budget = policy.getByteBudget();
+
+        while (true) {
+            int quality = compressWithinBudget(working, format, budget, output);
+            int longEdge = Math.max(working.getWidth(), working.getHeight());
+            boolean overBudget = budget > 0 && output.size() > budget;
+            if (!overBudget || longEdge <= MIN_LONG_EDGE) {
+                EncodedImage result = new EncodedImage(output.toByteArray(), mimeType,
+                        working.getWidth(), working.getHeight(), quality);
+                recycleIfIntermediate(working, source);
+                return result;
+            }
+            // 质量已到下限仍超出预算，缩小尺寸后重试
+            int targetEdge = Math.max(MIN_LONG_EDGE, (int) (longEdge * DOWNSCALE_STEP));
+            Bitmap smaller = scaleToLongEdge(working, targetEdge);
+            recycleIfIntermediate(working, source);
+            working = smaller;
+        }
+    }
+
+    /*
+     二分查找预算内的最高质量，结果留在 output 中
+     @return 最终使用的质量
+     */
+    private static int compressWithinBudget(Bitmap bitmap, Bitmap.CompressFormat format, int budget, ByteArrayOutputStream output) {
+        compress(bitmap, format, MAX_QUALITY, output);
+        if (budget <= 0 || output.size() <= budget) {
+            return MAX_QUALITY;
+        }
+
+        int low = MIN_QUALITY;
+        int high = MAX_QUALITY - 1;
+        int best = -1;
+        // 质量与大小近似单调，三四次压缩即可确定
+        while (high - low > 4) {
+            int mid = (low + high) / 2;
+            compress(bitmap, format, mid, output);
+            if (output.size() <= budget) {
+                best = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int quality = best >= 0 ? best : MIN_QUALITY;
+        compress(bitmap, format, quality, output);
+        return quality;
+    }
+
+    private static void compress(Bitmap bitmap, Bitmap.CompressFormat format, int quality, ByteArrayOutputStream output) {
+        output.reset();
+        bitmap.compress(format, quality, output);
+    }
+
+    /*
+     等比缩小到最长边不超过 maxLongEdge，不需要缩小时返回原图
+     */
+    static Bitmap scaleToLongEdge(Bitmap bitmap, int maxLongEdge) {
+        int longEdge = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (maxLongEdge <= 0 || longEdge <= maxLongEdge) {
+            return bitmap;
+        }
+        float scale = (float) maxLongEdge / longEdge;
+        int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        return Bitmap.createScaledBitmap(bitmap, width, height, true);
+    }
+
+    /*
+     转为灰度图
+     */
+    private static Bitmap toGrayscale(Bitmap bitmap) {
+        Bitmap gray = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_8888);
+        ColorMatrix matrix = new ColorMatrix();
+        matrix.setSaturation(0);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        paint.setColorFilter(new ColorMatrixColorFilter(matrix));
+        new Canvas(gray).drawBitmap(bitmap, 0, 0, paint);
+        return gray;
+    }
+
+    private static void recycleIfIntermediate(Bitmap bitmap, Bitmap source) {
+        if (bitmap != source) {
+            bitmap.recycle();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat compressFormat(String format) {
+        if (FORMAT_WEBP.equals(format)) {
+            // Android 11 起区分有损/无损WebP，旧的WEBP常量已废弃
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                    ? Bitmap.CompressFormat.WEBP_LOSSY
+                    : Bitmap.CompressFormat.WEBP;
+        }
+        return Bitmap.CompressFormat.JPEG;
+    }
+}
@@ -0,0 +1,187 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ 图片处理线程，截屏和编码都不在主线程中进行：
+ 1. 采集线程：HandlerThread，VirtualDisplay 和 ImageReader 的回调以及像素拷贝、裁剪都在这里执行
+ 2. 编码线程池：线程数和排队数量都有上限，用于上传图片的解码、感知哈希和压缩编码
+ 3. 缩略图线程：聊天列表的缩略图单独排队，快速滑动时不会占满编码线程池的队列，
+    也不会因为队列已满而被拒绝；离开屏幕的行在重新绑定时取消并移出队列
+ 4. 处理结果通过 postToMain 回到主线程更新界面
+ */
+public class ImageProcessingExecutor {
+    private static final String TAG = "ImageProcessing";
+
+    private static final int WORKER_COUNT = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+    private static final int QUEUE_CAPACITY = 8;        // 排队任务上限，超出时直接回调失败，避免积压大图
+    private static final long KEEP_ALIVE_SECONDS = 30;  // 空闲线程的存活时间
+    private static final long REJECTED_RETRY_MS = 100;  // 队列已满时重新提交的间隔
+
+    private static ImageProcessingExecutor instance;
+
+    private final HandlerThread captureThread;
+    private final Handler captureHandler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor workers;
+    private final ThreadPoolExecutor thumbnailWorker;
+
+    /*
+     后台任务的结果回调，均在主线程执行
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+
+        void onError(Throwable error);
+    }
+
+    public static synchronized ImageProcessingExecutor getInstance() {
+        if (instance == null) {
+            instance = new ImageProcessingExecutor();
+        }
+        return instance;
+    }
+
+    private ImageProcessingExecutor() {
+        // 采集线程决定截屏的响应速度，使用显示相关的优先级
+        captureThread = new HandlerThread("ImageCapture", Process.THREAD_PRIORITY_DISPLAY);
+        captureThread.start();
+        captureHandler = new Handler(captureThread.getLooper());
+
+        workers = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                new WorkerThreadFactory("ImageWorker-"));
+        workers.allowCoreThreadTimeOut(true);
+
+        // 缩略图很小，一个线程即可；队列不设上限，排队的数量由列表中可见且还没有加载的行决定
+        thumbnailWorker = new ThreadPoolExecutor(1, 1,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new WorkerThreadFactory("ThumbnailWorker-"));
+        thumbnailWorker.allowCoreThreadTimeOut(true);
+    }
+
+    /*
+     采集线程的 Handler，用于 ImageReader 和 VirtualDisplay 的回调
+     */
+    public Handler getCaptureHandler() {
+        return captureHandler;
+    }
+
+    /*
+     在编码线程池中执行任务，结果回到主线程
+     @return 可用于 cancel 的任务句柄，队列已满时返回 null 并回调失败
+     */
+    public <T> Future<?> submit(Callable<T> task, Callback<T> callback) {
+        Future<?> future = trySubmit(workers, task, callback);
+        if (future == null) {
+            Log.w(TAG, "Image task rejected, queue is full");
+            mainHandler.post(() -> callback.onError(new RejectedExecutionException("Image queue is full")));
+        }
+        return future;
+    }
+
+    /*
+     与 submit 相同，但队列已满时不回调失败，稍后在主线程重新提交，直到进入队列
+     用于批量回复的解码编码：调用方已限制同时提交的数量，不能因为截屏、预览等任务暂时占满队列而失败
+     */
+    public <T> void submitWhenQueued(Callable<T> task, Callback<T> callback) {
+        if (trySubmit(workers, task, callback) == null) {
+            Log.d(TAG, "Image queue is full, retrying in " + REJECTED_RETRY_MS + "ms");
+            mainHandler.postDelayed(() -> submitWhenQueued(task, callback), REJECTED_RETRY_MS);
+        }
+    }
+
+    /*
+     在缩略图线程中执行任务，结果回到主线程；不会因为排队而被拒绝
+     @return 可用于 cancel 的任务句柄
+     */
+    public <T> Future<?> submitThumbnail(Callable<T> task, Callback<T> callback) {
+        return trySubmit(thumbnailWorker, task, callback);
+    }
+
+    /*
+     @return 任务句柄，队列已满时返回 null，不回调
+     */
+    private <T> Future<?> trySubmit(ThreadPoolExecutor executor, Callable<T> task, Callback<T> callback) {
+        try {
+            return executor.submit(() -> {
+                try {
+                    T result = task.call();
+                    mainHandler.post(() -> callback.onResult(result));
+                } catch (Throwable e) {// 大图解码和编码可能抛出 OutOfMemoryError，同样回调失败
+                    Log.e(TAG, "Image task failed: " + e.getMessage(), e);
+                    mainHandler.post(() -> callback.onError(e));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    /*
+     取消还没有开始执行的任务，并立即从队列中移除，腾出排队名额
+     */
+    public void cancel(Future<?> future) {
+        if (future != null && future.cancel(false)) {
+            workers.purge();
+            thumbnailWorker.purge();
+        }
+    }
+
+    /*
+     在编码线程池中执行不需要结果的任务，任务自行处理异常
+     @return 是否已进入队列
+     */
+    public boolean execute(Runnable task) {
+        try {
+            workers.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Image task rejected, queue is full");
+            return false;
+        }
+    }
+
+    /*
+     回到主线程执行
+     */
+    public void postToMain(Runnable runnable) {
+        mainHandler.post(runnable);
+    }
+
+    /*
+     编码线程使用后台优先级，不和界面渲染抢占CPU
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, namePrefix + count.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import java.util.Arrays;
+
+/*
+ 记录最近一段时间的耗时样本并计算分位数：
+ 1. HttpClientEngine 用它记录成功请求的耗时（从发出请求到收到响应头，毫秒），用于计算对冲请求的等待时间
+ 2. PerfMetrics 为每个阶段各用一个，样本单位为微秒
+ 只保留最近的若干个样本，服务端变慢或变快后很快反映出来；样本太少时不给出分位数
+ */
+public class LatencyTracker {
+    static final int WINDOW = 100;     // 默认保留的样本数
+    static final int MIN_SAMPLES = 10; // 默认计算分位数所需的最少样本数
+
+    private final long[] samples;
+    private final int minSamples;
+    private int count = 0;
+    private int next = 0;
+
+    public LatencyTracker() {
+        this(WINDOW, MIN_SAMPLES);
+    }
+
+    /*
+     @param window 保留的样本数
+     @param minSamples 计算分位数所需的最少样本数
+     */
+    public LatencyTracker(int window, int minSamples) {
+        this.samples = new long[window];
+        this.minSamples = minSamples;
+    }
+
+    public synchronized void record(long latency) {
+        samples[next] = latency;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /*
+     @param quantile 分位，如 0.95
+     @return 最近样本的分位数，单位与记录时相同，样本不足时返回 -1
+     */
+    public synchronized long percentile(double quantile) {
+        if (count < minSamples || count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(quantile * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized void clear() {
+        count = 0;
+        next = 0;
+    }
+}
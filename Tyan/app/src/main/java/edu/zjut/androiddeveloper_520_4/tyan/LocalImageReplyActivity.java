@@ -6,12 +6,14 @@ package edu.zjut.androiddeveloper_520_4.tyan;
  1. 图片上传功能：
  2. 智能回复功能：
  3. 剪贴板集成：
+ 4. 批量回复：一次选择多张图片，并行解码编码和发送请求，完成后导出全部回复
  */
 
 import android.Manifest;
 import android.content.ClipData;
 import android.content.ClipDescription;
 import android.content.ClipboardManager;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
@@ -30,7 +32,9 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
+import androidx.annotation.NonNull;
 import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
@@ -38,16 +42,25 @@ import androidx.core.view.ViewCompat;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import org.json.JSONException;
-
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+
+import okhttp3.Call;
 
 
 public class LocalImageReplyActivity extends AppCompatActivity {
 
     private static final int REQUEST_STORAGE_PERMISSION = 101;
+    private static final String STATE_SELECTED_IMAGE = "selected_image";
+    
+    // 对话记录分页
+    private static final int PAGE_SIZE = 50;       // 每次从对话记录读取的消息数
+    private static final int MAX_WINDOW = 150;     // 内存中最多保留的消息数，超出时丢弃离当前位置最远的一端
+    private static final int PREFETCH_DISTANCE = 10;// 距离列表两端不足该数量时读取下一页
     // 使用ApiUtils中的JSON MediaType
     
     private ImageView uploadImageView;
@@ -58,31 +71,40 @@ public class LocalImageReplyActivity extends AppCompatActivity {
     private ImageButton sendButton;
     
     private ChatAdapter chatAdapter;
-    private List<ChatMessage> chatMessages;
-    private Bitmap selectedImage;
+    private List<ChatMessage> chatMessages;// 当前消息列表，只在主线程修改，每次修改后提交给适配器
+    private Uri selectedImageUri;   // 选中图片保存在 filesDir/captures 中的上传版本
+    private ImageEncoder.EncodedImage selectedUpload;// 选中图片编码后的上传数据，界面重建后为 null，发送时从文件重新编码
+    private Bitmap previewImage;    // 按屏幕尺寸降采样的预览图片
     private StyleSettingsManager settingsManager;
+    private ConversationStore conversationStore;
+    private boolean hasOlder = true;   // 对话记录中还有更早的消息没有读入
+    private boolean hasNewer = false;  // 向上翻页时丢弃了最新的消息，向下滚动时需要重新读入
+    private boolean pageLoading = false;// 正在读取一页
+    private int windowGeneration = 0;  // 回到最新一页时加一，丢弃之前发出的读取结果
+    private final ConversationContext conversationContext = new ConversationContext();// 多轮对话的上下文
+    private boolean contextRestored = false;// 是否已从对话记录恢复上下文
+    private final RequestCoordinator requestCoordinator = new RequestCoordinator("local");// 回复到达前再次发送时取消上一次请求
+    private long activeLoadingId;   // 最近一次请求的加载消息ID，只在主线程访问
+    private BatchReplyRunner<ImageEncoder.EncodedImage> batchRunner;// 进行中或最近一次的批量回复
+    private BatchReplyRunner.Summary lastBatchSummary;// 最近一次批量回复的结果，长按批量按钮再次导出
     
     private final ActivityResultLauncher<Intent> imagePickerLauncher = 
             registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), 
                     result -> {
                         if (result.getResultCode() == RESULT_OK && result.getData() != null) {
                             Uri selectedImageUri = result.getData().getData();//两个getData不一样，前者是ActivityResultContracts的getData，后者是Intent的getData
-                            try {
-                                selectedImage = MediaStore.Images.Media.getBitmap(getContentResolver(), selectedImageUri);
-                                //getContentResolver()获取ContentResolver对象，用于访问应用的内容提供者
-                                uploadImageView.setImageBitmap(selectedImage);
-                                uploadImageView.setVisibility(View.VISIBLE);
-                                uploadPromptText.setText(R.string.image_ready_prompt);
-                                //设置上传图片容器的可见性
-                                uploadImageContainer.setVisibility(View.VISIBLE);
-
-                                // 添加图片消息到聊天记录
-                                addMessage(new ChatMessage(ChatMessage.TYPE_IMAGE, null, selectedImageUri.toString()));
-                            } catch (IOException e) {
-                                Toast.makeText(this, R.string.image_load_error, Toast.LENGTH_SHORT).show();
-                            }
+                            loadSelectedImage(selectedImageUri, true);
                         }
                     });//ActivityResultLauncher是一个用于处理Activity结果的接口，这里是选择相册图片
+    
+    // 批量回复：一次选择多张图片
+    private final ActivityResultLauncher<String> batchPickerLauncher =
+            registerForActivityResult(new ActivityResultContracts.GetMultipleContents(),
+                    uris -> {
+                        if (uris != null && !uris.isEmpty()) {
+                            startBatch(uris);
+                        }
+                    });
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -90,6 +112,8 @@ public class LocalImageReplyActivity extends AppCompatActivity {
         setContentView(R.layout.activity_local_image_reply);
         ViewCompat.setOnApplyWindowInsetsListener(findViewById(R.id.local_image_reply_layout), null);
         
+        conversationStore = ConversationStore.getInstance(this);
+        
         // 初始化控件
         initViews();
         setupRecyclerView();//设置消息列表的适配器和布局管理器
@@ -98,11 +122,41 @@ public class LocalImageReplyActivity extends AppCompatActivity {
 
         // 初始化设置管理器
         settingsManager = new StyleSettingsManager(this);
+        // 预热API端点连接，用户发送第一条消息时即可复用连接
+        HttpClientEngine.getInstance().prewarm(settingsManager);
+
+        // 读取最近的一页对话记录，屏幕旋转或进程被回收后对话不会丢失
+        loadOlderMessages();
+        if (savedInstanceState != null && savedInstanceState.getString(STATE_SELECTED_IMAGE) != null) {
+            loadSelectedImage(Uri.parse(savedInstanceState.getString(STATE_SELECTED_IMAGE)), false);
+        }
 
         // 注意：在输入框获得焦点时自动粘贴剪贴板内容
         // 不需要在这里调用 getClipboardContent()
     }
     
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (selectedImageUri != null) {
+            outState.putString(STATE_SELECTED_IMAGE, selectedImageUri.toString());
+        }
+    }
+    
+    /*
+     页面关闭时取消进行中的请求；屏幕旋转等配置变化时请求继续，回复照常保存到对话记录
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (!isChangingConfigurations()) {
+            requestCoordinator.cancelAll();
+            if (batchRunner != null) {
+                batchRunner.cancel();
+            }
+        }
+    }
+    
     private void initViews() {
         uploadImageContainer = findViewById(R.id.upload_image_container);
         uploadImageView = findViewById(R.id.upload_image_view);
@@ -125,9 +179,116 @@ public class LocalImageReplyActivity extends AppCompatActivity {
     
     private void setupRecyclerView() {
         chatMessages = new ArrayList<>();
-        chatAdapter = new ChatAdapter(chatMessages);
-        chatRecyclerView.setLayoutManager(new LinearLayoutManager(this));// 设置RecyclerView的布局管理器为线性布局
+        chatAdapter = new ChatAdapter();
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        chatRecyclerView.setLayoutManager(layoutManager);// 设置RecyclerView的布局管理器为线性布局
         chatRecyclerView.setAdapter(chatAdapter);
+        
+        // 滚动到列表两端附近时读取相邻的一页
+        chatRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy < 0 && hasOlder && layoutManager.findFirstVisibleItemPosition() <= PREFETCH_DISTANCE) {
+                    loadOlderMessages();
+                } else if (dy > 0 && hasNewer
+                        && layoutManager.findLastVisibleItemPosition() >= chatMessages.size() - 1 - PREFETCH_DISTANCE) {
+                    loadNewerMessages();
+                }
+            }
+        });
+    }
+    
+    /*
+     读取当前最早消息之前的一页，插入到列表开头；
+     列表超出上限时丢弃最新的消息，之后向下滚动时再读入
+     */
+    private void loadOlderMessages() {
+        if (pageLoading) {
+            return;
+        }
+        pageLoading = true;
+        int generation = windowGeneration;
+        long beforeId = chatMessages.isEmpty() ? Long.MAX_VALUE : chatMessages.get(0).getId();
+        conversationStore.loadBefore(ConversationStore.CONVERSATION_LOCAL, beforeId, PAGE_SIZE, page -> {
+            if (isDestroyed() || generation != windowGeneration) {
+                return;
+            }
+            pageLoading = false;
+            hasOlder = page.size() == PAGE_SIZE;
+            boolean firstPage = chatMessages.isEmpty();
+            chatMessages.addAll(0, withoutLoaded(page));
+            if (!contextRestored) {
+                // 用最近一页对话恢复上下文，重新进入页面后继续提问仍能带上之前的对话
+                contextRestored = true;
+                conversationContext.restore(page);
+            }
+            while (chatMessages.size() > MAX_WINDOW) {
+                chatMessages.remove(chatMessages.size() - 1);
+                hasNewer = true;
+            }
+            submitMessages(firstPage);
+        });
+    }
+    
+    /*
+     读取当前最新消息之后的一页，追加到列表末尾；列表超出上限时丢弃最早的消息
+     */
+    private void loadNewerMessages() {
+        if (pageLoading || chatMessages.isEmpty()) {
+            return;
+        }
+        pageLoading = true;
+        int generation = windowGeneration;
+        long afterId = chatMessages.get(chatMessages.size() - 1).getId();
+        conversationStore.loadAfter(ConversationStore.CONVERSATION_LOCAL, afterId, PAGE_SIZE, page -> {
+            if (isDestroyed() || generation != windowGeneration) {
+                return;
+            }
+            pageLoading = false;
+            hasNewer = page.size() == PAGE_SIZE;
+            chatMessages.addAll(withoutLoaded(page));
+            while (chatMessages.size() > MAX_WINDOW) {
+                chatMessages.remove(0);
+                hasOlder = true;
+            }
+            submitMessages(false);
+        });
+    }
+    
+    /*
+     去掉已经在列表中的消息：读取期间新发送的消息已经保存，可能同时出现在读取结果中
+     */
+    private List<ChatMessage> withoutLoaded(List<ChatMessage> page) {
+        Set<Long> loadedIds = new HashSet<>();
+        for (ChatMessage message : chatMessages) {
+            loadedIds.add(message.getId());
+        }
+        List<ChatMessage> result = new ArrayList<>(page.size());
+        for (ChatMessage message : page) {
+            if (!loadedIds.contains(message.getId())) {
+                result.add(message);
+            }
+        }
+        return result;
+    }
+    
+    /*
+     发送新消息前回到最新的一页：保留列表中还没有保存的加载消息，重新读取最新的消息
+     */
+    private void returnToLatest() {
+        List<ChatMessage> pending = new ArrayList<>();
+        for (ChatMessage message : chatMessages) {
+            if (message.getType() == ChatMessage.TYPE_LOADING) {
+                pending.add(message);
+            }
+        }
+        chatMessages.clear();
+        chatMessages.addAll(pending);
+        hasNewer = false;
+        hasOlder = true;
+        pageLoading = false;
+        windowGeneration++;
+        loadOlderMessages();
     }
     
     private void setupClickListeners() {
@@ -140,6 +301,22 @@ public class LocalImageReplyActivity extends AppCompatActivity {
                 messageEditText.setText("");
             }
         });
+        
+        ImageButton batchButton = findViewById(R.id.batch_button);
+        batchButton.setOnClickListener(v -> {
+            if (batchRunner != null && batchRunner.isRunning()) {
+                Toast.makeText(this, R.string.batch_running, Toast.LENGTH_SHORT).show();
+            } else {
+                batchPickerLauncher.launch("image/*");
+            }
+        });
+        batchButton.setOnLongClickListener(v -> {
+            if (lastBatchSummary == null) {
+                return false;
+            }
+            showBatchExport(lastBatchSummary);
+            return true;
+        });
 
     }
     
@@ -160,112 +337,486 @@ public class LocalImageReplyActivity extends AppCompatActivity {
         imagePickerLauncher.launch(intent);
     }
     
+    /*
+     在图片处理线程池中解码选中图片的预览，完成后回到主线程显示；
+     预览只按屏幕宽度降采样。相册的读取授权是临时的，新选中的图片同时按上传尺寸编码，
+     写入 filesDir/captures，图片消息和之后的发送都使用这个文件
+     @param addToChat 是否添加图片消息，界面重建后恢复选中图片时不重复添加，此时 imageUri 已是保存的文件
+     */
+    private void loadSelectedImage(Uri imageUri, boolean addToChat) {
+        //getContentResolver()获取ContentResolver对象，用于访问应用的内容提供者
+        int previewEdge = getResources().getDisplayMetrics().widthPixels;
+        ImageEncoder.Policy policy = settingsManager.getEncodingPolicy();
+        ChatMessage imageMessage = new ChatMessage(ChatMessage.TYPE_IMAGE, null, null);
+        ImageProcessingExecutor.getInstance().submit(
+                () -> {
+                    Bitmap preview = SampledImageDecoder.decodeForDisplay(getContentResolver(), imageUri, previewEdge);
+                    if (!addToChat) {
+                        return new SelectedImage(imageUri, null, preview);
+                    }
+                    Bitmap upload = SampledImageDecoder.decodeForUpload(getContentResolver(), imageUri, policy);
+                    ImageEncoder.EncodedImage encoded;
+                    try {
+                        encoded = ImageEncoder.encode(upload, policy);
+                    } finally {
+                        upload.recycle();// 上传图片只在编码期间存在
+                    }
+                    File capture = conversationStore.saveCapture(imageMessage.getId(), encoded);
+                    return new SelectedImage(Uri.fromFile(capture), encoded, preview);
+                },
+                new ImageProcessingExecutor.Callback<SelectedImage>() {
+                    @Override
+                    public void onResult(SelectedImage selected) {
+                        if (isDestroyed()) {
+                            return;
+                        }
+                        selectedImageUri = selected.uri;
+                        selectedUpload = selected.upload;
+                        previewImage = selected.preview;
+                        uploadImageView.setImageBitmap(previewImage);
+                        uploadImageView.setVisibility(View.VISIBLE);
+                        uploadPromptText.setText(R.string.image_ready_prompt);
+                        //设置上传图片容器的可见性
+                        uploadImageContainer.setVisibility(View.VISIBLE);
+
+                        // 添加图片消息到聊天记录
+                        if (addToChat) {
+                            addMessage(new ChatMessage(imageMessage.getId(), ChatMessage.TYPE_IMAGE, null,
+                                    selected.uri.toString(), imageMessage.getTimestamp()));
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable error) {
+                        if (!isDestroyed()) {
+                            Toast.makeText(LocalImageReplyActivity.this, R.string.image_load_error, Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
+    }
+    
     private void sendMessage(String message) {
+        // 上一条消息的回复还没有到达时，新的消息取代它：取消请求，加载消息或未完成的回复改为提示
+        if (!requestCoordinator.isIdle()) {
+            replaceMessage(activeLoadingId, ChatMessage.TYPE_SYSTEM, getString(R.string.reply_superseded));
+        }
+        long generation = requestCoordinator.begin();
+        
         // 添加用户消息到聊天记录
         addMessage(new ChatMessage(ChatMessage.TYPE_USER, message, null));
-        addMessage(new ChatMessage(ChatMessage.TYPE_LOADING, getString(R.string.loading), null));// 添加加载消息
+        ChatMessage loadingMessage = new ChatMessage(ChatMessage.TYPE_LOADING, getString(R.string.loading), null);
+        addMessage(loadingMessage);// 添加加载消息，回复到达后原地替换
+        activeLoadingId = loadingMessage.getId();
         
-        try {
-            // 用户消息文本内容
-            String userContent = "场景: " + settingsManager.getScene() + "\n" +
-                                "语气: " + settingsManager.getTone() + "\n" +
-                                "回复对象: " + settingsManager.getTarget() + "\n" +
-                                "其他要求: " + settingsManager.getOtherRequirements() + "\n\n" +
-                                "用户消息: " + message;
-            
-            // 判断是否有图片
-            String base64Image = null;
-            if (selectedImage != null) {
-                // 有图片，添加提示
-                userContent += "\n\n请根据图片内容给出合适的回复。";
-                base64Image = ApiUtils.bitmapToBase64(selectedImage);
-            } else {
-                // 没有图片，只发送文本内容
-                userContent += "\n\n请给出合适的回复。";
-            }
-            
-            // 使用ApiUtils创建请求体
-            String requestBodyJson = ApiUtils.createApiRequestBody(settingsManager, userContent, base64Image);
-            
-            // 添加调试信息
-            addMessage(new ChatMessage(ChatMessage.TYPE_SYSTEM, 
-                    "正在发送请求到: " + settingsManager.getUrl() + "\n模型: " + settingsManager.getModelName(), null));
-            
-            // 发送API请求
-            ApiUtils.sendApiRequest(settingsManager, requestBodyJson, new ApiUtils.ApiCallback() {
+        // 按预算选取之前的对话
+        String imageKey = selectedImageUri != null ? selectedImageUri.toString() : null;
+        ConversationContext.Window window = conversationContext.select(imageKey, settingsManager.getContextTokenBudget());
+        List<ConversationContext.Turn> history = window.getTurns();
+        
+        // 判断是否需要附带图片
+        if (imageKey == null) {
+            // 没有图片，只发送文本内容
+            sendRequest(message, PromptTemplates.render(PromptTemplates.TEXT_MESSAGE, message), history, null, null, loadingMessage, generation);
+            return;
+        }
+        
+        // 有图片，接口不保存之前的图片，每次请求都要附带
+        boolean attachToMessage = window.shouldAttachImage();
+        String imageContent = PromptTemplates.render(attachToMessage
+                ? PromptTemplates.IMAGE_MESSAGE
+                // 图片附带在原来发送它的那条历史消息上，本次消息只以文字提及
+                : PromptTemplates.IMAGE_IN_CONTEXT, message);
+        String sentImageKey = attachToMessage ? imageKey : null;
+        
+        // 选中时已编码的直接发送，否则在图片处理线程池中按上传尺寸解码、编码后再发送
+        if (selectedUpload != null) {
+            sendRequest(message, imageContent, history, selectedUpload, sentImageKey, loadingMessage, generation);
+            return;
+        }
+        Uri imageUri = selectedImageUri;
+        ImageEncoder.Policy policy = settingsManager.getEncodingPolicy();
+        ImageProcessingExecutor.getInstance().submit(
+                () -> {
+                    Bitmap upload = SampledImageDecoder.decodeForUpload(getContentResolver(), imageUri, policy);
+                    try {
+                        return ImageEncoder.encode(upload, policy);
+                    } finally {
+                        upload.recycle();// 上传图片只在编码期间存在
+                    }
+                },
+                new ImageProcessingExecutor.Callback<ImageEncoder.EncodedImage>() {
+                    @Override
+                    public void onResult(ImageEncoder.EncodedImage encoded) {
+                        // 编码期间又发送了新的消息时不再发出请求
+                        if (!isDestroyed() && requestCoordinator.isCurrent(generation)) {
+                            sendRequest(message, imageContent, history, encoded, sentImageKey, loadingMessage, generation);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable error) {
+                        if (!isDestroyed() && requestCoordinator.isCurrent(generation)) {
+                            requestCoordinator.finish(generation);
+                            removeMessage(loadingMessage.getId());
+                            addMessage(new ChatMessage(ChatMessage.TYPE_SYSTEM,
+                                    getString(R.string.image_load_error) + "\n错误详情: " + error.getMessage(), null));
+                        }
+                    }
+                });
+    }
+    
+    /*
+     批量回复选中的图片：每张图片一条图片消息和一条进度消息，进度消息原地更新，回复到达后替换为回复
+     解码编码和请求由 BatchReplyRunner 按并发数流水线执行；各张图片相互独立，不带历史对话，也不记入上下文
+     */
+    private void startBatch(List<Uri> uris) {
+        int total = uris.size();
+        ChatMessage[] imageMessages = new ChatMessage[total];
+        ChatMessage[] progressMessages = new ChatMessage[total];
+        if (hasNewer) {
+            returnToLatest();
+        }
+        // 一次添加全部消息，只提交一次列表；相册的读取授权是临时的，图片消息等编码后写入文件再保存
+        for (int i = 0; i < total; i++) {
+            imageMessages[i] = new ChatMessage(ChatMessage.TYPE_IMAGE, null, uris.get(i).toString());
+            progressMessages[i] = new ChatMessage(ChatMessage.TYPE_LOADING, getString(R.string.batch_item_queued, i + 1, total), null);
+            chatMessages.add(imageMessages[i]);
+            chatMessages.add(progressMessages[i]);
+        }
+        submitMessages(true);
+        
+        String content = PromptTemplates.render(PromptTemplates.IMAGE_REPLY, null);
+        ImageEncoder.Policy policy = settingsManager.getEncodingPolicy();
+        ContentResolver resolver = getApplicationContext().getContentResolver();// 屏幕旋转后仍在后台继续
+        ImageProcessingExecutor imageExecutor = ImageProcessingExecutor.getInstance();
+        
+        // 排队已满时稍后重新提交，不因为其他图片任务暂时占满队列而失败；同时提交的数量由 BatchReplyRunner 限制
+        BatchReplyRunner.Preparer<ImageEncoder.EncodedImage> preparer = (index, result) ->
+                imageExecutor.submitWhenQueued(() -> {
+                    Bitmap upload = SampledImageDecoder.decodeForUpload(resolver, uris.get(index), policy);
+                    ImageEncoder.EncodedImage encoded;
+                    try {
+                        encoded = ImageEncoder.encode(upload, policy);
+                    } finally {
+                        upload.recycle();// 上传图片只在编码期间存在
+                    }
+                    // 对话记录中的图片消息指向 filesDir/captures 中的文件，界面重建后仍能显示
+                    ChatMessage image = imageMessages[index];
+                    File capture = conversationStore.saveCapture(image.getId(), encoded);
+                    conversationStore.saveMessage(ConversationStore.CONVERSATION_LOCAL, new ChatMessage(image.getId(),
+                            ChatMessage.TYPE_IMAGE, null, Uri.fromFile(capture).toString(), image.getTimestamp()));
+                    return encoded;
+                }, new ImageProcessingExecutor.Callback<ImageEncoder.EncodedImage>() {
+                    @Override
+                    public void onResult(ImageEncoder.EncodedImage encoded) {
+                        result.onSuccess(encoded);
+                    }
+
+                    @Override
+                    public void onError(Throwable error) {
+                        result.onFailure(getString(R.string.image_load_error) + ": " + error.getMessage());
+                    }
+                });
+        
+        BatchReplyRunner.Sender<ImageEncoder.EncodedImage> sender = (index, encoded, result) -> {
+            ChatRequestBody requestBody = ApiUtils.createApiRequestBody(settingsManager, content, encoded);
+            List<EndpointConfig> endpoints = EndpointRouter.getInstance().route(settingsManager.getEndpoints(), true);
+            // 批量时不逐字显示流式回复，多个请求同时更新列表会频繁刷新界面
+            return ApiUtils.sendApiRequest(endpoints, settingsManager.getRetryPolicy(), settingsManager.getCredentials(), requestBody, new ApiUtils.ApiCallback() {
                 @Override
-                public void onSuccess(String content) {
-                    runOnUiThread(() -> {//runOnUiThread用于在主线程中执行UI更新操作
-                        // 移除加载消息
-                        removeLoadingMessage();
-                        // 添加AI回复
-                        addMessage(new ChatMessage(ChatMessage.TYPE_AI, content, null));
-                        
-                        // 复制内容到系统剪贴板
-                        ApiUtils.copyToClipboard(LocalImageReplyActivity.this, content);
-                        
-                        // 显示复制成功的提示
-                        Toast.makeText(LocalImageReplyActivity.this, R.string.copied_to_clipboard, Toast.LENGTH_SHORT).show();
-                    });
+                public void onSuccess(String reply) {
+                    // 在网络线程中保存回复和请求记录，界面已经关闭时同样保存
+                    saveReply(progressMessages[index].withContent(ChatMessage.TYPE_AI, reply), encoded);
+                    result.onSuccess(reply);
                 }
-                
+
                 @Override
                 public void onFailure(Exception e) {
-                    runOnUiThread(() -> {
-                        // 移除加载消息
-                        removeLoadingMessage();
-                        // 添加错误消息
-                        addMessage(new ChatMessage(ChatMessage.TYPE_SYSTEM, 
-                                getString(R.string.network_error) + "\n错误详情: " + e.getMessage(), null));
-                    });
+                    result.onFailure(getString(R.string.network_error) + ": " + e.getMessage());
                 }
-                
+
                 @Override
                 public void onError(int statusCode, String errorBody, Exception e) {
-                    runOnUiThread(() -> {
-                        // 移除加载消息
-                        removeLoadingMessage();
-                        // 添加详细错误消息
-                        addMessage(new ChatMessage(ChatMessage.TYPE_SYSTEM,
-                                getString(R.string.api_error) + " " + statusCode +
-                                "\n错误详情: " + errorBody, null));
-                        
-                        // 对于403错误，提供更具体的建议
-                        if (statusCode == 403) {
-                            addMessage(new ChatMessage(ChatMessage.TYPE_SYSTEM, 
-                                    "403错误通常表示授权问题。请检查:\n" +
-                                    "1. API密钥是否正确\n" +
-                                    "2. API密钥是否已过期\n" +
-                                    "3. 是否有权限访问此API\n" +
-                                    "4. 请求格式是否符合API要求", null));
-                        }
-                    });
+                    result.onFailure(getString(R.string.api_error) + " " + statusCode + "\n" + errorBody);
                 }
             });
+        };
+        
+        BatchReplyRunner.Listener listener = new BatchReplyRunner.Listener() {
+            @Override
+            public void onItemChanged(int index, int state, String detail) {
+                if (isDestroyed()) {
+                    return;
+                }
+                long id = progressMessages[index].getId();
+                int number = index + 1;
+                switch (state) {
+                    case BatchReplyRunner.STATE_PREPARING:
+                        replaceMessage(id, ChatMessage.TYPE_LOADING, getString(R.string.batch_item_preparing, number, total));
+                        break;
+                    case BatchReplyRunner.STATE_WAITING:
+                        replaceMessage(id, ChatMessage.TYPE_LOADING, getString(R.string.batch_item_waiting, number, total));
+                        break;
+                    case BatchReplyRunner.STATE_SENDING:
+                        replaceMessage(id, ChatMessage.TYPE_LOADING, getString(R.string.batch_item_sending, number, total));
+                        break;
+                    case BatchReplyRunner.STATE_DONE:
+                        replaceMessage(id, ChatMessage.TYPE_AI, detail);// 回复已在网络线程中保存
+                        break;
+                    case BatchReplyRunner.STATE_FAILED:
+                        finishItem(progressMessages[index], getString(R.string.batch_item_failed, number, total, detail));
+                        break;
+                    case BatchReplyRunner.STATE_CANCELLED:
+                        finishItem(progressMessages[index], getString(R.string.batch_item_cancelled, number, total));
+                        break;
+                }
+            }
+
+            @Override
+            public void onFinished(BatchReplyRunner.Summary summary) {
+                lastBatchSummary = summary;
+                if (isDestroyed()) {
+                    return;
+                }
+                addMessage(new ChatMessage(ChatMessage.TYPE_SYSTEM, formatBatchSummary(summary), null));
+                if (summary.getSucceeded() > 0) {
+                    showBatchExport(summary);
+                }
+            }
+        };
+        
+        batchRunner = new BatchReplyRunner<>(total, settingsManager.getBatchConcurrency(),
+                preparer, sender, listener, imageExecutor::postToMain);
+        Toast.makeText(this, getString(R.string.batch_started, total, batchRunner.getConcurrency()), Toast.LENGTH_SHORT).show();
+        batchRunner.start();
+    }
+    
+    /*
+     把批量回复中一张图片的进度消息替换为失败或取消的提示，并保存到对话记录
+     */
+    private void finishItem(ChatMessage progressMessage, String text) {
+        replaceMessage(progressMessage.getId(), ChatMessage.TYPE_SYSTEM, text);
+        conversationStore.saveMessage(ConversationStore.CONVERSATION_LOCAL,
+                progressMessage.withContent(ChatMessage.TYPE_SYSTEM, text));
+    }
+    
+    private String formatBatchSummary(BatchReplyRunner.Summary summary) {
+        return getString(R.string.batch_finished, summary.getSucceeded(), summary.getFailed(),
+                summary.getConcurrency(), summary.getElapsedMs() / 1000f);
+    }
+    
+    /*
+     导出全部回复：复制到剪贴板，或通过分享发送到其他应用
+     */
+    private void showBatchExport(BatchReplyRunner.Summary summary) {
+        String text = summary.toExportText();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.batch_export)
+                .setMessage(formatBatchSummary(summary))
+                .setPositiveButton(R.string.batch_copy_all, (dialog, which) -> {
+                    ApiUtils.copyToClipboard(this, text);
+                    Toast.makeText(this, R.string.copied_to_clipboard, Toast.LENGTH_SHORT).show();
+                })
+                .setNeutralButton(R.string.batch_share, (dialog, which) -> {
+                    Intent send = new Intent(Intent.ACTION_SEND)
+                            .setType("text/plain")
+                            .putExtra(Intent.EXTRA_TEXT, text);
+                    startActivity(Intent.createChooser(send, getString(R.string.batch_export)));
+                })
+                .setNegativeButton(R.string.close, null)
+                .show();
+    }
+    
+    /*
+     创建请求体并发送请求
+     @param message 用户输入的原文，回复成功后与回复一起记入上下文
+     @param history 按预算选取的历史消息
+     @param image 编码后的图片，附带在本次消息或历史消息上，没有图片时为 null
+     @param imageKey 附带在本次消息上的图片，没有附带或附带在历史消息上时为 null
+     @param loadingMessage 本次请求的加载消息，回复以它的ID保存
+     @param generation 本次请求的代号，被新的消息取代后回调不再到达
+     */
+    private void sendRequest(String message, String userContent, List<ConversationContext.Turn> history,
+                             ImageEncoder.EncodedImage image, String imageKey, ChatMessage loadingMessage, long generation) {
+        long loadingId = loadingMessage.getId();
+        // 使用ApiUtils创建请求体
+        ChatRequestBody requestBody = ApiUtils.createApiRequestBody(settingsManager, history, userContent, image);
+        // 按各端点近期的耗时和错误率排列候选端点，带图片时只使用能识别图片的模型
+        List<EndpointConfig> endpoints = EndpointRouter.getInstance().route(settingsManager.getEndpoints(), image != null);
+        EndpointConfig preferred = endpoints.get(0);
+        
+        // 添加调试信息，放在加载消息之前，回复替换加载消息后仍在最下方
+        insertMessageBefore(loadingId, new ChatMessage(ChatMessage.TYPE_SYSTEM, 
+                "正在发送请求到: " + preferred.getUrl() + "\n模型: " + preferred.getModelName()
+                        + (endpoints.size() > 1 ? "\n备用端点: " + (endpoints.size() - 1) + "个" : "")
+                        + "\n历史消息: " + history.size() + "条", null));
+        
+        // 发送API请求，登记Call以便被取代或页面关闭时取消
+        Call call = ApiUtils.sendApiRequest(endpoints, settingsManager.getRetryPolicy(), settingsManager.getCredentials(), requestBody, requestCoordinator.wrap(generation, new ApiUtils.ApiCallback() {
+            private final StringBuilder streamedText = new StringBuilder();// 网络线程中拼接的流式回复
             
-        } catch (JSONException e) {
-            // 移除加载消息
-            removeLoadingMessage();
-            // 添加错误消息
-            addMessage(new ChatMessage(ChatMessage.TYPE_SYSTEM, getString(R.string.json_error), null));
-        }
+            @Override
+            public void onPartial(String delta) {
+                streamedText.append(delta);
+                String text = streamedText.toString();
+                runOnUiThread(() -> {
+                    // 主线程处理前已被新的消息取代时，保留取代提示
+                    if (requestCoordinator.isCurrent(generation)) {
+                        showStreamingReply(text);
+                    }
+                });
+            }
+            
+            /*
+             第一段内容到达时加载消息原地变为AI气泡（ID不变），之后只局部刷新气泡文本
+             */
+            private void showStreamingReply(String text) {
+                replaceMessage(loadingId, ChatMessage.TYPE_AI, text);
+            }
+            
+            @Override
+            public void onResult(ApiResult result) {
+                if (result.isTruncated()) {
+                    // 回复达到 max_tokens 被截断，提示用户内容可能不完整
+                    runOnUiThread(() -> addMessage(new ChatMessage(ChatMessage.TYPE_SYSTEM,
+                            getString(R.string.reply_truncated), null)));
+                }
+            }
+            
+            @Override
+            public void onSuccess(String content) {
+                // 记入上下文，之后的提问会带上这一轮对话
+                conversationContext.addExchange(message, imageKey, content);
+                // 在网络线程中保存回复和请求记录，界面已经关闭时同样保存
+                // 图片附带在历史消息上时已随那一轮保存过
+                saveReply(loadingMessage.withContent(ChatMessage.TYPE_AI, content), imageKey != null ? image : null);
+                runOnUiThread(() -> {//runOnUiThread用于在主线程中执行UI更新操作
+                    // 用完整回复替换加载消息或流式气泡
+                    showStreamingReply(content);
+                    
+                    // 复制内容到系统剪贴板
+                    ApiUtils.copyToClipboard(LocalImageReplyActivity.this, content);
+                    
+                    // 显示复制成功的提示
+                    Toast.makeText(LocalImageReplyActivity.this, R.string.copied_to_clipboard, Toast.LENGTH_SHORT).show();
+                });
+            }
+            
+            @Override
+            public void onFailure(Exception e) {
+                runOnUiThread(() -> {
+                    // 移除加载消息
+                    removeMessage(loadingId);
+                    // 添加错误消息
+                    addMessage(new ChatMessage(ChatMessage.TYPE_SYSTEM, 
+                            getString(R.string.network_error) + "\n错误详情: " + e.getMessage(), null));
+                });
+            }
+            
+            @Override
+            public void onError(int statusCode, String errorBody, Exception e) {
+                runOnUiThread(() -> {
+                    // 移除加载消息
+                    removeMessage(loadingId);
+                    // 添加详细错误消息
+                    addMessage(new ChatMessage(ChatMessage.TYPE_SYSTEM,
+                            getString(R.string.api_error) + " " + statusCode +
+                            "\n错误详情: " + errorBody, null));
+                    
+                    // 对于403错误，提供更具体的建议
+                    if (statusCode == 403) {
+                        addMessage(new ChatMessage(ChatMessage.TYPE_SYSTEM, 
+                                "403错误通常表示授权问题。请检查:\n" +
+                                "1. API密钥是否正确\n" +
+                                "2. API密钥是否已过期\n" +
+                                "3. 是否有权限访问此API\n" +
+                                "4. 请求格式是否符合API要求", null));
+                    }
+                });
+            }
+        }));
+        requestCoordinator.attach(generation, call);
     }
 
     
+    /*
+     保存回复和本次请求的记录，上传的图片写入文件后只记录路径；在后台线程调用
+     */
+    private void saveReply(ChatMessage reply, ImageEncoder.EncodedImage image) {
+        conversationStore.saveMessage(ConversationStore.CONVERSATION_LOCAL, reply);
+        String imagePath = null;
+        if (image != null) {
+            try {
+                imagePath = conversationStore.saveCapture(reply.getId(), image).getPath();
+            } catch (IOException e) {
+                Log.w("LocalImageReplyActivity", "Failed to save uploaded image: " + e.getMessage());
+            }
+        }
+        conversationStore.saveRequest(new ConversationStore.RequestRecord(
+                ConversationStore.CONVERSATION_LOCAL, reply.getId(), settingsManager, imagePath, reply.getText()));
+    }
+    
     private void addMessage(ChatMessage message) {
+        if (hasNewer) {
+            // 正在查看较早的消息，先回到最新的一页
+            returnToLatest();
+        }
         chatMessages.add(message);
-        chatAdapter.notifyItemInserted(chatMessages.size() - 1);// 通知适配器有新消息插入，参数是插入的位置
-        chatRecyclerView.smoothScrollToPosition(chatMessages.size() - 1);// 滚动到最新消息位置
+        conversationStore.saveMessage(ConversationStore.CONVERSATION_LOCAL, message);
+        submitMessages(true);// 滚动到最新消息位置
     }
     
-    private void removeLoadingMessage() {
-        for (int i = 0; i < chatMessages.size(); i++) {
-            if (chatMessages.get(i).getType() == ChatMessage.TYPE_LOADING) {
-                chatMessages.remove(i);
-                chatAdapter.notifyItemRemoved(i);
-                break;
+    /*
+     在指定消息之前插入消息，找不到指定消息时添加到末尾；
+     只用于临时的提示信息，不保存到对话记录
+     */
+    private void insertMessageBefore(long id, ChatMessage message) {
+        int index = indexOfMessage(id);
+        chatMessages.add(index >= 0 ? index : chatMessages.size(), message);
+        submitMessages(true);
+    }
+    
+    /*
+     原地替换消息内容，ID不变，适配器据此只刷新这一行；回复完成后另行保存
+     */
+    private void replaceMessage(long id, int type, String text) {
+        int index = indexOfMessage(id);
+        if (index < 0) {
+            return;
+        }
+        chatMessages.set(index, chatMessages.get(index).withContent(type, text));
+        submitMessages(index == chatMessages.size() - 1);
+    }
+    
+    private void removeMessage(long id) {
+        int index = indexOfMessage(id);
+        if (index >= 0) {
+            chatMessages.remove(index);
+            submitMessages(false);
+        }
+    }
+    
+    /*
+     按ID查找消息位置，正在更新的消息一般在末尾附近，从后往前找
+     */
+    private int indexOfMessage(long id) {
+        for (int i = chatMessages.size() - 1; i >= 0; i--) {
+            if (chatMessages.get(i).getId() == id) {
+                return i;
             }
         }
+        return -1;
+    }
+    
+    /*
+     提交当前消息列表的快照，差异计算完成并应用后再滚动
+     */
+    private void submitMessages(boolean scrollToBottom) {
+        chatAdapter.submitList(new ArrayList<>(chatMessages), () -> {
+            if (scrollToBottom && chatAdapter.getItemCount() > 0) {
+                chatRecyclerView.smoothScrollToPosition(chatAdapter.getItemCount() - 1);
+            }
+        });
     }
 
     
@@ -303,4 +854,19 @@ public class LocalImageReplyActivity extends AppCompatActivity {
             Log.e("LocalImageReplyActivity", "Error getting clipboard content: " + e.getMessage());
         }
     }
+    
+    /*
+     后台解码、保存完成的选中图片
+     */
+    private static class SelectedImage {
+        final Uri uri;                          // 保存在 filesDir/captures 中的上传图片
+        final ImageEncoder.EncodedImage upload; // 编码后的上传数据，恢复已保存的图片时为 null
+        final Bitmap preview;                   // 预览图片
+
+        SelectedImage(Uri uri, ImageEncoder.EncodedImage upload, Bitmap preview) {
+            this.uri = uri;
+            this.upload = upload;
+            this.preview = preview;
+        }
+    }
 }
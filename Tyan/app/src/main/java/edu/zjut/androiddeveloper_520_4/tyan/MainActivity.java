@@ -31,6 +31,7 @@ public class MainActivity extends AppCompatActivity {
     private CardView floatingWindowButton;  // 悬浮窗功能按钮
     private CardView styleSettingsButton;  // 样式设置按钮
     private CardView localImageReplyButton; // 本地图片回复按钮
+    private CardView diagnosticsButton;     // 性能诊断按钮
     
     // 权限管理工具类实例
     private PermissionManager permissionManager;
@@ -52,6 +53,8 @@ public class MainActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);//Bundle是Android的一个数据存储类，用于保存活动状态
         setContentView(R.layout.activity_main);
+        // 在后台线程读取设置文件，进入其他页面或开启悬浮球时已经读取完成
+        SettingsStore.getInstance(this);
         // 初始化权限管理器
         permissionManager = PermissionManager.getInstance(this);
         
@@ -59,6 +62,7 @@ public class MainActivity extends AppCompatActivity {
         floatingWindowButton = findViewById(R.id.floatingWindowButton);
         styleSettingsButton = findViewById(R.id.styleSettingsButton);
         localImageReplyButton = findViewById(R.id.localImageReplyButton);
+        diagnosticsButton = findViewById(R.id.diagnosticsButton);
         
         
         // 请求所有必要的权限
@@ -86,6 +90,12 @@ public class MainActivity extends AppCompatActivity {
             Intent intent = new Intent(this, LocalImageReplyActivity.class);
             startActivity(intent);
         });
+        
+        diagnosticsButton.setOnClickListener(v -> {
+            // 性能诊断按钮点击事件
+            Intent intent = new Intent(this, DiagnosticsActivity.class);
+            startActivity(intent);
+        });
     }
     
     //检查并请求悬浮窗权限
@@ -0,0 +1,102 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/*
+ 记录单个请求的网络阶段耗时，交给 PerfMetrics：
+ 1. DNS解析、TCP连接、TLS握手，复用连接池中的连接时没有这些阶段
+ 2. Base64：写出请求体的时间，ChatRequestBody 在写出时才把图片编码为Base64，上传也包含在内
+ 3. 首字节：请求发送完到收到响应头，即服务端的处理时间；预热用的HEAD请求没有请求体，不计入
+ 每个请求（包括重试和对冲的每次发送）各有一个实例，回调都在该请求的线程中依次执行
+ */
+public class MetricsEventListener extends EventListener {
+    public static final EventListener.Factory FACTORY = call -> new MetricsEventListener(PerfMetrics.getInstance());
+
+    private final PerfMetrics metrics;
+    private long dnsStart;
+    private long connectStart;
+    private long secureConnectStart;
+    private long bodyStart;
+    private long requestSent;// 请求头或请求体发送完的时间
+
+    MetricsEventListener(PerfMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        dnsStart = PerfMetrics.now();
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+        metrics.recordSince(PerfMetrics.STAGE_DNS, dnsStart);
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        connectStart = PerfMetrics.now();
+        secureConnectStart = 0;
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        // TCP连接在TLS握手开始时已经建立
+        secureConnectStart = PerfMetrics.now();
+        metrics.record(PerfMetrics.STAGE_CONNECT, toMicros(secureConnectStart - connectStart));
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        metrics.recordSince(PerfMetrics.STAGE_TLS, secureConnectStart);
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+        if (secureConnectStart == 0) {
+            metrics.recordSince(PerfMetrics.STAGE_CONNECT, connectStart);// 明文HTTP没有TLS握手
+        }
+    }
+
+    @Override
+    public void requestHeadersEnd(Call call, Request request) {
+        requestSent = PerfMetrics.now();
+    }
+
+    @Override
+    public void requestBodyStart(Call call) {
+        bodyStart = PerfMetrics.now();
+    }
+
+    @Override
+    public void requestBodyEnd(Call call, long byteCount) {
+        requestSent = PerfMetrics.now();
+        metrics.record(PerfMetrics.STAGE_BASE64, toMicros(requestSent - bodyStart));
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+        if (call.request().body() != null && requestSent != 0) {
+            metrics.recordSince(PerfMetrics.STAGE_TTFB, requestSent);
+        }
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        requestSent = 0;// 同一个请求跟随重定向时重新计时
+    }
+
+    private static long toMicros(long nanos) {
+        return nanos / 1000;
+    }
+}
@@ -0,0 +1,304 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/*
+ 截屏到剪贴板全流程的耗时统计：
+ 1. 每个阶段（获取截屏权限、创建虚拟显示、第一帧、裁剪、编码、Base64、构建请求、DNS、连接、TLS、首字节、解析、写入剪贴板）
+    各保留最近 WINDOW 个样本，在内存中计算 p50/p95/p99
+ 2. 每条样本同时追加到 filesDir 下的文件，只保留最近 MAX_RECORDS 条且不超过 RETENTION_MS 的记录，
+    应用重启后从文件恢复，诊断页面看到的是最近一段时间的分布
+ 3. 文件读写在单独的线程中进行，记录样本不阻塞截屏和网络线程
+ 网络阶段由 MetricsEventListener 记录，其余阶段在各自的代码处记录
+ */
+public class PerfMetrics {
+    private static final String TAG = "PerfMetrics";
+    private static final String METRICS_FILE = "perf_metrics.log";
+
+    // 阶段名称，写入文件时使用，顺序即诊断页面中的顺序
+    public static final String STAGE_PERMISSION = "permission";
+    public static final String STAGE_VIRTUAL_DISPLAY = "virtual_display";
+    public static final String STAGE_FIRST_FRAME = "first_frame";
+    public static final String STAGE_CROP = "crop";
+    public static final String STAGE_ENCODE = "encode";
+    public static final String STAGE_BASE64 = "base64";
+    public static final String STAGE_REQUEST_BUILD = "request_build";
+    public static final String STAGE_DNS = "dns";
+    public static final String STAGE_CONNECT = "connect";
+    public static final String STAGE_TLS = "tls";
+    public static final String STAGE_TTFB = "ttfb";
+    public static final String STAGE_PARSE = "parse";
+    public static final String STAGE_CLIPBOARD = "clipboard";
+    public static final String STAGE_TOTAL = "total";
+
+    static final int WINDOW = 200;                              // 每个阶段在内存中保留的样本数
+    static final int MIN_SAMPLES = 1;                           // 有一个样本就显示分位数
+    static final int MAX_RECORDS = 2000;                        // 文件中保留的记录数
+    static final long RETENTION_MS = 7L * 24 * 60 * 60 * 1000; // 文件中记录的有效期
+
+    private static PerfMetrics instance;
+
+    private final LongSupplier clock;
+    private final Executor ioExecutor;
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    // 以下字段只在 ioExecutor 中访问
+    private File file;
+    private int fileRecords = 0;
+
+    /*
+     一个阶段：显示名称和最近的样本（微秒）
+     */
+    static final class Stage {
+        final String label;
+        final LatencyTracker samples = new LatencyTracker(WINDOW, MIN_SAMPLES);
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    /*
+     只在内存中统计的实例，供没有 Context 的地方（如 OkHttp 的 EventListener）使用，
+     之后调用 getInstance(Context) 时接上文件
+     */
+    public static synchronized PerfMetrics getInstance() {
+        if (instance == null) {
+            instance = new PerfMetrics(null, System::currentTimeMillis, newIoExecutor());
+        }
+        return instance;
+    }
+
+    public static synchronized PerfMetrics getInstance(Context context) {
+        PerfMetrics metrics = getInstance();
+        metrics.attachFile(new File(context.getApplicationContext().getFilesDir(), METRICS_FILE));
+        return metrics;
+    }
+
+    PerfMetrics(File file, LongSupplier clock, Executor ioExecutor) {
+        this.clock = clock;
+        this.ioExecutor = ioExecutor;
+        addStage(STAGE_PERMISSION, "截屏权限");
+        addStage(STAGE_VIRTUAL_DISPLAY, "虚拟显示");
+        addStage(STAGE_FIRST_FRAME, "第一帧");
+        addStage(STAGE_CROP, "裁剪");
+        addStage(STAGE_ENCODE, "编码");
+        addStage(STAGE_BASE64, "Base64");
+        addStage(STAGE_REQUEST_BUILD, "构建请求");
+        addStage(STAGE_DNS, "DNS");
+        addStage(STAGE_CONNECT, "TCP连接");
+        addStage(STAGE_TLS, "TLS握手");
+        addStage(STAGE_TTFB, "首字节");
+        addStage(STAGE_PARSE, "解析");
+        addStage(STAGE_CLIPBOARD, "剪贴板");
+        addStage(STAGE_TOTAL, "截屏到剪贴板");
+        attachFile(file);
+    }
+
+    private static Executor newIoExecutor() {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void addStage(String name, String label) {
+        stages.put(name, new Stage(label));
+    }
+
+    /*
+     计时的起点，与 recordSince 配合使用
+     */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /*
+     记录从 startNanos（由 now() 取得）到现在的耗时
+     */
+    public void recordSince(String stage, long startNanos) {
+        record(stage, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /*
+     记录一个样本，未知的阶段直接忽略
+     @param micros 耗时，微秒
+     */
+    public void record(String stage, long micros) {
+        Stage target = stages.get(stage);
+        if (target == null || micros < 0) {
+            return;
+        }
+        target.samples.record(micros);
+        long time = clock.getAsLong();
+        ioExecutor.execute(() -> append(time, stage, micros));
+    }
+
+    /*
+     @return 阶段最近样本的分位数（微秒），没有样本时返回 -1
+     */
+    public long percentile(String stage, double quantile) {
+        Stage target = stages.get(stage);
+        return target == null ? -1 : target.samples.percentile(quantile);
+    }
+
+    public int count(String stage) {
+        Stage target = stages.get(stage);
+        return target == null ? 0 : target.samples.size();
+    }
+
+    /*
+     诊断页面显示的表格：每个阶段一行，样本数和 p50/p95/p99（毫秒）
+     中文名称的宽度不固定，放在每行最后，数字列才能对齐
+     */
+    public String describe() {
+        StringBuilder text = new StringBuilder(String.format(Locale.US, "%5s %9s %9s %9s  %s\n", "n", "p50", "p95", "p99", "阶段"));
+        for (Stage stage : stages.values()) {
+            text.append(String.format(Locale.US, "%5d %9s %9s %9s  %s\n", stage.samples.size(),
+                    formatMicros(stage.samples.percentile(0.5)),
+                    formatMicros(stage.samples.percentile(0.95)),
+                    formatMicros(stage.samples.percentile(0.99)), stage.label));
+        }
+        return text.toString();
+    }
+
+    private static String formatMicros(long micros) {
+        return micros < 0 ? "-" : String.format(Locale.US, "%.1fms", micros / 1000.0);
+    }
+
+    /*
+     清空内存中的样本和文件
+     */
+    public void clear() {
+        for (Stage stage : stages.values()) {
+            stage.samples.clear();
+        }
+        ioExecutor.execute(() -> {
+            if (file != null && file.exists() && !file.delete()) {
+                Log.w(TAG, "Failed to delete " + file);
+            }
+            fileRecords = 0;
+        });
+    }
+
+    /*
+     接上文件并恢复其中的记录，只在第一次调用时生效
+     */
+    private void attachFile(File target) {
+        if (target == null) {
+            return;
+        }
+        ioExecutor.execute(() -> {
+            if (file != null) {
+                return;
+            }
+            file = target;
+            load();
+        });
+    }
+
+    /*
+     读取文件中有效期内的最近记录放回内存，再整理文件
+     */
+    private void load() {
+        ArrayDeque<String> lines = readRecent();
+        if (lines == null) {
+            return;
+        }
+        for (String line : lines) {
+            String[] fields = line.split("\t");
+            stages.get(fields[1]).samples.record(Long.parseLong(fields[2]));
+        }
+        rewrite(lines);
+        Log.d(TAG, "Loaded " + lines.size() + " records");
+    }
+
+    /*
+     @return 文件中有效期内的最近 MAX_RECORDS 条记录，文件不存在或读取失败时返回 null
+     */
+    private ArrayDeque<String> readRecent() {
+        if (!file.exists()) {
+            return null;
+        }
+        long oldest = clock.getAsLong() - RETENTION_MS;
+        ArrayDeque<String> lines = new ArrayDeque<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 3 || !stages.containsKey(fields[1])) {
+                    continue;
+                }
+                try {
+                    if (Long.parseLong(fields[0]) < oldest) {
+                        continue;
+                    }
+                    Long.parseLong(fields[2]);
+                } catch (NumberFormatException e) {
+                    continue;// 写到一半的行
+                }
+                lines.addLast(line);
+                if (lines.size() > MAX_RECORDS) {
+                    lines.removeFirst();
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read metrics: " + e.getMessage());
+            return null;
+        }
+        return lines;
+    }
+
+    /*
+     追加一条记录，文件中的记录超过 MAX_RECORDS 的两倍时整理一次
+     */
+    private void append(long time, String stage, long micros) {
+        if (file == null) {
+            return;
+        }
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, true))) {
+            writer.write(time + "\t" + stage + "\t" + micros + "\n");
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to append metric: " + e.getMessage());
+            return;
+        }
+        if (++fileRecords > 2 * MAX_RECORDS) {
+            ArrayDeque<String> lines = readRecent();
+            if (lines != null) {
+                rewrite(lines);
+            }
+        }
+    }
+
+    private void rewrite(ArrayDeque<String> lines) {
+        File temp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(temp))) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to compact metrics: " + e.getMessage());
+            return;
+        }
+        if (temp.renameTo(file)) {
+            fileRecords = lines.size();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import okio.Buffer;
+
+/*
+ 提示词模板：
+ 1. 请求中不变的部分放在最前面：系统消息 = 固定的身份说明 + 回复风格（场景、语气、回复对象、其他要求），
+    同一组设置下每次请求的开头逐字节相同，支持前缀缓存的服务端可以复用已计算的部分，减少首字节时间和费用
+ 2. 系统消息预先序列化为JSON字节（Prefix），只在风格设置变化时由 SettingsStore 的监听器重新生成，
+    每次请求直接写入，不再读取设置和拼接字符串
+ 3. 每次变化的用户消息按名称选用模板，模板带有版本号，修改模板文本时加一；
+    系统模板的版本计入 Prefix 的键，用户模板的名称和版本见 Template.getKey，两者都计入回复缓存的键，
+    按旧模板得到的回复随之失效
+ */
+public class PromptTemplates {
+    private static final String TAG = "PromptTemplates";
+    private static final String MESSAGE = "{message}";// 用户消息模板中的占位符
+
+    // 系统消息模板，版本号在修改模板文本时加一
+    static final int SYSTEM_VERSION = 2;
+    private static final String SYSTEM_TEMPLATE = "{instructions}\n\n场景: {scene}\n语气: {tone}\n回复对象: {target}\n其他要求: {other}";
+
+    // 用户消息模板的名称
+    public static final String IMAGE_REPLY = "image_reply";            // 只有图片：悬浮球截屏、批量回复
+    public static final String TEXT_MESSAGE = "text_message";          // 只有文字
+    public static final String IMAGE_MESSAGE = "image_message";        // 文字和本次附带的图片
+    public static final String IMAGE_IN_CONTEXT = "image_in_context";  // 文字，图片已在之前的对话中发送
+
+    private static final Map<String, Template> TEMPLATES = new HashMap<>();
+
+    static {
+        add(new Template(IMAGE_REPLY, 1, "请根据图片内容给出合适的回复。"));
+        add(new Template(TEXT_MESSAGE, 1, "用户消息: " + MESSAGE + "\n\n请给出合适的回复。"));
+        add(new Template(IMAGE_MESSAGE, 1, "用户消息: " + MESSAGE + "\n\n请根据图片内容给出合适的回复。"));
+        add(new Template(IMAGE_IN_CONTEXT, 1, "用户消息: " + MESSAGE + "\n\n请结合之前发送的图片给出合适的回复。"));
+    }
+
+    private static PromptTemplates instance;
+
+    private final StyleSettingsManager settingsManager;
+    private volatile Prefix prefix;// 请求线程直接读取，设置变化时整体替换
+    private final SettingsStore.Listener settingsListener = (previous, current) -> {
+        if (!previous.hasSamePrompt(current)) {
+            rebuild();
+        }
+    };
+
+    /*
+     一个用户消息模板，消息文本插入在占位符处
+     */
+    public static final class Template {
+        private final String name;
+        private final int version;
+        private final String head;// 占位符之前的部分
+        private final String tail;// 占位符之后的部分，没有占位符时为 null
+
+        Template(String name, int version, String text) {
+            this.name = name;
+            this.version = version;
+            int index = text.indexOf(MESSAGE);
+            this.head = index < 0 ? text : text.substring(0, index);
+            this.tail = index < 0 ? null : text.substring(index + MESSAGE.length());
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        /*
+         区分模板及其版本的键，修改模板文本后不同，用于回复缓存
+         */
+        public String getKey() {
+            return name + "@v" + version;
+        }
+
+        public String render(String message) {
+            return tail == null ? head : head + message + tail;
+        }
+    }
+
+    /*
+     请求开头不变的部分：系统消息及其预先序列化的JSON，创建后不再修改
+     */
+    public static final class Prefix {
+        // 只有固定身份说明的前缀，没有读取设置时使用
+        static final Prefix DEFAULT = new Prefix("v" + SYSTEM_VERSION, ApiUtils.SYSTEM_PROMPT);
+
+        private final String key;
+        private final String systemContent;
+        private final byte[] systemMessageJson;// {"role":"system","content":"..."}
+
+        Prefix(String key, String systemContent) {
+            this.key = key;
+            this.systemContent = systemContent;
+            this.systemMessageJson = serialize(systemContent);
+        }
+
+        /*
+         由风格设置生成前缀
+         */
+        static Prefix of(String scene, String tone, String target, String otherRequirements) {
+            String content = SYSTEM_TEMPLATE
+                    .replace("{instructions}", ApiUtils.SYSTEM_PROMPT)
+                    .replace("{scene}", scene)
+                    .replace("{tone}", tone)
+                    .replace("{target}", target)
+                    .replace("{other}", otherRequirements);
+            String key = "v" + SYSTEM_VERSION + '\u0001' + scene + '\u0001' + tone + '\u0001'
+                    + target + '\u0001' + otherRequirements;
+            return new Prefix(key, content);
+        }
+
+        private static byte[] serialize(String content) {
+            try {
+                Buffer buffer = new Buffer();
+                new StreamingJsonWriter(buffer).beginObject()
+                        .name("role").value("system")
+                        .name("content").value(content)
+                        .endObject();
+                return buffer.readByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);// 写入内存缓冲区不会失败
+            }
+        }
+
+        /*
+         区分不同前缀的键：模板版本和各项风格设置，用于回复缓存等
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public String getSystemContent() {
+            return systemContent;
+        }
+
+        /*
+         系统消息的JSON字节，ChatRequestBody 原样写入，调用方不能修改
+         */
+        byte[] getSystemMessageJson() {
+            return systemMessageJson;
+        }
+    }
+
+    private static void add(Template template) {
+        TEMPLATES.put(template.getName(), template);
+    }
+
+    public static Template get(String name) {
+        Template template = TEMPLATES.get(name);
+        if (template == null) {
+            throw new IllegalArgumentException("Unknown prompt template " + name);
+        }
+        return template;
+    }
+
+    /*
+     按名称选用模板生成用户消息
+     @param message 用户输入的文字，模板中没有占位符时忽略
+     */
+    public static String render(String name, String message) {
+        return get(name).render(message);
+    }
+
+    public static Map<String, Template> all() {
+        return Collections.unmodifiableMap(TEMPLATES);
+    }
+
+    public static synchronized PromptTemplates getInstance(StyleSettingsManager settingsManager) {
+        if (instance == null) {
+            instance = new PromptTemplates(settingsManager);
+        }
+        return instance;
+    }
+
+    private PromptTemplates(StyleSettingsManager settingsManager) {
+        this.settingsManager = settingsManager;
+        settingsManager.addOnChangeListener(settingsListener);
+        rebuild();
+    }
+
+    /*
+     当前的前缀，不读取设置
+     */
+    public Prefix getPrefix() {
+        return prefix;
+    }
+
+    /*
+     按最新的设置生成，多个线程同时修改设置时最后一次生成的总是最新的
+     */
+    private synchronized void rebuild() {
+        SettingsSnapshot settings = settingsManager.getSnapshot();
+        prefix = Prefix.of(settings.getScene(), settings.getTone(),
+                settings.getTarget(), settings.getOtherRequirements());
+        Log.d(TAG, "Prompt prefix rebuilt, " + prefix.getSystemMessageJson().length + " bytes");
+    }
+}
@@ -0,0 +1,126 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.view.MotionEvent;
+import android.view.View;
+
+/*
+ 截屏区域框选视图，以全屏悬浮窗的形式显示在最上层：
+ 1. 拖动框选聊天区域，框外变暗，松手后回调屏幕坐标下的区域
+ 2. 轻点（框选区域过小）表示恢复全屏截屏
+ */
+public class RegionSelectView extends View {
+    private static final int MIN_REGION_DP = 48;// 小于该尺寸的框选视为轻点
+
+    public interface OnRegionSelectedListener {
+        void onRegionSelected(Rect region);// 框选完成，region 为屏幕坐标
+
+        void onSelectionCleared();// 轻点，恢复全屏截屏
+    }
+
+    private final Paint dimPaint = new Paint();
+    private final Paint borderPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint tipPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Path dimPath = new Path();
+    private final Rect selection = new Rect();
+    private final int minRegionPx;
+    private final String tip;
+    private float startX;
+    private float startY;
+    private OnRegionSelectedListener listener;
+
+    public RegionSelectView(Context context) {
+        super(context);
+        float density = context.getResources().getDisplayMetrics().density;
+        minRegionPx = (int) (MIN_REGION_DP * density);
+        tip = context.getString(R.string.region_select_tip);
+
+        dimPaint.setColor(Color.argb(128, 0, 0, 0));
+        borderPaint.setColor(Color.WHITE);
+        borderPaint.setStyle(Paint.Style.STROKE);
+        borderPaint.setStrokeWidth(2 * density);
+        tipPaint.setColor(Color.WHITE);
+        tipPaint.setTextSize(16 * density);
+        tipPaint.setTextAlign(Paint.Align.CENTER);
+        dimPath.setFillType(Path.FillType.EVEN_ODD);
+    }
+
+    public void setOnRegionSelectedListener(OnRegionSelectedListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        // 整屏变暗，框选区域挖空
+        dimPath.reset();
+        dimPath.addRect(0, 0, getWidth(), getHeight(), Path.Direction.CW);
+        if (!selection.isEmpty()) {
+            dimPath.addRect(selection.left, selection.top, selection.right, selection.bottom, Path.Direction.CW);
+        }
+        canvas.drawPath(dimPath, dimPaint);
+        if (selection.isEmpty()) {
+            canvas.drawText(tip, getWidth() / 2f, getHeight() / 2f, tipPaint);
+        } else {
+            canvas.drawRect(selection, borderPaint);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        switch (event.getAction()) {
+            case MotionEvent.ACTION_DOWN:
+                startX = event.getX();
+                startY = event.getY();
+                selection.setEmpty();
+                invalidate();
+                return true;
+
+            case MotionEvent.ACTION_MOVE:
+                updateSelection(event.getX(), event.getY());
+                invalidate();
+                return true;
+
+            case MotionEvent.ACTION_UP:
+                updateSelection(event.getX(), event.getY());
+                finishSelection();
+                return true;
+
+            case MotionEvent.ACTION_CANCEL:
+                selection.setEmpty();
+                invalidate();
+                return true;
+        }
+        return super.onTouchEvent(event);
+    }
+
+    private void updateSelection(float x, float y) {
+        selection.set(
+                (int) Math.min(startX, x),
+                (int) Math.min(startY, y),
+                (int) Math.max(startX, x),
+                (int) Math.max(startY, y));
+        selection.intersect(0, 0, getWidth(), getHeight());
+    }
+
+    private void finishSelection() {
+        if (listener == null) {
+            return;
+        }
+        if (selection.width() < minRegionPx || selection.height() < minRegionPx) {
+            listener.onSelectionCleared();
+            return;
+        }
+        // 悬浮窗可能没有覆盖到屏幕左上角，换算为屏幕坐标
+        int[] location = new int[2];
+        getLocationOnScreen(location);
+        Rect region = new Rect(selection);
+        region.offset(location[0], location[1]);
+        listener.onRegionSelected(region);
+    }
+}
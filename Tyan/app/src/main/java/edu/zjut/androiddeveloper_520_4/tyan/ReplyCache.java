@@ -0,0 +1,359 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+/*
+ 大模型回复缓存，同一聊天画面重复点击悬浮球时直接返回上次的回复：
+ 1. 以截图（按截屏范围裁剪后）的感知哈希加上场景、语气、回复对象、其他要求和模型作为键
+ 2. 哈希由 32x32 个格子与右侧、下方格子的亮度比较得到，共2048位，新增一条消息会改变几十位
+ 3. 汉明距离在很小的阈值内才视为同一画面，只容忍光标闪烁这类几个像素的变化
+ 4. 内存中按最近使用顺序淘汰，超过有效期的回复不再使用
+ 5. 缓存在后台线程写入 cacheDir 下的文件，连续保存合并为一次写入，截屏服务重启后仍然有效
+ */
+public class ReplyCache {
+    private static final String TAG = "ReplyCache";
+    private static final String CACHE_FILE = "reply_cache.bin";
+    private static final int FILE_VERSION = 1;
+
+    static final int MAX_ENTRIES = 32;                // 最多缓存的回复数
+    static final long DEFAULT_TTL_MS = 10 * 60 * 1000;// 回复有效期
+    static final int MAX_HAMMING_DISTANCE = 8;        // 2048位哈希中允许不同的位数，约0.4%
+
+    private static final int HASH_GRID = 32;          // 参与比较的格子为 32x32，另需多一行一列作为比较对象
+    private static final int HASH_WORDS = 2 * HASH_GRID * HASH_GRID / 64;
+    private static final int SAMPLES_PER_CELL = 8;    // 每个格子在每个方向上的采样点数
+
+    private static ReplyCache instance;
+
+    private final File file;
+    private final int maxEntries;
+    private final long ttlMs;
+    private final LongSupplier clock;
+    private final Executor ioExecutor;
+    // 按访问顺序排列，最久未使用的在最前面
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean savePending;// 已安排写入但还没有开始，期间的修改由同一次写入保存
+    private int hitCount;
+    private int missCount;
+
+    /*
+     截图的感知哈希，每一位对应一对相邻格子的亮度比较
+     */
+    public static final class FrameHash {
+        private final long[] words;
+
+        FrameHash(long[] words) {
+            this.words = words;
+        }
+
+        /*
+         与另一个哈希不同的位数
+         */
+        public int distance(FrameHash other) {
+            int distance = 0;
+            for (int i = 0; i < words.length; i++) {
+                distance += Long.bitCount(words[i] ^ other.words[i]);
+            }
+            return distance;
+        }
+
+        /*
+         由 toString 得到的十六进制字符串还原哈希
+         @throws NumberFormatException 字符串格式不正确时
+         */
+        public static FrameHash parse(String hex) {
+            if (hex.length() != HASH_WORDS * 16) {
+                throw new NumberFormatException("Invalid frame hash length: " + hex.length());
+            }
+            long[] words = new long[HASH_WORDS];
+            for (int i = 0; i < HASH_WORDS; i++) {
+                words[i] = Long.parseUnsignedLong(hex.substring(i * 16, i * 16 + 16), 16);
+            }
+            return new FrameHash(words);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FrameHash && Arrays.equals(words, ((FrameHash) o).words);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(words);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(words.length * 16);
+            for (long word : words) {
+                String hex = Long.toHexString(word);
+                for (int i = hex.length(); i < 16; i++) {
+                    builder.append('0');
+                }
+                builder.append(hex);
+            }
+            return builder.toString();
+        }
+    }
+
+    /*
+     一条缓存的回复
+     */
+    static class Entry {
+        final String settingsKey;
+        final FrameHash hash;
+        final String reply;
+        final long createdAt;
+
+        Entry(String settingsKey, FrameHash hash, String reply, long createdAt) {
+            this.settingsKey = settingsKey;
+            this.hash = hash;
+            this.reply = reply;
+            this.createdAt = createdAt;
+        }
+    }
+
+    public static synchronized ReplyCache getInstance(Context context) {
+        if (instance == null) {
+            File file = new File(context.getApplicationContext().getCacheDir(), CACHE_FILE);
+            instance = new ReplyCache(file, MAX_ENTRIES, DEFAULT_TTL_MS, System::currentTimeMillis, newIoExecutor());
+        }
+        return instance;
+    }
+
+    ReplyCache(File file, int maxEntries, long ttlMs, LongSupplier clock, Executor ioExecutor) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+        this.clock = clock;
+        this.ioExecutor = ioExecutor;
+        load();
+    }
+
+    private static Executor newIoExecutor() {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+     计算截图的感知哈希：每个格子取 8x8 个采样点的平均亮度，再比较相邻格子
+     逐行读取像素，不创建缩小后的 Bitmap；缩小滤波只取少量像素，会漏掉单条消息这样的细节
+     */
+    public static FrameHash perceptualHash(Bitmap bitmap) {
+        long start = SystemClock.elapsedRealtime();
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int columns = (HASH_GRID + 1) * SAMPLES_PER_CELL;
+        int rows = (HASH_GRID + 1) * SAMPLES_PER_CELL;
+        int[] row = new int[width];
+        int[] luma = new int[columns * rows];
+        for (int y = 0; y < rows; y++) {
+            bitmap.getPixels(row, 0, width, 0, (2 * y + 1) * height / (2 * rows), width, 1);
+            for (int x = 0; x < columns; x++) {
+                int color = row[(2 * x + 1) * width / (2 * columns)];
+                luma[y * columns + x] = (Color.red(color) * 77 + Color.green(color) * 150 + Color.blue(color) * 29) >> 8;
+            }
+        }
+        FrameHash hash = differenceHash(luma, columns, rows);
+        Log.d(TAG, "Perceptual hash computed in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        return hash;
+    }
+
+    /*
+     由亮度矩阵计算差异哈希：先按面积平均到 33x33 个格子，
+     每个格子比右侧格子亮时对应位为1，比下方格子亮时下一位为1
+     */
+    static FrameHash differenceHash(int[] luma, int width, int height) {
+        int cells = HASH_GRID + 1;
+        long[] sums = new long[cells * cells];
+        int[] counts = new int[cells * cells];
+        for (int y = 0; y < height; y++) {
+            int cellRow = y * cells / height * cells;
+            for (int x = 0; x < width; x++) {
+                int cell = cellRow + x * cells / width;
+                sums[cell] += luma[y * width + x];
+                counts[cell]++;
+            }
+        }
+        // 平均亮度保留到1/16，避免取整后相邻格子相等
+        int[] average = new int[cells * cells];
+        for (int i = 0; i < average.length; i++) {
+            average[i] = counts[i] == 0 ? 0 : (int) ((sums[i] << 4) / counts[i]);
+        }
+
+        long[] words = new long[HASH_WORDS];
+        int bit = 0;
+        for (int y = 0; y < HASH_GRID; y++) {
+            for (int x = 0; x < HASH_GRID; x++) {
+                int value = average[y * cells + x];
+                if (value > average[y * cells + x + 1]) {
+                    words[bit >> 6] |= 1L << (63 - (bit & 63));
+                }
+                bit++;
+                if (value > average[(y + 1) * cells + x]) {
+                    words[bit >> 6] |= 1L << (63 - (bit & 63));
+                }
+                bit++;
+            }
+        }
+        return new FrameHash(words);
+    }
+
+    /*
+     生成设置部分的键，任一项变化都会得到不同的回复
+     @param templateName 生成用户消息所用的模板，见 PromptTemplates
+     */
+    public static String settingsKey(StyleSettingsManager settingsManager, String templateName) {
+        return settingsKey(settingsManager.getPromptPrefix(), PromptTemplates.get(templateName), settingsManager.getModelName());
+    }
+
+    static String settingsKey(PromptTemplates.Prefix prefix, PromptTemplates.Template template, String modelName) {
+        return prefix.getKey() + '\u0001' + template.getKey() + '\u0001' + modelName;
+    }
+
+    /*
+     查找画面相同、设置相同且未过期的回复
+     @return 缓存的回复，未命中时返回 null
+     */
+    public synchronized String get(String settingsKey, FrameHash hash) {
+        long now = clock.getAsLong();
+        Entry best = null;
+        int bestDistance = Integer.MAX_VALUE;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (now - entry.createdAt > ttlMs) {
+                iterator.remove();
+                continue;
+            }
+            if (!entry.settingsKey.equals(settingsKey)) {
+                continue;
+            }
+            int distance = entry.hash.distance(hash);
+            if (distance <= MAX_HAMMING_DISTANCE && distance < bestDistance) {
+                best = entry;
+                bestDistance = distance;
+            }
+        }
+
+        if (best == null) {
+            missCount++;
+            Log.d(TAG, "Cache miss (hits " + hitCount + ", misses " + missCount + ")");
+            return null;
+        }
+        entries.get(keyOf(best.settingsKey, best.hash));// 更新访问顺序
+        hitCount++;
+        Log.d(TAG, "Cache hit, distance " + bestDistance + " (hits " + hitCount + ", misses " + missCount + ")");
+        return best.reply;
+    }
+
+    /*
+     保存回复，超过容量时淘汰最久未使用的回复，并安排写入磁盘
+     */
+    public synchronized void put(String settingsKey, FrameHash hash, String reply) {
+        entries.put(keyOf(settingsKey, hash), new Entry(settingsKey, hash, reply, clock.getAsLong()));
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        if (!savePending) {
+            savePending = true;
+            ioExecutor.execute(this::save);
+        }
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static String keyOf(String settingsKey, FrameHash hash) {
+        return settingsKey + '#' + hash;
+    }
+
+    /*
+     从磁盘读取缓存，按最近使用顺序保存，读取后顺序不变；文件损坏时丢弃
+     */
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != FILE_VERSION) {
+                return;
+            }
+            int count = input.readInt();
+            long now = clock.getAsLong();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(input.readUTF(), FrameHash.parse(input.readUTF()), input.readUTF(), input.readLong());
+                if (now - entry.createdAt <= ttlMs) {
+                    entries.put(keyOf(entry.settingsKey, entry.hash), entry);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Discarding unreadable reply cache: " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    /*
+     在 ioExecutor 中执行：复制当前内容后写入临时文件再替换，避免写到一半时进程被杀导致文件损坏
+     */
+    private void save() {
+        List<Entry> snapshot;
+        synchronized (this) {
+            savePending = false;
+            snapshot = new ArrayList<>(entries.values());
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            output.writeInt(FILE_VERSION);
+            output.writeInt(snapshot.size());
+            for (Entry entry : snapshot) {
+                output.writeUTF(entry.settingsKey);
+                output.writeUTF(entry.hash.toString());
+                output.writeUTF(entry.reply);
+                output.writeLong(entry.createdAt);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write reply cache: " + e.getMessage());
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.w(TAG, "Failed to replace reply cache file");
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.app.NotificationManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.widget.Toast;
+
+/*
+ 点击稍后送达的回复通知时，把回复复制到剪贴板并关闭通知
+ */
+public class ReplyCopyReceiver extends BroadcastReceiver {
+    static final String EXTRA_REPLY = "reply";
+    static final String EXTRA_NOTIFICATION_ID = "notification_id";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String reply = intent.getStringExtra(EXTRA_REPLY);
+        if (reply == null) {
+            return;
+        }
+        ApiUtils.copyToClipboard(context, reply);
+        Toast.makeText(context, R.string.copied_to_clipboard, Toast.LENGTH_SHORT).show();
+        NotificationManager manager = context.getSystemService(NotificationManager.class);
+        if (manager != null) {
+            manager.cancel(intent.getIntExtra(EXTRA_NOTIFICATION_ID, 0));
+        }
+    }
+}
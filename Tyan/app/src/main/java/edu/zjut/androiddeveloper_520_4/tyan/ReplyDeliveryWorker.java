@@ -0,0 +1,202 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+
+/*
+ 发送 ReplyOutbox 中的请求，由 WorkManager 在有网络时执行，应用或截屏服务已经退出也会送达：
+ 1. 按加入的顺序逐个发送，不使用流式回复，回复完整到达后保存到截屏对话并写入回复缓存
+ 2. 回复以通知的形式送达，点击通知或“复制”把回复复制到剪贴板
+ 3. 网络中断、429、5xx 等临时失败保留请求，整个任务按指数退避稍后重试；
+    其他错误或失败次数达到 MAX_ATTEMPTS 后丢弃请求，并通知用户
+ 所有待发送的请求共用一个唯一任务，新的请求追加在正在执行的任务之后
+ */
+public class ReplyDeliveryWorker extends Worker {
+    private static final String TAG = "ReplyDeliveryWorker";
+    private static final String WORK_NAME = "reply_outbox";
+    private static final String CHANNEL_ID = "reply_outbox_channel";
+
+    static final int MAX_ATTEMPTS = 5;          // 单个请求最多发送的次数
+    static final long BACKOFF_SECONDS = 30;     // 第一次重试前的等待时间，之后逐次加倍
+
+    // 一次发送的结果
+    private static final int DELIVERED = 0;
+    private static final int RETRY_LATER = 1;
+    private static final int GIVE_UP = 2;
+
+    private volatile Call currentCall;// 正在发送的请求，任务被停止时取消
+
+    public ReplyDeliveryWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /*
+     安排发送队列中的请求，有网络时才会执行
+     */
+    public static void schedule(Context context) {
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(ReplyDeliveryWorker.class)
+                .setConstraints(new Constraints.Builder()
+                        .setRequiredNetworkType(NetworkType.CONNECTED)
+                        .build())
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, BACKOFF_SECONDS, TimeUnit.SECONDS)
+                .build();
+        // 正在执行的任务可能已经读过队列，新的请求追加一次执行，不会遗漏
+        WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME, ExistingWorkPolicy.APPEND_OR_REPLACE, request);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        ReplyOutbox outbox = ReplyOutbox.getInstance(context);
+        StyleSettingsManager settingsManager = new StyleSettingsManager(context);
+        boolean retry = false;
+        for (ReplyOutbox.Entry entry : outbox.pending()) {
+            if (isStopped()) {
+                return Result.retry();// 网络断开或系统回收，剩下的请求下次发送
+            }
+            String[] detail = new String[1];
+            int outcome = deliver(entry, settingsManager, detail);
+            if (outcome == DELIVERED) {
+                outbox.remove(entry);
+                notifyReply(entry, detail[0]);
+                continue;
+            }
+            if (outcome == RETRY_LATER) {
+                try {
+                    entry = outbox.recordAttempt(entry);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to record attempt: " + e.getMessage());
+                }
+                if (entry.getAttempts() < MAX_ATTEMPTS) {
+                    retry = true;
+                    continue;
+                }
+            }
+            Log.w(TAG, "Giving up on " + entry.getId() + ": " + detail[0]);
+            outbox.remove(entry);
+            notifyFailure(entry, detail[0]);
+        }
+        return retry ? Result.retry() : Result.success();
+    }
+
+    /*
+     同步发送一个请求，重试和对冲都在任务线程中完成，回调返回后才返回
+     @param detail 送达时为回复内容，失败时为错误说明
+     */
+    private int deliver(ReplyOutbox.Entry entry, StyleSettingsManager settingsManager, String[] detail) {
+        ImageEncoder.EncodedImage image;
+        try {
+            image = entry.readImage();
+        } catch (IOException e) {
+            detail[0] = e.getMessage();
+            return GIVE_UP;
+        }
+        // 回复风格取发送时的设置，队列中只保存本次的用户消息
+        ChatRequestBody body = new ChatRequestBody(settingsManager.getModelName(), false, settingsManager.getPromptPrefix(),
+                Collections.<ConversationContext.Turn>emptyList(), entry.getUserContent(), image);
+        int[] outcome = {RETRY_LATER};
+        Call call = ApiUtils.newApiCall(settingsManager, body);
+        currentCall = call;
+        if (isStopped()) {
+            call.cancel();// 创建请求期间任务已被停止
+        }
+        ApiUtils.executeApiRequest(call, new ApiUtils.ApiCallback() {
+            @Override
+            public void onSuccess(String content) {
+                ConversationStore.getInstance(getApplicationContext()).saveScreenshotReply(image, content, settingsManager);
+                ReplyCache.getInstance(getApplicationContext()).put(entry.getSettingsKey(), entry.getFrameHash(), content);
+                detail[0] = content;
+                outcome[0] = DELIVERED;
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                detail[0] = e.getMessage();
+                outcome[0] = RETRY_LATER;
+            }
+
+            @Override
+            public void onError(int statusCode, String errorBody, Exception e) {
+                detail[0] = statusCode + " " + errorBody;
+                outcome[0] = RetryPolicy.isRetryable(statusCode) ? RETRY_LATER : GIVE_UP;
+            }
+        });
+        currentCall = null;
+        return outcome[0];
+    }
+
+    /*
+     网络断开或系统回收时取消正在发送的请求，doWork 随即结束，请求留在队列中下次发送
+     */
+    @Override
+    public void onStopped() {
+        Call call = currentCall;
+        if (call != null) {
+            call.cancel();
+        }
+    }
+
+    private void notifyReply(ReplyOutbox.Entry entry, String reply) {
+        Context context = getApplicationContext();
+        int notificationId = entry.getId().hashCode();
+        // 点击通知即复制回复，不需要打开应用
+        PendingIntent copy = PendingIntent.getBroadcast(context, notificationId,
+                new Intent(context, ReplyCopyReceiver.class)
+                        .putExtra(ReplyCopyReceiver.EXTRA_REPLY, reply)
+                        .putExtra(ReplyCopyReceiver.EXTRA_NOTIFICATION_ID, notificationId),
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+        Notification notification = new Notification.Builder(context, CHANNEL_ID)
+                .setContentTitle(context.getString(R.string.queued_reply_arrived))
+                .setContentText(reply)
+                .setStyle(new Notification.BigTextStyle().bigText(reply))
+                .setSmallIcon(R.drawable.ic_floating_bubble)
+                .setContentIntent(copy)
+                .addAction(new Notification.Action.Builder(null, context.getString(R.string.copy), copy).build())
+                .setAutoCancel(true)
+                .build();
+        notify(notificationId, notification);
+    }
+
+    private void notifyFailure(ReplyOutbox.Entry entry, String error) {
+        Context context = getApplicationContext();
+        Notification notification = new Notification.Builder(context, CHANNEL_ID)
+                .setContentTitle(context.getString(R.string.queued_reply_failed))
+                .setContentText(error)
+                .setSmallIcon(R.drawable.ic_floating_bubble)
+                .setAutoCancel(true)
+                .build();
+        notify(entry.getId().hashCode(), notification);
+    }
+
+    private void notify(int id, Notification notification) {
+        NotificationManager manager = getApplicationContext().getSystemService(NotificationManager.class);
+        if (manager == null || !manager.areNotificationsEnabled()) {
+            return;// 没有通知权限时回复仍保存在截屏对话中
+        }
+        manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                getApplicationContext().getString(R.string.queued_reply_channel), NotificationManager.IMPORTANCE_DEFAULT));
+        manager.notify(id, notification);
+    }
+}
@@ -0,0 +1,321 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.LongSupplier;
+
+/*
+ 待发送的截屏请求队列，网络不可用时截屏不再丢弃：
+ 1. 每个请求保存为 filesDir/outbox 下的两个文件：编码后的图片 <id>.img 和请求信息 <id>.meta，
+    信息文件最后写入，存在即表示请求完整；没有信息文件的图片和写到一半的临时文件在读取队列时删除
+ 2. 设置相同、画面相近（感知哈希距离不超过 ReplyCache 的阈值）的请求只保留最新的一个，
+    离线时反复点击悬浮球不会在恢复网络后发出一串相同的请求
+ 3. 超过 MAX_AGE_MS 的请求和超出 MAX_ENTRIES 的最旧请求直接丢弃，回复已经没有意义
+ 由 ReplyDeliveryWorker 在网络恢复后按加入的顺序发送
+ */
+public class ReplyOutbox {
+    private static final String TAG = "ReplyOutbox";
+    private static final String OUTBOX_DIR = "outbox";
+    private static final String IMAGE_SUFFIX = ".img";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    static final int MAX_ENTRIES = 20;                   // 队列中最多保留的请求数
+    static final long MAX_AGE_MS = 24L * 60 * 60 * 1000; // 请求的有效期
+
+    private static ReplyOutbox instance;
+
+    private final File dir;
+    private final LongSupplier clock;
+    private int sequence = 0;// 同一毫秒内加入的请求按序号区分
+
+    /*
+     队列中的一个请求
+     */
+    public static final class Entry {
+        private final String id;
+        private final String settingsKey;
+        private final ReplyCache.FrameHash frameHash;
+        private final String userContent;
+        private final String mimeType;
+        private final int width;
+        private final int height;
+        private final int quality;
+        private final long createdAt;
+        private final int attempts;
+        private final File imageFile;
+
+        Entry(String id, String settingsKey, ReplyCache.FrameHash frameHash, String userContent, String mimeType,
+              int width, int height, int quality, long createdAt, int attempts, File imageFile) {
+            this.id = id;
+            this.settingsKey = settingsKey;
+            this.frameHash = frameHash;
+            this.userContent = userContent;
+            this.mimeType = mimeType;
+            this.width = width;
+            this.height = height;
+            this.quality = quality;
+            this.createdAt = createdAt;
+            this.attempts = attempts;
+            this.imageFile = imageFile;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getSettingsKey() {
+            return settingsKey;
+        }
+
+        public ReplyCache.FrameHash getFrameHash() {
+            return frameHash;
+        }
+
+        public String getUserContent() {
+            return userContent;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /*
+         从文件读回编码后的图片，发送时才读取，队列中的请求不占用内存
+         */
+        public ImageEncoder.EncodedImage readImage() throws IOException {
+            byte[] data = new byte[(int) imageFile.length()];
+            try (FileInputStream input = new FileInputStream(imageFile)) {
+                int offset = 0;
+                while (offset < data.length) {
+                    int read = input.read(data, offset, data.length - offset);
+                    if (read < 0) {
+                        throw new IOException("Truncated outbox image " + imageFile);
+                    }
+                    offset += read;
+                }
+            }
+            return new ImageEncoder.EncodedImage(data, mimeType, width, height, quality);
+        }
+    }
+
+    public static synchronized ReplyOutbox getInstance(Context context) {
+        if (instance == null) {
+            instance = new ReplyOutbox(new File(context.getApplicationContext().getFilesDir(), OUTBOX_DIR),
+                    System::currentTimeMillis);
+        }
+        return instance;
+    }
+
+    ReplyOutbox(File dir, LongSupplier clock) {
+        this.dir = dir;
+        this.clock = clock;
+    }
+
+    /*
+     当前是否有可用的网络，截屏时据此决定直接发送还是加入队列
+     */
+    public static boolean isNetworkAvailable(Context context) {
+        ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivity == null) {
+            return true;// 无法判断时照常直接发送，失败后再加入队列
+        }
+        Network network = connectivity.getActiveNetwork();
+        NetworkCapabilities capabilities = network != null ? connectivity.getNetworkCapabilities(network) : null;
+        return capabilities != null && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+    }
+
+    /*
+     加入一个请求，设置相同、画面相近的旧请求被替换
+     @return 新加入的请求
+     */
+    public synchronized Entry enqueue(String settingsKey, ReplyCache.FrameHash frameHash, String userContent,
+                                      ImageEncoder.EncodedImage image) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        List<Entry> pending = pending();
+        for (Entry entry : pending) {
+            if (entry.settingsKey.equals(settingsKey)
+                    && entry.frameHash.distance(frameHash) <= ReplyCache.MAX_HAMMING_DISTANCE) {
+                Log.d(TAG, "Replacing queued request " + entry.id + " with a newer capture of the same screen");
+                remove(entry);
+            }
+        }
+
+        long now = clock.getAsLong();
+        String id = now + "_" + (sequence++);
+        File imageFile = new File(dir, id + IMAGE_SUFFIX);
+        Entry entry = new Entry(id, settingsKey, frameHash, userContent, image.getMimeType(),
+                image.getWidth(), image.getHeight(), image.getQuality(), now, 0, imageFile);
+        try {
+            try (FileOutputStream output = new FileOutputStream(imageFile)) {
+                output.write(image.getData());
+            }
+            writeMeta(entry);
+        } catch (IOException e) {
+            imageFile.delete();// 没有信息文件的图片不会被发送，不能留在目录中
+            throw e;
+        }
+
+        trim();
+        Log.d(TAG, "Queued request " + id + " (" + image.getData().length + " bytes)");
+        return entry;
+    }
+
+    /*
+     @return 待发送的请求，按加入的顺序排列；过期的请求和残留的文件在这里删除
+     */
+    public synchronized List<Entry> pending() {
+        List<Entry> entries = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return entries;
+        }
+        long oldest = clock.getAsLong() - MAX_AGE_MS;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX) || (name.endsWith(IMAGE_SUFFIX)
+                    && !new File(dir, name.substring(0, name.length() - IMAGE_SUFFIX.length()) + META_SUFFIX).exists())) {
+                // 写入信息文件或改名失败、进程在写入途中退出时留下的文件
+                Log.d(TAG, "Deleting orphaned outbox file " + name);
+                file.delete();
+                continue;
+            }
+            if (!name.endsWith(META_SUFFIX)) {
+                continue;
+            }
+            Entry entry = readMeta(name.substring(0, name.length() - META_SUFFIX.length()));
+            if (entry == null) {
+                continue;
+            }
+            if (entry.createdAt < oldest) {
+                Log.d(TAG, "Dropping expired request " + entry.id);
+                remove(entry);
+                continue;
+            }
+            entries.add(entry);
+        }
+        // 同一毫秒内加入的请求按序号的数值排列，字符串比较时 _10 会排在 _2 之前
+        Collections.sort(entries, Comparator.comparingLong((Entry entry) -> entry.createdAt)
+                .thenComparingLong(entry -> sequenceOf(entry.id)));
+        return entries;
+    }
+
+    /*
+     请求ID形如 <加入时间>_<序号>，取出序号
+     */
+    private static long sequenceOf(String id) {
+        return Long.parseLong(id.substring(id.indexOf('_') + 1));
+    }
+
+    public synchronized int size() {
+        return pending().size();
+    }
+
+    /*
+     发送完成或不再重试时删除请求
+     */
+    public synchronized void remove(Entry entry) {
+        // 先删除信息文件，删除到一半时剩下的图片文件不会被当作请求
+        new File(dir, entry.id + META_SUFFIX).delete();
+        entry.imageFile.delete();
+    }
+
+    /*
+     记录一次失败的发送
+     @return 更新后的请求
+     */
+    public synchronized Entry recordAttempt(Entry entry) throws IOException {
+        Entry updated = new Entry(entry.id, entry.settingsKey, entry.frameHash, entry.userContent, entry.mimeType,
+                entry.width, entry.height, entry.quality, entry.createdAt, entry.attempts + 1, entry.imageFile);
+        writeMeta(updated);
+        return updated;
+    }
+
+    /*
+     超出容量时丢弃最旧的请求
+     */
+    private void trim() {
+        List<Entry> entries = pending();
+        for (int i = 0; i < entries.size() - MAX_ENTRIES; i++) {
+            Log.d(TAG, "Outbox full, dropping " + entries.get(i).id);
+            remove(entries.get(i));
+        }
+    }
+
+    private void writeMeta(Entry entry) throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty("settings_key", entry.settingsKey);
+        meta.setProperty("frame_hash", entry.frameHash.toString());
+        meta.setProperty("user_content", entry.userContent);
+        meta.setProperty("mime_type", entry.mimeType);
+        meta.setProperty("width", Integer.toString(entry.width));
+        meta.setProperty("height", Integer.toString(entry.height));
+        meta.setProperty("quality", Integer.toString(entry.quality));
+        meta.setProperty("created_at", Long.toString(entry.createdAt));
+        meta.setProperty("attempts", Integer.toString(entry.attempts));
+        // 先写临时文件再改名，写到一半时不会留下不完整的请求
+        File temp = new File(dir, entry.id + META_SUFFIX + TEMP_SUFFIX);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            meta.store(writer, null);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(new File(dir, entry.id + META_SUFFIX))) {
+            temp.delete();
+            throw new IOException("Cannot commit outbox entry " + entry.id);
+        }
+    }
+
+    private Entry readMeta(String id) {
+        File metaFile = new File(dir, id + META_SUFFIX);
+        File imageFile = new File(dir, id + IMAGE_SUFFIX);
+        Properties meta = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(metaFile), StandardCharsets.UTF_8)) {
+            meta.load(reader);
+            if (!imageFile.exists()) {
+                throw new IOException("Missing image");
+            }
+            return new Entry(id,
+                    meta.getProperty("settings_key", ""),
+                    ReplyCache.FrameHash.parse(meta.getProperty("frame_hash")),
+                    meta.getProperty("user_content", ""),
+                    meta.getProperty("mime_type"),
+                    Integer.parseInt(meta.getProperty("width")),
+                    Integer.parseInt(meta.getProperty("height")),
+                    Integer.parseInt(meta.getProperty("quality")),
+                    Long.parseLong(meta.getProperty("created_at")),
+                    Integer.parseInt(meta.getProperty("attempts", "0")),
+                    imageFile);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Dropping unreadable outbox entry " + id + ": " + e.getMessage());
+            metaFile.delete();
+            imageFile.delete();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.util.Log;
+
+import okhttp3.Call;
+
+/*
+ 请求协调：同一个入口（悬浮球截屏、本地图片回复页面）同时只保留最新的一次请求
+ 1. 每次触发调用 begin 得到一个递增的代号，同时取消上一次还在进行的请求
+ 2. 请求发出后用 attach 登记 OkHttp 的 Call，被取代或已关闭时立即取消
+ 3. wrap 包装回调，代号过期后到达的回调直接丢弃，旧回复不会覆盖剪贴板或界面
+ 4. 页面或服务销毁时调用 cancelAll，取消进行中的请求并丢弃之后的所有回调
+ 每个入口使用自己的实例，可在多个线程中调用
+ */
+public class RequestCoordinator {
+    private static final String TAG = "RequestCoordinator";
+
+    private final String name;
+    private long generation = 0;
+    private boolean active = false;// 当前代号的请求是否还没有结束
+    private Call call;              // 当前代号的请求，还没有发出时为 null
+
+    /*
+     @param name 入口名称，只用于日志
+     */
+    public RequestCoordinator(String name) {
+        this.name = name;
+    }
+
+    /*
+     开始一次新的请求，取消上一次还在进行的请求
+     @return 本次请求的代号
+     */
+    public synchronized long begin() {
+        cancelCurrent();
+        generation++;
+        active = true;
+        return generation;
+    }
+
+    /*
+     登记请求对应的 Call；代号已过期时立即取消这个 Call
+     @return 请求是否仍是最新的
+     */
+    public synchronized boolean attach(long requestGeneration, Call requestCall) {
+        if (requestGeneration != generation) {
+            Log.d(TAG, name + ": request " + requestGeneration + " superseded before sending, cancelling");
+            requestCall.cancel();
+            return false;
+        }
+        if (active) {
+            call = requestCall;
+        }
+        return true;// 回调先于登记到达时请求已经结束，不需要保存
+    }
+
+    /*
+     代号是否仍是最新的：发出请求前、在后台完成编码等工作后检查，过期时不再继续
+     */
+    public synchronized boolean isCurrent(long requestGeneration) {
+        return requestGeneration == generation;
+    }
+
+    /*
+     是否没有进行中的请求
+     */
+    public synchronized boolean isIdle() {
+        return !active;
+    }
+
+    /*
+     请求结束（成功或失败），只对最新的代号生效
+     */
+    public synchronized void finish(long requestGeneration) {
+        if (requestGeneration == generation) {
+            active = false;
+            call = null;
+        }
+    }
+
+    /*
+     取消进行中的请求，之后到达的回调全部丢弃
+     */
+    public synchronized void cancelAll() {
+        cancelCurrent();
+        generation++;
+        active = false;
+    }
+
+    private void cancelCurrent() {
+        if (active && call != null) {
+            Log.d(TAG, name + ": cancelling request " + generation);
+            call.cancel();
+        }
+        call = null;
+    }
+
+    /*
+     包装回调：代号过期后的回调不再传给 callback，成功或失败时结束本次请求
+     */
+    public ApiUtils.ApiCallback wrap(long requestGeneration, ApiUtils.ApiCallback callback) {
+        return new ApiUtils.ApiCallback() {
+            @Override
+            public void onPartial(String delta) {
+                if (isCurrent(requestGeneration)) {
+                    callback.onPartial(delta);
+                }
+            }
+
+            @Override
+            public void onResult(ApiResult result) {
+                if (isCurrent(requestGeneration)) {
+                    callback.onResult(result);
+                }
+            }
+
+            @Override
+            public void onSuccess(String content) {
+                if (complete()) {
+                    callback.onSuccess(content);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                if (complete()) {
+                    callback.onFailure(e);
+                }
+            }
+
+            @Override
+            public void onError(int statusCode, String errorBody, Exception e) {
+                if (complete()) {
+                    callback.onError(statusCode, errorBody, e);
+                }
+            }
+
+            /*
+             结束本次请求，返回是否仍需要回调
+             */
+            private boolean complete() {
+                synchronized (RequestCoordinator.this) {
+                    if (!isCurrent(requestGeneration)) {
+                        Log.d(TAG, name + ": dropping late callback of request " + requestGeneration);
+                        return false;
+                    }
+                    finish(requestGeneration);
+                    return true;
+                }
+            }
+        };
+    }
+}
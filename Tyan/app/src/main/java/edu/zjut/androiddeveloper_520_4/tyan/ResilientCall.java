@@ -0,0 +1,406 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Timeout;
+
+/*
+ 带重试和对冲的请求，按 RetryPolicy 执行：
+ 1. 连接失败或收到可重试的状态码时，按退避时间（或 Retry-After）重新发送请求
+ 2. 每次发送的超时时间为剩余的截止时间，超过截止时间后不再重试
+ 3. 开启对冲时，等待超过近期耗时的 p95 仍没有响应，再发送一份相同的请求，先收到的响应被采用，其余的请求取消
+ 4. 有多个候选端点时（由 EndpointRouter 排序），失败后立即改用下一个端点，都试过后再按退避时间重试，对冲请求也发给下一个端点
+ 5. 响应交给回调后不再重试，流式回复读到一半时中断不会重复输出
+ 对外与普通的 OkHttp Call 一样：只会回调一次 onResponse 或 onFailure，cancel 会取消所有进行中的请求；
+ execute 在调用线程中等待同样的重试和对冲流程结束，返回最终的响应
+ 请求体会被多次写出，需要可以重复写（ChatRequestBody 可以）
+ */
+public class ResilientCall implements Call {
+    private static final String TAG = "ResilientCall";
+    private static final double HEDGE_QUANTILE = 0.95;
+
+    // 重试和对冲的定时器，所有实例共用一个守护线程
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ResilientCall");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final OkHttpClient client;
+    private final List<Request> requests;// 每个候选端点一个请求，按优先级排列
+    private final RetryPolicy policy;
+    private final LatencyTracker latencyTracker;
+    private final AttemptListener listener;
+    private final Random random = new Random();
+    private final Timeout timeout = new Timeout();
+
+    // 以下字段只在持有 this 的锁时访问
+    private final List<Call> inFlight = new ArrayList<>();             // 进行中的请求，对冲时可能有两个
+    private final List<ScheduledFuture<?>> timers = new ArrayList<>(); // 等待中的重试或对冲
+    private Callback callback;
+    private long deadlineNanos;
+    private long roundStartNanos;// 本轮（最近一次非对冲的发送）开始的时间
+    private int retries = 0;
+    private int failovers = 0;       // 已经改用其他端点的次数
+    private int cursor = 0;          // 当前使用的候选端点
+    private boolean hedged = false;  // 每个请求最多对冲一次
+    private boolean canceled = false;
+    private boolean finished = false;// 已经回调过 onResponse 或 onFailure
+
+    /*
+     每次发送结束（不包括被取消的发送）时的回调，用于统计各端点的耗时和错误率
+     */
+    public interface AttemptListener {
+        // @param success 服务是否可用：连接失败和可重试的状态码视为失败，其余响应视为成功
+        void onAttemptFinished(Request request, long latencyMs, boolean success);
+    }
+
+    public ResilientCall(OkHttpClient client, Request request, RetryPolicy policy, LatencyTracker latencyTracker) {
+        this(client, Collections.singletonList(request), policy, latencyTracker, null);
+    }
+
+    /*
+     @param requests 按优先级排列的候选端点的请求，至少一个
+     @param listener 每次发送结束时的回调，可以为 null
+     */
+    public ResilientCall(OkHttpClient client, List<Request> requests, RetryPolicy policy,
+                         LatencyTracker latencyTracker, AttemptListener listener) {
+        this.client = client;
+        this.requests = requests;
+        this.policy = policy;
+        this.latencyTracker = latencyTracker;
+        this.listener = listener;
+        timeout.timeout(policy.getDeadlineMs(), TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     首选端点的请求
+     */
+    @Override
+    public Request request() {
+        return requests.get(0);
+    }
+
+    /*
+     同步执行：按 enqueue 的流程发送、重试和对冲，在调用线程中等待最终结果，不要在主线程调用
+     截止时间到达后一定会结束等待；等待期间线程被中断时取消请求并抛出 InterruptedIOException
+     */
+    @Override
+    public Response execute() throws IOException {
+        BlockingCallback waiter = new BlockingCallback();
+        enqueue(waiter);
+        return waiter.await();
+    }
+
+    @Override
+    public void enqueue(Callback responseCallback) {
+        boolean canceledBeforeStart;
+        synchronized (this) {
+            if (callback != null) {
+                throw new IllegalStateException("Already Executed");
+            }
+            callback = responseCallback;
+            deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.getDeadlineMs());
+            canceledBeforeStart = canceled;
+            finished = canceled;
+        }
+        if (canceledBeforeStart) {
+            // 发送前已经取消，同样回调一次失败，execute 不会一直等待
+            SCHEDULER.execute(() -> responseCallback.onFailure(this, new IOException("Canceled")));
+            return;
+        }
+        startAttempt(false);
+    }
+
+    @Override
+    public void cancel() {
+        List<Call> calls;
+        boolean report;
+        synchronized (this) {
+            if (canceled) {
+                return;
+            }
+            canceled = true;
+            calls = new ArrayList<>(inFlight);
+            cancelTimers();
+            // 正在等待重试时没有进行中的请求，由这里回调失败
+            report = callback != null && !finished && inFlight.isEmpty();
+            if (report) {
+                finished = true;
+            }
+        }
+        for (Call call : calls) {
+            call.cancel();
+        }
+        if (report) {
+            Callback responseCallback = callback;
+            SCHEDULER.execute(() -> responseCallback.onFailure(this, new IOException("Canceled")));
+        }
+    }
+
+    @Override
+    public synchronized boolean isExecuted() {
+        return callback != null;
+    }
+
+    @Override
+    public synchronized boolean isCanceled() {
+        return canceled;
+    }
+
+    @Override
+    public Timeout timeout() {
+        return timeout;
+    }
+
+    @Override
+    public Call clone() {
+        return new ResilientCall(client, requests, policy, latencyTracker, listener);
+    }
+
+    /*
+     发送一次请求
+     @param hedge 是否为对冲请求
+     */
+    private void startAttempt(boolean hedge) {
+        Request request;
+        Call call;
+        synchronized (this) {
+            if (finished || canceled) {
+                return;
+            }
+            long remaining = remainingMs();
+            if (remaining <= 0) {
+                if (inFlight.isEmpty()) {
+                    finished = true;
+                    SCHEDULER.execute(() -> callback.onFailure(this, new InterruptedIOException("deadline exceeded")));
+                }
+                return;
+            }
+            request = requests.get(hedge ? (cursor + 1) % requests.size() : cursor);
+            call = client.newCall(request);
+            call.timeout().timeout(remaining, TimeUnit.MILLISECONDS);
+            inFlight.add(call);
+            if (!hedge) {
+                roundStartNanos = System.nanoTime();
+                scheduleHedge();
+            }
+        }
+        Log.d(TAG, (hedge ? "发送对冲请求" : "发送请求，重试次数: " + retries) + ", " + request.url());
+        call.enqueue(new AttemptCallback(request));
+    }
+
+    /*
+     开启对冲且已有足够的耗时样本时，在 max(p95, 最早对冲时间) 后发送对冲请求
+     */
+    private void scheduleHedge() {
+        if (!policy.isHedgeEnabled() || hedged) {
+            return;
+        }
+        long p95 = latencyTracker.percentile(HEDGE_QUANTILE);
+        if (p95 < 0) {
+            return;
+        }
+        long delay = Math.max(p95, policy.getMinHedgeDelayMs());
+        if (delay >= remainingMs()) {
+            return;
+        }
+        hedged = true;
+        timers.add(SCHEDULER.schedule(() -> startAttempt(true), delay, TimeUnit.MILLISECONDS));
+    }
+
+    /*
+     计算下一次重试前的等待时间，还有没有尝试过的端点时立即改用下一个
+     @param retryAfterMs 服务端要求的等待时间，没有时为 -1
+     @return 等待时间，不能再重试（次数用完、要求等待过久或超过截止时间）时返回 -1
+     */
+    private long retryDelayMs(long retryAfterMs) {
+        if (canceled) {
+            return -1;
+        }
+        if (failovers < requests.size() - 1) {
+            return 0;
+        }
+        if (retries >= policy.getMaxRetries() || retryAfterMs > RetryPolicy.MAX_RETRY_AFTER_MS) {
+            return -1;
+        }
+        long delay = Math.max(policy.backoffMs(retries, random), retryAfterMs);
+        return delay < remainingMs() ? delay : -1;
+    }
+
+    private void scheduleRetry(long delayMs) {
+        if (failovers < requests.size() - 1) {
+            failovers++;
+        } else {
+            retries++;
+        }
+        cursor = (cursor + 1) % requests.size();
+        cancelTimers();
+        Log.d(TAG, "第" + (retries + failovers) + "次重试将在 " + delayMs + "ms 后发送到 " + requests.get(cursor).url());
+        timers.add(SCHEDULER.schedule(() -> startAttempt(false), delayMs, TimeUnit.MILLISECONDS));
+    }
+
+    private void cancelTimers() {
+        for (ScheduledFuture<?> timer : timers) {
+            timer.cancel(false);
+        }
+        timers.clear();
+    }
+
+    private long remainingMs() {
+        return TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+    }
+
+    /*
+     execute 使用的回调，把 enqueue 的结果交给等待的线程
+     */
+    private final class BlockingCallback implements Callback {
+        private Response response;
+        private IOException failure;
+        private boolean done = false;
+        private boolean abandoned = false;// 等待的线程已经放弃，之后到达的响应直接关闭
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            synchronized (this) {
+                failure = e;
+                done = true;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+            synchronized (this) {
+                if (!abandoned) {
+                    this.response = response;
+                    done = true;
+                    notifyAll();
+                    return;
+                }
+            }
+            response.close();
+        }
+
+        synchronized Response await() throws IOException {
+            try {
+                while (!done) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                abandoned = true;
+                Thread.currentThread().interrupt();
+                cancel();
+                throw new InterruptedIOException("interrupted");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return response;
+        }
+    }
+
+    /*
+     单次发送的回调，决定重试、等待对冲的另一个请求，还是把结果交给调用方
+     */
+    private class AttemptCallback implements Callback {
+        private final Request request;
+        private final long startNanos = System.nanoTime();
+
+        AttemptCallback(Request request) {
+            this.request = request;
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            if (listener != null && !call.isCanceled()) {
+                listener.onAttemptFinished(request, elapsedMs(), false);
+            }
+            synchronized (ResilientCall.this) {
+                inFlight.remove(call);
+                if (finished || !inFlight.isEmpty()) {
+                    return;// 已有结果，或对冲的另一个请求还在进行
+                }
+                long delay = retryDelayMs(-1);
+                if (delay >= 0) {
+                    Log.w(TAG, "请求失败，准备重试: " + e.getMessage());
+                    scheduleRetry(delay);
+                    return;
+                }
+                finished = true;
+            }
+            callback.onFailure(ResilientCall.this, e);
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) throws IOException {
+            if (listener != null) {
+                listener.onAttemptFinished(request, elapsedMs(), !RetryPolicy.isRetryable(response.code()));
+            }
+            List<Call> losers;
+            long latencyMs;
+            synchronized (ResilientCall.this) {
+                inFlight.remove(call);
+                if (finished) {
+                    response.close();
+                    return;
+                }
+                if (canceled) {
+                    response.close();
+                    if (inFlight.isEmpty()) {
+                        finished = true;
+                        SCHEDULER.execute(() -> callback.onFailure(ResilientCall.this, new IOException("Canceled")));
+                    }
+                    return;
+                }
+                if (RetryPolicy.isRetryable(response.code())) {
+                    if (!inFlight.isEmpty()) {
+                        Log.w(TAG, "服务暂时不可用: " + response.code() + "，等待对冲请求");
+                        response.close();
+                        return;
+                    }
+                    long delay = retryDelayMs(RetryPolicy.retryAfterMs(response, System.currentTimeMillis()));
+                    if (delay >= 0) {
+                        Log.w(TAG, "服务暂时不可用: " + response.code() + "，准备重试");
+                        response.close();
+                        scheduleRetry(delay);
+                        return;
+                    }
+                }
+                finished = true;
+                losers = new ArrayList<>(inFlight);
+                inFlight.clear();
+                cancelTimers();
+                // 从本轮开始计时，对冲请求胜出时也反映用户实际等待的时间
+                latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - roundStartNanos);
+            }
+            for (Call loser : losers) {
+                loser.cancel();
+            }
+            if (response.isSuccessful()) {
+                latencyTracker.record(latencyMs);
+            }
+            callback.onResponse(ResilientCall.this, response);
+        }
+
+        private long elapsedMs() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+    }
+}
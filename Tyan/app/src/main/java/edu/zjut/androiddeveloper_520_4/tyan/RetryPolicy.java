@@ -0,0 +1,108 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import java.util.Date;
+import java.util.Random;
+
+import okhttp3.Response;
+
+/*
+ 大模型请求的重试策略：
+ 1. 只重试临时性的失败：连接中断、超时，以及 408、429、500、502、503、504
+ 2. 重试间隔按指数退避并加入全抖动（0 到 base*2^n 之间均匀随机），避免多个客户端同时重试
+ 3. 服务端返回 Retry-After 时至少等待这么久，要求等待过久时不再重试
+ 4. 整个请求（包括所有重试和读取回复）有一个总的截止时间
+ 5. 可选的对冲请求：等待超过近期耗时的 p95 仍没有响应时，再发送一份相同的请求，取先到的响应
+ */
+public class RetryPolicy {
+    static final long DEFAULT_BASE_DELAY_MS = 500;     // 第一次重试的最大等待时间
+    static final long DEFAULT_MAX_DELAY_MS = 8000;     // 单次重试的最大等待时间
+    static final long DEFAULT_DEADLINE_MS = 90_000;    // 整个请求的截止时间
+    static final long DEFAULT_MIN_HEDGE_DELAY_MS = 1000;// 对冲请求最早的发送时间，避免对本来就很快的请求加倍消耗
+    static final long MAX_RETRY_AFTER_MS = 30_000;     // Retry-After 超过该值时不再重试，直接返回错误
+
+    private final int maxRetries;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final long deadlineMs;
+    private final boolean hedgeEnabled;
+    private final long minHedgeDelayMs;
+
+    public RetryPolicy(int maxRetries, boolean hedgeEnabled) {
+        this(maxRetries, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, DEFAULT_DEADLINE_MS, hedgeEnabled, DEFAULT_MIN_HEDGE_DELAY_MS);
+    }
+
+    RetryPolicy(int maxRetries, long baseDelayMs, long maxDelayMs, long deadlineMs, boolean hedgeEnabled, long minHedgeDelayMs) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.deadlineMs = deadlineMs;
+        this.hedgeEnabled = hedgeEnabled;
+        this.minHedgeDelayMs = minHedgeDelayMs;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getDeadlineMs() {
+        return deadlineMs;
+    }
+
+    public boolean isHedgeEnabled() {
+        return hedgeEnabled;
+    }
+
+    public long getMinHedgeDelayMs() {
+        return minHedgeDelayMs;
+    }
+
+    /*
+     状态码是否表示临时性的失败，稍后重试可能成功
+     */
+    public static boolean isRetryable(int statusCode) {
+        switch (statusCode) {
+            case 408:// 请求超时
+            case 429:// 请求过多
+            case 500:
+            case 502:
+            case 503:
+            case 504:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /*
+     第 retry 次重试（从0开始）前的等待时间，全抖动：在 [0, min(max, base*2^retry)] 中均匀取值
+     */
+    long backoffMs(int retry, Random random) {
+        long cap = maxDelayMs;
+        if (retry < 30) {
+            cap = Math.min(maxDelayMs, baseDelayMs << retry);
+        }
+        return (long) (random.nextDouble() * (cap + 1));
+    }
+
+    /*
+     读取 Retry-After 响应头，支持秒数和HTTP日期两种格式
+     @return 需要等待的毫秒数，没有该响应头或格式不正确时返回 -1
+     */
+    static long retryAfterMs(Response response, long nowMillis) {
+        String value = response.header("Retry-After");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = response.headers().getDate("Retry-After");
+            return date != null ? Math.max(0, date.getTime() - nowMillis) : -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "retries=" + maxRetries + ", deadline=" + deadlineMs + "ms" + (hedgeEnabled ? ", hedge" : "");
+    }
+}
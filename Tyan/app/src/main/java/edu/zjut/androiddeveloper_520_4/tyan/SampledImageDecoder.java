@@ -0,0 +1,73 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.ImageDecoder;
+import android.net.Uri;
+import android.util.Log;
+import android.util.Size;
+
+import java.io.IOException;
+
+/*
+ 相册图片的按需解码，不再以原始分辨率解码整张照片：
+ 1. 读取图片头得到原始尺寸后，按目标最长边设置解码尺寸，解码器在解码时直接降采样
+ 2. ImageDecoder 会按 EXIF 方向旋转，竖拍的照片不会横过来
+ 3. 预览用的图片允许使用硬件位图和 RGB_565，不占用 Java 堆；
+    上传用的图片使用软件位图，供压缩编码读取像素，编码完成后立即回收
+ */
+public class SampledImageDecoder {
+    private static final String TAG = "SampledImageDecoder";
+
+    static final int UPLOAD_FALLBACK_EDGE = 2048;// 编码策略不限制尺寸时，上传图片的最长边上限
+
+    private SampledImageDecoder() {
+    }
+
+    /*
+     解码预览图片，最长边不超过 maxLongEdge
+     */
+    public static Bitmap decodeForDisplay(ContentResolver resolver, Uri uri, int maxLongEdge) throws IOException {
+        return decode(resolver, uri, maxLongEdge, false);
+    }
+
+    /*
+     解码上传图片，最长边与编码策略一致，ImageEncoder 无需再缩放
+     */
+    public static Bitmap decodeForUpload(ContentResolver resolver, Uri uri, ImageEncoder.Policy policy) throws IOException {
+        int maxLongEdge = policy.getMaxLongEdge() > 0 ? policy.getMaxLongEdge() : UPLOAD_FALLBACK_EDGE;
+        return decode(resolver, uri, maxLongEdge, true);
+    }
+
+    private static Bitmap decode(ContentResolver resolver, Uri uri, int maxLongEdge, boolean forUpload) throws IOException {
+        ImageDecoder.Source source = ImageDecoder.createSource(resolver, uri);
+        return ImageDecoder.decodeBitmap(source, (decoder, info, src) -> {
+            Size size = info.getSize();
+            Size target = targetSize(size.getWidth(), size.getHeight(), maxLongEdge);
+            if (target.getWidth() != size.getWidth() || target.getHeight() != size.getHeight()) {
+                decoder.setTargetSize(target.getWidth(), target.getHeight());
+            }
+            if (forUpload) {
+                // 压缩编码需要读取像素，硬件位图不支持
+                decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+            } else {
+                // 不透明的照片使用 RGB_565，内存减半
+                decoder.setMemorySizePolicy(ImageDecoder.MEMORY_POLICY_LOW_RAM);
+            }
+            Log.d(TAG, "Decoding " + size.getWidth() + "x" + size.getHeight()
+                    + " as " + target.getWidth() + "x" + target.getHeight() + (forUpload ? " for upload" : " for display"));
+        });
+    }
+
+    /*
+     按最长边等比计算解码尺寸，原图较小时保持原尺寸
+     */
+    static Size targetSize(int width, int height, int maxLongEdge) {
+        int longEdge = Math.max(width, height);
+        if (maxLongEdge <= 0 || longEdge <= maxLongEdge) {
+            return new Size(width, height);
+        }
+        float scale = (float) maxLongEdge / longEdge;
+        return new Size(Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)));
+    }
+}
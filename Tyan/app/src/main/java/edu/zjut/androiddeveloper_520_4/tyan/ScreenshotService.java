@@ -8,12 +8,15 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.util.Log;
 import android.widget.Toast;
 
-import org.json.JSONException;
 
-import okhttp3.OkHttpClient;
+import java.io.IOException;
+
+import okhttp3.Call;
 
 /*
    截屏服务
@@ -21,6 +24,11 @@ import okhttp3.OkHttpClient;
   2. 将截屏图片发送到AI大模型进行处理
   3. 管理截屏权限和媒体投影
   4. 保持前台服务状态，防止被系统回收
+  5. 悬浮球显示期间被 FloatingWindowService 绑定，维持常驻截屏会话，连续截屏无需重新初始化
+  6. 画面没有明显变化且设置相同时，直接使用缓存的回复，不再请求大模型
+  7. 截图和回复保存到对话记录中
+  8. 获取权限、编码、构建请求以及从点击到复制回复的总耗时记录到 PerfMetrics，在诊断页面中查看
+  截屏在采集线程中完成，哈希、编码和请求构建在图片处理线程池中完成，界面提示回到主线程
  */
 public class ScreenshotService extends Service {
     // 日志标签
@@ -30,14 +38,32 @@ public class ScreenshotService extends Service {
     private PermissionManager permissionManager;  // 权限管理工具
     private ScreenshotUtil screenshotUtil;       // 截屏工具类
     private Handler mainHandler;                  // 主线程Handler
-    private OkHttpClient client;                  // HTTP客户端
     private StyleSettingsManager settingsManager; // 样式设置管理器
+    private ReplyCache replyCache;                // 回复缓存
+    private ConversationStore conversationStore;  // 对话记录
+    private PerfMetrics metrics;                  // 各阶段耗时统计
+    private final RequestCoordinator requestCoordinator = new RequestCoordinator("screenshot"); // 连续点击时只保留最新的请求
+    private boolean isForeground = false;         // 是否已进入前台状态
+    private final IBinder binder = new CaptureBinder(); // 供悬浮窗服务绑定
+    // 设置页面修改空闲释放时间后，运行中的截屏会话立即按新的时间释放
+    private final SettingsStore.Listener settingsListener = (previous, current) -> {
+        ScreenshotUtil util = screenshotUtil;
+        if (util != null && previous.getCaptureIdleTimeoutMs() != current.getCaptureIdleTimeoutMs()) {
+            util.setIdleTimeout(current.getCaptureIdleTimeoutMs());
+        }
+    };
     // 使用ApiUtils中的JSON MediaType
 
     // 通知相关常量
     private static final int NOTIFICATION_ID = 1001; // 通知ID
     private static final String CHANNEL_ID = "screenshot_service_channel"; // 通知渠道ID
 
+    // 流式回复时提前复制到剪贴板的最小间隔
+    private static final long EARLY_COPY_INTERVAL_MS = 1000;
+
+    // 从点击悬浮球到回复复制到剪贴板的 systrace 区间，:benchmark 模块的 TapToClipboardBenchmark 据此计时
+    static final String TRACE_TAP_TO_CLIPBOARD = "TapToClipboard";
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -45,12 +71,22 @@ public class ScreenshotService extends Service {
         screenshotUtil = new ScreenshotUtil(this);
         mainHandler = new Handler(Looper.getMainLooper());
         
-        // 初始化OkHttpClient
-        client = new OkHttpClient();
-        
         // 初始化StyleSettingsManager
         settingsManager = new StyleSettingsManager(this);
+        screenshotUtil.setIdleTimeout(settingsManager.getCaptureIdleTimeoutMs());
+        settingsManager.addOnChangeListener(settingsListener);
+        replyCache = ReplyCache.getInstance(this);
+        conversationStore = ConversationStore.getInstance(this);
+        metrics = PerfMetrics.getInstance(this);
+    }
 
+    /*
+     进入前台状态，服务可能先被绑定再被启动，只需要调用一次
+     */
+    private void startForegroundIfNeeded() {
+        if (isForeground) {
+            return;
+        }
         try {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
                 // Android 12+ 需要指定前台服务类型
@@ -58,7 +94,8 @@ public class ScreenshotService extends Service {
             } else {
                 startForeground(NOTIFICATION_ID, createNotification());
             }
-            Log.d(TAG, "ScreenshotService created as foreground service successfully");
+            isForeground = true;
+            Log.d(TAG, "ScreenshotService started as foreground service successfully");
         } catch (Exception e) {
             Log.e(TAG, "Error starting foreground service: " + e.getMessage());
             e.printStackTrace();
@@ -68,12 +105,40 @@ public class ScreenshotService extends Service {
 
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return binder;
+    }
+
+    /*
+     绑定接口，悬浮窗服务通过它在悬浮球显示时预热截屏会话
+     */
+    public class CaptureBinder extends android.os.Binder {
+        public void warmUp() {
+            ScreenshotService.this.warmUpSession();
+        }
+    }
+
+    /*
+     预热截屏会话：已有截屏权限时提前创建虚拟显示，第一次点击悬浮球即可直接取帧
+     */
+    private void warmUpSession() {
+        if (!permissionManager.hasMediaProjectionPermission()) {
+            return;
+        }
+        // Android 14 要求先进入 mediaProjection 类型的前台状态，再获取 MediaProjection
+        startForegroundIfNeeded();
+        MediaProjection mediaProjection = permissionManager.getMediaProjection(this);
+        if (mediaProjection != null) {
+            screenshotUtil.setMediaProjection(mediaProjection);
+            screenshotUtil.startSession();
+            Log.d(TAG, "Capture session warmed up");
+        }
     }
     
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        // 通过 startForegroundService 启动时必须尽快进入前台状态
+        startForegroundIfNeeded();
         if (intent != null) {
             Log.d(TAG, "Starting screenshot service");
             
@@ -86,11 +151,8 @@ public class ScreenshotService extends Service {
                 MediaProjection mediaProjection = permissionManager.getMediaProjection(this);
                 if (mediaProjection != null) {
                     screenshotUtil.setMediaProjection(mediaProjection);
-                    
-                    // 使用延迟截屏，给用户时间看到提示
-                    mainHandler.postDelayed(() -> {
-                        takeScreenshot();
-                    }, 300); // 延迟300毫秒再截屏
+                    // 常驻会话已持有最新帧，直接截屏，不再固定延迟
+                    takeScreenshot();
                 } else {
                     Log.e(TAG, "MediaProjection is null");
                     Toast.makeText(this, R.string.screenshot_failed, Toast.LENGTH_SHORT).show();
@@ -117,43 +179,63 @@ public class ScreenshotService extends Service {
     
     /**
      * 1. 获取媒体投影权限
-     * 2. 延迟300ms后执行截屏(给用户时间看到提示)
+     * 2. 从常驻截屏会话中取最新帧，会话未启动时先启动并等待第一帧，按设置裁剪到聊天区域
      * 3. 截屏成功后发送给大模型处理
      */
     private void takeScreenshot() {
         Log.d(TAG, "Taking screenshot");
+        // 连续点击悬浮球时，新的截屏取代还在进行的请求
+        final long generation = requestCoordinator.begin();
+        final long startNanos = PerfMetrics.now();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(TRACE_TAP_TO_CLIPBOARD, (int) generation);
+        }
         
         try {
             // 确保每次截屏前重新获取MediaProjection
             MediaProjection mediaProjection = permissionManager.getMediaProjection(this);
+            metrics.recordSince(PerfMetrics.STAGE_PERMISSION, startNanos);
             if (mediaProjection != null) {
                 Log.d(TAG, "MediaProjection successfully obtained");
                 screenshotUtil.setMediaProjection(mediaProjection);
+                // 每次截屏时读取截屏范围，长按悬浮球重新框选后立即生效
+                screenshotUtil.setCaptureMode(settingsManager.getCaptureMode(), settingsManager.getCaptureRegion());
                 
-                // 添加延迟以确保MediaProjection完全初始化
-                mainHandler.postDelayed(() -> {
-                    Log.d(TAG, "Starting screenshot capture after delay");
-                    screenshotUtil.takeScreenshot(bitmap -> {
-                        if (bitmap != null) {
-                            Log.d(TAG, "Screenshot taken successfully, size: " + bitmap.getWidth() + "x" + bitmap.getHeight());
-                            //bitmap是截屏的Bitmap对象
-                            // 直接发送给大模型，不保存到相册
-                            Toast.makeText(ScreenshotService.this, R.string.sending_to_model, Toast.LENGTH_SHORT).show();
-                            sendImageToLargeModel(bitmap);
-                        } else {
-                            Log.e(TAG, "Screenshot bitmap is null");
-                            mainHandler.post(() -> {
+                screenshotUtil.takeScreenshot(bitmap -> {
+                    // 该回调在采集线程中执行
+                    if (bitmap != null && !requestCoordinator.isCurrent(generation)) {
+                        Log.d(TAG, "Screenshot superseded by a newer one, dropping");
+                        bitmap.recycle();
+                    } else if (bitmap != null) {
+                        Log.d(TAG, "Screenshot taken successfully, size: " + bitmap.getWidth() + "x" + bitmap.getHeight());
+                        //bitmap是截屏的Bitmap对象
+                        // 直接发送给大模型，不保存到相册，编码在图片处理线程池中进行
+                        boolean queued = ImageProcessingExecutor.getInstance().execute(() -> sendImageToLargeModel(bitmap, generation, startNanos));
+                        mainHandler.post(() -> {
+                            if (queued) {
+                                Toast.makeText(ScreenshotService.this, R.string.sending_to_model, Toast.LENGTH_SHORT).show();
+                            } else {
+                                bitmap.recycle();
                                 Toast.makeText(ScreenshotService.this, R.string.screenshot_failed, Toast.LENGTH_SHORT).show();
-                                stopSelf();
-                            });//如果bitmap为null，说明截屏失败
-                        }
-                    });
-                }, 100); // 添加100毫秒延迟，确保MediaProjection初始化完成
+                                requestCoordinator.finish(generation);
+                                stopSelfIfIdle();
+                            }
+                        });
+                    } else {
+                        Log.e(TAG, "Screenshot bitmap is null");
+                        mainHandler.post(() -> {
+                            Toast.makeText(ScreenshotService.this, R.string.screenshot_failed, Toast.LENGTH_SHORT).show();
+                            requestCoordinator.finish(generation);
+                            stopSelfIfIdle();
+                        });//如果bitmap为null，说明截屏失败
+                    }
+                });
             } else {
                 Log.e(TAG, "MediaProjection is null - permission might be revoked or not granted");
                 mainHandler.post(() -> {
                     Toast.makeText(ScreenshotService.this, R.string.screenshot_failed, Toast.LENGTH_SHORT).show();
-                    stopSelf();
+                    requestCoordinator.finish(generation);
+                    stopSelfIfIdle();
                 });//如果MediaProjection为null，说明权限被撤销或未授予
             }
         } catch (Exception e) {
@@ -161,11 +243,29 @@ public class ScreenshotService extends Service {
             e.printStackTrace();
             mainHandler.post(() -> {
                 Toast.makeText(ScreenshotService.this, "Screenshot failed: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-                stopSelf();
+                requestCoordinator.finish(generation);
+                stopSelfIfIdle();
             });
         }
     }
     
+    /*
+     结束本次截屏的 systrace 区间，截屏失败或被取代时区间不结束，不计入基准测试
+     */
+    private static void endTapTrace(long generation) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(TRACE_TAP_TO_CLIPBOARD, (int) generation);
+        }
+    }
+
+    /*
+     没有进行中的请求时停止服务；上一次请求结束前已经触发了新的截屏时，服务继续运行
+     */
+    private void stopSelfIfIdle() {
+        if (requestCoordinator.isIdle()) {
+            stopSelf();
+        }
+    }
 
     /*
      创建通知
@@ -193,14 +293,18 @@ public class ScreenshotService extends Service {
     }
 
     /*
-     服务销毁时调用，清理资源：
+     服务销毁时调用（悬浮球关闭且没有进行中的截屏），清理资源：
      1. 停止前台服务
-     2. 释放截屏工具资源
+     2. 释放截屏会话
      */
     @Override
     public void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "ScreenshotService destroyed");
+        settingsManager.removeOnChangeListener(settingsListener);
+        
+        // 取消进行中的请求，之后到达的回调直接丢弃
+        requestCoordinator.cancelAll();
         
         // 停止前台服务
         stopForeground(true);
@@ -221,57 +325,149 @@ public class ScreenshotService extends Service {
     }
     
     /*
-     将截图发送给大模型
+     把已编码的请求交给待发送队列并结束服务，不再占用截屏的前台服务等待网络；
+     由 ReplyDeliveryWorker 在有网络时发送，在调用线程中写入文件
+     */
+    private void queueForDelivery(String settingsKey, ReplyCache.FrameHash frameHash, String userContent, ImageEncoder.EncodedImage image) {
+        boolean queued;
+        try {
+            ReplyOutbox.getInstance(this).enqueue(settingsKey, frameHash, userContent, image);
+            ReplyDeliveryWorker.schedule(this);
+            queued = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to queue request: " + e.getMessage(), e);
+            queued = false;
+        }
+        boolean finalQueued = queued;
+        mainHandler.post(() -> {
+            Toast.makeText(ScreenshotService.this,
+                    finalQueued ? R.string.request_queued : R.string.network_error, Toast.LENGTH_LONG).show();
+            stopSelfIfIdle();
+        });
+    }
+    
+    /*
+     将截图发送给大模型，在图片处理线程池中执行
      @param bitmap 要发送的截图
+     @param generation 本次截屏的请求代号，已被新的截屏取代时不再继续
+     @param startNanos 开始截屏的时间，回复复制到剪贴板后记录总耗时
      */
-    private void sendImageToLargeModel(Bitmap bitmap) {
+    private void sendImageToLargeModel(Bitmap bitmap, long generation, long startNanos) {
         try {
+            if (!requestCoordinator.isCurrent(generation)) {
+                Log.d(TAG, "Screenshot superseded while queued, skipping");
+                bitmap.recycle();
+                return;
+            }
             Log.d(TAG, "Preparing to send screenshot to large model");
             
-            // 转换图片为Base64
-            String base64Image = ApiUtils.bitmapToBase64(bitmap);
-            Log.d(TAG, "Image converted to Base64, length: " + base64Image.length());
-            
-            // 用户消息文本内容
-            String scene = settingsManager.getScene();
-            String tone = settingsManager.getTone();
-            String target = settingsManager.getTarget();
-            String otherRequirements = settingsManager.getOtherRequirements();
+            // 先查回复缓存，画面没有明显变化时直接使用上次的回复
+            // 感知哈希同时用于待发送队列合并相同画面的请求，不开启缓存时也计算
+            final boolean cacheEnabled = settingsManager.isReplyCacheEnabled();
+            final String cacheSettingsKey = ReplyCache.settingsKey(settingsManager, PromptTemplates.IMAGE_REPLY);
+            final ReplyCache.FrameHash frameHash = ReplyCache.perceptualHash(bitmap);
+            if (cacheEnabled) {
+                String cachedReply = replyCache.get(cacheSettingsKey, frameHash);
+                if (cachedReply != null) {
+                    bitmap.recycle();
+                    requestCoordinator.finish(generation);
+                    mainHandler.post(() -> {
+                        ApiUtils.copyToClipboard(ScreenshotService.this, cachedReply);
+                        metrics.recordSince(PerfMetrics.STAGE_TOTAL, startNanos);
+                        endTapTrace(generation);
+                        Toast.makeText(ScreenshotService.this, R.string.cached_reply_copied, Toast.LENGTH_LONG).show();
+                        mainHandler.postDelayed(this::stopSelfIfIdle, 1000);
+                    });
+                    return;
+                }
+            }
             
-            String userContent = "场景: " + scene + "\n" +
-                                "语气: " + tone + "\n" +
-                                "回复对象: " + target + "\n" +
-                                "其他要求: " + otherRequirements + "\n\n" +
-                                "请根据图片内容给出合适的回复。";
+            // 按编码策略压缩图片，压缩完成后立即回收截图，Base64编码在写入请求时流式进行
+            ImageEncoder.Policy policy = settingsManager.getEncodingPolicy();
+            long encodeStart = PerfMetrics.now();
+            ImageEncoder.EncodedImage image = ImageEncoder.encode(bitmap, policy);
+            metrics.recordSince(PerfMetrics.STAGE_ENCODE, encodeStart);
+            bitmap.recycle();
+            Log.d(TAG, "Image encoded (" + policy + "): " + image.getWidth() + "x" + image.getHeight()
+                    + ", quality " + image.getQuality() + ", " + image.getData().length + " bytes");
             
-            Log.d(TAG, "Preparing user message with settings - Scene: " + scene + ", Tone: " + tone + ", Target: " + target);
+            // 用户消息只有本次的提示，回复风格在系统消息中，由 PromptTemplates 预先生成
+            long buildStart = PerfMetrics.now();
+            String userContent = PromptTemplates.render(PromptTemplates.IMAGE_REPLY, null);
             
             // 使用ApiUtils创建请求体
-            String requestBodyJson = ApiUtils.createApiRequestBody(settingsManager, userContent, base64Image);
+            ChatRequestBody requestBody = ApiUtils.createApiRequestBody(settingsManager, userContent, image);
+            metrics.recordSince(PerfMetrics.STAGE_REQUEST_BUILD, buildStart);
+            
+            // 编码期间又触发了新的截屏，这张截图的回复已不再需要
+            if (!requestCoordinator.isCurrent(generation)) {
+                Log.d(TAG, "Screenshot superseded while encoding, not sending");
+                return;
+            }
+            
+            // 没有网络时不等待，交给待发送队列后立即结束服务，网络恢复后回复以通知送达
+            if (!ReplyOutbox.isNetworkAvailable(this)) {
+                Log.d(TAG, "No network, queueing request for later delivery");
+                requestCoordinator.finish(generation);
+                queueForDelivery(cacheSettingsKey, frameHash, userContent, image);
+                return;
+            }
             
             Log.d(TAG, "Request body prepared, sending API request");
-            // 发送API请求
-            ApiUtils.sendApiRequest(settingsManager, requestBodyJson, new ApiUtils.ApiCallback() {
+            // 发送API请求，被新的截屏取代后回调不再到达
+            Call call = ApiUtils.sendApiRequest(settingsManager, requestBody, requestCoordinator.wrap(generation, new ApiUtils.ApiCallback() {
+                private final StringBuilder streamedText = new StringBuilder();// 网络线程中拼接的流式回复
+                private long lastEarlyCopyTime = 0;// 上次提前复制的时间，只在主线程访问
+                
+                @Override
+                public void onPartial(String delta) {
+                    streamedText.append(delta);
+                    String text = streamedText.toString();
+                    mainHandler.post(() -> copyPartialReply(text));
+                }
+                
+                /*
+                 回复仍在生成时，按固定间隔把已生成的部分复制到剪贴板，
+                 用户无需等待整段回复生成完毕即可粘贴
+                 */
+                private void copyPartialReply(String text) {
+                    long now = SystemClock.uptimeMillis();
+                    if (now - lastEarlyCopyTime < EARLY_COPY_INTERVAL_MS) {
+                        return;
+                    }
+                    boolean firstCopy = lastEarlyCopyTime == 0;
+                    lastEarlyCopyTime = now;
+                    ApiUtils.copyToClipboard(ScreenshotService.this, text);
+                    if (firstCopy) {
+                        Toast.makeText(ScreenshotService.this, R.string.partial_reply_copied, Toast.LENGTH_SHORT).show();
+                    }
+                }
+                
                 @Override
                 public void onSuccess(String content) {
+                    if (cacheEnabled) {
+                        replyCache.put(cacheSettingsKey, frameHash, content);
+                    }
+                    conversationStore.saveScreenshotReply(image, content, settingsManager);
                     mainHandler.post(() -> {
                         // 复制内容到系统剪贴板
                         ApiUtils.copyToClipboard(ScreenshotService.this, content);
+                        metrics.recordSince(PerfMetrics.STAGE_TOTAL, startNanos);
+                        endTapTrace(generation);
                         
                         // 显示复制成功的提示
                         Toast.makeText(ScreenshotService.this, "大模型回复已复制到剪贴板", Toast.LENGTH_LONG).show();
                         
                         // 延迟停止服务
-                        mainHandler.postDelayed(() -> stopSelf(), 1000);
+                        mainHandler.postDelayed(() -> stopSelfIfIdle(), 1000);
                     });
                 }
                 
                 @Override
                 public void onFailure(Exception e) {
-                    mainHandler.post(() -> {
-                        Toast.makeText(ScreenshotService.this, "请求失败: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-                        stopSelf();
-                    });
+                    // 重试和备用端点都失败了（网络中断等），截图不丢弃，交给待发送队列
+                    Log.w(TAG, "Request failed, queueing for later delivery: " + e.getMessage());
+                    queueForDelivery(cacheSettingsKey, frameHash, userContent, image);
                 }
                 
                 @Override
@@ -282,31 +478,27 @@ public class ScreenshotService extends Service {
                             errorMessage += " - " + e.getMessage();
                         }
                         Toast.makeText(ScreenshotService.this, errorMessage, Toast.LENGTH_SHORT).show();
-                        stopSelf();
+                        stopSelfIfIdle();
                     });
                 }
-            });
+            }));
+            requestCoordinator.attach(generation, call);
             
-        } catch (JSONException e) {
-            Log.e(TAG, "Error creating JSON request: " + e.getMessage(), e);
-            e.printStackTrace();
-            mainHandler.post(() -> {
-                Toast.makeText(ScreenshotService.this, "发送请求失败: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-                stopSelf();
-            });
         } catch (OutOfMemoryError e) {
             Log.e(TAG, "Out of memory error processing image: " + e.getMessage(), e);
             e.printStackTrace();
             mainHandler.post(() -> {
                 Toast.makeText(ScreenshotService.this, "内存不足，请尝试较小的截图", Toast.LENGTH_SHORT).show();
-                stopSelf();
+                requestCoordinator.finish(generation);
+                stopSelfIfIdle();
             });
         } catch (Exception e) {
             Log.e(TAG, "Unexpected error sending image to model: " + e.getMessage(), e);
             e.printStackTrace();
             mainHandler.post(() -> {
                 Toast.makeText(ScreenshotService.this, "发送图片失败: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-                stopSelf();
+                requestCoordinator.finish(generation);
+                stopSelfIfIdle();
             });
         }
     }
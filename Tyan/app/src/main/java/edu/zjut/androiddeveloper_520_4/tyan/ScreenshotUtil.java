@@ -3,40 +3,78 @@ package edu.zjut.androiddeveloper_520_4.tyan;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.PixelFormat;
+import android.graphics.Rect;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
 import android.media.Image;
 import android.media.ImageReader;
 import android.media.projection.MediaProjection;
 import android.os.Handler;
-import android.os.Looper;
 import android.util.DisplayMetrics;
+import android.util.Log;
 import android.view.WindowManager;
 
 import java.nio.ByteBuffer;
 
 /*
- 截屏工具类，用于处理截屏操作
+ 截屏工具类，维护一个常驻的截屏会话：
+ 1. VirtualDisplay 和 ImageReader 创建一次后保持运行，ImageReader 始终持有最新的一帧
+ 2. 截屏时直接把最新帧转换为 Bitmap，连续截屏不再重复创建虚拟显示
+ 3. 超过空闲时间没有截屏时释放采集表面和图像缓冲区，下次截屏时再恢复
+ 4. 支持只截取聊天区域：用户框选的固定区域，或从画面中自动识别，裁剪在像素拷贝时完成
+ 5. 创建虚拟显示、等待第一帧和裁剪的耗时记录到 PerfMetrics
+ 所有会话状态只在图片处理的采集线程中访问，公开方法可以在任意线程调用，
+ 截屏回调在采集线程中执行
  */
 public class ScreenshotUtil {
     private static final String TAG = "ScreenshotUtil";
     
     private static final int VIRTUAL_DISPLAY_FLAGS = DisplayManager.VIRTUAL_DISPLAY_FLAG_OWN_CONTENT_ONLY | DisplayManager.VIRTUAL_DISPLAY_FLAG_PUBLIC;
+    private static final int MAX_IMAGES = 3;// 持有最新一帧的同时，还要能接收新到达的帧
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 60_000;// 默认空闲释放时间
+
+    // 截屏范围
+    public static final String CAPTURE_MODE_FULL = "full";    // 全屏
+    public static final String CAPTURE_MODE_AUTO = "auto";    // 自动识别聊天区域
+    public static final String CAPTURE_MODE_REGION = "region";// 用户框选的区域
 
     private MediaProjection mediaProjection;
-    private VirtualDisplay virtualDisplay;// 用于显示截屏内容的虚拟显示
+    private VirtualDisplay virtualDisplay;// 用于显示截屏内容的虚拟显示，会话期间保持不变
     private ImageReader imageReader;// 用于接收截屏数据，属于安卓中间件
+    private Image latestImage;// 最新的一帧，截屏时直接使用
+    private ScreenshotCallback pendingCallback;// 会话刚启动、还没有收到第一帧时等待的截屏回调
     private int width;
     private int height;
     private int density;// DPI，即每英寸像素数
-    private Handler handler;// 用于处理回调的主线程Handler
+    private final Handler handler;// 采集线程的Handler，会话的所有操作都在该线程执行
+    private ByteBuffer packedBuffer;// 去除行填充后的紧凑像素缓冲区，跨截屏复用
+    private long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private String captureMode = CAPTURE_MODE_FULL;
+    private Rect captureRegion;// 用户框选的区域，屏幕坐标
+    private final Rect systemBarsExcluded;// 去掉状态栏和导航栏后的区域，自动识别的搜索范围
+    private final PerfMetrics metrics;
+    private long sessionOpenedAt;// 会话启动或恢复的时间，收到第一帧后清零
+
+    // 空闲超时后释放采集表面
+    private final Runnable idleReleaseRunnable = this::suspendCapture;
+
+    // MediaProjection 被系统或用户停止时，虚拟显示随之失效，需要释放会话
+    private final MediaProjection.Callback projectionCallback = new MediaProjection.Callback() {
+        @Override
+        public void onStop() {
+            Log.d(TAG, "MediaProjection stopped, releasing capture session");
+            stopScreenshot();
+            mediaProjection = null;
+        }
+    };
     
     public interface ScreenshotCallback {
         void onScreenshotTaken(Bitmap bitmap);
     }
     
     public ScreenshotUtil(Context context) {
-        this.handler = new Handler(Looper.getMainLooper());//Looper.getMainLooper() 获取主线程的 Looper，Looper 是 Android 中的消息循环机制，用于处理 UI 线程的消息和事件
+        // 像素拷贝和裁剪在采集线程中进行，不占用主线程
+        this.handler = ImageProcessingExecutor.getInstance().getCaptureHandler();
         
         WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);// 获取窗口管理服务
         DisplayMetrics metrics = new DisplayMetrics();
@@ -44,94 +82,269 @@ public class ScreenshotUtil {
         this.width = metrics.widthPixels;
         this.height = metrics.heightPixels;
         this.density = metrics.densityDpi;
+        this.systemBarsExcluded = ChatRegionDetector.systemBarsExcluded(context, width, height);
+        this.metrics = PerfMetrics.getInstance(context);
     }//屏幕尺寸和密度获取
     
     /*
-     设置 MediaProjection
+     设置 MediaProjection，与当前会话使用的不是同一个对象时先释放旧会话
      @param mediaProjection MediaProjection 对象
      */
     public void setMediaProjection(MediaProjection mediaProjection) {
+        handler.post(() -> applyMediaProjection(mediaProjection));
+    }
+
+    private void applyMediaProjection(MediaProjection mediaProjection) {
+        if (this.mediaProjection == mediaProjection) {
+            return;
+        }
+        stopScreenshot();
+        if (this.mediaProjection != null) {
+            this.mediaProjection.unregisterCallback(projectionCallback);
+        }
         this.mediaProjection = mediaProjection;
+        if (mediaProjection != null) {
+            mediaProjection.registerCallback(projectionCallback, handler);
+        }
     }
-    
+
     /*
-     开始截屏
-     @param callback 截屏完成后的回调
+     设置空闲释放时间，超过该时间没有截屏则释放采集表面，小于等于0表示不自动释放
      */
-    public void takeScreenshot(final ScreenshotCallback callback) {
+    public void setIdleTimeout(long idleTimeoutMs) {
+        handler.post(() -> {
+            this.idleTimeoutMs = idleTimeoutMs;
+            scheduleIdleRelease();
+        });
+    }
+
+    /*
+     设置截屏范围
+     @param mode CAPTURE_MODE_FULL、CAPTURE_MODE_AUTO 或 CAPTURE_MODE_REGION
+     @param region CAPTURE_MODE_REGION 时使用的屏幕区域，为空时退回全屏
+     */
+    public void setCaptureMode(String mode, Rect region) {
+        handler.post(() -> {
+            this.captureMode = mode;
+            this.captureRegion = region;
+        });
+    }
+
+    /*
+     启动或恢复常驻截屏会话，在悬浮球显示期间预热
+     */
+    public void startSession() {
+        handler.post(this::openSession);
+    }
+
+    /*
+     @return 会话是否可用
+     */
+    private boolean openSession() {
         if (mediaProjection == null) {
-            return;
+            return false;
         }
+
+        if (imageReader == null) {
+            long start = PerfMetrics.now();
+            imageReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, MAX_IMAGES);//PixelFormat.RGBA_8888 表示每个像素使用 4 个字节（红、绿、蓝、透明通道）
+            imageReader.setOnImageAvailableListener(this::onFrameAvailable, handler);
+
+            if (virtualDisplay == null) {
+                // Android 14 起同一个 MediaProjection 只能创建一次 VirtualDisplay，会话期间一直复用
+                virtualDisplay = mediaProjection.createVirtualDisplay(
+                        "ScreenCapture",
+                        width,
+                        height,
+                        density,
+                        VIRTUAL_DISPLAY_FLAGS,
+                        imageReader.getSurface(),
+                        null,
+                        handler
+                );
+                Log.d(TAG, "Capture session started");
+            } else {
+                // 空闲后恢复：只需要重新挂上采集表面
+                virtualDisplay.setSurface(imageReader.getSurface());
+                Log.d(TAG, "Capture session resumed");
+            }
+            metrics.recordSince(PerfMetrics.STAGE_VIRTUAL_DISPLAY, start);
+            sessionOpenedAt = PerfMetrics.now();
+        }
+
+        scheduleIdleRelease();
+        return true;
+    }
+    
+    /*
+     截屏：会话已有最新帧时立即回调，否则等第一帧到达后回调，会话无法启动时回调 null
+     @param callback 截屏完成后的回调，在采集线程中执行
+     */
+    public void takeScreenshot(final ScreenshotCallback callback) {
+        handler.post(() -> {
+            if (!openSession()) {
+                callback.onScreenshotTaken(null);
+                return;
+            }
         
-        // 确保先停止之前的截屏，释放资源
-        stopScreenshot();
+            if (latestImage != null) {
+                deliverLatestFrame(callback);
+            } else {
+                pendingCallback = callback;
+            }
+        });
+    }
         
-        // 重新创建 ImageReader
-        imageReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);//PixelFormat.RGBA_8888 表示每个像素使用 4 个字节（红、绿、蓝、透明通道），2 表示最多保留 2 张图片
+    /*
+     新的一帧到达，替换持有的旧帧；有等待中的截屏请求时立即交付
+     */
+    private void onFrameAvailable(ImageReader reader) {
+        Image image = null;
+        try {
+            image = reader.acquireLatestImage();
+        } catch (Exception e) {
+            Log.e(TAG, "Error acquiring image: " + e.getMessage());
+        }
+        if (image == null) {
+            return;
+        }
+
+        if (latestImage != null) {
+            latestImage.close();
+        }
+        latestImage = image;
+        if (sessionOpenedAt != 0) {
+            metrics.recordSince(PerfMetrics.STAGE_FIRST_FRAME, sessionOpenedAt);
+            sessionOpenedAt = 0;
+        }
+
+        if (pendingCallback != null) {
+            ScreenshotCallback callback = pendingCallback;
+            pendingCallback = null;
+            deliverLatestFrame(callback);
+        }
+    }
+    
+    /*
+     把最新帧转换为 Bitmap 并回调，帧本身继续保留给下一次截屏使用
+     */
+    private void deliverLatestFrame(ScreenshotCallback callback) {
+        Bitmap bitmap = null;
+        try {
+            long start = PerfMetrics.now();
+            bitmap = imageToBitmap(latestImage);
+            metrics.recordSince(PerfMetrics.STAGE_CROP, start);
+        } catch (Exception e) {
+            Log.e(TAG, "Error converting image: " + e.getMessage(), e);
+        }
+        if (callback != null) {
+            callback.onScreenshotTaken(bitmap);
+        }
+    }
+    
+    /*
+     计算本次截屏的裁剪区域
+     */
+    private Rect resolveCropRect(Image.Plane plane) {
+        Rect frame = new Rect(0, 0, width, height);
+        if (CAPTURE_MODE_REGION.equals(captureMode) && captureRegion != null) {
+            Rect region = new Rect(captureRegion);
+            // 旋转屏幕等情况下区域可能超出画面，超出时退回全屏
+            if (region.intersect(frame) && !region.isEmpty()) {
+                return region;
+            }
+        } else if (CAPTURE_MODE_AUTO.equals(captureMode)) {
+            return ChatRegionDetector.detect(plane.getBuffer(), plane.getRowStride(), plane.getPixelStride(), systemBarsExcluded);
+        }
+        return frame;
+    }
+
+    /*
+     将 ImageReader 的图像帧按裁剪区域转换为 Bitmap
+     */
+    private Bitmap imageToBitmap(Image image) {
+        Image.Plane plane = image.getPlanes()[0];// 获取第一个平面，RGBA_8888 只有一个平面
+        int pixelStride = plane.getPixelStride();// 每个像素的字节数
+        int rowStride = plane.getRowStride();// 每行的字节数，包含填充
+        Rect crop = resolveCropRect(plane);
+        int rowBytes = pixelStride * crop.width();// 每行需要拷贝的字节数
+        ByteBuffer packed = rowStride == rowBytes ? null : obtainPackedBuffer(rowBytes * crop.height());
+        return copyPixels(plane.getBuffer(), rowStride, pixelStride, crop, packed);
+    }
+
+    /*
+     把帧缓冲区中裁剪区域内的像素拷贝进 Bitmap，每次截屏只创建一个裁剪区域大小的 Bitmap：
+     1. 区域内各行在缓冲区中连续时（整行且没有行填充），直接拷贝进 Bitmap
+     2. 否则逐行只取区域内的像素，写入紧凑缓冲区后再拷贝，
+        不再先创建带填充的 Bitmap 再裁剪出第二个 Bitmap
+     @param packed 去除行填充用的缓冲区，position 为0，limit 为区域内像素的字节数；各行连续时可以为 null
+     */
+    static Bitmap copyPixels(ByteBuffer buffer, int rowStride, int pixelStride, Rect crop, ByteBuffer packed) {
+        int cropWidth = crop.width();
+        int cropHeight = crop.height();
+        int rowBytes = pixelStride * cropWidth;// 每行需要拷贝的字节数
         
-        // 重新创建 VirtualDisplay
-        virtualDisplay = mediaProjection.createVirtualDisplay(
-                "ScreenCapture",
-                width,
-                height,
-                density,
-                VIRTUAL_DISPLAY_FLAGS,
-                imageReader.getSurface(),
-                null,
-                handler
-        );
+        Bitmap bitmap = Bitmap.createBitmap(cropWidth, cropHeight, Bitmap.Config.ARGB_8888);
+        ByteBuffer source = buffer.duplicate();// 使用副本调整 position/limit，不影响原缓冲区
+        if (rowStride == rowBytes) {
+            source.position(crop.top * rowStride);
+            bitmap.copyPixelsFromBuffer(source);
+            return bitmap;
+        }
         
-        imageReader.setOnImageAvailableListener(reader -> {
-            Image image = null;
-            try {
-                image = reader.acquireLatestImage();
-                if (image != null) {
-                    Image.Plane[] planes = image.getPlanes();// 获取图像的平面数据
-                    ByteBuffer buffer = planes[0].getBuffer();// 获取第一个平面的字节缓冲区
-                    int pixelStride = planes[0].getPixelStride();// 每个像素的字节数
-                    int rowStride = planes[0].getRowStride();// 每行的字节数
-                    int rowPadding = rowStride - pixelStride * width;// 计算行填充字节数
-                    
-                    Bitmap bitmap = Bitmap.createBitmap(
-                            width + rowPadding / pixelStride,
-                            height,
-                            Bitmap.Config.ARGB_8888
-                    );// 创建一个新的 Bitmap 对象，宽度加上行填充字节数，使用 ARGB_8888 配置
-                    bitmap.copyPixelsFromBuffer(buffer);
-                    
-                    // 裁剪到正确的宽度
-                    Bitmap croppedBitmap = Bitmap.createBitmap(bitmap, 0, 0, width, height);
-                    bitmap.recycle();// 回收原始 Bitmap，避免内存泄漏
-                    
-                    // 单次截屏，直接回调
-                    if (callback != null) {
-                        callback.onScreenshotTaken(croppedBitmap);
-                    }
-                    stopScreenshot();
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                if (image != null) {
-                    image.close();
-                }
-            }
-        }, handler);
+        for (int y = 0; y < cropHeight; y++) {
+            int rowStart = (crop.top + y) * rowStride + crop.left * pixelStride;
+            source.limit(rowStart + rowBytes);
+            source.position(rowStart);
+            packed.put(source);
+        }
+        packed.rewind();
+        bitmap.copyPixelsFromBuffer(packed);
+        return bitmap;
     }
     
+    /*
+     获取去除行填充用的紧凑缓冲区，容量足够时重复使用同一块直接内存
+     */
+    private ByteBuffer obtainPackedBuffer(int size) {
+        if (packedBuffer == null || packedBuffer.capacity() < size) {
+            packedBuffer = ByteBuffer.allocateDirect(size);
+        }
+        packedBuffer.clear();
+        packedBuffer.limit(size);
+        return packedBuffer;
+    }
     
     /*
-     停止截屏
+     重新计时空闲释放
      */
-    public void stopScreenshot() {
+    private void scheduleIdleRelease() {
+        handler.removeCallbacks(idleReleaseRunnable);
+        if (idleTimeoutMs > 0 && imageReader != null) {
+            handler.postDelayed(idleReleaseRunnable, idleTimeoutMs);
+        }
+    }
+
+    /*
+     空闲时暂停会话：断开采集表面并释放图像缓冲区，虚拟显示保留，恢复时无需重新创建
+     */
+    private void suspendCapture() {
         if (virtualDisplay != null) {
-            try {
-                virtualDisplay.release();
-            } catch (Exception e) {
-                android.util.Log.e(TAG, "Error releasing virtualDisplay: " + e.getMessage());
-            } finally {
-                virtualDisplay = null;
-            }
+            virtualDisplay.setSurface(null);
+        }
+        closeImageReader();
+        Log.d(TAG, "Capture session suspended after " + idleTimeoutMs + "ms idle");
+    }
+
+    /*
+     关闭 ImageReader 和持有的最新帧
+     */
+    private void closeImageReader() {
+        pendingCallback = null;
+        sessionOpenedAt = 0;
+        if (latestImage != null) {
+            latestImage.close();
+            latestImage = null;
         }
         if (imageReader != null) {
             try {
@@ -139,20 +352,39 @@ public class ScreenshotUtil {
                 imageReader.setOnImageAvailableListener(null, null);
                 imageReader.close();
             } catch (Exception e) {
-                android.util.Log.e(TAG, "Error closing imageReader: " + e.getMessage());
+                Log.e(TAG, "Error closing imageReader: " + e.getMessage());
             } finally {
                 imageReader = null;
             }
         }
     }
     
+    /*
+     停止截屏会话，释放虚拟显示和 ImageReader
+     */
+    private void stopScreenshot() {
+        handler.removeCallbacks(idleReleaseRunnable);
+        if (virtualDisplay != null) {
+            try {
+                virtualDisplay.release();
+            } catch (Exception e) {
+                Log.e(TAG, "Error releasing virtualDisplay: " + e.getMessage());
+            } finally {
+                virtualDisplay = null;
+            }
+        }
+        closeImageReader();
+    }
+
     /*
      释放资源
      */
     public void release() {
-        stopScreenshot();
+        handler.post(() -> {
+            applyMediaProjection(null);
+            packedBuffer = null;
+        });
         // 不要在这里停止MediaProjection，因为它是由PermissionManager管理的
         // 只需要清除引用
-        mediaProjection = null;
     }
 }
@@ -0,0 +1,455 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.content.SharedPreferences;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ 某一时刻全部设置的不可变副本，由 SettingsStore 在进程内共享：
+ 1. 读取设置只是读取字段，请求线程不加锁，也不访问 SharedPreferences
+ 2. 编码策略、重试策略和端点列表在创建快照时生成一次，之后每次请求直接复用
+ 3. 修改设置时由 Builder 复制出新的快照，旧的快照不受影响，进行中的请求看到的设置前后一致
+ 设置在文件中的键和默认值也在这里，与原来 StyleSettingsManager 中的保持一致
+ */
+public final class SettingsSnapshot {
+    static final String PREFS_NAME = "TyanStyleSettings";
+
+    // Preference keys
+    private static final String KEY_SCENE = "scene";
+    private static final String KEY_TONE = "tone";
+    private static final String KEY_TARGET = "target";
+    private static final String KEY_OTHER_REQUIREMENTS = "other_requirements";
+    private static final String KEY_API_KEY = "api_key";// 旧版本的明文Key，读取时转存到 CredentialStore
+    private static final String KEY_URL = "url";
+    private static final String KEY_MODEL_NAME = "model_name";
+    private static final String KEY_STREAM_ENABLED = "stream_enabled";
+    private static final String KEY_CAPTURE_IDLE_TIMEOUT = "capture_idle_timeout_ms";
+    private static final String KEY_IMAGE_MAX_EDGE = "image_max_long_edge";
+    private static final String KEY_IMAGE_BYTE_BUDGET = "image_byte_budget";
+    private static final String KEY_IMAGE_FORMAT = "image_format";
+    private static final String KEY_IMAGE_GRAYSCALE = "image_grayscale";
+    private static final String KEY_CAPTURE_MODE = "capture_mode";
+    private static final String KEY_CAPTURE_REGION = "capture_region";
+    private static final String KEY_REPLY_CACHE_ENABLED = "reply_cache_enabled";
+    private static final String KEY_CONTEXT_TOKEN_BUDGET = "context_token_budget";
+    private static final String KEY_MAX_RETRIES = "max_retries";
+    private static final String KEY_HEDGE_ENABLED = "hedge_enabled";
+    private static final String KEY_EXTRA_ENDPOINTS = "extra_endpoints";
+    private static final String KEY_BATCH_CONCURRENCY = "batch_concurrency";
+
+    // Default values
+    private static final String DEFAULT_SCENE = "工作交流";
+    private static final String DEFAULT_TONE = "专业、友好";
+    private static final String DEFAULT_TARGET = "客户";
+    private static final String DEFAULT_OTHER_REQUIREMENTS = "无";
+    private static final String DEFAULT_KEY = "并行智算云的大模型api-key";// 旧版本的默认值，只是提示文字
+    private static final String DEFAULT_URL = "https://llmapi.paratera.com/";
+    private static final String DEFAULT_MODEL_NAME = "Qwen2.5-VL-72B-Instruct-P003";
+    private static final boolean DEFAULT_STREAM_ENABLED = true;
+    private static final long DEFAULT_CAPTURE_IDLE_TIMEOUT = ScreenshotUtil.DEFAULT_IDLE_TIMEOUT_MS;
+    private static final int DEFAULT_IMAGE_MAX_EDGE = 1600;
+    private static final int DEFAULT_IMAGE_BYTE_BUDGET = 300 * 1024;
+    private static final String DEFAULT_IMAGE_FORMAT = ImageEncoder.FORMAT_JPEG;
+    private static final boolean DEFAULT_IMAGE_GRAYSCALE = false;
+    private static final String DEFAULT_CAPTURE_MODE = ScreenshotUtil.CAPTURE_MODE_FULL;
+    private static final boolean DEFAULT_REPLY_CACHE_ENABLED = true;
+    private static final int DEFAULT_CONTEXT_TOKEN_BUDGET = 2000;
+    private static final int DEFAULT_MAX_RETRIES = 2;
+    private static final boolean DEFAULT_HEDGE_ENABLED = false;
+    private static final String DEFAULT_EXTRA_ENDPOINTS = "";
+    private static final int DEFAULT_BATCH_CONCURRENCY = 3;
+
+    // 全部使用默认值的设置，设置文件读取失败时使用
+    static final SettingsSnapshot DEFAULTS = new Builder().build();
+
+    private final String scene;
+    private final String tone;
+    private final String target;
+    private final String otherRequirements;
+    private final String url;
+    private final String modelName;
+    private final boolean streamEnabled;
+    private final long captureIdleTimeoutMs;
+    private final String captureMode;
+    private final String captureRegion;// Rect.flattenToString() 的结果，未框选过时为 null
+    private final boolean replyCacheEnabled;
+    private final int contextTokenBudget;
+    private final String extraEndpoints;
+    private final int batchConcurrency;
+    // 由上面的设置生成，创建快照时生成一次
+    private final ImageEncoder.Policy encodingPolicy;
+    private final RetryPolicy retryPolicy;
+    private final List<EndpointConfig> endpoints;
+
+    private SettingsSnapshot(Builder builder) {
+        scene = builder.scene;
+        tone = builder.tone;
+        target = builder.target;
+        otherRequirements = builder.otherRequirements;
+        url = builder.url;
+        modelName = builder.modelName;
+        streamEnabled = builder.streamEnabled;
+        captureIdleTimeoutMs = builder.captureIdleTimeoutMs;
+        captureMode = builder.captureMode;
+        captureRegion = builder.captureRegion;
+        replyCacheEnabled = builder.replyCacheEnabled;
+        contextTokenBudget = builder.contextTokenBudget;
+        extraEndpoints = builder.extraEndpoints;
+        batchConcurrency = builder.batchConcurrency;
+        encodingPolicy = new ImageEncoder.Policy(builder.imageMaxEdge, builder.imageByteBudget,
+                builder.imageFormat, builder.imageGrayscale);
+        retryPolicy = new RetryPolicy(builder.maxRetries, builder.hedgeEnabled);
+        List<EndpointConfig> all = new ArrayList<>();
+        all.add(new EndpointConfig(EndpointConfig.DEFAULT_ID, "默认", url, "", modelName, true));
+        all.addAll(EndpointConfig.parseLines(extraEndpoints));
+        endpoints = Collections.unmodifiableList(all);
+    }
+
+    /*
+     从设置文件读取全部设置，由 SettingsStore 在后台线程调用
+     */
+    static SettingsSnapshot read(SharedPreferences preferences) {
+        Builder builder = new Builder();
+        builder.scene = preferences.getString(KEY_SCENE, DEFAULT_SCENE);
+        builder.tone = preferences.getString(KEY_TONE, DEFAULT_TONE);
+        builder.target = preferences.getString(KEY_TARGET, DEFAULT_TARGET);
+        builder.otherRequirements = preferences.getString(KEY_OTHER_REQUIREMENTS, DEFAULT_OTHER_REQUIREMENTS);
+        builder.url = preferences.getString(KEY_URL, DEFAULT_URL);
+        builder.modelName = preferences.getString(KEY_MODEL_NAME, DEFAULT_MODEL_NAME);
+        builder.streamEnabled = preferences.getBoolean(KEY_STREAM_ENABLED, DEFAULT_STREAM_ENABLED);
+        builder.captureIdleTimeoutMs = preferences.getLong(KEY_CAPTURE_IDLE_TIMEOUT, DEFAULT_CAPTURE_IDLE_TIMEOUT);
+        builder.imageMaxEdge = preferences.getInt(KEY_IMAGE_MAX_EDGE, DEFAULT_IMAGE_MAX_EDGE);
+        builder.imageByteBudget = preferences.getInt(KEY_IMAGE_BYTE_BUDGET, DEFAULT_IMAGE_BYTE_BUDGET);
+        builder.imageFormat = preferences.getString(KEY_IMAGE_FORMAT, DEFAULT_IMAGE_FORMAT);
+        builder.imageGrayscale = preferences.getBoolean(KEY_IMAGE_GRAYSCALE, DEFAULT_IMAGE_GRAYSCALE);
+        builder.captureMode = preferences.getString(KEY_CAPTURE_MODE, DEFAULT_CAPTURE_MODE);
+        builder.captureRegion = preferences.getString(KEY_CAPTURE_REGION, null);
+        builder.replyCacheEnabled = preferences.getBoolean(KEY_REPLY_CACHE_ENABLED, DEFAULT_REPLY_CACHE_ENABLED);
+        builder.contextTokenBudget = preferences.getInt(KEY_CONTEXT_TOKEN_BUDGET, DEFAULT_CONTEXT_TOKEN_BUDGET);
+        builder.maxRetries = preferences.getInt(KEY_MAX_RETRIES, DEFAULT_MAX_RETRIES);
+        builder.hedgeEnabled = preferences.getBoolean(KEY_HEDGE_ENABLED, DEFAULT_HEDGE_ENABLED);
+        builder.extraEndpoints = preferences.getString(KEY_EXTRA_ENDPOINTS, DEFAULT_EXTRA_ENDPOINTS);
+        builder.batchConcurrency = preferences.getInt(KEY_BATCH_CONCURRENCY, DEFAULT_BATCH_CONCURRENCY);
+        return builder.build();
+    }
+
+    /*
+     把旧版本明文保存的 Key 转存到 CredentialStore，并从设置文件中删除；
+     在读取设置之前调用，已经转存过时不做任何事
+     只有加密保存成功的 Key 才从设置文件中删除，失败时明文保留，下次启动时再次转存
+     */
+    static void migrateCredentials(SharedPreferences preferences, CredentialStore credentials) {
+        SharedPreferences.Editor editor = preferences.edit();
+        boolean changed = false;
+        String key = preferences.getString(KEY_API_KEY, null);
+        if (key != null && (key.equals(DEFAULT_KEY) || credentials.put(EndpointConfig.DEFAULT_ID, key))) {
+            editor.remove(KEY_API_KEY);
+            changed = true;
+        }
+        String extraEndpoints = preferences.getString(KEY_EXTRA_ENDPOINTS, null);
+        String withoutKeys = credentials.takeKeys(extraEndpoints);// 加密失败的行原样保留
+        if (extraEndpoints != null && !extraEndpoints.equals(withoutKeys)) {
+            editor.putString(KEY_EXTRA_ENDPOINTS, withoutKeys);
+            changed = true;
+        }
+        if (changed) {
+            editor.commit();// 在后台线程中执行，确认明文已从磁盘删除
+        }
+    }
+
+    /*
+     把全部设置写入同一个 Editor，由调用方一次提交；
+     SharedPreferences 只把值有变化的键写入磁盘并通知
+     */
+    void writeTo(SharedPreferences.Editor editor) {
+        editor.putString(KEY_SCENE, scene);
+        editor.putString(KEY_TONE, tone);
+        editor.putString(KEY_TARGET, target);
+        editor.putString(KEY_OTHER_REQUIREMENTS, otherRequirements);
+        editor.putString(KEY_URL, url);
+        editor.putString(KEY_MODEL_NAME, modelName);
+        editor.putBoolean(KEY_STREAM_ENABLED, streamEnabled);
+        editor.putLong(KEY_CAPTURE_IDLE_TIMEOUT, captureIdleTimeoutMs);
+        editor.putInt(KEY_IMAGE_MAX_EDGE, encodingPolicy.getMaxLongEdge());
+        editor.putInt(KEY_IMAGE_BYTE_BUDGET, encodingPolicy.getByteBudget());
+        editor.putString(KEY_IMAGE_FORMAT, encodingPolicy.getFormat());
+        editor.putBoolean(KEY_IMAGE_GRAYSCALE, encodingPolicy.isGrayscale());
+        editor.putString(KEY_CAPTURE_MODE, captureMode);
+        if (captureRegion != null) {
+            editor.putString(KEY_CAPTURE_REGION, captureRegion);
+        } else {
+            editor.remove(KEY_CAPTURE_REGION);
+        }
+        editor.putBoolean(KEY_REPLY_CACHE_ENABLED, replyCacheEnabled);
+        editor.putInt(KEY_CONTEXT_TOKEN_BUDGET, contextTokenBudget);
+        editor.putInt(KEY_MAX_RETRIES, retryPolicy.getMaxRetries());
+        editor.putBoolean(KEY_HEDGE_ENABLED, retryPolicy.isHedgeEnabled());
+        editor.putString(KEY_EXTRA_ENDPOINTS, extraEndpoints);
+        editor.putInt(KEY_BATCH_CONCURRENCY, batchConcurrency);
+    }
+
+    public String getScene() {
+        return scene;
+    }
+
+    public String getTone() {
+        return tone;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getOtherRequirements() {
+        return otherRequirements;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getModelName() {
+        return modelName;
+    }
+
+    public boolean isStreamEnabled() {
+        return streamEnabled;
+    }
+
+    public long getCaptureIdleTimeoutMs() {
+        return captureIdleTimeoutMs;
+    }
+
+    public ImageEncoder.Policy getEncodingPolicy() {
+        return encodingPolicy;
+    }
+
+    public String getCaptureMode() {
+        return captureMode;
+    }
+
+    /*
+     每次返回新的 Rect，调用方可以修改
+     */
+    public Rect getCaptureRegion() {
+        return captureRegion == null ? null : Rect.unflattenFromString(captureRegion);
+    }
+
+    public boolean isReplyCacheEnabled() {
+        return replyCacheEnabled;
+    }
+
+    public int getContextTokenBudget() {
+        return contextTokenBudget;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public String getExtraEndpoints() {
+        return extraEndpoints;
+    }
+
+    /*
+     第一个是主端点，之后是额外配置的端点；列表不能修改
+     */
+    public List<EndpointConfig> getEndpoints() {
+        return endpoints;
+    }
+
+    public int getBatchConcurrency() {
+        return batchConcurrency;
+    }
+
+    /*
+     提示词相关的设置（场景、语气、回复对象、其他要求）是否相同，不同时需要重新生成提示词前缀
+     */
+    boolean hasSamePrompt(SettingsSnapshot other) {
+        return scene.equals(other.scene) && tone.equals(other.tone)
+                && target.equals(other.target) && otherRequirements.equals(other.otherRequirements);
+    }
+
+    /*
+     以当前设置为基础修改
+     */
+    Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /*
+     生成新快照的可变副本，只在 SettingsStore.update 的锁内使用
+     */
+    public static final class Builder {
+        private String scene = DEFAULT_SCENE;
+        private String tone = DEFAULT_TONE;
+        private String target = DEFAULT_TARGET;
+        private String otherRequirements = DEFAULT_OTHER_REQUIREMENTS;
+        private String url = DEFAULT_URL;
+        private String modelName = DEFAULT_MODEL_NAME;
+        private boolean streamEnabled = DEFAULT_STREAM_ENABLED;
+        private long captureIdleTimeoutMs = DEFAULT_CAPTURE_IDLE_TIMEOUT;
+        private int imageMaxEdge = DEFAULT_IMAGE_MAX_EDGE;
+        private int imageByteBudget = DEFAULT_IMAGE_BYTE_BUDGET;
+        private String imageFormat = DEFAULT_IMAGE_FORMAT;
+        private boolean imageGrayscale = DEFAULT_IMAGE_GRAYSCALE;
+        private String captureMode = DEFAULT_CAPTURE_MODE;
+        private String captureRegion = null;
+        private boolean replyCacheEnabled = DEFAULT_REPLY_CACHE_ENABLED;
+        private int contextTokenBudget = DEFAULT_CONTEXT_TOKEN_BUDGET;
+        private int maxRetries = DEFAULT_MAX_RETRIES;
+        private boolean hedgeEnabled = DEFAULT_HEDGE_ENABLED;
+        private String extraEndpoints = DEFAULT_EXTRA_ENDPOINTS;
+        private int batchConcurrency = DEFAULT_BATCH_CONCURRENCY;
+
+        Builder() {
+        }
+
+        private Builder(SettingsSnapshot snapshot) {
+            scene = snapshot.scene;
+            tone = snapshot.tone;
+            target = snapshot.target;
+            otherRequirements = snapshot.otherRequirements;
+            url = snapshot.url;
+            modelName = snapshot.modelName;
+            streamEnabled = snapshot.streamEnabled;
+            captureIdleTimeoutMs = snapshot.captureIdleTimeoutMs;
+            setEncodingPolicy(snapshot.encodingPolicy);
+            captureMode = snapshot.captureMode;
+            captureRegion = snapshot.captureRegion;
+            replyCacheEnabled = snapshot.replyCacheEnabled;
+            contextTokenBudget = snapshot.contextTokenBudget;
+            maxRetries = snapshot.retryPolicy.getMaxRetries();
+            hedgeEnabled = snapshot.retryPolicy.isHedgeEnabled();
+            extraEndpoints = snapshot.extraEndpoints;
+            batchConcurrency = snapshot.batchConcurrency;
+        }
+
+        public Builder setScene(String scene) {
+            this.scene = scene;
+            return this;
+        }
+
+        public Builder setTone(String tone) {
+            this.tone = tone;
+            return this;
+        }
+
+        public Builder setTarget(String target) {
+            this.target = target;
+            return this;
+        }
+
+        public Builder setOtherRequirements(String otherRequirements) {
+            this.otherRequirements = otherRequirements;
+            return this;
+        }
+
+        public Builder setUrl(String url) {
+            this.url = url;
+            return this;
+        }
+
+        public Builder setModelName(String modelName) {
+            this.modelName = modelName;
+            return this;
+        }
+
+        public Builder setStreamEnabled(boolean enabled) {
+            this.streamEnabled = enabled;
+            return this;
+        }
+
+        public Builder setCaptureIdleTimeoutMs(long timeoutMs) {
+            this.captureIdleTimeoutMs = timeoutMs;
+            return this;
+        }
+
+        public Builder setEncodingPolicy(ImageEncoder.Policy policy) {
+            this.imageMaxEdge = policy.getMaxLongEdge();
+            this.imageByteBudget = policy.getByteBudget();
+            this.imageFormat = policy.getFormat();
+            this.imageGrayscale = policy.isGrayscale();
+            return this;
+        }
+
+        public Builder setCaptureMode(String mode) {
+            this.captureMode = mode;
+            return this;
+        }
+
+        /*
+         保存框选的截屏区域，并切换到按区域截屏
+         */
+        public Builder setCaptureRegion(Rect region) {
+            this.captureRegion = region.flattenToString();
+            this.captureMode = ScreenshotUtil.CAPTURE_MODE_REGION;
+            return this;
+        }
+
+        public Builder setReplyCacheEnabled(boolean enabled) {
+            this.replyCacheEnabled = enabled;
+            return this;
+        }
+
+        public Builder setContextTokenBudget(int budget) {
+            this.contextTokenBudget = Math.max(0, budget);
+            return this;
+        }
+
+        public Builder setMaxRetries(int maxRetries) {
+            this.maxRetries = Math.max(0, maxRetries);
+            return this;
+        }
+
+        public Builder setHedgeEnabled(boolean enabled) {
+            this.hedgeEnabled = enabled;
+            return this;
+        }
+
+        public Builder setExtraEndpoints(String endpoints) {
+            this.extraEndpoints = endpoints;
+            return this;
+        }
+
+        public Builder setBatchConcurrency(int concurrency) {
+            this.batchConcurrency = BatchReplyRunner.clampConcurrency(concurrency);
+            return this;
+        }
+
+        /*
+         全部恢复为默认值，包括清除框选的截屏区域
+         */
+        public Builder resetToDefaults() {
+            Builder defaults = new Builder();
+            scene = defaults.scene;
+            tone = defaults.tone;
+            target = defaults.target;
+            otherRequirements = defaults.otherRequirements;
+            url = defaults.url;
+            modelName = defaults.modelName;
+            streamEnabled = defaults.streamEnabled;
+            captureIdleTimeoutMs = defaults.captureIdleTimeoutMs;
+            imageMaxEdge = defaults.imageMaxEdge;
+            imageByteBudget = defaults.imageByteBudget;
+            imageFormat = defaults.imageFormat;
+            imageGrayscale = defaults.imageGrayscale;
+            captureMode = defaults.captureMode;
+            captureRegion = defaults.captureRegion;
+            replyCacheEnabled = defaults.replyCacheEnabled;
+            contextTokenBudget = defaults.contextTokenBudget;
+            maxRetries = defaults.maxRetries;
+            hedgeEnabled = defaults.hedgeEnabled;
+            extraEndpoints = defaults.extraEndpoints;
+            batchConcurrency = defaults.batchConcurrency;
+            return this;
+        }
+
+        SettingsSnapshot build() {
+            return new SettingsSnapshot(this);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+
+/*
+ 进程内共享的设置，各个页面和服务不再各自读取 SharedPreferences：
+ 1. 第一次 getInstance 时在后台线程打开并解析设置文件，启动时主线程不读磁盘；
+    解析完成前就需要设置时，在调用线程等待同一次解析，不会重复读取
+ 2. 当前设置是一个 volatile 的 SettingsSnapshot，读取不加锁
+ 3. 修改设置时在锁内基于最新的快照生成新快照，整体替换后用一个 Editor 写入并 apply 一次，
+    同时修改多项设置只提交一次
+ 4. 修改完成后在修改设置的线程通知监听器，参数为修改前后的快照
+ */
+public class SettingsStore {
+    private static final String TAG = "SettingsStore";
+
+    private static SettingsStore instance;
+
+    private final FutureTask<SettingsSnapshot> loader;
+    private final Consumer<SettingsSnapshot> persister;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile SettingsSnapshot current;// 解析完成前为 null
+
+    /*
+     设置变化的监听器
+     */
+    public interface Listener {
+        void onSettingsChanged(SettingsSnapshot previous, SettingsSnapshot current);
+    }
+
+    public static synchronized SettingsStore getInstance(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            // 打开设置文件本身也会读磁盘，放在解析线程中进行
+            instance = new SettingsStore(
+                    () -> {
+                        SharedPreferences preferences = preferences(appContext);
+                        SettingsSnapshot.migrateCredentials(preferences, CredentialStore.getInstance(appContext));
+                        return SettingsSnapshot.read(preferences);
+                    },
+                    snapshot -> {
+                        SharedPreferences.Editor editor = preferences(appContext).edit();
+                        snapshot.writeTo(editor);
+                        editor.apply();
+                    });
+            instance.preload();
+        }
+        return instance;
+    }
+
+    private static SharedPreferences preferences(Context context) {
+        return context.getSharedPreferences(SettingsSnapshot.PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /*
+     @param loader 读取设置，只调用一次
+     @param persister 保存修改后的设置，在锁内按修改的顺序调用
+     */
+    SettingsStore(Callable<SettingsSnapshot> loader, Consumer<SettingsSnapshot> persister) {
+        this.loader = new FutureTask<>(loader);
+        this.persister = persister;
+    }
+
+    /*
+     在后台线程开始解析设置文件
+     */
+    void preload() {
+        Thread thread = new Thread(loader, "SettingsLoader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     当前的设置，解析完成后只是读取一个 volatile 字段
+     */
+    public SettingsSnapshot get() {
+        SettingsSnapshot snapshot = current;
+        return snapshot != null ? snapshot : awaitLoaded();
+    }
+
+    private SettingsSnapshot awaitLoaded() {
+        loader.run();// 后台线程还没开始时在这里解析，已经开始或完成时直接返回
+        SettingsSnapshot loaded;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                loaded = loader.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;// 设置必须读到，等待结束后恢复中断状态
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Failed to read settings, using defaults", e.getCause());
+                loaded = SettingsSnapshot.DEFAULTS;
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (current == null) {
+                current = loaded;
+            }
+            return current;// 等待期间已有修改时使用修改后的设置
+        }
+    }
+
+    /*
+     修改设置：基于最新的设置修改，生成新快照并一次写入
+     @param change 在锁内调用，只修改传入的 Builder
+     @return 修改后的设置
+     */
+    public SettingsSnapshot update(Consumer<SettingsSnapshot.Builder> change) {
+        SettingsSnapshot previous;
+        SettingsSnapshot next;
+        synchronized (this) {
+            previous = get();
+            SettingsSnapshot.Builder builder = previous.toBuilder();
+            change.accept(builder);
+            next = builder.build();
+            current = next;
+            persister.accept(next);
+        }
+        for (Listener listener : listeners) {
+            listener.onSettingsChanged(previous, next);
+        }
+        return next;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+}
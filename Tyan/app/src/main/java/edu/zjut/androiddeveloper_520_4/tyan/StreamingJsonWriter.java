@@ -0,0 +1,222 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import okio.BufferedSink;
+
+/*
+ 直接写入OkHttp sink的JSON写出器：
+ 1. 按调用顺序写出对象、数组、键和值，不构建JSONObject树，也不生成中间字符串
+ 2. 字符串中不需要转义的连续片段整段写入，只有引号、反斜杠和控制字符逐个转义
+ 3. Base64值（如图片）在写入时分块编码，见 writeBase64
+ 只做最基本的格式保证，调用方负责按正确的顺序调用
+ */
+final class StreamingJsonWriter {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final byte[] BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final int CHUNK_SIZE = 8192;// 每次写入sink的Base64字节数，必须是4的倍数
+
+    private final BufferedSink sink;
+    private boolean needsSeparator = false;// 下一个值之前是否需要逗号
+
+    StreamingJsonWriter(BufferedSink sink) {
+        this.sink = sink;
+    }
+
+    StreamingJsonWriter beginObject() throws IOException {
+        beforeValue();
+        sink.writeByte('{');
+        needsSeparator = false;
+        return this;
+    }
+
+    StreamingJsonWriter endObject() throws IOException {
+        sink.writeByte('}');
+        needsSeparator = true;
+        return this;
+    }
+
+    StreamingJsonWriter beginArray() throws IOException {
+        beforeValue();
+        sink.writeByte('[');
+        needsSeparator = false;
+        return this;
+    }
+
+    StreamingJsonWriter endArray() throws IOException {
+        sink.writeByte(']');
+        needsSeparator = true;
+        return this;
+    }
+
+    StreamingJsonWriter name(String name) throws IOException {
+        beforeValue();
+        writeString(name);
+        sink.writeByte(':');
+        needsSeparator = false;
+        return this;
+    }
+
+    StreamingJsonWriter value(String value) throws IOException {
+        beforeValue();
+        if (value == null) {
+            sink.writeUtf8("null");
+        } else {
+            writeString(value);
+        }
+        needsSeparator = true;
+        return this;
+    }
+
+    /*
+     写入已经序列化好的JSON值，调用方保证内容是完整、合法的JSON
+     */
+    StreamingJsonWriter rawValue(byte[] json) throws IOException {
+        beforeValue();
+        sink.write(json);
+        needsSeparator = true;
+        return this;
+    }
+
+    StreamingJsonWriter value(boolean value) throws IOException {
+        beforeValue();
+        sink.writeUtf8(value ? "true" : "false");
+        needsSeparator = true;
+        return this;
+    }
+
+    StreamingJsonWriter value(long value) throws IOException {
+        beforeValue();
+        sink.writeDecimalLong(value);
+        needsSeparator = true;
+        return this;
+    }
+
+    StreamingJsonWriter value(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("JSON does not allow " + value);
+        }
+        beforeValue();
+        sink.writeUtf8(Double.toString(value));
+        needsSeparator = true;
+        return this;
+    }
+
+    /*
+     写出一个以 prefix 开头、后接数据Base64编码的字符串值，如 data:image/jpeg;base64,...
+     */
+    StreamingJsonWriter base64Value(String prefix, byte[] data) throws IOException {
+        beforeValue();
+        sink.writeByte('"');
+        writeEscaped(prefix);
+        writeBase64(sink, data);
+        sink.writeByte('"');
+        needsSeparator = true;
+        return this;
+    }
+
+    private void beforeValue() throws IOException {
+        if (needsSeparator) {
+            sink.writeByte(',');
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        sink.writeByte('"');
+        writeEscaped(value);
+        sink.writeByte('"');
+    }
+
+    private void writeEscaped(String value) throws IOException {
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            if (i > start) {
+                sink.writeUtf8(value, start, i);
+            }
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    sink.writeUtf8("\\\"");
+                    break;
+                case '\\':
+                    sink.writeUtf8("\\\\");
+                    break;
+                case '\n':
+                    sink.writeUtf8("\\n");
+                    break;
+                case '\r':
+                    sink.writeUtf8("\\r");
+                    break;
+                case '\t':
+                    sink.writeUtf8("\\t");
+                    break;
+                case '\b':
+                    sink.writeUtf8("\\b");
+                    break;
+                case '\f':
+                    sink.writeUtf8("\\f");
+                    break;
+                default:
+                    // 其他控制字符，以及在部分JavaScript解析器中会被当作换行的 U+2028、U+2029
+                    sink.writeUtf8("\\u")
+                            .writeByte(HEX[(c >> 12) & 0xf]).writeByte(HEX[(c >> 8) & 0xf])
+                            .writeByte(HEX[(c >> 4) & 0xf]).writeByte(HEX[c & 0xf]);
+                    break;
+            }
+        }
+        if (start < length) {
+            sink.writeUtf8(value, start, length);
+        }
+    }
+
+    /*
+     带填充的Base64编码长度
+     */
+    static long base64Length(int byteCount) {
+        return 4L * ((byteCount + 2) / 3);
+    }
+
+    /*
+     将数据编码为不换行的Base64并分块写入sink，只使用一个固定大小的缓冲区
+     */
+    static void writeBase64(BufferedSink sink, byte[] data) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int chunkLength = 0;
+        int i = 0;
+        int fullGroupsEnd = data.length - data.length % 3;
+        while (i < fullGroupsEnd) {
+            int group = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+            chunk[chunkLength++] = BASE64_ALPHABET[(group >>> 18) & 0x3f];
+            chunk[chunkLength++] = BASE64_ALPHABET[(group >>> 12) & 0x3f];
+            chunk[chunkLength++] = BASE64_ALPHABET[(group >>> 6) & 0x3f];
+            chunk[chunkLength++] = BASE64_ALPHABET[group & 0x3f];
+            i += 3;
+            if (chunkLength == CHUNK_SIZE) {
+                sink.write(chunk, 0, chunkLength);
+                chunkLength = 0;
+            }
+        }
+        // 处理末尾不足3个字节的部分
+        int remaining = data.length - fullGroupsEnd;
+        if (remaining > 0) {
+            int group = (data[i] & 0xff) << 16;
+            if (remaining == 2) {
+                group |= (data[i + 1] & 0xff) << 8;
+            }
+            chunk[chunkLength++] = BASE64_ALPHABET[(group >>> 18) & 0x3f];
+            chunk[chunkLength++] = BASE64_ALPHABET[(group >>> 12) & 0x3f];
+            chunk[chunkLength++] = remaining == 2 ? BASE64_ALPHABET[(group >>> 6) & 0x3f] : (byte) '=';
+            chunk[chunkLength++] = '=';
+        }
+        if (chunkLength > 0) {
+            sink.write(chunk, 0, chunkLength);
+        }
+    }
+}
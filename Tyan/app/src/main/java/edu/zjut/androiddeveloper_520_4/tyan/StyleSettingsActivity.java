@@ -8,11 +8,16 @@ import android.os.Bundle;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageButton;
+import android.widget.RadioGroup;
 import android.widget.Toast;
 
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.SwitchCompat;
 import androidx.core.view.ViewCompat;
 
+import java.util.concurrent.TimeUnit;
+
 public class StyleSettingsActivity extends AppCompatActivity {
 
     private EditText sceneEditText;
@@ -22,6 +27,20 @@ public class StyleSettingsActivity extends AppCompatActivity {
     private EditText keyEditText;
     private EditText urlEditText;
     private EditText modelNameEditText;
+    private EditText contextBudgetEditText;
+    private SwitchCompat streamSwitch;
+    private SwitchCompat replyCacheSwitch;
+    private EditText maxRetriesEditText;
+    private SwitchCompat hedgeSwitch;
+    private EditText batchConcurrencyEditText;
+    private EditText extraEndpointsEditText;
+    private Button routeStatusButton;
+    private EditText imageMaxEdgeEditText;
+    private EditText imageByteBudgetEditText;
+    private RadioGroup imageFormatGroup;
+    private SwitchCompat imageGrayscaleSwitch;
+    private RadioGroup captureModeGroup;
+    private EditText captureIdleTimeoutEditText;
     private Button saveButton;
     private ImageButton backButton;
 
@@ -44,6 +63,20 @@ public class StyleSettingsActivity extends AppCompatActivity {
         keyEditText = findViewById(R.id.key_edit_text);
         urlEditText = findViewById(R.id.url_edit_text);
         modelNameEditText = findViewById(R.id.model_name_edit_text);
+        contextBudgetEditText = findViewById(R.id.context_budget_edit_text);
+        streamSwitch = findViewById(R.id.stream_switch);
+        replyCacheSwitch = findViewById(R.id.reply_cache_switch);
+        maxRetriesEditText = findViewById(R.id.max_retries_edit_text);
+        hedgeSwitch = findViewById(R.id.hedge_switch);
+        batchConcurrencyEditText = findViewById(R.id.batch_concurrency_edit_text);
+        extraEndpointsEditText = findViewById(R.id.extra_endpoints_edit_text);
+        routeStatusButton = findViewById(R.id.route_status_button);
+        imageMaxEdgeEditText = findViewById(R.id.image_max_edge_edit_text);
+        imageByteBudgetEditText = findViewById(R.id.image_byte_budget_edit_text);
+        imageFormatGroup = findViewById(R.id.image_format_group);
+        imageGrayscaleSwitch = findViewById(R.id.image_grayscale_switch);
+        captureModeGroup = findViewById(R.id.capture_mode_group);
+        captureIdleTimeoutEditText = findViewById(R.id.capture_idle_timeout_edit_text);
         saveButton = findViewById(R.id.save_button);
         backButton = findViewById(R.id.back_button);
     }
@@ -51,35 +84,152 @@ public class StyleSettingsActivity extends AppCompatActivity {
     private void loadSettings() {
         // 加载已保存的设置
         StyleSettingsManager settingsManager = new StyleSettingsManager(this);
+        SettingsSnapshot settings = settingsManager.getSnapshot();
         
-        sceneEditText.setText(settingsManager.getScene());
-        toneEditText.setText(settingsManager.getTone());
-        targetEditText.setText(settingsManager.getTarget());
-        otherRequirementsEditText.setText(settingsManager.getOtherRequirements());
-        keyEditText.setText(settingsManager.getKey());
-        urlEditText.setText(settingsManager.getUrl());
-        modelNameEditText.setText(settingsManager.getModelName());
+        sceneEditText.setText(settings.getScene());
+        toneEditText.setText(settings.getTone());
+        targetEditText.setText(settings.getTarget());
+        otherRequirementsEditText.setText(settings.getOtherRequirements());
+        // Key加密保存，不再显示，留空时保持不变
+        keyEditText.setHint(settingsManager.hasKey() ? R.string.api_key_saved_hint : R.string.api_key_hint);
+        urlEditText.setText(settings.getUrl());
+        modelNameEditText.setText(settings.getModelName());
+        contextBudgetEditText.setText(String.valueOf(settings.getContextTokenBudget()));
+        streamSwitch.setChecked(settings.isStreamEnabled());
+        replyCacheSwitch.setChecked(settings.isReplyCacheEnabled());
+        RetryPolicy retryPolicy = settings.getRetryPolicy();
+        maxRetriesEditText.setText(String.valueOf(retryPolicy.getMaxRetries()));
+        hedgeSwitch.setChecked(retryPolicy.isHedgeEnabled());
+        batchConcurrencyEditText.setText(String.valueOf(settings.getBatchConcurrency()));
+        extraEndpointsEditText.setText(settings.getExtraEndpoints());
+        ImageEncoder.Policy encodingPolicy = settings.getEncodingPolicy();
+        imageMaxEdgeEditText.setText(String.valueOf(encodingPolicy.getMaxLongEdge()));
+        imageByteBudgetEditText.setText(String.valueOf(encodingPolicy.getByteBudget() / 1024));
+        imageFormatGroup.check(ImageEncoder.FORMAT_WEBP.equals(encodingPolicy.getFormat())
+                ? R.id.image_format_webp : R.id.image_format_jpeg);
+        imageGrayscaleSwitch.setChecked(encodingPolicy.isGrayscale());
+        String captureMode = settings.getCaptureMode();
+        if (ScreenshotUtil.CAPTURE_MODE_AUTO.equals(captureMode)) {
+            captureModeGroup.check(R.id.capture_mode_auto);
+        } else if (ScreenshotUtil.CAPTURE_MODE_REGION.equals(captureMode)) {
+            captureModeGroup.check(R.id.capture_mode_region);
+        } else {
+            captureModeGroup.check(R.id.capture_mode_full);
+        }
+        // 还没有框选过区域时不能选择按区域截屏
+        findViewById(R.id.capture_mode_region).setEnabled(settings.getCaptureRegion() != null);
+        captureIdleTimeoutEditText.setText(String.valueOf(TimeUnit.MILLISECONDS.toSeconds(settings.getCaptureIdleTimeoutMs())));
     }
 
     private void setupClickListeners() {
         saveButton.setOnClickListener(v -> saveSettings());
         
+        routeStatusButton.setOnClickListener(v -> showRouteStatus());
+        
         backButton.setOnClickListener(v -> finish());
     }
 
-    private void saveSettings() {
-        // 保存设置到StyleSettingsManager
+    /*
+     显示路由状态：各端点的耗时、错误率，以及最近的路由记录，用于调试端点配置
+     */
+    private void showRouteStatus() {
         StyleSettingsManager settingsManager = new StyleSettingsManager(this);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.route_status)
+                .setMessage(EndpointRouter.getInstance().describe(settingsManager.getEndpoints()))
+                .setPositiveButton(R.string.close, null)
+                .show();
+    }
+
+    private void saveSettings() {
+        // 全部设置一起修改，只写入一次设置文件
+        String scene = sceneEditText.getText().toString();
+        String tone = toneEditText.getText().toString();
+        String target = targetEditText.getText().toString();
+        String otherRequirements = otherRequirementsEditText.getText().toString();
+        String url = urlEditText.getText().toString();
+        String modelName = modelNameEditText.getText().toString();
+        boolean streamEnabled = streamSwitch.isChecked();
+        boolean replyCacheEnabled = replyCacheSwitch.isChecked();
+        boolean hedgeEnabled = hedgeSwitch.isChecked();
+        Integer contextBudget = parseNumber(contextBudgetEditText);
+        Integer maxRetries = parseNumber(maxRetriesEditText);
+        Integer batchConcurrency = parseNumber(batchConcurrencyEditText);
+        Integer imageMaxEdge = parseNumber(imageMaxEdgeEditText);
+        Integer imageByteBudgetKb = parseNumber(imageByteBudgetEditText);
+        String imageFormat = imageFormatGroup.getCheckedRadioButtonId() == R.id.image_format_webp
+                ? ImageEncoder.FORMAT_WEBP : ImageEncoder.FORMAT_JPEG;
+        boolean imageGrayscale = imageGrayscaleSwitch.isChecked();
+        int checkedMode = captureModeGroup.getCheckedRadioButtonId();
+        String captureMode;
+        if (checkedMode == R.id.capture_mode_auto) {
+            captureMode = ScreenshotUtil.CAPTURE_MODE_AUTO;
+        } else if (checkedMode == R.id.capture_mode_region) {
+            captureMode = ScreenshotUtil.CAPTURE_MODE_REGION;
+        } else {
+            captureMode = ScreenshotUtil.CAPTURE_MODE_FULL;
+        }
+        Integer captureIdleTimeoutSeconds = parseNumber(captureIdleTimeoutEditText);
         
-        settingsManager.setScene(sceneEditText.getText().toString());
-        settingsManager.setTone(toneEditText.getText().toString());
-        settingsManager.setTarget(targetEditText.getText().toString());
-        settingsManager.setOtherRequirements(otherRequirementsEditText.getText().toString());
-        settingsManager.setKey(keyEditText.getText().toString());
-        settingsManager.setUrl(urlEditText.getText().toString());
-        settingsManager.setModelName(modelNameEditText.getText().toString());
+        StyleSettingsManager settingsManager = new StyleSettingsManager(this);
+        // 编码策略整体保存，为空或超出范围的一项保留原来的值；最长边小于缩小下限时同样视为超出范围
+        ImageEncoder.Policy currentPolicy = settingsManager.getEncodingPolicy();
+        ImageEncoder.Policy encodingPolicy = new ImageEncoder.Policy(
+                imageMaxEdge != null && (imageMaxEdge == 0 || imageMaxEdge >= ImageEncoder.MIN_LONG_EDGE)
+                        ? imageMaxEdge : currentPolicy.getMaxLongEdge(),
+                imageByteBudgetKb != null && imageByteBudgetKb <= Integer.MAX_VALUE / 1024
+                        ? imageByteBudgetKb * 1024 : currentPolicy.getByteBudget(),
+                imageFormat, imageGrayscale);
+        if (keyEditText.length() > 0 && !settingsManager.setKey(keyEditText.getText())) {
+            Toast.makeText(this, R.string.key_save_failed, Toast.LENGTH_LONG).show();
+            return;// 留在页面上，输入的Key不会丢失
+        }
+        // 额外端点中填写的Key加密保存，设置中只留下其余各栏；加密失败时不保存，避免明文写入设置文件
+        String extraEndpoints = settingsManager.getCredentials().takeKeys(extraEndpointsEditText.getText().toString().trim());
+        if (CredentialStore.containsKeys(extraEndpoints)) {
+            Toast.makeText(this, R.string.key_save_failed, Toast.LENGTH_LONG).show();
+            return;
+        }
+        settingsManager.update(settings -> {
+            settings.setScene(scene)
+                    .setTone(tone)
+                    .setTarget(target)
+                    .setOtherRequirements(otherRequirements)
+                    .setUrl(url)
+                    .setModelName(modelName)
+                    .setStreamEnabled(streamEnabled)
+                    .setReplyCacheEnabled(replyCacheEnabled)
+                    .setHedgeEnabled(hedgeEnabled)
+                    .setExtraEndpoints(extraEndpoints)
+                    .setEncodingPolicy(encodingPolicy)
+                    .setCaptureMode(captureMode);
+            // 输入为空或超出范围时保留原来的值
+            if (contextBudget != null) {
+                settings.setContextTokenBudget(contextBudget);
+            }
+            if (maxRetries != null) {
+                settings.setMaxRetries(maxRetries);
+            }
+            if (batchConcurrency != null) {
+                settings.setBatchConcurrency(batchConcurrency);
+            }
+            if (captureIdleTimeoutSeconds != null) {
+                settings.setCaptureIdleTimeoutMs(TimeUnit.SECONDS.toMillis(captureIdleTimeoutSeconds));
+            }
+        });
         
         Toast.makeText(this, R.string.settings_saved, Toast.LENGTH_SHORT).show();
         finish();
     }
+
+    /*
+     @return 输入框中的整数，为空或超出范围时返回 null
+     */
+    private static Integer parseNumber(EditText editText) {
+        try {
+            return Integer.parseInt(editText.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 }
@@ -1,36 +1,34 @@
 package edu.zjut.androiddeveloper_520_4.tyan;
 
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.graphics.Rect;
+
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * 保存和管理应用的样式设置
+ * 设置由进程内共享的 SettingsStore 保存，读取只是读取当前快照，不访问 SharedPreferences
  */
 public class StyleSettingsManager {
-    private static final String PREFS_NAME = "TyanStyleSettings";
-    
-    // Preference keys
-    private static final String KEY_SCENE = "scene";
-    private static final String KEY_TONE = "tone";
-    private static final String KEY_TARGET = "target";
-    private static final String KEY_OTHER_REQUIREMENTS = "other_requirements";
-    private static final String KEY_API_KEY = "api_key";
-    private static final String KEY_URL = "url";
-    private static final String KEY_MODEL_NAME = "model_name";
-    
-    // Default values
-    private static final String DEFAULT_SCENE = "工作交流";
-    private static final String DEFAULT_TONE = "专业、友好";
-    private static final String DEFAULT_TARGET = "客户";
-    private static final String DEFAULT_OTHER_REQUIREMENTS = "无";
-    private static final String DEFAULT_KEY = "并行智算云的大模型api-key";
-    private static final String DEFAULT_URL = "https://llmapi.paratera.com/";
-    private static final String DEFAULT_MODEL_NAME = "Qwen2.5-VL-72B-Instruct-P003";
-    
-    private final SharedPreferences preferences;
+    private final SettingsStore store;
+    private final CredentialStore credentials;
     
     public StyleSettingsManager(Context context) {
-        preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this(SettingsStore.getInstance(context), CredentialStore.getInstance(context));
+    }
+    
+    StyleSettingsManager(SettingsStore store, CredentialStore credentials) {
+        this.store = store;
+        this.credentials = credentials;
+    }
+    
+    /**
+     * 获取当前全部设置的不可变快照，同一次请求中多次读取设置时使用，前后一致
+     * @return 当前的设置快照
+     */
+    public SettingsSnapshot getSnapshot() {
+        return store.get();
     }
     
     /**
@@ -38,7 +36,7 @@ public class StyleSettingsManager {
      * @return 当前设置的场景，如未设置则返回默认值
      */
     public String getScene() {
-        return preferences.getString(KEY_SCENE, DEFAULT_SCENE);
+        return store.get().getScene();
     }
     
     /**
@@ -46,7 +44,7 @@ public class StyleSettingsManager {
      * @return 当前设置的语气风格，如未设置则返回默认值
      */
     public String getTone() {
-        return preferences.getString(KEY_TONE, DEFAULT_TONE);
+        return store.get().getTone();
     }
     
     /**
@@ -54,7 +52,7 @@ public class StyleSettingsManager {
      * @return 当前设置的目标对象，如未设置则返回默认值
      */
     public String getTarget() {
-        return preferences.getString(KEY_TARGET, DEFAULT_TARGET);
+        return store.get().getTarget();
     }
     
     /**
@@ -62,15 +60,23 @@ public class StyleSettingsManager {
      * @return 当前设置的其他要求，如未设置则返回默认值
      */
     public String getOtherRequirements() {
-        return preferences.getString(KEY_OTHER_REQUIREMENTS, DEFAULT_OTHER_REQUIREMENTS);
+        return store.get().getOtherRequirements();
     }
     
     /**
-     * 获取API访问密钥
-     * @return 当前设置的API密钥，如未设置则返回默认值
+     * 获取加密保存的API密钥，请求时按端点ID取得 Authorization 请求头
+     * @return 进程内共享的密钥存储
      */
-    public String getKey() {
-        return preferences.getString(KEY_API_KEY, DEFAULT_KEY);
+    public CredentialStore getCredentials() {
+        return credentials;
+    }
+    
+    /**
+     * 主端点是否已经保存了API密钥
+     * @return 是否已保存API密钥
+     */
+    public boolean hasKey() {
+        return credentials.hasKey(EndpointConfig.DEFAULT_ID);
     }
     
     /**
@@ -78,7 +84,7 @@ public class StyleSettingsManager {
      * @return 当前设置的API地址，如未设置则返回默认值
      */
     public String getUrl() {
-        return preferences.getString(KEY_URL, DEFAULT_URL);
+        return store.get().getUrl();
     }
     
     /**
@@ -86,7 +92,127 @@ public class StyleSettingsManager {
      * @return 当前设置的模型名称，如未设置则返回默认值
      */
     public String getModelName() {
-        return preferences.getString(KEY_MODEL_NAME, DEFAULT_MODEL_NAME);
+        return store.get().getModelName();
+    }
+    
+    /**
+     * 是否使用流式回复（SSE），开启后回复内容会边生成边返回
+     * @return 是否开启流式回复，如未设置则返回默认值
+     */
+    public boolean isStreamEnabled() {
+        return store.get().isStreamEnabled();
+    }
+    
+    /**
+     * 获取截屏会话的空闲释放时间
+     * @return 超过该时间没有截屏则释放采集表面（毫秒），如未设置则返回默认值
+     */
+    public long getCaptureIdleTimeoutMs() {
+        return store.get().getCaptureIdleTimeoutMs();
+    }
+    
+    /**
+     * 获取上传图片的编码策略
+     * @return 由最长边、字节预算、编码格式和灰度开关组成的编码策略
+     */
+    public ImageEncoder.Policy getEncodingPolicy() {
+        return store.get().getEncodingPolicy();
+    }
+    
+    /**
+     * 获取截屏范围
+     * @return ScreenshotUtil 中的截屏范围常量，如未设置则返回默认值（全屏）
+     */
+    public String getCaptureMode() {
+        return store.get().getCaptureMode();
+    }
+    
+    /**
+     * 获取用户在悬浮球上框选的截屏区域
+     * @return 屏幕坐标下的区域，未框选过时返回 null
+     */
+    public Rect getCaptureRegion() {
+        return store.get().getCaptureRegion();
+    }
+    
+    /**
+     * 是否复用回复缓存，同一画面重复截屏时直接使用上次的回复
+     * @return 是否开启回复缓存，如未设置则返回默认值
+     */
+    public boolean isReplyCacheEnabled() {
+        return store.get().isReplyCacheEnabled();
+    }
+    
+    /**
+     * 获取多轮对话中历史消息的token预算，超出预算的较早对话不再发送
+     * @return 历史消息的token预算，0表示不带历史，如未设置则返回默认值
+     */
+    public int getContextTokenBudget() {
+        return store.get().getContextTokenBudget();
+    }
+    
+    /**
+     * 获取请求失败时的重试策略，包括重试次数和是否发送对冲请求
+     * @return 当前的重试策略，如未设置则使用默认值
+     */
+    public RetryPolicy getRetryPolicy() {
+        return store.get().getRetryPolicy();
+    }
+    
+    /**
+     * 获取额外配置的端点，每行一个，格式见 EndpointConfig
+     * @return 额外端点的文本，如未设置则返回空字符串
+     */
+    public String getExtraEndpoints() {
+        return store.get().getExtraEndpoints();
+    }
+    
+    /**
+     * 获取全部可用的端点，供 EndpointRouter 选择
+     * @return 端点列表，第一个是上面配置的URL、Key和模型名称（视为能识别图片），之后是额外配置的端点
+     */
+    public List<EndpointConfig> getEndpoints() {
+        return store.get().getEndpoints();
+    }
+    
+    /**
+     * 获取批量回复时同时进行的请求数
+     * @return 请求并发数，如未设置则返回默认值
+     */
+    public int getBatchConcurrency() {
+        return store.get().getBatchConcurrency();
+    }
+    
+    /**
+     * 获取由场景、语气、回复对象和其他要求生成的提示词前缀，设置变化时由 PromptTemplates 重新生成
+     * @return 当前的提示词前缀，包含预先序列化的系统消息
+     */
+    public PromptTemplates.Prefix getPromptPrefix() {
+        return PromptTemplates.getInstance(this).getPrefix();
+    }
+    
+    /**
+     * 注册设置变化的监听器，在修改设置的线程调用
+     * @param listener 设置变化时调用的监听器，参数为修改前后的快照
+     */
+    public void addOnChangeListener(SettingsStore.Listener listener) {
+        store.addListener(listener);
+    }
+    
+    /**
+     * 注销设置变化的监听器
+     * @param listener 之前注册的监听器
+     */
+    public void removeOnChangeListener(SettingsStore.Listener listener) {
+        store.removeListener(listener);
+    }
+    
+    /**
+     * 同时修改多项设置，只生成一个新快照、写入一次设置文件
+     * @param change 对设置的修改，基于修改时最新的设置
+     */
+    public void update(Consumer<SettingsSnapshot.Builder> change) {
+        store.update(change);
     }
     
     /**
@@ -94,7 +220,7 @@ public class StyleSettingsManager {
      * @param scene 新的对话场景设置
      */
     public void setScene(String scene) {
-        preferences.edit().putString(KEY_SCENE, scene).apply();
+        store.update(settings -> settings.setScene(scene));
     }
     
     /**
@@ -102,7 +228,7 @@ public class StyleSettingsManager {
      * @param tone 新的语气风格设置
      */
     public void setTone(String tone) {
-        preferences.edit().putString(KEY_TONE, tone).apply();
+        store.update(settings -> settings.setTone(tone));
     }
     
     /**
@@ -110,7 +236,7 @@ public class StyleSettingsManager {
      * @param target 新的目标对象设置
      */
     public void setTarget(String target) {
-        preferences.edit().putString(KEY_TARGET, target).apply();
+        store.update(settings -> settings.setTarget(target));
     }
     
     /**
@@ -118,15 +244,16 @@ public class StyleSettingsManager {
      * @param otherRequirements 新的其他要求设置
      */
     public void setOtherRequirements(String otherRequirements) {
-        preferences.edit().putString(KEY_OTHER_REQUIREMENTS, otherRequirements).apply();
+        store.update(settings -> settings.setOtherRequirements(otherRequirements));
     }
     
     /**
-     * 设置API访问密钥
-     * @param key 新的API密钥
+     * 设置API访问密钥，加密保存，不写入设置文件
+     * @param key 新的API密钥，为空时删除
+     * @return 是否已保存，加密失败时原来的密钥不变
      */
-    public void setKey(String key) {
-        preferences.edit().putString(KEY_API_KEY, key).apply();
+    public boolean setKey(CharSequence key) {
+        return credentials.put(EndpointConfig.DEFAULT_ID, key);
     }
     
     /**
@@ -134,7 +261,7 @@ public class StyleSettingsManager {
      * @param url 新的API地址
      */
     public void setUrl(String url) {
-        preferences.edit().putString(KEY_URL, url).apply();
+        store.update(settings -> settings.setUrl(url));
     }
     
     /**
@@ -142,22 +269,109 @@ public class StyleSettingsManager {
      * @param modelName 新的模型名称
      */
     public void setModelName(String modelName) {
-        preferences.edit().putString(KEY_MODEL_NAME, modelName).apply();
+        store.update(settings -> settings.setModelName(modelName));
+    }
+    
+    /**
+     * 设置是否使用流式回复
+     * @param enabled 是否开启流式回复
+     */
+    public void setStreamEnabled(boolean enabled) {
+        store.update(settings -> settings.setStreamEnabled(enabled));
+    }
+    
+    /**
+     * 设置截屏会话的空闲释放时间
+     * @param timeoutMs 空闲释放时间（毫秒），小于等于0表示悬浮球显示期间一直保持
+     */
+    public void setCaptureIdleTimeoutMs(long timeoutMs) {
+        store.update(settings -> settings.setCaptureIdleTimeoutMs(timeoutMs));
+    }
+    
+    /**
+     * 设置上传图片的编码策略
+     * @param policy 新的编码策略
+     */
+    public void setEncodingPolicy(ImageEncoder.Policy policy) {
+        store.update(settings -> settings.setEncodingPolicy(policy));
+    }
+    
+    /**
+     * 设置截屏范围
+     * @param mode ScreenshotUtil 中的截屏范围常量
+     */
+    public void setCaptureMode(String mode) {
+        store.update(settings -> settings.setCaptureMode(mode));
+    }
+    
+    /**
+     * 保存框选的截屏区域，并切换到按区域截屏
+     * @param region 屏幕坐标下的区域
+     */
+    public void setCaptureRegion(Rect region) {
+        store.update(settings -> settings.setCaptureRegion(region));
+    }
+    
+    /**
+     * 设置是否复用回复缓存
+     * @param enabled 是否开启回复缓存
+     */
+    public void setReplyCacheEnabled(boolean enabled) {
+        store.update(settings -> settings.setReplyCacheEnabled(enabled));
+    }
+    
+    /**
+     * 设置多轮对话中历史消息的token预算
+     * @param budget 历史消息的token预算，0表示不带历史
+     */
+    public void setContextTokenBudget(int budget) {
+        store.update(settings -> settings.setContextTokenBudget(budget));
+    }
+    
+    /**
+     * 设置请求失败时的最大重试次数
+     * @param maxRetries 最大重试次数，0表示不重试
+     */
+    public void setMaxRetries(int maxRetries) {
+        store.update(settings -> settings.setMaxRetries(maxRetries));
+    }
+    
+    /**
+     * 设置是否发送对冲请求：等待时间超过近期耗时的p95时再发送一份相同的请求，会增加token消耗
+     * @param enabled 是否开启对冲请求
+     */
+    public void setHedgeEnabled(boolean enabled) {
+        store.update(settings -> settings.setHedgeEnabled(enabled));
+    }
+    
+    /**
+     * 设置额外的端点，其中填写的Key加密保存，设置中只留下其余各栏
+     * @param endpoints 每行一个端点：名称 | URL | 模型 | Key | vision或text，Key为空时沿用已保存的Key
+     * @return 是否已保存；有Key加密失败时不修改设置，明文不会写入设置文件
+     */
+    public boolean setExtraEndpoints(String endpoints) {
+        String withoutKeys = credentials.takeKeys(endpoints);
+        if (CredentialStore.containsKeys(withoutKeys)) {
+            return false;
+        }
+        store.update(settings -> settings.setExtraEndpoints(withoutKeys));
+        return true;
+    }
+    
+    /**
+     * 设置批量回复时同时进行的请求数
+     * @param concurrency 请求并发数，取值范围 1 到 BatchReplyRunner.MAX_CONCURRENCY
+     */
+    public void setBatchConcurrency(int concurrency) {
+        store.update(settings -> settings.setBatchConcurrency(concurrency));
     }
     
     /**
      * 重置所有设置为默认值
-     * 包括：场景、语气、目标对象、其他要求、API密钥、URL和模型名称
+     * 包括：场景、语气、目标对象、其他要求、API密钥、URL、模型名称、流式回复开关、截屏空闲时间、图片编码策略、截屏范围、回复缓存开关、历史消息预算、重试策略、额外端点和批量回复并发数
      */
     public void resetToDefaults() {
-        SharedPreferences.Editor editor = preferences.edit();
-        editor.putString(KEY_SCENE, DEFAULT_SCENE);
-        editor.putString(KEY_TONE, DEFAULT_TONE);
-        editor.putString(KEY_TARGET, DEFAULT_TARGET);
-        editor.putString(KEY_OTHER_REQUIREMENTS, DEFAULT_OTHER_REQUIREMENTS);
-        editor.putString(KEY_API_KEY, DEFAULT_KEY);
-        editor.putString(KEY_URL, DEFAULT_URL);
-        editor.putString(KEY_MODEL_NAME, DEFAULT_MODEL_NAME);
-        editor.apply();
+        credentials.put(EndpointConfig.DEFAULT_ID, "");
+        store.update(SettingsSnapshot.Builder::resetToDefaults);
     }
 }
@@ -0,0 +1,234 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.ImageDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.Size;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Future;
+
+/*
+ 聊天列表图片消息的缩略图加载：
+ 1. 按 ImageView 的尺寸在单独的缩略图线程中解码，解码结果正好铺满控件（centerCrop），
+    不占用上传图片的编码队列
+ 2. 内存缓存按可用堆大小的1/8限制，滚动回来的行直接从内存取图，不再解码
+ 3. 磁盘缓存保存缩小后的缩略图，重新进入页面时不必再解码原图
+ 4. ViewHolder 回收或重新绑定时取消还没有完成的请求
+ 只在主线程中调用
+ */
+public class ThumbnailLoader {
+    private static final String TAG = "ThumbnailLoader";
+    private static final String DISK_CACHE_DIR = "thumbnails";
+    private static final long DISK_CACHE_MAX_BYTES = 20L * 1024 * 1024;
+    private static final int DISK_CACHE_QUALITY = 85;
+
+    private static ThumbnailLoader instance;
+
+    private final ContentResolver resolver;
+    private final File diskCacheDir;
+    private final LruCache<String, Bitmap> memoryCache;
+
+    /*
+     一个 ImageView 上正在进行的请求，保存在 View 的 tag 中
+     */
+    private static final class Request {
+        final String key;
+        Future<?> future;
+
+        Request(String key) {
+            this.key = key;
+        }
+    }
+
+    public static synchronized ThumbnailLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new ThumbnailLoader(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ThumbnailLoader(Context context) {
+        resolver = context.getContentResolver();
+        diskCacheDir = new File(context.getCacheDir(), DISK_CACHE_DIR);
+        int maxBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+        memoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+        };
+    }
+
+    /*
+     把图片加载到 ImageView 中，先取消该控件上之前的请求
+     */
+    public void load(ImageView imageView, String uriString) {
+        cancel(imageView);
+        Size size = targetSize(imageView);
+        String key = uriString + '@' + size.getWidth() + 'x' + size.getHeight();
+
+        Bitmap cached = memoryCache.get(key);
+        if (cached != null) {
+            imageView.setImageBitmap(cached);
+            return;
+        }
+
+        imageView.setImageDrawable(null);
+        Request request = new Request(key);
+        imageView.setTag(R.id.thumbnail_request, request);
+        request.future = ImageProcessingExecutor.getInstance().submitThumbnail(
+                () -> loadThumbnail(Uri.parse(uriString), key, size),
+                new ImageProcessingExecutor.Callback<Bitmap>() {
+                    @Override
+                    public void onResult(Bitmap bitmap) {
+                        memoryCache.put(key, bitmap);
+                        // 控件可能已经绑定到其他消息
+                        if (imageView.getTag(R.id.thumbnail_request) == request) {
+                            imageView.setTag(R.id.thumbnail_request, null);
+                            imageView.setImageBitmap(bitmap);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable error) {
+                        if (imageView.getTag(R.id.thumbnail_request) == request) {
+                            imageView.setTag(R.id.thumbnail_request, null);
+                        }
+                    }
+                });
+    }
+
+    /*
+     取消 ImageView 上还没有完成的请求
+     */
+    public void cancel(ImageView imageView) {
+        Object tag = imageView.getTag(R.id.thumbnail_request);
+        if (tag instanceof Request) {
+            ImageProcessingExecutor.getInstance().cancel(((Request) tag).future);
+            imageView.setTag(R.id.thumbnail_request, null);
+        }
+    }
+
+    /*
+     目标尺寸：布局中的固定尺寸优先，不必等待测量；否则使用测量后的尺寸
+     */
+    private static Size targetSize(ImageView imageView) {
+        ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        int width = params != null && params.width > 0 ? params.width : imageView.getWidth();
+        int height = params != null && params.height > 0 ? params.height : imageView.getHeight();
+        if (width <= 0 || height <= 0) {
+            int fallback = imageView.getResources().getDisplayMetrics().widthPixels / 2;
+            width = width > 0 ? width : fallback;
+            height = height > 0 ? height : fallback;
+        }
+        return new Size(width, height);
+    }
+
+    /*
+     在缩略图线程中执行：先查磁盘缓存，未命中时解码原图并写入磁盘缓存
+     */
+    private Bitmap loadThumbnail(Uri uri, String key, Size size) throws IOException {
+        File cacheFile = new File(diskCacheDir, diskName(key));
+        if (cacheFile.exists()) {
+            try {
+                return ImageDecoder.decodeBitmap(ImageDecoder.createSource(cacheFile),
+                        (decoder, info, source) -> decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE));
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable thumbnail: " + e.getMessage());
+                cacheFile.delete();
+            }
+        }
+
+        Bitmap thumbnail = ImageDecoder.decodeBitmap(ImageDecoder.createSource(resolver, uri), (decoder, info, source) -> {
+            // 按较短边铺满目标尺寸解码，再裁掉多余部分，与 centerCrop 的显示效果一致
+            int sourceWidth = info.getSize().getWidth();
+            int sourceHeight = info.getSize().getHeight();
+            float scale = Math.min(1f, Math.max((float) size.getWidth() / sourceWidth, (float) size.getHeight() / sourceHeight));
+            int decodedWidth = Math.max(1, Math.round(sourceWidth * scale));
+            int decodedHeight = Math.max(1, Math.round(sourceHeight * scale));
+            decoder.setTargetSize(decodedWidth, decodedHeight);
+            int cropWidth = Math.min(decodedWidth, size.getWidth());
+            int cropHeight = Math.min(decodedHeight, size.getHeight());
+            int left = (decodedWidth - cropWidth) / 2;
+            int top = (decodedHeight - cropHeight) / 2;
+            decoder.setCrop(new Rect(left, top, left + cropWidth, top + cropHeight));
+            // 需要写入磁盘缓存，使用软件位图；不透明的照片使用 RGB_565
+            decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+            decoder.setMemorySizePolicy(ImageDecoder.MEMORY_POLICY_LOW_RAM);
+        });
+        writeDiskCache(cacheFile, thumbnail);
+        return thumbnail;
+    }
+
+    private void writeDiskCache(File cacheFile, Bitmap thumbnail) {
+        if (!diskCacheDir.exists() && !diskCacheDir.mkdirs()) {
+            return;
+        }
+        File temp = new File(cacheFile.getPath() + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(temp)) {
+            thumbnail.compress(Bitmap.CompressFormat.JPEG, DISK_CACHE_QUALITY, output);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write thumbnail: " + e.getMessage());
+            temp.delete();
+            return;
+        }
+        if (temp.renameTo(cacheFile)) {
+            trimDiskCache();
+        }
+    }
+
+    /*
+     磁盘缓存超出上限时，按最后修改时间删除最旧的缩略图
+     */
+    private synchronized void trimDiskCache() {
+        File[] files = diskCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= DISK_CACHE_MAX_BYTES) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (total <= DISK_CACHE_MAX_BYTES) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static String diskName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + 4);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.append(".jpg").toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
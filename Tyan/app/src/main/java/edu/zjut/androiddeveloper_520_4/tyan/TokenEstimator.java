@@ -0,0 +1,53 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+/*
+ 本地估算文本的token数，不依赖模型的分词表：
+ 1. 汉字、假名、韩文和全角标点按每个字符1个token计算
+ 2. 其他字符（英文、数字、空白和半角标点）按每4个字符1个token计算
+ 3. 每条消息另加固定开销（角色名和分隔符）
+ 估算值偏大一些，按预算裁剪历史时不会超出模型的上下文长度
+ */
+public final class TokenEstimator {
+    public static final int MESSAGE_OVERHEAD = 4;// 每条消息的固定开销
+    private static final int CHARS_PER_TOKEN = 4;// 非中日韩字符平均每个token的字符数
+
+    private TokenEstimator() {
+    }
+
+    /*
+     估算一段文本的token数
+     */
+    public static int estimate(CharSequence text) {
+        if (text == null) {
+            return 0;
+        }
+        int wideChars = 0;
+        int otherChars = 0;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            char c = text.charAt(i);
+            if (isWide(c)) {
+                wideChars++;
+            } else if (!Character.isLowSurrogate(c)) {// 代理对只按高位计一次
+                otherChars++;
+            }
+        }
+        return wideChars + (otherChars + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+    }
+
+    /*
+     估算一条消息的token数，包括消息的固定开销
+     */
+    public static int estimateMessage(CharSequence text) {
+        return MESSAGE_OVERHEAD + estimate(text);
+    }
+
+    /*
+     中日韩文字和全角符号，分词后基本每个字符一个token
+     */
+    private static boolean isWide(char c) {
+        return (c >= 0x2E80 && c <= 0x9FFF)      // 部首、标点、假名、汉字
+                || (c >= 0xAC00 && c <= 0xD7AF)  // 韩文音节
+                || (c >= 0xF900 && c <= 0xFAFF)  // 兼容汉字
+                || (c >= 0xFF00 && c <= 0xFFEF); // 全角字符
+    }
+}
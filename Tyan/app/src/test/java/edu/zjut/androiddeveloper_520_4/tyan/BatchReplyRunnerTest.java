@@ -0,0 +1,118 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证批量回复的流水线：请求并发数和编码结果的缓冲都有上限，回复按选择顺序导出，取消后迟到的回调被丢弃。
+ */
+public class BatchReplyRunnerTest {
+    private final Map<Integer, BatchReplyRunner.Result<String>> preparing = new HashMap<>();
+    private final Map<Integer, BatchReplyRunner.Result<String>> sending = new HashMap<>();
+    private final List<Integer> states = new ArrayList<>();
+    private int maxSending = 0;
+    private int maxPreparing = 0;
+    private int maxBuffered = 0;
+    private BatchReplyRunner.Summary summary;
+
+    // 回调直接在当前线程执行，阶段的完成由测试手动触发
+    private BatchReplyRunner<String> newRunner(int count, int concurrency) {
+        int[] waiting = new int[1];
+        return new BatchReplyRunner<>(count, concurrency,
+                (index, result) -> {
+                    preparing.put(index, result);
+                    maxPreparing = Math.max(maxPreparing, preparing.size());
+                    maxBuffered = Math.max(maxBuffered, preparing.size() + waiting[0]);
+                },
+                (index, prepared, result) -> {
+                    sending.put(index, result);
+                    maxSending = Math.max(maxSending, sending.size());
+                    return null;
+                },
+                new BatchReplyRunner.Listener() {
+                    @Override
+                    public void onItemChanged(int index, int state, String detail) {
+                        states.add(state);
+                        if (state == BatchReplyRunner.STATE_WAITING) {
+                            waiting[0]++;
+                        } else if (state == BatchReplyRunner.STATE_SENDING) {
+                            waiting[0]--;
+                        }
+                    }
+
+                    @Override
+                    public void onFinished(BatchReplyRunner.Summary result) {
+                        summary = result;
+                    }
+                },
+                Runnable::run);
+    }
+
+    @Test
+    public void requestsNeverExceedConcurrency() {
+        BatchReplyRunner<String> runner = newRunner(10, 3);
+        runner.start();
+
+        while (runner.isRunning()) {
+            // 先完成全部编码，再按发送顺序逐个完成请求
+            while (!preparing.isEmpty()) {
+                int index = preparing.keySet().iterator().next();
+                preparing.remove(index).onSuccess("image-" + index);
+            }
+            int index = sending.keySet().iterator().next();
+            sending.remove(index).onSuccess("reply-" + index);
+        }
+
+        assertEquals(3, maxSending);
+        assertEquals(BatchReplyRunner.PREPARE_PARALLELISM, maxPreparing);
+        assertTrue(maxBuffered <= 3);
+        assertEquals(10, summary.getSucceeded());
+        assertEquals("reply-0", summary.getReplies()[0]);
+        assertEquals("reply-9", summary.getReplies()[9]);
+    }
+
+    @Test
+    public void failuresAreCountedAndKeptInExport() {
+        BatchReplyRunner<String> runner = newRunner(2, 2);
+        runner.start();
+        preparing.remove(0).onSuccess("image-0");
+        preparing.remove(1).onFailure("decode failed");
+        sending.remove(0).onSuccess("好的，马上处理");
+
+        assertFalse(runner.isRunning());
+        assertEquals(1, summary.getSucceeded());
+        assertEquals(1, summary.getFailed());
+        assertEquals("【图片 1】\n好的，马上处理\n\n【图片 2】\n（没有回复）", summary.toExportText());
+    }
+
+    @Test
+    public void cancel_dropsLateCallbacks() {
+        BatchReplyRunner<String> runner = newRunner(5, 2);
+        runner.start();
+        preparing.remove(0).onSuccess("image-0");
+        BatchReplyRunner.Result<String> late = sending.get(0);
+
+        runner.cancel();
+        late.onSuccess("late reply");
+
+        assertFalse(runner.isRunning());
+        assertEquals(0, summary.getSucceeded());
+        assertEquals(0, summary.getFailed());
+        assertNull(summary.getReplies()[0]);
+        assertFalse(states.contains(BatchReplyRunner.STATE_DONE));
+    }
+
+    @Test
+    public void concurrencyIsClamped() {
+        assertEquals(1, BatchReplyRunner.clampConcurrency(0));
+        assertEquals(BatchReplyRunner.MAX_CONCURRENCY, BatchReplyRunner.clampConcurrency(100));
+        // 超出单个主机并发上限的请求只会在 OkHttp 中排队
+        assertEquals(HttpClientEngine.MAX_REQUESTS_PER_HOST, BatchReplyRunner.clampConcurrency(8));
+    }
+}
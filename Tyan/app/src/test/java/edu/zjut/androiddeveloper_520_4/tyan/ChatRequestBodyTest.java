@@ -0,0 +1,120 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Random;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证流式写出的请求体是合法JSON，字段、转义和图片Base64与原来的 org.json 实现一致，且声明的长度准确。
+ */
+public class ChatRequestBodyTest {
+    private static final String MODEL = "Qwen2.5-VL-72B-Instruct";
+
+    @Test
+    public void writeTo_producesSameRequestAsOrgJson() throws Exception {
+        byte[] data = new byte[10_001];
+        new Random(7).nextBytes(data);
+        ImageEncoder.EncodedImage image = new ImageEncoder.EncodedImage(data, "image/webp", 100, 80, 75);
+        ChatRequestBody body = new ChatRequestBody(MODEL, true,
+                Collections.singletonList(new ConversationContext.Turn(ConversationContext.ROLE_ASSISTANT, "好的")),
+                "场景: 工作交流\n用户消息: 你好", image);
+
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        assertEquals(buffer.size(), body.contentLength());
+
+        JSONObject request = new JSONObject(buffer.readUtf8());
+        assertEquals(MODEL, request.getString("model"));
+        assertTrue(request.getBoolean("stream"));
+        assertEquals(ChatRequestBody.MAX_TOKENS, request.getInt("max_tokens"));
+        assertEquals(ChatRequestBody.TEMPERATURE, request.getDouble("temperature"), 0);
+
+        JSONArray messages = request.getJSONArray("messages");
+        assertEquals(3, messages.length());
+        assertEquals(ApiUtils.SYSTEM_PROMPT, messages.getJSONObject(0).getString("content"));
+        assertEquals("好的", messages.getJSONObject(1).getString("content"));
+        JSONArray content = messages.getJSONObject(2).getJSONArray("content");
+        assertEquals("场景: 工作交流\n用户消息: 你好", content.getJSONObject(0).getString("text"));
+        assertEquals("data:image/webp;base64," + Base64.getEncoder().encodeToString(data),
+                content.getJSONObject(1).getJSONObject("image_url").getString("url"));
+    }
+
+    @Test
+    public void writeTo_attachesImageToTheHistoryTurnThatCarriesIt() throws Exception {
+        byte[] data = {1, 2, 3, 4, 5};
+        ImageEncoder.EncodedImage image = new ImageEncoder.EncodedImage(data, "image/jpeg", 1, 1, 90);
+        ChatRequestBody body = new ChatRequestBody(MODEL, true, Arrays.asList(
+                new ConversationContext.Turn(ConversationContext.ROLE_USER, "[图片] 帮我回复", true),
+                new ConversationContext.Turn(ConversationContext.ROLE_ASSISTANT, "好的")), "再正式一点", image);
+
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        assertEquals(buffer.size(), body.contentLength());
+
+        JSONArray messages = new JSONObject(buffer.readUtf8()).getJSONArray("messages");
+        JSONArray history = messages.getJSONObject(1).getJSONArray("content");
+        assertEquals("[图片] 帮我回复", history.getJSONObject(0).getString("text"));
+        assertEquals("data:image/jpeg;base64," + Base64.getEncoder().encodeToString(data),
+                history.getJSONObject(1).getJSONObject("image_url").getString("url"));
+        assertEquals("再正式一点", messages.getJSONObject(3).getString("content"));
+    }
+
+    @Test
+    public void writeTo_matchesJdkBase64ForAllTailLengths() throws Exception {
+        Random random = new Random(42);
+        // 覆盖 0/1/2 字节尾部，以及跨越多个分块的长度
+        int[] sizes = {0, 1, 2, 3, 4, 5, 6143, 6144, 6145, 100_001};
+        for (int size : sizes) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            ImageEncoder.EncodedImage image = new ImageEncoder.EncodedImage(data, "image/jpeg", 1, 1, 90);
+            ChatRequestBody body = new ChatRequestBody(MODEL, true, Collections.emptyList(), "回复", image);
+
+            Buffer buffer = new Buffer();
+            body.writeTo(buffer);
+            assertEquals("size " + size, buffer.size(), body.contentLength());
+
+            JSONArray content = new JSONObject(buffer.readUtf8()).getJSONArray("messages").getJSONObject(1).getJSONArray("content");
+            assertEquals("size " + size, "data:image/jpeg;base64," + Base64.getEncoder().encodeToString(data),
+                    content.getJSONObject(1).getJSONObject("image_url").getString("url"));
+        }
+    }
+
+    @Test
+    public void writeTo_escapesSpecialCharacters() throws Exception {
+        String text = "引号\"反斜杠\\换行\n回车\r制表\t控制\u0001分隔\u2028\u2029表情😀/";
+        ChatRequestBody body = new ChatRequestBody(MODEL, false, Collections.emptyList(), text, null);
+
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        assertEquals(buffer.size(), body.contentLength());
+
+        JSONObject request = new JSONObject(buffer.readUtf8());
+        assertFalse(request.getBoolean("stream"));
+        assertEquals(text, request.getJSONArray("messages").getJSONObject(1).getString("content"));
+    }
+
+    @Test
+    public void writeTo_isRepeatable() throws Exception {
+        ImageEncoder.EncodedImage image = new ImageEncoder.EncodedImage(new byte[]{1, 2, 3, 4}, "image/jpeg", 1, 1, 90);
+        ChatRequestBody body = new ChatRequestBody(MODEL, true, Arrays.asList(
+                new ConversationContext.Turn(ConversationContext.ROLE_USER, "问"),
+                new ConversationContext.Turn(ConversationContext.ROLE_ASSISTANT, "答")), "再问", image);
+
+        Buffer first = new Buffer();
+        body.writeTo(first);
+        Buffer second = new Buffer();
+        body.writeTo(second);
+
+        assertEquals(first.readUtf8(), second.readUtf8());
+    }
+}
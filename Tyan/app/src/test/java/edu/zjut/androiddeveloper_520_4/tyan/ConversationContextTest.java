@@ -0,0 +1,171 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证多轮对话上下文的token估算、按预算裁剪历史，以及每次请求中图片只附带一次；
+ * 对话轮数不断增加时，请求JSON的大小应保持在预算决定的上限之内。
+ */
+public class ConversationContextTest {
+    private static final int BUDGET = 800;
+    private static final String MODEL = "Qwen2.5-VL-72B-Instruct";
+    private static final String CURRENT = "场景: 工作交流\n语气: 专业、友好\n回复对象: 客户\n其他要求: 无\n\n用户消息: 这句话怎么回？";
+    private static final String IMAGE = "file:///data/user/0/edu.zjut.androiddeveloper_520_4.tyan/files/captures/1.jpg";
+    private static final int MAX_MESSAGE_JSON_OVERHEAD = 40;// 每条历史消息除内容外的JSON结构长度上限
+
+    @Test
+    public void estimate_countsCjkPerCharacterAndOthersPerFourCharacters() {
+        assertEquals(0, TokenEstimator.estimate(""));
+        assertEquals(2, TokenEstimator.estimate("你好"));
+        assertEquals(3, TokenEstimator.estimate("hello world!"));
+        assertEquals(3, TokenEstimator.estimate("好的ok"));
+        assertEquals(TokenEstimator.MESSAGE_OVERHEAD + 2, TokenEstimator.estimateMessage("收到"));
+    }
+
+    @Test
+    public void payloadStaysBoundedAsConversationGrows() throws Exception {
+        ConversationContext context = new ConversationContext();
+        int emptyLength = json(Collections.emptyList(), null).length();
+        int bound = emptyLength + BUDGET * 4;
+
+        int lastLength = 0;
+        for (int i = 0; i < 300; i++) {
+            ConversationContext.Window window = context.select(null, BUDGET);
+            assertTrue(window.getTokens() <= BUDGET);
+
+            String json = json(window.getTurns(), null);
+            assertTrue("payload of " + json.length() + " chars at turn " + i,
+                    json.length() <= bound + window.getTurns().size() * MAX_MESSAGE_JSON_OVERHEAD);
+            lastLength = json.length();
+
+            context.addExchange("第" + i + "个问题：他说明天一起吃饭，我该怎么回？ ok?",
+                    null, "好呀，明天几点在哪里见？" + repeat("哈", i % 50));
+        }
+
+        // 较早的对话被省略，最新的一轮一定保留
+        ConversationContext.Window window = context.select(null, BUDGET);
+        List<ConversationContext.Turn> turns = window.getTurns();
+        assertTrue(window.getDroppedCount() > 0);
+        assertEquals(ConversationContext.ROLE_SYSTEM, turns.get(0).getRole());
+        assertTrue(turns.get(turns.size() - 2).getContent().startsWith("第299个问题"));
+        assertTrue(lastLength <= bound + turns.size() * MAX_MESSAGE_JSON_OVERHEAD);
+    }
+
+    @Test
+    public void select_withoutBudgetSendsNoHistory() {
+        ConversationContext context = new ConversationContext();
+        context.addExchange("帮我回复", null, "好的");
+
+        ConversationContext.Window window = context.select(null, 0);
+        assertTrue(window.getTurns().isEmpty());
+        assertEquals(1, window.getDroppedCount());
+    }
+
+    @Test
+    public void image_isSentOnceInEveryRequest() throws Exception {
+        ConversationContext context = new ConversationContext();
+        ImageEncoder.EncodedImage image = new ImageEncoder.EncodedImage(new byte[]{1, 2, 3}, "image/jpeg", 1, 1, 90);
+
+        ConversationContext.Window first = context.select(IMAGE, BUDGET);
+        assertTrue(first.shouldAttachImage());
+        String firstJson = json(first.getTurns(), image);
+        assertEquals(1, count(firstJson, "\"type\":\"image_url\""));
+
+        context.addExchange("帮我回复", IMAGE, "好的，收到");
+
+        // 追问时图片附带在原来发送它的那条历史消息上，本次消息只有文本
+        ConversationContext.Window followUp = context.select(IMAGE, BUDGET);
+        assertFalse(followUp.shouldAttachImage());
+        assertTrue(followUp.getTurns().get(0).carriesImage());
+        assertFalse(followUp.getTurns().get(1).carriesImage());
+        String followUpJson = json(followUp.getTurns(), image);
+        assertEquals(1, count(followUpJson, "\"type\":\"image_url\""));
+        assertEquals(1, count(followUpJson, "data:image/jpeg;base64,AQID"));
+        assertTrue(followUpJson.indexOf("image_url") < followUpJson.indexOf("好的，收到"));
+        assertTrue(followUpJson.contains(ConversationContext.IMAGE_REFERENCE + " 帮我回复"));
+        assertTrue(followUpJson.endsWith(jsonString(CURRENT) + "}],\"stream\":true,\"max_tokens\":512,\"temperature\":0.6}"));
+
+        // 再追问一次，图片仍然只附带在第一轮上
+        context.addExchange("再正式一点", null, "收到，谢谢。");
+        String thirdJson = json(context.select(IMAGE, BUDGET).getTurns(), image);
+        assertEquals(1, count(thirdJson, "\"type\":\"image_url\""));
+
+        // 换了一张图片需要附带在本次消息上
+        ConversationContext.Window other = context.select(IMAGE + "2", BUDGET);
+        assertTrue(other.shouldAttachImage());
+        for (ConversationContext.Turn turn : other.getTurns()) {
+            assertFalse(turn.carriesImage());
+        }
+    }
+
+    @Test
+    public void image_isAttachedAgainAfterItsTurnIsTrimmed() {
+        ConversationContext context = new ConversationContext();
+        context.addExchange("帮我回复", IMAGE, "好的，收到");
+        for (int i = 0; i < 20; i++) {
+            context.addExchange(repeat("问", 40), null, repeat("答", 40));
+        }
+
+        ConversationContext.Window window = context.select(IMAGE, 300);
+        assertTrue(window.getDroppedCount() > 0);
+        assertTrue(window.shouldAttachImage());
+    }
+
+    @Test
+    public void restore_pairsUserMessagesWithReplies() {
+        ConversationContext context = new ConversationContext();
+        context.restore(Arrays.asList(
+                new ChatMessage(ChatMessage.TYPE_IMAGE, null, IMAGE),
+                new ChatMessage(ChatMessage.TYPE_USER, "帮我回复", null),
+                new ChatMessage(ChatMessage.TYPE_SYSTEM, "正在发送请求", null),
+                new ChatMessage(ChatMessage.TYPE_AI, "好的，收到", null),
+                new ChatMessage(ChatMessage.TYPE_USER, "没有回复的问题", null),
+                new ChatMessage(ChatMessage.TYPE_SYSTEM, "网络错误", null),
+                new ChatMessage(ChatMessage.TYPE_USER, "再正式一点", null),
+                new ChatMessage(ChatMessage.TYPE_AI, "收到，谢谢。", null)));
+
+        assertEquals(2, context.size());
+        ConversationContext.Window window = context.select(IMAGE, BUDGET);
+        assertFalse(window.shouldAttachImage());
+        List<ConversationContext.Turn> turns = window.getTurns();
+        assertEquals(4, turns.size());
+        assertTrue(turns.get(0).carriesImage());
+        assertEquals(ConversationContext.IMAGE_REFERENCE + " 帮我回复", turns.get(0).getContent());
+        assertEquals("再正式一点", turns.get(2).getContent());
+        assertEquals(ConversationContext.ROLE_ASSISTANT, turns.get(3).getRole());
+    }
+
+    private static String json(List<ConversationContext.Turn> history, ImageEncoder.EncodedImage image) throws Exception {
+        Buffer buffer = new Buffer();
+        new ChatRequestBody(MODEL, true, history, CURRENT, image).writeTo(buffer);
+        return buffer.readUtf8();
+    }
+
+    private static String jsonString(String text) {
+        return "\"" + text.replace("\n", "\\n") + "\"";
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int index = text.indexOf(part); index >= 0; index = text.indexOf(part, index + part.length())) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,358 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.content.SharedPreferences;
+
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证加密保存的Key：保存的内容不含明文，每个端点在进程内只解密一次，清零后重新解密，
+ * 额外端点文本中的Key被取出保存，旧版本的明文Key只在加密保存成功后才从设置中删除。
+ * Keystore 在本地测试中不可用，用软件实现的 AES-GCM 代替。
+ */
+public class CredentialStoreTest {
+    private final Map<String, String> saved = new HashMap<>();
+    private final AtomicInteger opens = new AtomicInteger();
+    private final CredentialStore.Sealer sealer = new SoftwareSealer();
+
+    private CredentialStore newStore() {
+        return newStore(sealer);
+    }
+
+    private CredentialStore newStore(CredentialStore.Sealer sealer) {
+        return new CredentialStore(sealer, new CredentialStore.Storage() {
+            @Override
+            public String get(String id) {
+                return saved.get(id);
+            }
+
+            @Override
+            public void put(String id, String value) {
+                if (value != null) {
+                    saved.put(id, value);
+                } else {
+                    saved.remove(id);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void keyIsEncryptedAndDecryptedOncePerProcess() {
+        newStore().put(EndpointConfig.DEFAULT_ID, "sk-secret-密钥");
+        assertFalse(saved.get(EndpointConfig.DEFAULT_ID).contains("sk-secret"));
+
+        CredentialStore restarted = newStore();
+        for (int i = 0; i < 100; i++) {
+            assertEquals("Bearer sk-secret-密钥", restarted.authorization(EndpointConfig.DEFAULT_ID));
+        }
+        assertEquals(1, opens.get());
+    }
+
+    @Test
+    public void wipeZeroesCachedKeyAndNextUseDecryptsAgain() {
+        CredentialStore store = newStore();
+        store.put("a", "key-a");
+        CredentialStore restarted = newStore();
+        char[] cached = restarted.get("a");
+
+        restarted.wipe();
+
+        assertArrayEquals(new char[5], cached);
+        assertEquals("Bearer key-a", restarted.authorization("a"));
+        assertEquals(2, opens.get());
+    }
+
+    @Test
+    public void wipeDuringRequestsNeverProducesZeroedHeader() throws Exception {
+        newStore().put("a", "key-a");
+        CredentialStore store = newStore();
+        AtomicInteger bad = new AtomicInteger();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    if (!"Bearer key-a".equals(store.authorization("a"))) {
+                        bad.incrementAndGet();
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        for (Thread reader : readers) {
+            while (reader.isAlive()) {
+                store.wipe();// 与悬浮窗服务销毁时相同，请求线程可能正在读取
+            }
+            reader.join();
+        }
+
+        assertEquals(0, bad.get());
+    }
+
+    @Test
+    public void missingKeyIsCachedAndEmptyKeyRemoves() {
+        CredentialStore store = newStore();
+        assertFalse(store.hasKey("none"));
+        assertEquals("Bearer ", store.authorization("none"));
+
+        store.put("a", "key-a");
+        store.put("a", "");
+
+        assertFalse(store.hasKey("a"));
+        assertFalse(saved.containsKey("a"));
+    }
+
+    @Test
+    public void takeKeysMovesEndpointKeysOutOfSettingsText() {
+        CredentialStore store = newStore();
+        String text = "B | https://b.example/ | vl-7b | key-b | vision\n"
+                + "C|https://c.example/v1|qwen-turbo||text";
+
+        String withoutKeys = store.takeKeys(text);
+
+        assertEquals("B | https://b.example/ | vl-7b |  | vision\n"
+                + "C|https://c.example/v1|qwen-turbo||text", withoutKeys);
+        assertEquals("Bearer key-b", store.authorization("B/vl-7b"));
+        assertFalse(store.hasKey("C/qwen-turbo"));
+        assertEquals(1, saved.size());
+    }
+
+    @Test
+    public void failedEncryptionKeepsPreviousKey() {
+        newStore().put("a", "key-a");
+        String sealed = saved.get("a");
+
+        assertFalse(newStore(new FailingSealer()).put("a", "key-b"));
+        assertEquals(sealed, saved.get("a"));
+        assertEquals("Bearer key-a", newStore().authorization("a"));
+    }
+
+    @Test
+    public void migrationMovesPlaintextKeysAndRemovesThem() {
+        Preferences preferences = legacyPreferences();
+
+        SettingsSnapshot.migrateCredentials(preferences, newStore());
+
+        assertFalse(preferences.values.containsKey("api_key"));
+        assertEquals("B | https://b.example/ | vl-7b |  | vision", preferences.values.get("extra_endpoints"));
+        assertEquals(1, preferences.commits);
+        CredentialStore restarted = newStore();
+        assertEquals("Bearer sk-old", restarted.authorization(EndpointConfig.DEFAULT_ID));
+        assertEquals("Bearer key-b", restarted.authorization("B/vl-7b"));
+
+        // 已经转存过，再次启动时不再写入
+        SettingsSnapshot.migrateCredentials(preferences, restarted);
+        assertEquals(1, preferences.commits);
+    }
+
+    @Test
+    public void migrationKeepsPlaintextWhenEncryptionFails() {
+        Preferences preferences = legacyPreferences();
+        Map<String, Object> before = new HashMap<>(preferences.values);
+
+        SettingsSnapshot.migrateCredentials(preferences, newStore(new FailingSealer()));
+
+        assertEquals(before, preferences.values);
+        assertTrue(saved.isEmpty());
+
+        // Keystore 恢复后下次启动时完成转存
+        SettingsSnapshot.migrateCredentials(preferences, newStore());
+        assertFalse(preferences.values.containsKey("api_key"));
+        assertEquals("Bearer sk-old", newStore().authorization(EndpointConfig.DEFAULT_ID));
+    }
+
+    private static Preferences legacyPreferences() {
+        Preferences preferences = new Preferences();
+        preferences.values.put("api_key", "sk-old");
+        preferences.values.put("extra_endpoints", "B | https://b.example/ | vl-7b | key-b | vision");
+        return preferences;
+    }
+
+    /*
+     Keystore 不可用时的情况，例如密钥被系统清除或硬件故障
+     */
+    private static final class FailingSealer implements CredentialStore.Sealer {
+        @Override
+        public byte[] seal(byte[] plaintext) throws GeneralSecurityException {
+            throw new GeneralSecurityException("Keystore unavailable");
+        }
+
+        @Override
+        public byte[] open(byte[] sealed) throws GeneralSecurityException {
+            throw new GeneralSecurityException("Keystore unavailable");
+        }
+    }
+
+    /*
+     内存中的设置文件，只实现转存用到的部分
+     */
+    private static final class Preferences implements SharedPreferences {
+        final Map<String, Object> values = new HashMap<>();
+        int commits = 0;
+
+        @Override
+        public Map<String, ?> getAll() {
+            return values;
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return values.containsKey(key) ? (String) values.get(key) : defValue;
+        }
+
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            Map<String, Object> changes = new HashMap<>();
+            return new Editor() {
+                @Override
+                public Editor putString(String key, String value) {
+                    changes.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putStringSet(String key, Set<String> values) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putInt(String key, int value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putLong(String key, long value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putFloat(String key, float value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putBoolean(String key, boolean value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    changes.put(key, null);
+                    return this;
+                }
+
+                @Override
+                public Editor clear() {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public boolean commit() {
+                    for (Map.Entry<String, Object> change : changes.entrySet()) {
+                        if (change.getValue() != null) {
+                            values.put(change.getKey(), change.getValue());
+                        } else {
+                            values.remove(change.getKey());
+                        }
+                    }
+                    commits++;
+                    return true;
+                }
+
+                @Override
+                public void apply() {
+                    commit();
+                }
+            };
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /*
+     与 Keystore 中的实现相同的格式：IV + 密文
+     */
+    private final class SoftwareSealer implements CredentialStore.Sealer {
+        private final SecretKey key;
+
+        SoftwareSealer() {
+            try {
+                KeyGenerator generator = KeyGenerator.getInstance("AES");
+                generator.init(256);
+                key = generator.generateKey();
+            } catch (GeneralSecurityException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public byte[] seal(byte[] plaintext) throws GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+            byte[] iv = cipher.getIV();
+            byte[] ciphertext = cipher.doFinal(plaintext);
+            byte[] sealed = Arrays.copyOf(iv, iv.length + ciphertext.length);
+            System.arraycopy(ciphertext, 0, sealed, iv.length, ciphertext.length);
+            return sealed;
+        }
+
+        @Override
+        public byte[] open(byte[] sealed) throws GeneralSecurityException {
+            opens.incrementAndGet();
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, sealed, 0, 12));
+            return cipher.doFinal(sealed, 12, sealed.length - 12);
+        }
+    }
+}
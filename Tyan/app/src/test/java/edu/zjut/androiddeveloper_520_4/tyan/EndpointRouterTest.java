@@ -0,0 +1,99 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import okhttp3.Request;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证端点路由：图片只发给视觉模型，纯文本优先发给文本模型，按耗时排序，降级的端点排在最后。
+ */
+public class EndpointRouterTest {
+    private final EndpointConfig primary = new EndpointConfig(EndpointConfig.DEFAULT_ID, "默认", "https://a.example/", "k", "vl-72b", true);
+    private final EndpointConfig fastVision = new EndpointConfig("b", "B", "https://b.example/", "k", "vl-7b", true);
+    private final EndpointConfig text = new EndpointConfig("c", "C", "https://c.example/v1", "k", "qwen-turbo", false);
+    private final List<EndpointConfig> endpoints = Arrays.asList(primary, fastVision, text);
+
+    @Test
+    public void route_sendsImagesToVisionModelsOnly() {
+        EndpointRouter router = new EndpointRouter();
+        record(router, primary, 900, true);
+        record(router, fastVision, 300, true);
+
+        assertEquals(Arrays.asList(fastVision, primary), router.route(endpoints, true));
+    }
+
+    @Test
+    public void route_prefersTextModelsForTextOnlyRequests() {
+        EndpointRouter router = new EndpointRouter();
+        record(router, primary, 200, true);
+        record(router, text, 800, true);
+
+        assertEquals(text, router.route(endpoints, false).get(0));
+    }
+
+    @Test
+    public void route_movesDegradedEndpointsLast() {
+        EndpointRouter router = new EndpointRouter();
+        record(router, primary, 200, true);
+        record(router, fastVision, 500, true);
+        for (int i = 0; i < EndpointRouter.DEGRADED_FAILURES; i++) {
+            record(router, primary, 100, false);
+        }
+
+        assertEquals(Arrays.asList(fastVision, primary), router.route(endpoints, true));
+        assertTrue(router.describe(endpoints).contains("降级"));
+    }
+
+    @Test
+    public void stats_recoverAfterCooldownOrSuccess() {
+        EndpointRouter.Stats stats = new EndpointRouter.Stats();
+        for (int i = 0; i < EndpointRouter.DEGRADED_FAILURES; i++) {
+            stats.record(100, false, 1_000);
+        }
+        assertTrue(stats.isDegraded(1_000));
+        // 冷却时间过后重新参与排序，由下一次请求探测
+        assertFalse(stats.isDegraded(1_000 + EndpointRouter.COOLDOWN_MS));
+
+        stats.record(300, true, 2_000);
+        assertFalse(stats.isDegraded(2_000));
+        assertEquals(300, stats.latencyMs, 0);
+        assertTrue(stats.score() > stats.latencyMs);
+    }
+
+    @Test
+    public void route_fallsBackToAllEndpointsWithoutVisionModel() {
+        EndpointRouter router = new EndpointRouter();
+        List<EndpointConfig> textOnly = Arrays.asList(text);
+
+        assertEquals(textOnly, router.route(textOnly, true));
+    }
+
+    @Test
+    public void parseLines_skipsMalformedLines() {
+        List<EndpointConfig> parsed = EndpointConfig.parseLines(
+                "B | https://b.example/ | vl-7b | key-b | vision\n"
+                        + "缺少字段 | https://x.example/\n"
+                        + "C|https://c.example/v1|qwen-turbo|key-c|text\n"
+                        + "D | https://d.example/ | vl | key-d");
+
+        assertEquals(3, parsed.size());
+        assertTrue(parsed.get(0).isVision());
+        assertFalse(parsed.get(1).isVision());
+        assertEquals("https://c.example/v1/chat/completions", parsed.get(1).getChatUrl());
+        assertEquals("key-c", parsed.get(1).getKey());
+        assertTrue(parsed.get(2).isVision());
+    }
+
+    private static void record(EndpointRouter router, EndpointConfig endpoint, long latencyMs, boolean success) {
+        Request request = new Request.Builder()
+                .url(endpoint.getChatUrl())
+                .tag(EndpointConfig.class, endpoint)
+                .build();
+        router.onAttemptFinished(request, latencyMs, success);
+    }
+}
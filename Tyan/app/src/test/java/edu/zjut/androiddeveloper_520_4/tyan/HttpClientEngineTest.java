@@ -0,0 +1,213 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证 HttpClientEngine 的连接复用：第二次及之后的请求不再建立新连接、不再进行TLS握手。
+ */
+public class HttpClientEngineTest {
+    private MockWebServer server;
+    private HandshakeCertificates clientCertificates;
+    private final CountingEventListener listener = new CountingEventListener();
+
+    @Before
+    public void setUp() throws Exception {
+        String localhost = InetAddress.getByName("localhost").getCanonicalHostName();
+        HeldCertificate certificate = new HeldCertificate.Builder()
+                .addSubjectAlternativeName(localhost)
+                .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+                .heldCertificate(certificate)
+                .build();
+        clientCertificates = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(certificate.certificate())
+                .build();
+
+        server = new MockWebServer();
+        server.useHttps(serverCertificates.sslSocketFactory(), false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    private HttpClientEngine newEngine() {
+        OkHttpClient client = HttpClientEngine.newClientBuilder()
+                .sslSocketFactory(clientCertificates.sslSocketFactory(), clientCertificates.trustManager())
+                .eventListener(listener)
+                .build();
+        return new HttpClientEngine(client);
+    }
+
+    private Response post(HttpClientEngine engine, String body) throws IOException {
+        Request request = new Request.Builder()
+                .url(server.url("/chat/completions"))
+                .post(RequestBody.create(body, ApiUtils.JSON))
+                .build();
+        return engine.getClient().newCall(request).execute();
+    }
+
+    @Test
+    public void sequentialRequests_reuseSameConnection() throws Exception {
+        server.setProtocols(Collections.singletonList(Protocol.HTTP_1_1));
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setBody("{\"ok\":" + i + "}"));
+        }
+
+        HttpClientEngine engine = newEngine();
+        for (int i = 0; i < 3; i++) {
+            try (Response response = post(engine, "{}")) {
+                assertEquals(200, response.code());
+                response.body().string();
+            }
+        }
+
+        // 同一条连接上的请求序号依次递增
+        for (int i = 0; i < 3; i++) {
+            RecordedRequest recorded = server.takeRequest();
+            assertEquals(i, recorded.getSequenceNumber());
+        }
+        assertEquals(1, listener.connectStarts.get());
+        assertEquals(1, listener.secureConnectStarts.get());
+        assertEquals(3, listener.connectionsAcquired.get());
+    }
+
+    @Test
+    public void http2_concurrentRequestsShareOneConnection() throws Exception {
+        server.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        int count = 4;
+        for (int i = 0; i < count; i++) {
+            server.enqueue(new MockResponse().setBody("{}").setBodyDelay(100, TimeUnit.MILLISECONDS));
+        }
+
+        HttpClientEngine engine = newEngine();
+        // 先完成一次请求，确认协商到HTTP/2
+        try (Response response = post(engine, "{}")) {
+            assertEquals(Protocol.HTTP_2, response.protocol());
+        }
+
+        CountDownLatch latch = new CountDownLatch(count - 1);
+        AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < count - 1; i++) {
+            Request request = new Request.Builder()
+                    .url(server.url("/chat/completions"))
+                    .post(RequestBody.create("{}", ApiUtils.JSON))
+                    .build();
+            engine.getClient().newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    failures.incrementAndGet();
+                    latch.countDown();
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) throws IOException {
+                    response.body().string();
+                    response.close();
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        assertEquals(1, listener.connectStarts.get());
+        assertEquals(1, listener.secureConnectStarts.get());
+    }
+
+    @Test
+    public void prewarm_establishesConnectionBeforeFirstRequest() throws Exception {
+        server.setProtocols(Collections.singletonList(Protocol.HTTP_1_1));
+        server.enqueue(new MockResponse());
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        HttpClientEngine engine = newEngine();
+        engine.prewarm(server.url("/").toString());
+
+        RecordedRequest warmup = server.takeRequest(5, TimeUnit.SECONDS);
+        assertNotNull(warmup);
+        assertEquals("HEAD", warmup.getMethod());
+        // 等待预热响应被关闭、连接回到连接池
+        long deadline = System.currentTimeMillis() + 5000;
+        while (listener.connectionsReleased.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        int handshakesAfterWarmup = listener.secureConnectStarts.get();
+        assertEquals(1, handshakesAfterWarmup);
+
+        try (Response response = post(engine, "{}")) {
+            assertEquals(200, response.code());
+        }
+
+        RecordedRequest recorded = server.takeRequest();
+        assertEquals(1, recorded.getSequenceNumber());
+        assertEquals(1, listener.connectStarts.get());
+        assertEquals(handshakesAfterWarmup, listener.secureConnectStarts.get());
+    }
+
+    @Test
+    public void sharedInstance_isSingleton() {
+        assertSame(HttpClientEngine.getInstance(), HttpClientEngine.getInstance());
+        assertSame(HttpClientEngine.getInstance().getClient(), HttpClientEngine.getInstance().getClient());
+    }
+
+    /*
+     统计连接建立、TLS握手和连接获取次数
+     */
+    private static class CountingEventListener extends EventListener {
+        final AtomicInteger connectStarts = new AtomicInteger();
+        final AtomicInteger secureConnectStarts = new AtomicInteger();
+        final AtomicInteger connectionsAcquired = new AtomicInteger();
+        final AtomicInteger connectionsReleased = new AtomicInteger();
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connectStarts.incrementAndGet();
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            secureConnectStarts.incrementAndGet();
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            connectionsAcquired.incrementAndGet();
+        }
+
+        @Override
+        public void connectionReleased(Call call, Connection connection) {
+            connectionsReleased.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证耗时统计的分位数、磁盘上的滚动窗口以及应用重启后的恢复。
+ */
+public class PerfMetricsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicLong now = new AtomicLong(1_000_000_000L);
+
+    // 文件读写直接在当前线程执行，便于断言
+    private PerfMetrics newMetrics(File file) {
+        return new PerfMetrics(file, now::get, Runnable::run);
+    }
+
+    @Test
+    public void percentile_isComputedPerStage() throws Exception {
+        PerfMetrics metrics = newMetrics(folder.newFile());
+        for (int i = 1; i <= 100; i++) {
+            metrics.record(PerfMetrics.STAGE_ENCODE, i * 1000L);
+        }
+        metrics.record("unknown", 5);
+
+        assertEquals(50_000, metrics.percentile(PerfMetrics.STAGE_ENCODE, 0.5));
+        assertEquals(95_000, metrics.percentile(PerfMetrics.STAGE_ENCODE, 0.95));
+        assertEquals(99_000, metrics.percentile(PerfMetrics.STAGE_ENCODE, 0.99));
+        assertEquals(-1, metrics.percentile(PerfMetrics.STAGE_TTFB, 0.5));
+        assertEquals(-1, metrics.percentile("unknown", 0.5));
+        assertTrue(metrics.describe().contains("50.0ms"));
+    }
+
+    @Test
+    public void recordsAreRestoredFromFile() throws Exception {
+        File file = folder.newFile();
+        PerfMetrics metrics = newMetrics(file);
+        metrics.record(PerfMetrics.STAGE_TTFB, 1200_000);
+        metrics.record(PerfMetrics.STAGE_DNS, 30_000);
+
+        PerfMetrics restored = newMetrics(file);
+
+        assertEquals(1, restored.count(PerfMetrics.STAGE_TTFB));
+        assertEquals(1200_000, restored.percentile(PerfMetrics.STAGE_TTFB, 0.5));
+        assertEquals(30_000, restored.percentile(PerfMetrics.STAGE_DNS, 0.5));
+    }
+
+    @Test
+    public void expiredAndExcessRecordsAreDropped() throws Exception {
+        File file = folder.newFile();
+        PerfMetrics metrics = newMetrics(file);
+        metrics.record(PerfMetrics.STAGE_CROP, 1);
+        now.addAndGet(PerfMetrics.RETENTION_MS + 1);
+        for (int i = 0; i < PerfMetrics.MAX_RECORDS + 10; i++) {
+            metrics.record(PerfMetrics.STAGE_PARSE, 1000);
+        }
+
+        PerfMetrics restored = newMetrics(file);
+
+        assertEquals(0, restored.count(PerfMetrics.STAGE_CROP));
+        assertEquals(Math.min(PerfMetrics.MAX_RECORDS, PerfMetrics.WINDOW), restored.count(PerfMetrics.STAGE_PARSE));
+    }
+
+    @Test
+    public void clear_removesSamplesAndFile() throws Exception {
+        File file = folder.newFile();
+        PerfMetrics metrics = newMetrics(file);
+        metrics.record(PerfMetrics.STAGE_CLIPBOARD, 800);
+
+        metrics.clear();
+
+        assertEquals(0, metrics.count(PerfMetrics.STAGE_CLIPBOARD));
+        assertEquals(0, newMetrics(file).count(PerfMetrics.STAGE_CLIPBOARD));
+    }
+}
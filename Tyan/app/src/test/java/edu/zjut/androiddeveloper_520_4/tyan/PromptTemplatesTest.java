@@ -0,0 +1,75 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证提示词前缀：系统消息包含回复风格并预先序列化为合法JSON，同一组设置下每次请求的开头逐字节相同，
+ * 用户消息只包含本次变化的内容。
+ */
+public class PromptTemplatesTest {
+    private static final String MODEL = "Qwen2.5-VL-72B-Instruct";
+
+    private static PromptTemplates.Prefix prefix(String scene) {
+        return PromptTemplates.Prefix.of(scene, "专业、友好", "客户", "不要用\"感叹号\"");
+    }
+
+    private static String write(PromptTemplates.Prefix prefix, String userContent) throws Exception {
+        Buffer buffer = new Buffer();
+        new ChatRequestBody(MODEL, false, prefix, Collections.emptyList(), userContent, null).writeTo(buffer);
+        return buffer.readUtf8();
+    }
+
+    @Test
+    public void systemMessageCarriesStyleAndUserMessageOnlyTheRequest() throws Exception {
+        String userContent = PromptTemplates.render(PromptTemplates.TEXT_MESSAGE, "明天开会吗");
+
+        JSONArray messages = new JSONObject(write(prefix("工作交流"), userContent)).getJSONArray("messages");
+
+        JSONObject system = messages.getJSONObject(0);
+        assertEquals("system", system.getString("role"));
+        assertEquals(ApiUtils.SYSTEM_PROMPT + "\n\n场景: 工作交流\n语气: 专业、友好\n回复对象: 客户\n其他要求: 不要用\"感叹号\"",
+                system.getString("content"));
+        assertEquals("用户消息: 明天开会吗\n\n请给出合适的回复。", messages.getJSONObject(1).getString("content"));
+    }
+
+    @Test
+    public void requestsWithSameSettingsShareByteIdenticalPrefix() throws Exception {
+        PromptTemplates.Prefix prefix = prefix("工作交流");
+        String first = write(prefix, PromptTemplates.render(PromptTemplates.TEXT_MESSAGE, "第一条"));
+        String second = write(prefix("工作交流"), PromptTemplates.render(PromptTemplates.TEXT_MESSAGE, "第二条"));
+
+        String systemJson = new String(prefix.getSystemMessageJson(), "UTF-8");
+        int end = first.indexOf(systemJson) + systemJson.length();
+        assertTrue(end > systemJson.length());
+        assertEquals(first.substring(0, end), second.substring(0, end));
+        assertEquals(prefix.getKey(), prefix("工作交流").getKey());
+    }
+
+    @Test
+    public void changedSettingsGiveDifferentPrefix() {
+        PromptTemplates.Prefix work = prefix("工作交流");
+        PromptTemplates.Prefix friends = prefix("朋友聊天");
+
+        assertNotEquals(work.getKey(), friends.getKey());
+        assertTrue(friends.getSystemContent().contains("场景: 朋友聊天"));
+        assertTrue(work.getKey().startsWith("v" + PromptTemplates.SYSTEM_VERSION));
+    }
+
+    @Test
+    public void templatesRenderMessageAtPlaceholder() {
+        assertEquals("请根据图片内容给出合适的回复。", PromptTemplates.render(PromptTemplates.IMAGE_REPLY, null));
+        assertEquals("用户消息: {x}\n\n请结合之前发送的图片给出合适的回复。",
+                PromptTemplates.render(PromptTemplates.IMAGE_IN_CONTEXT, "{x}"));
+        for (PromptTemplates.Template template : PromptTemplates.all().values()) {
+            assertTrue(template.getVersion() > 0);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证回复缓存的近似命中、多一条消息时不命中、设置键随模板版本变化、有效期、按最近使用淘汰和合并后的磁盘写入。
+ */
+public class ReplyCacheTest {
+    private static final String SETTINGS = "工作交流|专业、友好|客户|无|model";
+    private static final int SCREEN_WIDTH = 540;
+    private static final int SCREEN_HEIGHT = 960;
+    private static final int BACKGROUND = 237;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    private ReplyCache newCache(File file, int maxEntries) {
+        return new ReplyCache(file, maxEntries, ReplyCache.DEFAULT_TTL_MS, now::get, Runnable::run);
+    }
+
+    @Test
+    public void get_hitsWithinHammingDistanceAndCountsMisses() throws Exception {
+        ReplyCache cache = newCache(folder.newFile(), ReplyCache.MAX_ENTRIES);
+        ReplyCache.FrameHash hash = randomHash(1);
+        cache.put(SETTINGS, hash, "好的，收到");
+
+        // 少量位不同仍然命中
+        assertEquals("好的，收到", cache.get(SETTINGS, flip(hash, ReplyCache.MAX_HAMMING_DISTANCE)));
+        // 画面明显变化
+        assertNull(cache.get(SETTINGS, flip(hash, ReplyCache.MAX_HAMMING_DISTANCE + 1)));
+        // 设置不同
+        assertNull(cache.get(SETTINGS + "2", hash));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void get_missesWhenTheScreenHasOneMoreMessage() throws Exception {
+        ReplyCache cache = newCache(folder.newFile(), ReplyCache.MAX_ENTRIES);
+        int[] screen = chatScreen(6, -18, 3, -5);
+        cache.put(SETTINGS, hash(screen), "reply");
+
+        // 光标这样几个像素的变化仍是同一画面
+        int[] cursor = chatScreen(6, -18, 3, -5);
+        fill(cursor, 100, 900, 2, 24, 0);
+        assertEquals("reply", cache.get(SETTINGS, hash(cursor)));
+
+        // 多出一条很短的消息，无论是对方发来的还是自己发送的，都不能复用回复
+        assertNull(cache.get(SETTINGS, hash(chatScreen(6, -18, 3, -5, 2))));
+        assertNull(cache.get(SETTINGS, hash(chatScreen(6, -18, 3, -5, -2))));
+        // 最后一条消息的内容不同
+        assertNull(cache.get(SETTINGS, hash(chatScreen(6, -18, 3, -9))));
+    }
+
+    @Test
+    public void settingsKey_changesWithUserTemplateVersion() {
+        PromptTemplates.Template current = PromptTemplates.get(PromptTemplates.IMAGE_REPLY);
+        PromptTemplates.Template edited = new PromptTemplates.Template(current.getName(), current.getVersion() + 1, "请给出回复。");
+        PromptTemplates.Template other = PromptTemplates.get(PromptTemplates.TEXT_MESSAGE);
+
+        String key = ReplyCache.settingsKey(PromptTemplates.Prefix.DEFAULT, current, "model");
+        assertEquals(key, ReplyCache.settingsKey(PromptTemplates.Prefix.DEFAULT, current, "model"));
+        assertNotEquals(key, ReplyCache.settingsKey(PromptTemplates.Prefix.DEFAULT, edited, "model"));
+        assertNotEquals(key, ReplyCache.settingsKey(PromptTemplates.Prefix.DEFAULT, other, "model"));
+    }
+
+    @Test
+    public void get_ignoresExpiredEntries() throws Exception {
+        ReplyCache cache = newCache(folder.newFile(), ReplyCache.MAX_ENTRIES);
+        cache.put(SETTINGS, randomHash(42), "reply");
+
+        now.addAndGet(ReplyCache.DEFAULT_TTL_MS + 1);
+        assertNull(cache.get(SETTINGS, randomHash(42)));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed() throws Exception {
+        ReplyCache cache = newCache(folder.newFile(), 2);
+        ReplyCache.FrameHash first = randomHash(1);
+        ReplyCache.FrameHash second = randomHash(2);
+        ReplyCache.FrameHash third = randomHash(3);
+        cache.put(SETTINGS, first, "first");
+        cache.put(SETTINGS, second, "second");
+        cache.get(SETTINGS, first);// first 变为最近使用
+        cache.put(SETTINGS, third, "third");
+
+        assertEquals("first", cache.get(SETTINGS, first));
+        assertNull(cache.get(SETTINGS, second));
+        assertEquals("third", cache.get(SETTINGS, third));
+    }
+
+    @Test
+    public void entriesSurviveReload() throws Exception {
+        File file = new File(folder.getRoot(), "reply_cache.bin");
+        newCache(file, ReplyCache.MAX_ENTRIES).put(SETTINGS, randomHash(7), "持久化的回复");
+
+        ReplyCache reloaded = newCache(file, ReplyCache.MAX_ENTRIES);
+        assertEquals("持久化的回复", reloaded.get(SETTINGS, randomHash(7)));
+    }
+
+    @Test
+    public void put_coalescesWritesUntilTheSaveRuns() throws Exception {
+        File file = new File(folder.getRoot(), "reply_cache.bin");
+        List<Runnable> tasks = new ArrayList<>();
+        ReplyCache cache = new ReplyCache(file, ReplyCache.MAX_ENTRIES, ReplyCache.DEFAULT_TTL_MS, now::get, tasks::add);
+        cache.put(SETTINGS, randomHash(1), "first");
+        cache.put(SETTINGS, randomHash(2), "second");
+
+        // put 不在调用线程写文件，两次保存合并为一次写入
+        assertFalse(file.exists());
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+
+        ReplyCache reloaded = newCache(file, ReplyCache.MAX_ENTRIES);
+        assertEquals("first", reloaded.get(SETTINGS, randomHash(1)));
+        assertEquals("second", reloaded.get(SETTINGS, randomHash(2)));
+
+        cache.put(SETTINGS, randomHash(3), "third");
+        assertEquals(1, tasks.size());
+    }
+
+    @Test
+    public void differenceHash_setsBitsWhenCellIsBrighterThanItsNeighbours() {
+        int[] luma = new int[33 * 33];
+        luma[0] = 255;// 左上角的格子比右侧和下方都亮，对应最高的两位
+        ReplyCache.FrameHash hash = ReplyCache.differenceHash(luma, 33, 33);
+
+        assertEquals(2, hash.distance(ReplyCache.differenceHash(new int[33 * 33], 33, 33)));
+        assertTrue(hash.toString().startsWith("c000"));
+        assertEquals(hash, ReplyCache.FrameHash.parse(hash.toString()));
+    }
+
+    private static ReplyCache.FrameHash hash(int[] screen) {
+        return ReplyCache.differenceHash(screen, SCREEN_WIDTH, SCREEN_HEIGHT);
+    }
+
+    private static ReplyCache.FrameHash randomHash(long seed) {
+        long[] words = new long[32];
+        Random random = new Random(seed);
+        for (int i = 0; i < words.length; i++) {
+            words[i] = random.nextLong();
+        }
+        return new ReplyCache.FrameHash(words);
+    }
+
+    /*
+     翻转哈希中分散的若干位
+     */
+    private static ReplyCache.FrameHash flip(ReplyCache.FrameHash hash, int bits) {
+        char[] hex = hash.toString().toCharArray();
+        for (int i = 0; i < bits; i++) {
+            int index = i * 37 % hex.length;
+            hex[index] = Character.forDigit(Character.digit(hex[index], 16) ^ 1, 16);
+        }
+        return ReplyCache.FrameHash.parse(new String(hex));
+    }
+
+    /*
+     生成聊天区域的亮度：浅灰背景上自上而下排列消息气泡，每条消息带头像，气泡中是深色的文字
+     @param messages 每条消息的字数，正数为对方发来的消息，负数为自己发送的消息
+     */
+    private static int[] chatScreen(int... messages) {
+        int[] luma = new int[SCREEN_WIDTH * SCREEN_HEIGHT];
+        Arrays.fill(luma, BACKGROUND);
+        int top = 20;
+        for (int message : messages) {
+            boolean sent = message < 0;
+            int chars = Math.abs(message);
+            int lines = (chars + 14) / 15;
+            int width = Math.min(chars, 15) * 20 + 24;
+            int height = lines * 28 + 20;
+            int left = sent ? SCREEN_WIDTH - 70 - width : 70;
+            fill(luma, sent ? SCREEN_WIDTH - 58 : 10, top, 48, 48, sent ? 120 : 90);
+            fill(luma, left, top, width, height, sent ? 200 : 255);
+            for (int i = 0; i < chars; i++) {
+                // 每个字是一个深色方块，字与字之间留有空隙
+                fill(luma, left + 12 + i % 15 * 20, top + 12 + i / 15 * 28, 16, 18, 40);
+            }
+            top += height + 30;
+        }
+        return luma;
+    }
+
+    private static void fill(int[] luma, int left, int top, int width, int height, int value) {
+        for (int y = top; y < top + height; y++) {
+            Arrays.fill(luma, y * SCREEN_WIDTH + left, y * SCREEN_WIDTH + left + width, value);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证待发送队列：请求在磁盘上保留，相同画面的请求合并，过期和超出容量的请求被丢弃，
+ * 同一毫秒内的请求按加入顺序排列，写入失败或中断时不留下残留文件。
+ */
+public class ReplyOutboxTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicLong now = new AtomicLong(1_000_000L);
+
+    private static ImageEncoder.EncodedImage image(int size) {
+        return new ImageEncoder.EncodedImage(new byte[size], "image/jpeg", 720, 1280, 80);
+    }
+
+    /*
+     第一个字为 bits、其余为0的哈希
+     */
+    private static ReplyCache.FrameHash hash(long bits) {
+        long[] words = new long[32];
+        words[0] = bits;
+        return new ReplyCache.FrameHash(words);
+    }
+
+    @Test
+    public void entriesSurviveRestartWithImage() throws Exception {
+        File dir = folder.newFolder();
+        new ReplyOutbox(dir, now::get).enqueue("设置", hash(0xF0F0L), "场景: 工作交流", image(1234));
+
+        List<ReplyOutbox.Entry> pending = new ReplyOutbox(dir, now::get).pending();
+
+        assertEquals(1, pending.size());
+        ReplyOutbox.Entry entry = pending.get(0);
+        assertEquals("场景: 工作交流", entry.getUserContent());
+        assertEquals(hash(0xF0F0L), entry.getFrameHash());
+        ImageEncoder.EncodedImage restored = entry.readImage();
+        assertEquals(1234, restored.getData().length);
+        assertEquals("image/jpeg", restored.getMimeType());
+        assertEquals(720, restored.getWidth());
+    }
+
+    @Test
+    public void similarCapturesAreCoalesced() throws Exception {
+        ReplyOutbox outbox = new ReplyOutbox(folder.newFolder(), now::get);
+        outbox.enqueue("设置", hash(0b1111L), "old", image(10));
+        now.addAndGet(1000);
+        outbox.enqueue("设置", hash(0b1110L), "new", image(10));     // 画面相近，替换旧的请求
+        outbox.enqueue("其他设置", hash(0b1110L), "other", image(10));// 设置不同，单独发送
+        outbox.enqueue("设置", hash(~0b1111L), "different", image(10));// 画面不同
+
+        List<ReplyOutbox.Entry> pending = outbox.pending();
+
+        assertEquals(3, pending.size());
+        assertEquals("new", pending.get(0).getUserContent());
+    }
+
+    @Test
+    public void expiredAndExcessEntriesAreDropped() throws Exception {
+        ReplyOutbox outbox = new ReplyOutbox(folder.newFolder(), now::get);
+        outbox.enqueue("设置", hash(0), "expired", image(10));
+        now.addAndGet(ReplyOutbox.MAX_AGE_MS + 1);
+        for (int i = 0; i < ReplyOutbox.MAX_ENTRIES + 2; i++) {
+            outbox.enqueue("设置" + i, hash(0), "request " + i, image(10));
+            now.incrementAndGet();
+        }
+
+        List<ReplyOutbox.Entry> pending = outbox.pending();
+
+        assertEquals(ReplyOutbox.MAX_ENTRIES, pending.size());
+        assertEquals("request 2", pending.get(0).getUserContent());
+    }
+
+    @Test
+    public void recordAttempt_isPersistedAndRemoveDeletesFiles() throws Exception {
+        File dir = folder.newFolder();
+        ReplyOutbox outbox = new ReplyOutbox(dir, now::get);
+        ReplyOutbox.Entry entry = outbox.recordAttempt(outbox.enqueue("设置", hash(0), "content", image(10)));
+
+        assertEquals(1, new ReplyOutbox(dir, now::get).pending().get(0).getAttempts());
+
+        outbox.remove(entry);
+        assertEquals(0, outbox.size());
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void entriesFromTheSameMillisecondKeepTheirOrder() throws Exception {
+        ReplyOutbox outbox = new ReplyOutbox(folder.newFolder(), now::get);
+        for (int i = 0; i < 12; i++) {
+            outbox.enqueue("设置" + i, hash(0), "request " + i, image(10));
+        }
+
+        List<ReplyOutbox.Entry> pending = outbox.pending();
+
+        for (int i = 0; i < 12; i++) {
+            assertEquals("request " + i, pending.get(i).getUserContent());
+        }
+    }
+
+    @Test
+    public void pending_deletesOrphanedFiles() throws Exception {
+        File dir = folder.newFolder();
+        assertTrue(new File(dir, "1_0.img").createNewFile());     // 信息文件没有写成
+        assertTrue(new File(dir, "2_0.meta.tmp").createNewFile());// 改名之前中断
+        ReplyOutbox outbox = new ReplyOutbox(dir, now::get);
+        outbox.enqueue("设置", hash(0), "content", image(10));
+
+        assertEquals(1, outbox.pending().size());
+        assertEquals(2, dir.listFiles().length);
+    }
+
+    @Test
+    public void enqueue_deletesTheImageWhenTheEntryCannotBeCommitted() throws Exception {
+        File dir = folder.newFolder();
+        // 与新请求同名的非空目录使信息文件无法改名
+        File blocker = new File(dir, now.get() + "_0.meta");
+        assertTrue(new File(blocker, "child").mkdirs());
+        ReplyOutbox outbox = new ReplyOutbox(dir, now::get);
+
+        try {
+            outbox.enqueue("设置", hash(0), "content", image(10));
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertFalse(new File(dir, now.get() + "_0.img").exists());
+            assertFalse(new File(dir, now.get() + "_0.meta.tmp").exists());
+        }
+    }
+}
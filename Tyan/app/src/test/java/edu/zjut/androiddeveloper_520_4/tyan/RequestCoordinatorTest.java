@@ -0,0 +1,112 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证连续触发时只保留最新的请求：旧请求被取消，过期的回调被丢弃，关闭后登记的请求立即取消。
+ */
+public class RequestCoordinatorTest {
+    private final OkHttpClient client = new OkHttpClient();
+
+    @Test
+    public void begin_cancelsPreviousCall() {
+        RequestCoordinator coordinator = new RequestCoordinator("test");
+        long first = coordinator.begin();
+        Call firstCall = newCall();
+        assertTrue(coordinator.attach(first, firstCall));
+
+        long second = coordinator.begin();
+        assertTrue(firstCall.isCanceled());
+        assertFalse(coordinator.isCurrent(first));
+        assertTrue(coordinator.isCurrent(second));
+        assertFalse(coordinator.isIdle());
+    }
+
+    @Test
+    public void wrap_dropsCallbacksOfSupersededRequest() {
+        RequestCoordinator coordinator = new RequestCoordinator("test");
+        List<String> events = new ArrayList<>();
+        long first = coordinator.begin();
+        ApiUtils.ApiCallback stale = coordinator.wrap(first, recording("first", events));
+        long second = coordinator.begin();
+        ApiUtils.ApiCallback current = coordinator.wrap(second, recording("second", events));
+
+        stale.onPartial("旧");
+        stale.onFailure(new IOException("Canceled"));
+        current.onPartial("新");
+        current.onSuccess("新回复");
+
+        assertEquals(Arrays.asList("second:partial:新", "second:success:新回复"), events);
+        assertTrue(coordinator.isIdle());
+    }
+
+    @Test
+    public void attach_afterCallbackLeavesCoordinatorIdle() {
+        RequestCoordinator coordinator = new RequestCoordinator("test");
+        long generation = coordinator.begin();
+        // 回调可能先于 sendApiRequest 返回到达
+        coordinator.wrap(generation, recording("only", new ArrayList<>())).onSuccess("好的");
+        Call call = newCall();
+        assertTrue(coordinator.attach(generation, call));
+
+        assertTrue(coordinator.isIdle());
+        coordinator.begin();
+        assertFalse(call.isCanceled());
+    }
+
+    @Test
+    public void cancelAll_cancelsCurrentAndLaterAttachedCalls() {
+        RequestCoordinator coordinator = new RequestCoordinator("test");
+        long generation = coordinator.begin();
+        Call call = newCall();
+        coordinator.attach(generation, call);
+
+        coordinator.cancelAll();
+        assertTrue(call.isCanceled());
+        assertTrue(coordinator.isIdle());
+
+        // 编码完成时页面已经关闭，请求发出后立即取消
+        Call late = newCall();
+        assertFalse(coordinator.attach(generation, late));
+        assertTrue(late.isCanceled());
+    }
+
+    private Call newCall() {
+        return client.newCall(new Request.Builder().url("http://localhost/").build());
+    }
+
+    private static ApiUtils.ApiCallback recording(String name, List<String> events) {
+        return new ApiUtils.ApiCallback() {
+            @Override
+            public void onPartial(String delta) {
+                events.add(name + ":partial:" + delta);
+            }
+
+            @Override
+            public void onSuccess(String content) {
+                events.add(name + ":success:" + content);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                events.add(name + ":failure");
+            }
+
+            @Override
+            public void onError(int statusCode, String errorBody, Exception e) {
+                events.add(name + ":error:" + statusCode);
+            }
+        };
+    }
+}
@@ -0,0 +1,303 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.*;
+
+/**
+ * 用 MockWebServer 按顺序返回预设的失败，验证 ResilientCall 的重试、Retry-After、截止时间和对冲请求，
+ * 以及同步执行（execute）与异步执行的结果一致。
+ */
+public class ResilientCallTest {
+    private MockWebServer server;
+    private OkHttpClient client;
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        // 关闭OkHttp自身的连接重试，失败次数完全由测试脚本决定
+        client = HttpClientEngine.newClientBuilder()
+                .retryOnConnectionFailure(false)
+                .build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void retriesServerErrorsAndDroppedConnections() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        server.enqueue(new MockResponse().setResponseCode(502));
+        server.enqueue(new MockResponse().setBody("{\"ok\":true}"));
+
+        Result result = run(policy(3, 10_000, false));
+
+        assertNull(result.failure);
+        assertEquals(200, result.code);
+        assertEquals("{\"ok\":true}", result.body);
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void nonRetryableStatusIsDeliveredImmediately() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(401).setBody("bad key"));
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        Result result = run(policy(3, 10_000, false));
+
+        assertEquals(401, result.code);
+        assertEquals("bad key", result.body);
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void lastErrorIsDeliveredWhenRetriesAreExhausted() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setResponseCode(503).setBody("busy " + i));
+        }
+
+        Result result = run(policy(2, 10_000, false));
+
+        assertEquals(503, result.code);
+        assertEquals("busy 2", result.body);
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void honorsRetryAfter() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "1"));
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        long start = System.nanoTime();
+        Result result = run(policy(1, 10_000, false));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(200, result.code);
+        assertTrue("waited " + elapsedMs + "ms", elapsedMs >= 1000);
+    }
+
+    @Test
+    public void retryAfterBeyondDeadlineIsNotRetried() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "5"));
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        Result result = run(policy(3, 2_000, false));
+
+        assertEquals(429, result.code);
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void deadlineCoversSlowResponses() throws Exception {
+        server.enqueue(new MockResponse().setBody("{}").setHeadersDelay(3, TimeUnit.SECONDS));
+        server.enqueue(new MockResponse().setBody("{}").setHeadersDelay(3, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        Result result = run(policy(3, 500, false));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(result.failure instanceof InterruptedIOException);
+        assertTrue("took " + elapsedMs + "ms", elapsedMs < 2_000);
+    }
+
+    @Test
+    public void hedgedRequestWinsWhenPrimaryIsSlow() throws Exception {
+        for (int i = 0; i < LatencyTracker.MIN_SAMPLES; i++) {
+            latencyTracker.record(100);
+        }
+        server.enqueue(new MockResponse().setBody("slow").setHeadersDelay(5, TimeUnit.SECONDS));
+        server.enqueue(new MockResponse().setBody("fast"));
+
+        long start = System.nanoTime();
+        Result result = run(policy(0, 10_000, true));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals("fast", result.body);
+        assertEquals(2, server.getRequestCount());
+        assertTrue("took " + elapsedMs + "ms", elapsedMs < 3_000);
+    }
+
+    @Test
+    public void noHedgeWithoutLatencySamples() throws Exception {
+        server.enqueue(new MockResponse().setBody("only").setHeadersDelay(300, TimeUnit.MILLISECONDS));
+
+        Result result = run(policy(0, 10_000, true));
+
+        assertEquals("only", result.body);
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, latencyTracker.size());
+    }
+
+    @Test
+    public void cancelWhileWaitingForRetryReportsFailure() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "10"));
+
+        ResilientCall call = new ResilientCall(client, request(), policy(1, 30_000, false), latencyTracker);
+        Result result = new Result();
+        call.enqueue(result);
+        assertNotNull(server.takeRequest(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        call.cancel();
+
+        assertTrue(result.latch.await(5, TimeUnit.SECONDS));
+        assertNotNull(result.failure);
+        assertTrue(call.isCanceled());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void executeRetriesAndReturnsFinalResponse() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody("{\"ok\":true}"));
+
+        ResilientCall call = new ResilientCall(client, request(), policy(3, 10_000, false), latencyTracker);
+        try (Response response = call.execute()) {
+            assertEquals(200, response.code());
+            assertEquals("{\"ok\":true}", response.body().string());
+        }
+        assertTrue(call.isExecuted());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void executeThrowsWhenRetriesAreExhausted() throws Exception {
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+
+        ResilientCall call = new ResilientCall(client, request(), policy(0, 10_000, false), latencyTracker);
+        try {
+            call.execute().close();
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertEquals(1, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void executeAfterCancelFailsWithoutSending() throws Exception {
+        ResilientCall call = new ResilientCall(client, request(), policy(3, 10_000, false), latencyTracker);
+        call.cancel();
+        try {
+            call.execute().close();
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertEquals(0, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void failsOverToNextEndpointWithoutBackoff() throws Exception {
+        MockWebServer secondary = new MockWebServer();
+        try {
+            server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "10"));
+            secondary.enqueue(new MockResponse().setBody("secondary"));
+            EndpointConfig first = new EndpointConfig("a", "A", server.url("/").toString(), "k", "m", true);
+            EndpointConfig second = new EndpointConfig("b", "B", secondary.url("/").toString(), "k", "m", true);
+            EndpointRouter router = new EndpointRouter();
+
+            Result result = new Result();
+            new ResilientCall(client, Arrays.asList(request(first), request(second)),
+                    policy(0, 10_000, false), latencyTracker, router).enqueue(result);
+            assertTrue(result.latch.await(5, TimeUnit.SECONDS));
+
+            assertEquals("secondary", result.body);
+            assertEquals(1, server.getRequestCount());
+            assertEquals(1, secondary.getRequestCount());
+            // 失败的端点被记录下来，下一次路由时排在后面
+            assertEquals(second, router.route(Arrays.asList(first, second), true).get(0));
+        } finally {
+            secondary.shutdown();
+        }
+    }
+
+    @Test
+    public void backoffUsesFullJitterWithinCap() {
+        RetryPolicy policy = new RetryPolicy(5, 100, 1_000, 10_000, false, 0);
+        Random random = new Random(1);
+        for (int retry = 0; retry < 8; retry++) {
+            long cap = Math.min(1_000, 100L << retry);
+            for (int i = 0; i < 100; i++) {
+                long delay = policy.backoffMs(retry, random);
+                assertTrue(delay >= 0 && delay <= cap);
+            }
+        }
+        assertTrue(RetryPolicy.isRetryable(429));
+        assertTrue(RetryPolicy.isRetryable(503));
+        assertFalse(RetryPolicy.isRetryable(400));
+        assertFalse(RetryPolicy.isRetryable(501));
+    }
+
+    private static RetryPolicy policy(int maxRetries, long deadlineMs, boolean hedge) {
+        return new RetryPolicy(maxRetries, 20, 100, deadlineMs, hedge, 200);
+    }
+
+    private Request request() {
+        return new Request.Builder()
+                .url(server.url("/chat/completions"))
+                .post(RequestBody.create("{}", ApiUtils.JSON))
+                .build();
+    }
+
+    private static Request request(EndpointConfig endpoint) {
+        return new Request.Builder()
+                .url(endpoint.getChatUrl())
+                .tag(EndpointConfig.class, endpoint)
+                .post(RequestBody.create("{}", ApiUtils.JSON))
+                .build();
+    }
+
+    private Result run(RetryPolicy policy) throws InterruptedException {
+        Result result = new Result();
+        new ResilientCall(client, request(), policy, latencyTracker).enqueue(result);
+        assertTrue(result.latch.await(20, TimeUnit.SECONDS));
+        return result;
+    }
+
+    /*
+     记录最终交给调用方的结果
+     */
+    private static class Result implements Callback {
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile int code = -1;
+        volatile String body;
+        volatile IOException failure;
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            failure = e;
+            latch.countDown();
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) throws IOException {
+            try (Response closing = response) {
+                code = closing.code();
+                body = closing.body().string();
+            }
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 验证进程内共享的设置：设置文件只解析一次，多项修改一次写入并通知监听器，并发修改互不覆盖。
+ */
+public class SettingsStoreTest {
+    private final AtomicInteger loads = new AtomicInteger();
+    private final List<SettingsSnapshot> written = new ArrayList<>();
+
+    private SettingsStore newStore() {
+        return new SettingsStore(() -> {
+            loads.incrementAndGet();
+            return SettingsSnapshot.DEFAULTS;
+        }, written::add);
+    }
+
+    @Test
+    public void settingsAreLoadedOnceOnFirstRead() {
+        SettingsStore store = newStore();
+        assertEquals(0, loads.get());
+
+        SettingsSnapshot first = store.get();
+        SettingsSnapshot second = store.get();
+
+        assertEquals(1, loads.get());
+        assertSame(first, second);
+        assertEquals("工作交流", first.getScene());
+    }
+
+    @Test
+    public void updateWritesAllChangesOnceAndNotifiesListeners() {
+        SettingsStore store = newStore();
+        List<SettingsSnapshot[]> changes = new ArrayList<>();
+        store.addListener((previous, current) -> changes.add(new SettingsSnapshot[]{previous, current}));
+        SettingsSnapshot before = store.get();
+
+        SettingsSnapshot after = store.update(settings -> settings
+                .setScene("朋友聊天")
+                .setTone("轻松")
+                .setMaxRetries(-1)
+                .setBatchConcurrency(100));
+
+        assertEquals(1, written.size());
+        assertSame(after, written.get(0));
+        assertSame(after, store.get());
+        assertEquals("朋友聊天", after.getScene());
+        assertEquals("轻松", after.getTone());
+        assertEquals(0, after.getRetryPolicy().getMaxRetries());
+        assertEquals(BatchReplyRunner.MAX_CONCURRENCY, after.getBatchConcurrency());
+        assertEquals("工作交流", before.getScene());// 旧的快照不受影响
+        assertFalse(before.hasSamePrompt(after));
+
+        assertEquals(1, changes.size());
+        assertSame(before, changes.get(0)[0]);
+        assertSame(after, changes.get(0)[1]);
+    }
+
+    @Test
+    public void concurrentUpdatesOfDifferentSettingsAreNotLost() throws Exception {
+        SettingsStore store = newStore();
+        int rounds = 200;
+        CountDownLatch start = new CountDownLatch(1);
+        Thread scenes = new Thread(() -> {
+            awaitQuietly(start);
+            for (int i = 0; i < rounds; i++) {
+                String scene = "场景" + i;
+                store.update(settings -> settings.setScene(scene));
+            }
+        });
+        Thread tones = new Thread(() -> {
+            awaitQuietly(start);
+            for (int i = 0; i < rounds; i++) {
+                String tone = "语气" + i;
+                store.update(settings -> settings.setTone(tone));
+            }
+        });
+        scenes.start();
+        tones.start();
+        start.countDown();
+        scenes.join();
+        tones.join();
+
+        assertEquals(1, loads.get());
+        assertEquals("场景" + (rounds - 1), store.get().getScene());
+        assertEquals("语气" + (rounds - 1), store.get().getTone());
+        assertSame(store.get(), written.get(written.size() - 1));
+    }
+
+    @Test
+    public void endpointsArePrecomputedFromSettings() {
+        SettingsSnapshot settings = newStore().update(builder -> builder
+                .setExtraEndpoints("备用 | https://example.com/v1 | qwen-turbo | sk-1 | text"));
+
+        List<EndpointConfig> endpoints = settings.getEndpoints();
+
+        assertSame(endpoints, settings.getEndpoints());
+        assertEquals(2, endpoints.size());
+        assertEquals(EndpointConfig.DEFAULT_ID, endpoints.get(0).getId());
+        assertFalse(endpoints.get(1).isVision());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package edu.zjut.androiddeveloper_520_4.tyan.benchmark;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.uiautomator.By;
+import androidx.test.uiautomator.UiDevice;
+import androidx.test.uiautomator.UiObject2;
+import androidx.test.uiautomator.Until;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+/*
+ 各基准测试共用的准备工作，通过 shell 完成，测量过程中不再出现权限对话框
+ */
+final class BenchmarkSetup {
+    static final String PACKAGE_NAME = "edu.zjut.androiddeveloper_520_4.tyan";
+    static final long TIMEOUT_MS = 5_000;
+
+    private static final String SETUP_RECEIVER = PACKAGE_NAME + "/.BenchmarkSetupReceiver";
+    // 系统截屏授权对话框中的确认按钮，各版本和语言的文字不同
+    private static final Pattern CAPTURE_CONSENT = Pattern.compile("(?i)start now|立即开始|开始");
+
+    private BenchmarkSetup() {
+    }
+
+    static UiDevice device() {
+        return UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+    }
+
+    /*
+     授予悬浮窗、读取图片和通知权限，并允许截屏
+     */
+    static void grantPermissions() throws IOException {
+        UiDevice device = device();
+        device.executeShellCommand("appops set " + PACKAGE_NAME + " SYSTEM_ALERT_WINDOW allow");
+        device.executeShellCommand("appops set " + PACKAGE_NAME + " PROJECT_MEDIA allow");
+        device.executeShellCommand("pm grant " + PACKAGE_NAME + " android.permission.READ_MEDIA_IMAGES");
+        device.executeShellCommand("pm grant " + PACKAGE_NAME + " android.permission.POST_NOTIFICATIONS");
+    }
+
+    /*
+     发送广播给 benchmark 构建中的 BenchmarkSetupReceiver，am broadcast 等数据准备完成后才返回
+     @param extras am broadcast 的参数，如 "--ei messages 1000"
+     */
+    static void prepareApp(String extras) throws IOException {
+        device().executeShellCommand("am broadcast -n " + SETUP_RECEIVER + " " + extras);
+    }
+
+    /*
+     应用第一次启动时会请求截屏权限，出现系统授权对话框时确认
+     */
+    static void acceptScreenCapture(UiDevice device) {
+        UiObject2 confirm = device.wait(Until.findObject(By.text(CAPTURE_CONSENT)), TIMEOUT_MS);
+        if (confirm != null) {
+            confirm.click();
+        }
+    }
+}
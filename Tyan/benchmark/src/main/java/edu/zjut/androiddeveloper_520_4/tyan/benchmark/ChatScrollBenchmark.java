@@ -0,0 +1,80 @@
+package edu.zjut.androiddeveloper_520_4.tyan.benchmark;
+
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.FrameTimingMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.uiautomator.By;
+import androidx.test.uiautomator.Direction;
+import androidx.test.uiautomator.UiDevice;
+import androidx.test.uiautomator.UiObject2;
+import androidx.test.uiautomator.Until;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import kotlin.Unit;
+
+/**
+ * 本地图片回复页面在1000条对话记录中上下滑动时的帧耗时（frameDurationCpuMs、frameOverrunMs），
+ * 向上滑动时会触发按页读取更早的消息，卡顿包含分页读取的影响。
+ */
+@RunWith(AndroidJUnit4.class)
+public class ChatScrollBenchmark {
+    private static final int ITERATIONS = 5;
+    private static final int MESSAGE_COUNT = 1000;
+    private static final int FLINGS = 5;
+
+    @Rule
+    public MacrobenchmarkRule benchmarkRule = new MacrobenchmarkRule();
+
+    @Before
+    public void setUp() throws IOException {
+        BenchmarkSetup.grantPermissions();
+        BenchmarkSetup.prepareApp("--ei messages " + MESSAGE_COUNT);
+    }
+
+    @Test
+    public void scrollConversation() {
+        benchmarkRule.measureRepeated(
+                BenchmarkSetup.PACKAGE_NAME,
+                Collections.singletonList(new FrameTimingMetric()),
+                new CompilationMode.None(),
+                null,
+                ITERATIONS,
+                scope -> {
+                    scope.pressHome();
+                    scope.startActivityAndWait();
+                    openConversation(scope.getDevice());
+                    return Unit.INSTANCE;
+                },
+                scope -> {
+                    UiDevice device = scope.getDevice();
+                    UiObject2 list = device.findObject(By.res(BenchmarkSetup.PACKAGE_NAME, "chat_recycler_view"));
+                    // 留出边距，避免手势从屏幕边缘开始被识别为返回
+                    list.setGestureMargin(device.getDisplayWidth() / 5);
+                    for (int i = 0; i < FLINGS; i++) {
+                        list.fling(Direction.UP);// 列表从最新的消息开始，向上查看更早的消息
+                    }
+                    for (int i = 0; i < FLINGS; i++) {
+                        list.fling(Direction.DOWN);
+                    }
+                    device.waitForIdle();
+                    return Unit.INSTANCE;
+                });
+    }
+
+    /*
+     本地图片回复页面没有导出，只能从主界面进入
+     */
+    private static void openConversation(UiDevice device) {
+        device.findObject(By.text("本地图片回复")).click();
+        device.wait(Until.hasObject(By.res(BenchmarkSetup.PACKAGE_NAME, "chat_recycler_view")), BenchmarkSetup.TIMEOUT_MS);
+        device.waitForIdle();
+    }
+}
@@ -0,0 +1,61 @@
+package edu.zjut.androiddeveloper_520_4.tyan.benchmark;
+
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.StartupMode;
+import androidx.benchmark.macro.StartupTimingMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import kotlin.Unit;
+
+/**
+ * MainActivity 的冷启动和温启动耗时（timeToInitialDisplayMs）。
+ * 不做预编译，相当于刚安装后的首次启动，结果不受设备上已有编译状态的影响。
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+    private static final int ITERATIONS = 10;
+
+    @Rule
+    public MacrobenchmarkRule benchmarkRule = new MacrobenchmarkRule();
+
+    @Before
+    public void setUp() throws IOException {
+        BenchmarkSetup.grantPermissions();
+    }
+
+    @Test
+    public void coldStartup() {
+        measureStartup(StartupMode.COLD);
+    }
+
+    @Test
+    public void warmStartup() {
+        measureStartup(StartupMode.WARM);
+    }
+
+    private void measureStartup(StartupMode startupMode) {
+        benchmarkRule.measureRepeated(
+                BenchmarkSetup.PACKAGE_NAME,
+                Collections.singletonList(new StartupTimingMetric()),
+                new CompilationMode.None(),
+                startupMode,
+                ITERATIONS,
+                scope -> {
+                    scope.pressHome();
+                    return Unit.INSTANCE;
+                },
+                scope -> {
+                    scope.startActivityAndWait();
+                    return Unit.INSTANCE;
+                });
+    }
+}
@@ -0,0 +1,107 @@
+package edu.zjut.androiddeveloper_520_4.tyan.benchmark;
+
+import android.os.SystemClock;
+
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.TraceSectionMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.uiautomator.By;
+import androidx.test.uiautomator.UiDevice;
+import androidx.test.uiautomator.Until;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kotlin.Unit;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * 点击悬浮球到回复复制到剪贴板的耗时，大模型端点是本进程中的 MockWebServer，结果不受网络和模型速度影响。
+ * 计时取自应用中 ScreenshotService 的 TapToClipboard 区间，包括截屏、编码、发送请求、解析回复和写入剪贴板。
+ * 需要设备在 appops 允许后不再弹出截屏授权，或授权对话框可以被自动确认。
+ */
+@RunWith(AndroidJUnit4.class)
+public class TapToClipboardBenchmark {
+    private static final int ITERATIONS = 10;
+    private static final String TRACE_SECTION = "TapToClipboard";// 与 ScreenshotService.TRACE_TAP_TO_CLIPBOARD 一致
+    private static final String REPLY = "{\"choices\":[{\"message\":{\"role\":\"assistant\",\"content\":\"好的，明天见\"},"
+            + "\"finish_reason\":\"stop\"}],\"usage\":{\"prompt_tokens\":900,\"completion_tokens\":6,\"total_tokens\":906}}";
+    private static final long REPLY_SETTLE_MS = 1_000;// 收到请求后留给应用解析和写入剪贴板的时间
+
+    @Rule
+    public MacrobenchmarkRule benchmarkRule = new MacrobenchmarkRule();
+
+    private final MockWebServer server = new MockWebServer();
+    private final AtomicInteger chatRequests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if ("POST".equals(request.getMethod())) {
+                    chatRequests.incrementAndGet();
+                }
+                // 悬浮球显示时的预热请求也在这里应答
+                return new MockResponse().setHeader("Content-Type", "application/json").setBody(REPLY);
+            }
+        });
+        server.start();
+        BenchmarkSetup.grantPermissions();
+        BenchmarkSetup.prepareApp("--es url " + server.url("/"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void tapToClipboard() {
+        benchmarkRule.measureRepeated(
+                BenchmarkSetup.PACKAGE_NAME,
+                Collections.singletonList(new TraceSectionMetric(TRACE_SECTION)),
+                new CompilationMode.None(),
+                null,
+                ITERATIONS,
+                scope -> {
+                    showFloatingBubble(scope.getDevice(), () -> scope.startActivityAndWait());
+                    return Unit.INSTANCE;
+                },
+                scope -> {
+                    UiDevice device = scope.getDevice();
+                    int before = chatRequests.get();
+                    device.findObject(By.res(BenchmarkSetup.PACKAGE_NAME, "floating_icon")).click();
+                    long deadline = SystemClock.uptimeMillis() + BenchmarkSetup.TIMEOUT_MS;
+                    while (chatRequests.get() == before && SystemClock.uptimeMillis() < deadline) {
+                        SystemClock.sleep(50);
+                    }
+                    SystemClock.sleep(REPLY_SETTLE_MS);
+                    return Unit.INSTANCE;
+                });
+    }
+
+    /*
+     悬浮球还没有显示时从主界面开启
+     */
+    private static void showFloatingBubble(UiDevice device, Runnable startMainActivity) {
+        if (device.hasObject(By.res(BenchmarkSetup.PACKAGE_NAME, "floating_icon"))) {
+            return;
+        }
+        startMainActivity.run();
+        BenchmarkSetup.acceptScreenCapture(device);
+        device.findObject(By.text("开启悬浮窗")).click();
+        device.wait(Until.hasObject(By.res(BenchmarkSetup.PACKAGE_NAME, "floating_icon")), BenchmarkSetup.TIMEOUT_MS);
+    }
+}
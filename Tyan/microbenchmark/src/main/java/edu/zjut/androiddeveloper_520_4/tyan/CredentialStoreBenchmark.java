@@ -0,0 +1,91 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * 每次请求取得 Authorization 请求头的耗时：
+ * 原来从 SharedPreferences 读取明文Key，现在从 CredentialStore 的内存缓存读取，两者应当相当；
+ * 第一次使用时经过 Keystore 解密，只在进程内发生一次，每次读取都解密的方案（如 EncryptedSharedPreferences）每次请求都要付出这部分时间。
+ */
+@RunWith(AndroidJUnit4.class)
+public class CredentialStoreBenchmark {
+    private static final String ENDPOINT_ID = "benchmark_endpoint";// 不影响应用中已保存的Key
+    private static final String PREFS_NAME = "CredentialStoreBenchmark";
+    private static final String KEY = "sk-0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private CredentialStore credentials;
+    private SharedPreferences plaintext;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        credentials = CredentialStore.getInstance(context);
+        credentials.put(ENDPOINT_ID, KEY);
+        plaintext = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        plaintext.edit().putString("api_key", KEY).commit();
+    }
+
+    @After
+    public void tearDown() {
+        credentials.put(ENDPOINT_ID, "");
+        plaintext.edit().clear().commit();
+    }
+
+    /*
+     原来的做法：每次请求从设置中读取明文Key
+     */
+    @Test
+    public void plaintextPreferences() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            String header = "Bearer " + plaintext.getString("api_key", "");
+            if (header.isEmpty()) {
+                throw new AssertionError();
+            }
+        }
+    }
+
+    /*
+     现在每次请求的做法：已经解密过，从内存缓存中读取
+     */
+    @Test
+    public void cachedCredential() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            if (credentials.authorization(ENDPOINT_ID).isEmpty()) {
+                throw new AssertionError();
+            }
+        }
+    }
+
+    /*
+     进程内第一次使用或清零之后：读取密文并经过 Keystore 解密
+     */
+    @Test
+    public void firstUseDecrypts() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            credentials.wipe();
+            state.resumeTiming();
+            if (credentials.authorization(ENDPOINT_ID).isEmpty()) {
+                throw new AssertionError();
+            }
+        }
+    }
+}
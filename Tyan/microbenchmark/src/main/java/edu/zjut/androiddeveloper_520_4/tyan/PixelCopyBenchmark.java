@@ -0,0 +1,62 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.graphics.Rect;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 截屏时把 ImageReader 的帧拷贝为 Bitmap 的耗时（ScreenshotUtil.copyPixels）：
+ * 整行连续时直接拷贝，带行填充或只截取聊天区域时逐行拷贝到紧凑缓冲区。
+ */
+@RunWith(AndroidJUnit4.class)
+public class PixelCopyBenchmark {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 2400;
+    private static final int PIXEL_STRIDE = 4;  // RGBA_8888
+    private static final int ROW_PADDING = 64;  // 部分设备的 ImageReader 每行末尾带有填充
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void fullFrame() {
+        measure(WIDTH * PIXEL_STRIDE, new Rect(0, 0, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void fullFrameWithRowPadding() {
+        measure(WIDTH * PIXEL_STRIDE + ROW_PADDING, new Rect(0, 0, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void chatRegion() {
+        // 去掉状态栏、标题栏和输入栏后的聊天区域
+        measure(WIDTH * PIXEL_STRIDE, new Rect(0, 250, WIDTH, HEIGHT - 300));
+    }
+
+    private void measure(int rowStride, Rect crop) {
+        ByteBuffer frame = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+        for (int i = 0; i < frame.capacity(); i++) {
+            frame.put(i, (byte) i);
+        }
+        int rowBytes = crop.width() * PIXEL_STRIDE;
+        boolean contiguous = rowStride == rowBytes;
+        ByteBuffer packed = contiguous ? null : ByteBuffer.allocateDirect(rowBytes * crop.height());
+
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            if (packed != null) {
+                packed.clear();
+            }
+            ScreenshotUtil.copyPixels(frame, rowStride, PIXEL_STRIDE, crop, packed).recycle();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * 截图上传路径上的CPU耗时：按当前设置的编码策略压缩截图、写出Base64，以及构建并写出带历史消息的请求体。
+ * 请求体写入丢弃数据的 Sink，只测量序列化本身。
+ */
+@RunWith(AndroidJUnit4.class)
+public class RequestBodyBenchmark {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 2400;
+    private static final int HISTORY_TURNS = 20;
+    private static final String USER_CONTENT = PromptTemplates.render(PromptTemplates.IMAGE_REPLY, null);
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private StyleSettingsManager settingsManager;
+    private ImageEncoder.Policy policy;
+    private Bitmap screenshot;
+    private ImageEncoder.EncodedImage image;
+    private List<ConversationContext.Turn> history;
+
+    @Before
+    public void setUp() {
+        settingsManager = new StyleSettingsManager(InstrumentationRegistry.getInstrumentation().getTargetContext());
+        policy = settingsManager.getEncodingPolicy();
+        screenshot = drawChatScreenshot();
+        image = ImageEncoder.encode(screenshot, policy);
+        history = new ArrayList<>();
+        for (int i = 0; i < HISTORY_TURNS; i++) {
+            history.add(new ConversationContext.Turn(i % 2 == 0 ? ConversationContext.ROLE_USER : ConversationContext.ROLE_ASSISTANT,
+                    "第" + i + "轮对话：明天下午的会议改到三点，记得带上材料。"));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        screenshot.recycle();
+    }
+
+    @Test
+    public void encodeImage() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            ImageEncoder.encode(screenshot, policy);
+        }
+    }
+
+    /*
+     原 bitmapToBase64 的全部工作：压缩截图并以Base64写入请求体
+     */
+    @Test
+    public void bitmapToBase64() throws IOException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            ImageEncoder.EncodedImage encoded = ImageEncoder.encode(screenshot, policy);
+            writeToBlackhole(ApiUtils.createApiRequestBody(settingsManager, USER_CONTENT, encoded));
+        }
+    }
+
+    @Test
+    public void createApiRequestBody() throws IOException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            writeToBlackhole(ApiUtils.createApiRequestBody(settingsManager, history, USER_CONTENT, image));
+        }
+    }
+
+    private static void writeToBlackhole(ChatRequestBody body) throws IOException {
+        BufferedSink sink = Okio.buffer(Okio.blackhole());
+        body.writeTo(sink);
+        sink.flush();
+    }
+
+    /*
+     画出类似聊天界面的截图：浅色背景上左右交替的气泡，压缩结果接近真实截图
+     */
+    private static Bitmap drawChatScreenshot() {
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawColor(Color.rgb(237, 237, 237));
+        Paint bubble = new Paint(Paint.ANTI_ALIAS_FLAG);
+        Paint text = new Paint(Paint.ANTI_ALIAS_FLAG);
+        text.setTextSize(42);
+        text.setColor(Color.BLACK);
+        for (int y = 200, i = 0; y < HEIGHT - 200; y += 180, i++) {
+            boolean mine = i % 2 == 1;
+            bubble.setColor(mine ? Color.rgb(149, 236, 105) : Color.WHITE);
+            float left = mine ? WIDTH * 0.35f : 150;
+            float right = mine ? WIDTH - 150 : WIDTH * 0.7f;
+            canvas.drawRoundRect(new RectF(left, y, right, y + 120), 16, 16, bubble);
+            canvas.drawText("第" + i + "条消息，明天下午三点开会", left + 30, y + 75, text);
+        }
+        return bitmap;
+    }
+}
@@ -0,0 +1,98 @@
+package edu.zjut.androiddeveloper_520_4.tyan;
+
+import android.util.Base64;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Random;
+
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * 大图片请求体的序列化开销：对 1MB、5MB、15MB 的图片，比较最初的 org.json 内联Base64写法与 StreamingJsonWriter 流式写出，
+ * 两者都写入丢弃数据的 Sink。耗时和分配次数由 BenchmarkRule 记录在结果JSON中。
+ */
+@RunWith(Parameterized.class)
+public class RequestSerializationBenchmark {
+    private static final String MODEL = "Qwen2.5-VL-72B-Instruct";
+    private static final String USER_CONTENT = PromptTemplates.render(PromptTemplates.IMAGE_REPLY, null);
+
+    @Parameterized.Parameters(name = "{0}MB")
+    public static Collection<Object[]> sizes() {
+        return Arrays.asList(new Object[][]{{1}, {5}, {15}});
+    }
+
+    @Parameterized.Parameter
+    public int sizeMb;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private ImageEncoder.EncodedImage image;
+
+    @Before
+    public void setUp() {
+        byte[] data = new byte[sizeMb << 20];
+        new Random(sizeMb).nextBytes(data);
+        image = new ImageEncoder.EncodedImage(data, "image/jpeg", 1600, 1200, 80);
+    }
+
+    /*
+     最初的实现：Base64字符串放入JSONObject，整体 toString 后再编码为字节
+     */
+    @Test
+    public void orgJsonInline() throws IOException, JSONException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            String url = "data:" + image.getMimeType() + ";base64," + Base64.encodeToString(image.getData(), Base64.NO_WRAP);
+            writeToBlackhole(RequestBody.create(buildOrgJson(url), ApiUtils.JSON));
+        }
+    }
+
+    @Test
+    public void streamingWriter() throws IOException {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            writeToBlackhole(new ChatRequestBody(MODEL, true, Collections.emptyList(), USER_CONTENT, image));
+        }
+    }
+
+    private static void writeToBlackhole(RequestBody body) throws IOException {
+        body.contentLength();
+        BufferedSink sink = Okio.buffer(Okio.blackhole());
+        body.writeTo(sink);
+        sink.flush();
+    }
+
+    private static String buildOrgJson(String imageUrl) throws JSONException {
+        JSONObject request = new JSONObject();
+        request.put("model", MODEL);
+        JSONArray messages = new JSONArray();
+        messages.put(new JSONObject().put("role", "system").put("content", ApiUtils.SYSTEM_PROMPT));
+        JSONArray content = new JSONArray();
+        content.put(new JSONObject().put("type", "text").put("text", USER_CONTENT));
+        content.put(new JSONObject().put("type", "image_url").put("image_url", new JSONObject().put("url", imageUrl)));
+        messages.put(new JSONObject().put("role", "user").put("content", content));
+        request.put("messages", messages);
+        request.put("stream", true);
+        request.put("max_tokens", ChatRequestBody.MAX_TOKENS);
+        request.put("temperature", ChatRequestBody.TEMPERATURE);
+        return request.toString();
+    }
+}